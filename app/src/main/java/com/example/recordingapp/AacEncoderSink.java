@@ -0,0 +1,239 @@
+package com.example.recordingapp;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * MediaCodec でAACにエンコードし、{@link Mp4AacWriter} でMPEG-4ファイルに書き出す {@link PcmSink}。
+ * MediaMuxer は閉じるまで moov を書かず、強制終了されたファイルを作り直す手がかりも残さないので使わない。
+ * MediaCodec は同期モードで使い、入力の投入と出力の取り出しを書き込みスレッド上で交互に行う。
+ * コーデックに {@link EncoderProfile#CODEC_OPUS} を指定すると、同じ手順で Opus にエンコードし、
+ * MediaMuxer でOGGに書き出す (Android 10 以降)。
+ */
+public final class AacEncoderSink implements PcmSink {
+
+    private static final long DEQUEUE_TIMEOUT_US = 10_000;
+
+    private final String outputFilePath;
+    private final String codecName;
+    private final int bitRate;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+    private PcmFormat format;
+    private MediaCodec codec;
+    // AAC の書き出し先
+    private Mp4AacWriter mp4Writer;
+    // Opus の書き出し先
+    private MediaMuxer muxer;
+    private int trackIndex = -1;
+    // 出力形式が分かり、書き出し先 (Mp4AacWriter または MediaMuxer) を開始したか
+    private boolean muxerStarted;
+    private long bytesWritten;
+
+    public AacEncoderSink(String outputFilePath, int bitRate) {
+        this(outputFilePath, EncoderProfile.CODEC_AAC, bitRate);
+    }
+
+    /**
+     * @param codecName EncoderProfile.CODEC_*
+     */
+    public AacEncoderSink(String outputFilePath, String codecName, int bitRate) {
+        this.outputFilePath = outputFilePath;
+        this.codecName = codecName;
+        this.bitRate = bitRate;
+    }
+
+    /**
+     * この端末でエンコード設定のコーデックが使えるかどうか
+     */
+    public static boolean isEncoderAvailable(EncoderProfile profile) {
+        if (EncoderProfile.CODEC_OPUS.equals(profile.getCodec()) && Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            // Opus のエンコーダーとOGGの書き出しは Android 10 から
+            return false;
+        }
+        MediaFormat mediaFormat = MediaFormat.createAudioFormat(
+                mimeTypeOf(profile.getCodec()), profile.getSampleRate(), profile.getChannelCount());
+        return new MediaCodecList(MediaCodecList.REGULAR_CODECS).findEncoderForFormat(mediaFormat) != null;
+    }
+
+    private static String mimeTypeOf(String codecName) {
+        return EncoderProfile.CODEC_OPUS.equals(codecName)
+                ? MediaFormat.MIMETYPE_AUDIO_OPUS : MediaFormat.MIMETYPE_AUDIO_AAC;
+    }
+
+    /**
+     * 設定と開始まで済ませたAACエンコーダーを作る。録音開始前に作っておき、{@link #setPreparedEncoder(MediaCodec)} で渡せる。
+     */
+    public static MediaCodec createEncoder(PcmFormat format, int bitRate) throws IOException {
+        return createEncoder(format, EncoderProfile.CODEC_AAC, bitRate);
+    }
+
+    /**
+     * 設定と開始まで済ませたエンコーダーを作る
+     * @param codecName EncoderProfile.CODEC_*
+     */
+    public static MediaCodec createEncoder(PcmFormat format, String codecName, int bitRate) throws IOException {
+        String mimeType = mimeTypeOf(codecName);
+        MediaFormat mediaFormat = MediaFormat.createAudioFormat(
+                mimeType, format.getSampleRate(), format.getChannelCount());
+        if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mimeType)) {
+            mediaFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        }
+        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        mediaFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, format.samplesForMillis(100) * PcmFormat.BYTES_PER_SAMPLE);
+
+        MediaCodec encoder = MediaCodec.createEncoderByType(mimeType);
+        try {
+            encoder.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            encoder.start();
+        } catch (RuntimeException e) {
+            encoder.release();
+            throw e;
+        }
+        return encoder;
+    }
+
+    /**
+     * {@link #createEncoder(PcmFormat, int)} で先に作っておいたエンコーダーを使う。open() より前に呼ぶこと。
+     * エンコーダーはこの出力先が解放する。
+     */
+    public void setPreparedEncoder(MediaCodec encoder) {
+        this.codec = encoder;
+    }
+
+    @Override
+    public void open(PcmFormat format) throws IOException {
+        this.format = format;
+        if (codec == null) {
+            codec = createEncoder(format, codecName, bitRate);
+        }
+        if (!EncoderProfile.CODEC_OPUS.equals(codecName)) {
+            // ファイルはエンコーダーの出力形式が分かったときに作る
+            mp4Writer = new Mp4AacWriter(outputFilePath);
+            return;
+        }
+        try {
+            muxer = new MediaMuxer(outputFilePath, MediaMuxer.OutputFormat.MUXER_OUTPUT_OGG);
+        } catch (IOException | RuntimeException e) {
+            codec.release();
+            codec = null;
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(short[] buffer, int offset, int length, long presentationTimeUs) throws IOException {
+        int written = 0;
+        while (written < length) {
+            int inputIndex = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+            if (inputIndex < 0) {
+                // 入力バッファが空くまで、出力を取り出してエンコーダーを進める
+                drain(false);
+                continue;
+            }
+            ByteBuffer input = codec.getInputBuffer(inputIndex);
+            input.clear();
+            int count = Math.min(length - written, input.remaining() / PcmFormat.BYTES_PER_SAMPLE);
+            // asShortBuffer() はビューを毎回作るので、putShort で直接書き込む。
+            // 入力バッファは getInputBuffer のたびに前のものが無効になるので、ビューを取っておくこともできない
+            input.order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = offset + written, end = i + count; i < end; i++) {
+                input.putShort(buffer[i]);
+            }
+            long ptsUs = presentationTimeUs + format.samplesToUs(written);
+            codec.queueInputBuffer(inputIndex, 0, count * PcmFormat.BYTES_PER_SAMPLE, ptsUs, 0);
+            written += count;
+        }
+        drain(false);
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (codec == null) {
+            return;
+        }
+        try {
+            int inputIndex = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US * 10);
+            if (inputIndex >= 0) {
+                codec.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                drain(true);
+            }
+            codec.stop();
+            if (muxer != null && muxerStarted) {
+                muxer.stop();
+            }
+            if (mp4Writer != null) {
+                mp4Writer.close();
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException("エンコーダーの終了処理に失敗しました", e);
+        } finally {
+            codec.release();
+            codec = null;
+            mp4Writer = null;
+            if (muxer != null) {
+                muxer.release();
+                muxer = null;
+            }
+            muxerStarted = false;
+        }
+    }
+
+    /**
+     * エンコード済みのデータを取り出してファイルに書き込む
+     * @param endOfStream true の場合、EOSフラグが出てくるまで待つ
+     */
+    private void drain(boolean endOfStream) throws IOException {
+        while (true) {
+            int outputIndex = codec.dequeueOutputBuffer(bufferInfo, endOfStream ? DEQUEUE_TIMEOUT_US : 0);
+            if (outputIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) {
+                    return;
+                }
+            } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                MediaFormat outputFormat = codec.getOutputFormat();
+                if (mp4Writer != null) {
+                    mp4Writer.start(format.getSampleRate(), format.getChannelCount(), bitRate,
+                            outputFormat.getByteBuffer("csd-0"));
+                } else {
+                    trackIndex = muxer.addTrack(outputFormat);
+                    muxer.start();
+                }
+                muxerStarted = true;
+            } else if (outputIndex >= 0) {
+                ByteBuffer output = codec.getOutputBuffer(outputIndex);
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    // コーデック設定情報は出力形式の csd-0 に含まれている
+                    bufferInfo.size = 0;
+                }
+                if (bufferInfo.size > 0 && muxerStarted) {
+                    output.position(bufferInfo.offset);
+                    output.limit(bufferInfo.offset + bufferInfo.size);
+                    if (mp4Writer != null) {
+                        mp4Writer.writeFrame(output);
+                    } else {
+                        muxer.writeSampleData(trackIndex, output, bufferInfo);
+                    }
+                    bytesWritten += bufferInfo.size;
+                }
+                codec.releaseOutputBuffer(outputIndex, false);
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
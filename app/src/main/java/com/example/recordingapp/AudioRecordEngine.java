@@ -0,0 +1,479 @@
+package com.example.recordingapp;
+
+import android.media.MediaCodec;
+import android.media.MediaRecorder;
+import android.os.Process;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * AudioRecord で読み込んだPCMを MediaCodec (AAC / Opus) + MediaMuxer で保存する録音エンジン。
+ * バッファの受け渡しとスレッドの管理は {@link CapturePipeline} が行う。
+ * サンプリングレート、チャンネル数、コーデック、ビットレートは録音の設定の {@link EncoderProfile} に従う。
+ */
+public final class AudioRecordEngine implements CaptureEngine {
+
+    // 1バッファ 20ms、合計約1.3秒分を受け渡し用のリングバッファとして確保する
+    private static final int BUFFER_MILLIS = 20;
+    private static final int BUFFER_COUNT = 64;
+    // 入力レベルを画面へ公開する最大頻度
+    private static final int LEVEL_PUBLISH_RATE_HZ = 30;
+    // 無音をスキップするときに、発話の直前に残す長さと、発話の後に書き込みを続ける長さ
+    private static final int VAD_PRE_ROLL_MILLIS = 300;
+    private static final int VAD_HANGOVER_MILLIS = 500;
+
+    /**
+     * posix_fallocate で実際にディスク上の領域を確保する。使えないファイルシステムではファイル長だけ伸ばす。
+     */
+    private static final WavFileSink.Preallocator FALLOCATE = (file, fd, offset, length) -> {
+        try {
+            Os.posix_fallocate(fd, offset, length);
+        } catch (ErrnoException e) {
+            WavFileSink.SET_LENGTH.preallocate(file, fd, offset, length);
+        }
+    };
+
+    private final Consumer<String> logger;
+    private RecordingOptions options;
+    // 録音の設定のエンコード設定に合わせる。待機モードやウォームアップで作った後は変えられない
+    private PcmFormat format;
+    private CapturePipeline.Listener errorListener;
+    private LevelSnapshot levelSnapshot;
+    // 録音中のPCMを同じプロセス内の読み手に配る先 (null なら配らない)
+    private PcmFanout pcmFanout;
+    // スペクトルの公開先。録音の設定でスペクトルを求める場合だけ使う
+    private SpectrumFrames spectrumFrames;
+    private SpectrumAnalyzer spectrumAnalyzer;
+    private CapturePipeline pipeline;
+    private VadGateSink vadGate;
+    private PeakPyramidBuilder peakBuilder;
+    private SeekIndexBuilder seekIndex;
+    // 強制終了された後に書きかけのファイルを修復するための記録
+    private SessionJournal journal;
+    // 録音中にビットレートを上げ下げする場合だけ使う
+    private AdaptiveBitrateController bitrateController;
+    // 待機モードのときだけ使う
+    private PreRollSink preRollSink;
+    // prepare() で先に作っておいたもの (start() で使われるまで)
+    private AudioRecordSource preparedSource;
+    private MediaCodec preparedEncoder;
+    private SessionMetrics metrics;
+    // 書き込んだバイト数を保存容量の使用量に数える先 (null なら数えない)
+    private StorageQuota.Session storageSession;
+    // 録音開始時点のパイプラインの値 (待機モードでは録音開始前から数えているので、その分を引く)
+    private long capturedSamplesBase;
+    private long overrunCountBase;
+
+    /**
+     * @param logger ログの出力先
+     * @param options 録音の設定
+     */
+    public AudioRecordEngine(Consumer<String> logger, RecordingOptions options) {
+        this.logger = logger;
+        this.options = options;
+        this.format = options.getEncoderProfile().getFormat();
+    }
+
+    /**
+     * パイプラインのスレッドでエラーが発生したときの通知先を指定する
+     */
+    public void setErrorListener(CapturePipeline.Listener errorListener) {
+        this.errorListener = errorListener;
+    }
+
+    /**
+     * 録音の設定を差し替える。待機モードで動かした後やウォームアップの後、start() の前に呼べる。
+     * エンコードの設定が変わった場合、準備済みのエンコーダーは作り直す。
+     * 待機モードで既に読み込み中なら、サンプリングレートとチャンネル数は待機モードのまま録音する。
+     */
+    public void setOptions(RecordingOptions options) {
+        EncoderProfile previous = this.options.getEncoderProfile();
+        this.options = options;
+        if (options.getEncoderProfile() == previous) {
+            return;
+        }
+        if (preparedEncoder != null) {
+            preparedEncoder.release();
+            preparedEncoder = null;
+        }
+        PcmFormat requested = options.getEncoderProfile().getFormat();
+        if (requested.equals(format)) {
+            return;
+        }
+        if (pipeline != null) {
+            logger.accept("WARN: 待機モードの " + format + " のまま録音します (要求: " + requested + ")");
+            return;
+        }
+        if (preparedSource != null) {
+            preparedSource.release();
+            preparedSource = null;
+        }
+        format = requested;
+    }
+
+    /**
+     * 入力レベルの公開先を指定する。start() より前に呼ぶこと。
+     */
+    public void setLevelSnapshot(LevelSnapshot levelSnapshot) {
+        this.levelSnapshot = levelSnapshot;
+    }
+
+    /**
+     * 録音中のPCMを配る先を指定する。start() より前に呼ぶこと。
+     */
+    public void setPcmFanout(PcmFanout pcmFanout) {
+        this.pcmFanout = pcmFanout;
+    }
+
+    /**
+     * スペクトルの公開先を指定する。start() より前に呼ぶこと。
+     */
+    public void setSpectrumFrames(SpectrumFrames spectrumFrames) {
+        this.spectrumFrames = spectrumFrames;
+    }
+
+    /**
+     * AudioRecord と、AACで保存する場合はエンコーダーを先に作っておく。
+     * どちらも生成に数十〜数百ミリ秒かかることがあるので、録音開始の指示を受ける前に済ませておくと
+     * 最初のサンプルを受け取るまでの時間が短くなる。
+     */
+    @Override
+    public void prepare() throws IOException {
+        if (pipeline != null || preparedSource != null) {
+            return;
+        }
+        preparedSource = createSource();
+        if (RecordingOptions.OUTPUT_FORMAT_WAV.equals(options.getOutputFormat())) {
+            return;
+        }
+        EncoderProfile profile = options.getEncoderProfile();
+        try {
+            preparedEncoder = AacEncoderSink.createEncoder(format, profile.getCodec(), profile.getBitRate());
+            logger.accept("ENGINE: エンコーダーを準備しました (" + profile + ")");
+        } catch (IOException | RuntimeException e) {
+            // エンコーダーは録音開始時に作り直せばよい
+            logger.accept("WARN: エンコーダーを準備できませんでした: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 出力先を決めずに録音パイプラインを動かし、直近 preRollSeconds 秒のPCMをメモリに保持し続ける (待機モード)。
+     * この後に start() を呼ぶと、保持していた分を先頭にして録音を始める。
+     * 保持用の領域は {@link PreRollBuffer#bytesFor(PcmFormat, int)} バイトで、ここで一度だけ確保する。
+     */
+    public void arm(int preRollSeconds) throws IOException {
+        PreRollBuffer buffer = new PreRollBuffer(format, preRollSeconds);
+        logger.accept(String.format(Locale.JAPAN, "ENGINE: 待機モードを開始します (プリロール %d 秒、%,d bytes)",
+                preRollSeconds, PreRollBuffer.bytesFor(format, preRollSeconds)));
+        PreRollSink sink = new PreRollSink(buffer);
+        startPipeline(sink, null);
+        preRollSink = sink;
+    }
+
+    /**
+     * 待機モードで動いていて、まだ録音を開始していないかどうか
+     */
+    public boolean isArmed() {
+        return preRollSink != null && pipeline != null;
+    }
+
+    @Override
+    public void setMetrics(SessionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * 書き込んだバイト数を数える先を指定する。start() より前に呼ぶこと。
+     */
+    public void setStorageSession(StorageQuota.Session storageSession) {
+        this.storageSession = storageSession;
+    }
+
+    @Override
+    public void start(String outputFilePath) throws IOException {
+        if (metrics != null) {
+            EncoderProfile profile = options.getEncoderProfile();
+            boolean wav = RecordingOptions.OUTPUT_FORMAT_WAV.equals(options.getOutputFormat());
+            metrics.setEncoder(profile, wav ? 0 : profile.getBitRate(), options.isAdaptiveBitrate());
+        }
+        if (preRollSink != null) {
+            // 録音パイプラインは動いているので、出力先を渡すだけ
+            capturedSamplesBase = pipeline.getCapturedSamples();
+            overrunCountBase = pipeline.getOverrunCount();
+            pipeline.setMetrics(metrics);
+            preRollSink.attach(createOutputSink(outputFilePath));
+            logger.accept("ENGINE: 待機中に保持していた直近の音声を先頭にして録音を開始します。");
+            return;
+        }
+        capturedSamplesBase = 0;
+        overrunCountBase = 0;
+        startPipeline(createOutputSink(outputFilePath), metrics);
+    }
+
+    private AudioRecordSource createSource() throws IOException {
+        AudioRecordSource source = new AudioRecordSource(MediaRecorder.AudioSource.MIC, format, BUFFER_MILLIS * 4);
+        logger.accept("ENGINE: AudioRecord を初期化しました (" + format + ")");
+        return source;
+    }
+
+    private void startPipeline(PcmSink sink, SessionMetrics sessionMetrics) throws IOException {
+        AudioRecordSource source = preparedSource != null ? preparedSource : createSource();
+        preparedSource = null;
+
+        pipeline = new CapturePipeline(source, sink, BUFFER_COUNT, format.samplesForMillis(BUFFER_MILLIS));
+        pipeline.setThreadFactory(runnable -> new Thread(() -> {
+            // 録音スレッドと書き込みスレッドは音声処理用の最高優先度で動かす
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            runnable.run();
+        }));
+        pipeline.setListener(errorListener);
+        pipeline.setMetrics(sessionMetrics);
+        if (levelSnapshot != null) {
+            pipeline.addProcessor(new LevelMeter(format, LEVEL_PUBLISH_RATE_HZ, levelSnapshot));
+        }
+        if (pcmFanout != null) {
+            pcmFanout.setFormat(format);
+            pipeline.addProcessor(pcmFanout);
+        }
+        spectrumAnalyzer = null;
+        if (spectrumFrames != null && options.isSpectrumAnalyzer()) {
+            spectrumAnalyzer = new SpectrumAnalyzer(format, spectrumFrames);
+            pipeline.addProcessor(spectrumAnalyzer);
+        }
+        try {
+            pipeline.start();
+        } catch (IOException | RuntimeException e) {
+            source.release();
+            pipeline = null;
+            closePeakBuilder();
+            releasePrepared();
+            throw e;
+        }
+        logger.accept("ENGINE: 録音スレッドと書き込みスレッドを開始しました。");
+    }
+
+    /**
+     * 録音ファイルへの出力先を作り、その手前で波形表示用のピークファイルも作る。
+     * ピークファイルを作れなくても録音は続ける。
+     * 無音のスキップが有効な場合も、ピークはスキップ前の時間軸で記録する (.vad の記録で対応付けられる)。
+     */
+    private PcmSink createOutputSink(String outputFilePath) {
+        PcmSink sink = createSink(outputFilePath);
+        PeakPyramidBuilder builder = new PeakPyramidBuilder(PeakPyramidBuilder.pathFor(outputFilePath), format);
+        try {
+            builder.open();
+        } catch (IOException e) {
+            logger.accept("WARN: 波形のピークファイルを作成できませんでした: " + e.getMessage());
+            return sink;
+        }
+        peakBuilder = builder;
+        return new ProcessingSink(builder, sink);
+    }
+
+    private void closePeakBuilder() {
+        if (peakBuilder == null) {
+            return;
+        }
+        try {
+            peakBuilder.close();
+            logger.accept("ENGINE: 波形のピークファイルを保存しました ("
+                    + peakBuilder.getTotalFrames() / format.getSampleRate() + " 秒分)");
+        } catch (IOException e) {
+            logger.accept("WARN: 波形のピークファイルの書き込みに失敗しました: " + e.getMessage());
+        } finally {
+            peakBuilder = null;
+        }
+    }
+
+    /**
+     * 設定に応じて出力先を組み立てる。無音のスキップが有効なら、その後ろに保存先をつなぐ。
+     */
+    private PcmSink createSink(String outputFilePath) {
+        PcmSink sink = createStorageSink(outputFilePath);
+        if (!options.isVadEnabled()) {
+            vadGate = null;
+            return sink;
+        }
+        logger.accept("ENGINE: 無音のスキップを有効にしました (スキップした区間は "
+                + VadGateSink.skipLogPathFor(outputFilePath) + " に記録します)");
+        vadGate = new VadGateSink(sink, VAD_PRE_ROLL_MILLIS, VAD_HANGOVER_MILLIS,
+                VadGateSink.skipLogPathFor(outputFilePath));
+        return vadGate;
+    }
+
+    /**
+     * 設定に応じて、1つのファイルに書き込むか、セグメントに分割して書き込むかを選ぶ。
+     * どちらの場合も、時刻からファイル内の位置を引くためのシークインデックスと、
+     * 強制終了された後の修復に使うジャーナルを一緒に作る。
+     */
+    private PcmSink createStorageSink(String outputFilePath) {
+        bitrateController = null;
+        int dataOffset = RecordingOptions.OUTPUT_FORMAT_WAV.equals(options.getOutputFormat())
+                ? WavFileSink.HEADER_SIZE : SeekIndexBuilder.ENCODED_STREAM;
+        journal = new SessionJournal(SessionJournal.pathFor(outputFilePath), dataOffset, options.getFileExtension(),
+                options.isSegmented() || options.isAdaptiveBitrate());
+        String seekIndexPath = SeekIndexBuilder.pathFor(outputFilePath);
+        if (!options.isSegmented() && !options.isAdaptiveBitrate()) {
+            seekIndex = new SeekIndexBuilder(seekIndexPath, createFileSink(outputFilePath), null, dataOffset,
+                    SeekIndexBuilder.DEFAULT_INTERVAL_US);
+            return seekIndex;
+        }
+        if (options.isSegmented()) {
+            logger.accept("ENGINE: 分割録音を有効にしました (最大 " + options.getSegmentMaxDurationMs() / 1000
+                    + " 秒 / " + options.getSegmentMaxBytes() + " bytes ごと、0 は無制限)");
+        }
+        SegmentedSink segmented = new SegmentedSink(outputFilePath, this::createFileSink,
+                options.getSegmentMaxDurationMs(), options.getSegmentMaxBytes(),
+                new SessionManifest(SessionManifest.forRecording(outputFilePath)));
+        seekIndex = new SeekIndexBuilder(seekIndexPath, segmented, segmented, dataOffset,
+                SeekIndexBuilder.DEFAULT_INTERVAL_US);
+        if (!options.isAdaptiveBitrate()) {
+            return seekIndex;
+        }
+        // ビットレートを変えるときは、次のセグメントから新しいビットレートのエンコーダーを使う
+        EncoderProfile profile = options.getEncoderProfile();
+        File directory = new File(outputFilePath).getAbsoluteFile().getParentFile();
+        bitrateController = new AdaptiveBitrateController(profile, BUFFER_COUNT,
+                () -> pipeline != null ? pipeline.getQueuedBuffers() : 0,
+                directory::getUsableSpace,
+                (previousBitRate, bitRate, reason, presentationTimeUs) -> {
+                    segmented.requestRotation();
+                    SessionMetrics m = metrics;
+                    if (m != null) {
+                        m.recordEncoderChange(presentationTimeUs, profile.getName(), bitRate, reason);
+                    }
+                    logger.accept(String.format(Locale.JAPAN, "ENGINE: %s のため、ビットレートを %d → %d kbps に切り替えます (%.1f 秒の位置)",
+                            reason, previousBitRate / 1000, bitRate / 1000, presentationTimeUs / 1_000_000.0));
+                });
+        logger.accept("ENGINE: ビットレートの自動調整を有効にしました ("
+                + profile.getMinBitRate() / 1000 + "〜" + profile.getBitRate() / 1000 + " kbps)");
+        return new ProcessingSink(bitrateController, seekIndex);
+    }
+
+    /**
+     * 保存形式に応じて、1つのファイルへの出力先を作る。書き込んだ位置はジャーナルに記録し、
+     * 使用量を数える場合は、書き込んだ分をその都度数える。
+     */
+    private PcmSink createFileSink(String path) {
+        PcmSink sink = new JournalingSink(createEncodingSink(path), journal);
+        return storageSession != null ? new StorageAccountingSink(sink, storageSession) : sink;
+    }
+
+    private PcmSink createEncodingSink(String path) {
+        if (RecordingOptions.OUTPUT_FORMAT_WAV.equals(options.getOutputFormat())) {
+            WavFileSink sink = new WavFileSink(path);
+            sink.setPreallocator(FALLOCATE);
+            return sink;
+        }
+        EncoderProfile profile = options.getEncoderProfile();
+        int bitRate = bitrateController != null ? bitrateController.getBitRate() : profile.getBitRate();
+        AacEncoderSink sink = new AacEncoderSink(path, profile.getCodec(), bitRate);
+        // 準備済みのエンコーダーは最初のファイルだけで使う
+        if (preparedEncoder != null) {
+            sink.setPreparedEncoder(preparedEncoder);
+            preparedEncoder = null;
+        }
+        return sink;
+    }
+
+    /**
+     * prepare() で作ったまま使われなかったものを解放する
+     */
+    private void releasePrepared() {
+        if (preparedSource != null) {
+            preparedSource.release();
+            preparedSource = null;
+        }
+        if (preparedEncoder != null) {
+            preparedEncoder.release();
+            preparedEncoder = null;
+        }
+    }
+
+    @Override
+    public long getFirstSampleNanos() {
+        // 待機モードでは、パイプラインは既に動いているので出力先への書き込みを始めた時刻
+        if (preRollSink != null) {
+            return preRollSink.getCommitNanos();
+        }
+        return pipeline != null ? pipeline.getFirstSampleNanos() : 0;
+    }
+
+    @Override
+    public void stop() throws IOException {
+        releasePrepared();
+        if (pipeline == null) {
+            return;
+        }
+        logger.accept("ENGINE: 録音スレッドを停止し、残りのデータを書き出します...");
+        try {
+            pipeline.stop();
+        } finally {
+            logger.accept("ENGINE: 読み込みサンプル数: " + pipeline.getCapturedSamples()
+                    + ", オーバーラン: " + pipeline.getOverrunCount());
+            if (metrics != null) {
+                metrics.setCapture(pipeline.getCapturedSamples() - capturedSamplesBase,
+                        pipeline.getOverrunCount() - overrunCountBase);
+            }
+            if (vadGate != null) {
+                logVadSavings(vadGate);
+                vadGate = null;
+            }
+            if (bitrateController != null) {
+                logger.accept("ENGINE: ビットレートの切り替え: " + bitrateController.getChangeCount()
+                        + " 回 (最後は " + bitrateController.getBitRate() / 1000 + " kbps)");
+                bitrateController = null;
+            }
+            if (seekIndex != null) {
+                if (seekIndex.getFailure() != null) {
+                    logger.accept("WARN: シークインデックスの書き込みに失敗しました: " + seekIndex.getFailure().getMessage());
+                } else {
+                    logger.accept("ENGINE: シークインデックスを保存しました (" + seekIndex.getEntryCount() + " エントリ)");
+                }
+                seekIndex = null;
+            }
+            if (journal != null) {
+                // ファイルは全て閉じたので、修復に使う記録は要らない
+                journal.finish();
+                if (journal.getFailure() != null) {
+                    logger.accept("WARN: ジャーナルの書き込みに失敗しました: " + journal.getFailure().getMessage());
+                }
+                journal = null;
+            }
+            if (spectrumAnalyzer != null) {
+                logger.accept(String.format(Locale.JAPAN,
+                        "ENGINE: スペクトル: %d フレーム解析 (間引き %d フレーム、最大 %d 回に1回)、1回 %.2f ms",
+                        spectrumAnalyzer.getAnalyzedFrames(), spectrumAnalyzer.getSkippedFrames(),
+                        spectrumAnalyzer.getMaxStride(), spectrumAnalyzer.getCostNanos() / 1e6));
+                spectrumAnalyzer = null;
+            }
+            if (preRollSink != null && preRollSink.getCommittedSamples() >= 0) {
+                logger.accept(String.format(Locale.JAPAN, "ENGINE: 録音の先頭にプリロール %.1f 秒を書き込みました。",
+                        format.samplesToUs(preRollSink.getCommittedSamples()) / 1_000_000.0));
+            }
+            closePeakBuilder();
+            pipeline = null;
+            preRollSink = null;
+        }
+    }
+
+    private void logVadSavings(VadGateSink gate) {
+        long total = gate.getWrittenSamples() + gate.getSkippedSamples();
+        logger.accept(String.format(Locale.JAPAN,
+                "ENGINE: 無音のスキップ: %d 区間 %.1f 秒 (全体の %.0f%%)、節約: 約 %d bytes / エンコード等 約 %.0f ms",
+                gate.getSkippedRangeCount(),
+                gate.getSkippedSamples() / (double) (format.getSampleRate() * format.getChannelCount()),
+                total > 0 ? gate.getSkippedSamples() * 100.0 / total : 0.0,
+                gate.getEstimatedSavedBytes(), gate.getEstimatedSavedMillis()));
+    }
+
+    @Override
+    public String getName() {
+        return "AudioRecord + MediaCodec";
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.recordingapp;
+
+import android.annotation.SuppressLint;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+
+import java.io.IOException;
+
+/**
+ * AudioRecord からPCMを読み込む {@link PcmSource}
+ */
+public final class AudioRecordSource implements PcmSource {
+
+    private final PcmFormat format;
+    private final AudioRecord audioRecord;
+
+    /**
+     * @param audioSource MediaRecorder.AudioSource の値
+     * @param minBufferMillis AudioRecord 内部バッファとして最低限確保する時間
+     */
+    // RECORD_AUDIO パーミッションは MainActivity でサービス開始前に確認済み
+    @SuppressLint("MissingPermission")
+    public AudioRecordSource(int audioSource, PcmFormat format, int minBufferMillis) throws IOException {
+        this.format = format;
+        int channelMask = format.getChannelCount() == 1
+                ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
+        int minBufferBytes = AudioRecord.getMinBufferSize(
+                format.getSampleRate(), channelMask, AudioFormat.ENCODING_PCM_16BIT);
+        if (minBufferBytes <= 0) {
+            throw new IOException("AudioRecord does not support " + format + " (" + minBufferBytes + ")");
+        }
+        int bufferBytes = Math.max(minBufferBytes * 2,
+                format.samplesForMillis(minBufferMillis) * PcmFormat.BYTES_PER_SAMPLE);
+        audioRecord = new AudioRecord(audioSource, format.getSampleRate(), channelMask,
+                AudioFormat.ENCODING_PCM_16BIT, bufferBytes);
+        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            audioRecord.release();
+            throw new IOException("AudioRecord の初期化に失敗しました: " + format);
+        }
+    }
+
+    @Override
+    public PcmFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public void start() throws IOException {
+        try {
+            audioRecord.startRecording();
+        } catch (IllegalStateException e) {
+            throw new IOException("AudioRecord.startRecording() failed", e);
+        }
+        if (audioRecord.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING) {
+            throw new IOException("AudioRecord が録音状態になりませんでした (マイクを他のアプリが使用中の可能性があります)");
+        }
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int length) throws IOException {
+        int read = audioRecord.read(buffer, offset, length);
+        if (read < 0) {
+            if (audioRecord.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING) {
+                // stop() の後に戻ってきた読み込みはエラーとして扱わない
+                return 0;
+            }
+            throw new IOException("AudioRecord.read() failed: " + read);
+        }
+        return read;
+    }
+
+    @Override
+    public void stop() {
+        try {
+            audioRecord.stop();
+        } catch (IllegalStateException ignored) {
+            // 既に停止済み
+        }
+    }
+
+    @Override
+    public void release() {
+        audioRecord.release();
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.recordingapp;
+
+import java.io.IOException;
+
+/**
+ * 録音処理の実体。RecordingService はこのインターフェースを通して録音を開始・停止する。
+ * AudioRecord + MediaCodec による {@link AudioRecordEngine} と、
+ * フォールバック用の {@link MediaRecorderEngine} がある。
+ */
+public interface CaptureEngine {
+
+    /**
+     * 録音開始までの時間を短くするため、出力先に依存しない初期化 (マイクやエンコーダーの準備) を先に済ませておく。
+     * start() より前に1回だけ呼べる。呼ばなくてもよい。使わずに終わる場合は stop() で解放する。
+     */
+    void prepare() throws IOException;
+
+    /**
+     * この録音の計測値の記録先を指定する。start() より前に呼ぶこと。
+     */
+    void setMetrics(SessionMetrics metrics);
+
+    /**
+     * 指定したファイルへの録音を開始する
+     */
+    void start(String outputFilePath) throws IOException;
+
+    /**
+     * 録音を停止し、ファイルを完成させてリソースを解放する
+     */
+    void stop() throws IOException;
+
+    /**
+     * 録音の最初のサンプルを受け取った時刻 ({@link System#nanoTime()})。まだ受け取っていなければ 0
+     */
+    long getFirstSampleNanos();
+
+    /**
+     * ログ表示用のエンジン名
+     */
+    String getName();
+}
@@ -0,0 +1,102 @@
+package com.example.recordingapp;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * {@link LogBuffer} の内容を RecyclerView に表示するアダプター。
+ *
+ * 時刻の文字列化は画面に表示される行 (onBindViewHolder) でだけ行い、
+ * フォーマッターと Date は1つを使い回す。
+ * RecyclerView に見せる範囲 (シーケンス番号の範囲) は {@link #sync()} を呼んだときにだけ更新するので、
+ * その間にバッファへ何件追加されても表示がずれることはない。
+ */
+public class LogAdapter extends RecyclerView.Adapter<LogAdapter.ViewHolder> {
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView textView;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            textView = itemView.findViewById(R.id.tvLogLine);
+        }
+    }
+
+    private final LogBuffer buffer;
+    // メインスレッドでしか使わないので1つを使い回す
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS", Locale.JAPAN);
+    private final Date date = new Date();
+    private final StringBuilder lineBuilder = new StringBuilder();
+
+    // RecyclerView に見せているシーケンス番号の範囲 [shownOldest, shownNext)
+    private long shownOldest;
+    private long shownNext;
+
+    public LogAdapter(LogBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * 前回の sync() 以降にバッファで起きた変化 (古い行の上書きと新しい行の追加) を RecyclerView に通知する
+     * @return 新しい行が追加された場合 true
+     */
+    public boolean sync() {
+        long oldest = buffer.getOldestSequence();
+        long next = buffer.getNextSequence();
+        if (next == shownNext) {
+            return false;
+        }
+        int shownCount = (int) (shownNext - shownOldest);
+        int removed = (int) Math.min(oldest - shownOldest, shownCount);
+        if (removed >= shownCount && shownCount > 0) {
+            // 表示していた行が全て入れ替わった
+            shownOldest = oldest;
+            shownNext = next;
+            notifyDataSetChanged();
+            return true;
+        }
+        int inserted = (int) (next - Math.max(shownNext, oldest));
+        shownOldest = oldest;
+        shownNext = next;
+        if (removed > 0) {
+            notifyItemRangeRemoved(0, removed);
+        }
+        notifyItemRangeInserted(shownCount - removed, inserted);
+        return true;
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_log, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        long sequence = shownOldest + position;
+        if (sequence < buffer.getOldestSequence()) {
+            // 次の sync() で取り除かれる行。既に上書きされているので空にしておく
+            holder.textView.setText("");
+            return;
+        }
+        date.setTime(buffer.getTimeMillis(sequence));
+        lineBuilder.setLength(0);
+        lineBuilder.append(timeFormat.format(date)).append(" - ").append(buffer.getMessage(sequence));
+        holder.textView.setText(lineBuilder);
+    }
+
+    @Override
+    public int getItemCount() {
+        return (int) (shownNext - shownOldest);
+    }
+}
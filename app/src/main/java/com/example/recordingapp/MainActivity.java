@@ -1,37 +1,69 @@
 package com.example.recordingapp;
 
 import android.Manifest;
-import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.text.method.ScrollingMovementMethod;
+import android.os.IBinder;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.Button;
-import android.widget.ScrollView;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.widget.SwitchCompat;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 
 public class MainActivity extends AppCompatActivity {
 
-    private Button btnStart, btnStop;
-    private TextView tvStatus, tvLog;
-    private ScrollView scrollView;
+    // 画面に保持するログの最大件数。これを超えると古いものから消える
+    private static final int LOG_VIEW_CAPACITY = 2000;
+    // 起動時に表示する最近の録音の件数
+    private static final int RECENT_RECORDINGS_SHOWN = 5;
+
+    private Button btnStart, btnStop, btnMetrics;
+    private TextView tvStatus, tvLevel;
+    private ProgressBar pbLevel;
+    private SpectrogramView spectrogram;
+    private SwitchCompat swArm, swSpectrum;
+    private RecyclerView rvLog;
+
+    // 表示用のログ。容量固定なので、何時間ログを出し続けてもメモリ使用量は増えない
+    private final LogBuffer logEntries = new LogBuffer(LOG_VIEW_CAPACITY);
+    private LogAdapter logAdapter;
+    private boolean logFrameScheduled = false;
+    private final Choreographer.FrameCallback logFrameCallback = frameTimeNanos -> renderLogs();
+
+    // 入力レベルの表示。録音中かつ画面表示中だけ、毎フレーム LevelSnapshot を読みに行く
+    private boolean levelMeterRunning = false;
+    private long shownLevel = -1;
+    private final StringBuilder levelText = new StringBuilder();
+    private final Choreographer.FrameCallback levelFrameCallback = frameTimeNanos -> renderLevel();
+    // スペクトログラムの表示。次に読むフレームの通し番号と、読み出し先 (帯域の数が分かってから確保する)
+    private long nextSpectrumSequence;
+    private float[] spectrumFrame;
 
     // 複数のパーミッションをリクエストするためのランチャー
     private final ActivityResultLauncher<String[]> requestPermissionLauncher =
@@ -45,27 +77,49 @@ public class MainActivity extends AppCompatActivity {
                     }
                 }
 
+                Runnable action = pendingPermissionAction;
+                pendingPermissionAction = null;
                 if (allPermissionsGranted) {
                     addLog("必要な全てのパーミッションが許可されました。");
-                    // 許可されたので、録音を開始する
-                    startRecordingService();
+                    // 許可されたので、録音の開始 (または待機モードの開始) を続ける
+                    if (action != null) {
+                        action.run();
+                    }
                 } else {
                     addLog("エラー: 録音に必要なパーミッションが拒否されました。");
+                    swArm.setChecked(false);
                     Toast.makeText(this, "録音を開始するには、すべての権限を許可してください。", Toast.LENGTH_LONG).show();
                 }
             });
+    // パーミッションが許可された後に実行する処理
+    private Runnable pendingPermissionAction;
 
-    // RecordingServiceからのログを受け取るためのBroadcastReceiver
-    private final BroadcastReceiver logReceiver = new BroadcastReceiver() {
+    // RecordingServiceからログを受け取るためのバインド先
+    private RecordingService recordingService;
+    // 次にサービスから読み出すログのシーケンス番号
+    private long nextServiceLogSequence;
+    private final RecordingService.LogListener serviceLogListener = this::pullServiceLogs;
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            if (RecordingService.ACTION_UPDATE_LOG.equals(intent.getAction())) {
-                String logMessage = intent.getStringExtra(RecordingService.EXTRA_LOG_MESSAGE);
-                if (logMessage != null) {
-                    addLog(logMessage);
-                }
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            recordingService = ((RecordingService.LocalBinder) service).getService();
+            // 接続した時点で、Activityが停止していた間に溜まったログもまとめて読み出される
+            recordingService.setLogListener(serviceLogListener);
+            if (!btnStart.isEnabled() || swArm.isChecked()) {
+                startLevelMeter();
+            }
+            // 録音開始ボタンが押されたときにすぐ録音が始まるよう、録音エンジンを先に準備してもらう
+            if (ContextCompat.checkSelfPermission(MainActivity.this, Manifest.permission.RECORD_AUDIO)
+                    == PackageManager.PERMISSION_GRANTED) {
+                recordingService.warmUp(RecordingService.CAPTURE_MODE_AUDIO_RECORD);
             }
         }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            recordingService = null;
+        }
     };
 
     @Override
@@ -76,53 +130,107 @@ public class MainActivity extends AppCompatActivity {
         // UIコンポーネントをIDで取得
         btnStart = findViewById(R.id.btnStart);
         btnStop = findViewById(R.id.btnStop);
+        btnMetrics = findViewById(R.id.btnMetrics);
         tvStatus = findViewById(R.id.tvStatus);
-        tvLog = findViewById(R.id.tvLog);
-        scrollView = findViewById(R.id.scrollView);
+        tvLevel = findViewById(R.id.tvLevel);
+        pbLevel = findViewById(R.id.pbLevel);
+        spectrogram = findViewById(R.id.spectrogram);
+        swArm = findViewById(R.id.swArm);
+        swSpectrum = findViewById(R.id.swSpectrum);
+        rvLog = findViewById(R.id.rvLog);
 
-        // ログエリアをスクロール可能にする
-        tvLog.setMovementMethod(new ScrollingMovementMethod());
+        // ログエリアは表示中の行だけを描画する RecyclerView で表示する
+        logAdapter = new LogAdapter(logEntries);
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        layoutManager.setStackFromEnd(true);
+        rvLog.setLayoutManager(layoutManager);
+        rvLog.setAdapter(logAdapter);
+        // 行が増えるたびのアニメーションは不要
+        rvLog.setItemAnimator(null);
         addLog("アプリを起動しました。");
+        showRecentRecordings();
 
         // 録音開始ボタンのクリックイベント
         btnStart.setOnClickListener(v -> {
             addLog("録音開始ボタンが押されました。");
-            checkPermissionsAndStart();
+            checkPermissionsAndRun(this::startRecordingService);
         });
 
+        // 待機モードの切り替え (画面の再生成で状態が復元されたときは何もしない)
+        swArm.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            if (!buttonView.isPressed()) {
+                return;
+            }
+            if (isChecked) {
+                addLog("待機モードがオンにされました。");
+                checkPermissionsAndRun(this::armRecordingService);
+            } else {
+                addLog("待機モードがオフにされました。");
+                disarmRecordingService();
+            }
+        });
+
+        // スペクトログラムの表示 (既定はオフ)。次に録音を開始したときから解析する
+        swSpectrum.setOnCheckedChangeListener((buttonView, isChecked) ->
+                spectrogram.setVisibility(isChecked ? View.VISIBLE : View.GONE));
+
         // 録音終了ボタンのクリックイベント
         btnStop.setOnClickListener(v -> {
             addLog("録音終了ボタンが押されました。");
             stopRecordingService();
         });
+
+        btnMetrics.setOnClickListener(v -> showSessionMetrics());
     }
 
     @Override
     protected void onStart() {
         super.onStart();
-        // サービスからのログを受け取るBroadcastReceiverを登録します。
-        // ContextCompat を使うことで、OSのバージョンによる分岐を書かずに、
-        // 安全にレシーバーを登録できます。
-
-        IntentFilter filter = new IntentFilter(RecordingService.ACTION_UPDATE_LOG);
-
-        // RECEIVER_NOT_EXPORTED を指定することで、このレシーバーが
-        // このアプリ内からのブロードキャストのみを受け取ることを明示します。
-        // これにより、セキュリティが向上します。
-        ContextCompat.registerReceiver(this, logReceiver, filter, ContextCompat.RECEIVER_NOT_EXPORTED);
+        // サービスにバインドして、ログを受け取れるようにします。
+        // ログはサービス側のバッファに溜まっているので、Activityが停止していた間のログも
+        // バインドし直した時点でまとめて読み出せます。
+        Intent intent = new Intent(this, RecordingService.class);
+        bindService(intent, serviceConnection, Context.BIND_AUTO_CREATE);
     }
 
     @Override
     protected void onStop() {
         super.onStop();
-        // Activityが非表示になるときにBroadcastReceiverの登録を解除
-        unregisterReceiver(logReceiver);
+        stopLevelMeter();
+        // Activityが非表示になるときにバインドを解除 (ログはサービス側に溜まり続ける)
+        if (recordingService != null) {
+            recordingService.setLogListener(null);
+            recordingService = null;
+        }
+        unbindService(serviceConnection);
+    }
+
+    /**
+     * サービスのバッファから、まだ表示していないログをまとめて読み出して表示する
+     */
+    private void pullServiceLogs() {
+        if (recordingService == null) {
+            return;
+        }
+        nextServiceLogSequence = recordingService.readLogs(nextServiceLogSequence, new LogBuffer.Reader() {
+            @Override
+            public void onEntry(long sequence, long timeMillis, String message) {
+                addLog(timeMillis, message);
+            }
+
+            @Override
+            public void onSkipped(long count, long timeMillis) {
+                // 画面を閉じている間にサービスのバッファが一周した
+                addLog(timeMillis, String.format(Locale.JAPAN, "%,d 件のログを省略しました", count));
+            }
+        });
     }
 
     /**
-     * 録音を開始するために、必要なパーミッションを確認し、なければリクエストする
+     * 録音に必要なパーミッションを確認し、揃っていれば action を実行する。
+     * なければリクエストし、許可された後に action を実行する。
      */
-    private void checkPermissionsAndStart() {
+    private void checkPermissionsAndRun(Runnable action) {
         addLog("パーミッションのチェックを開始します...");
 
         // 必要なパーミッションのリスト
@@ -148,11 +256,12 @@ public class MainActivity extends AppCompatActivity {
         // 許可されていないパーミッションがあれば、ユーザーにリクエスト
         if (!permissionsToRequest.isEmpty()) {
             addLog("ユーザーにパーミッションの許可を求めます。");
+            pendingPermissionAction = action;
             requestPermissionLauncher.launch(permissionsToRequest.toArray(new String[0]));
         } else {
             // 全てのパーミッションが既に許可されている場合
             addLog("全てのパーミッションは既に許可されています。");
-            startRecordingService();
+            action.run();
         }
     }
 
@@ -163,6 +272,10 @@ public class MainActivity extends AppCompatActivity {
         addLog("RecordingServiceの開始を試みます。");
         Intent serviceIntent = new Intent(this, RecordingService.class);
         serviceIntent.setAction(RecordingService.ACTION_START_RECORDING);
+        // 最初のサンプルまでの時間は、ボタンが押された時点から測る
+        serviceIntent.putExtra(RecordingService.EXTRA_REQUESTED_AT_NANOS, System.nanoTime());
+        // スペクトログラムを表示するときだけ、録音中に解析する
+        serviceIntent.putExtra(RecordingService.EXTRA_SPECTRUM_ANALYZER, swSpectrum.isChecked());
 
         // Android 8.0 (API 26) 以降では、フォアグラウンドサービスとして開始する必要がある
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -173,6 +286,96 @@ public class MainActivity extends AppCompatActivity {
         updateUI(true); // UIを「録音中」状態に更新
     }
 
+    /**
+     * 待機モードを開始する。サービスは録音前から直近の音声を保持し続け、録音開始時にそれを先頭に書き込む。
+     */
+    private void armRecordingService() {
+        addLog("RecordingServiceの待機モードを開始します。");
+        Intent serviceIntent = new Intent(this, RecordingService.class);
+        serviceIntent.setAction(RecordingService.ACTION_ARM_RECORDING);
+        startForegroundService(serviceIntent);
+        updateUI(!btnStart.isEnabled());
+    }
+
+    /**
+     * 待機モードを終了する。録音中なら、録音の停止後に待機モードに戻らなくなる。
+     */
+    private void disarmRecordingService() {
+        Intent serviceIntent = new Intent(this, RecordingService.class);
+        serviceIntent.setAction(RecordingService.ACTION_DISARM_RECORDING);
+        startService(serviceIntent);
+        updateUI(!btnStart.isEnabled());
+    }
+
+    /**
+     * 録音インデックスから新しい順に数件を読み出してログに表示する (読み出しはインデックスのスレッドで行う)
+     */
+    private void showRecentRecordings() {
+        RecordingIndex index = RecordingIndex.getInstance(this);
+        index.getExecutor().execute(() -> {
+            try {
+                long count = index.getCount();
+                List<RecordingEntry> recent = index.query(RecordingIndex.Sort.START_TIME, true, null,
+                        RECENT_RECORDINGS_SHOWN);
+                runOnUiThread(() -> {
+                    addLog("INDEX: 保存済みの録音: " + count + " 件");
+                    for (RecordingEntry entry : recent) {
+                        String duration = entry.durationUs >= 0
+                                ? String.format(Locale.JAPAN, "%.1f 秒", entry.durationUs / 1_000_000.0) : "長さ不明";
+                        addLog(String.format(Locale.JAPAN, "INDEX: %s (%s, %,d bytes)",
+                                new File(entry.path).getName(), duration, entry.sizeBytes));
+                    }
+                });
+            } catch (RuntimeException e) {
+                runOnUiThread(() -> addLog("WARN: 録音インデックスを読み込めませんでした: " + e.getMessage()));
+            }
+        });
+    }
+
+    /**
+     * 直近の録音の計測値をログに表示する。
+     * サービスが持っていればそれを (録音中なら途中経過を)、なければ保存されている最新の .metrics.json を読んで表示する。
+     */
+    private void showSessionMetrics() {
+        SessionMetrics metrics = recordingService != null ? recordingService.getSessionMetrics() : null;
+        if (metrics != null) {
+            addLog("METRICS: " + new File(metrics.getRecordingPath()).getName() + ": " + metrics.toSummary());
+            return;
+        }
+        File storageDir = getExternalFilesDir(null);
+        if (storageDir == null) {
+            return;
+        }
+        // ファイルの読み込みはインデックスのスレッドで行う
+        RecordingIndex.getInstance(this).getExecutor().execute(() -> {
+            File[] files = storageDir.listFiles((dir, name) -> name.endsWith(".metrics.json"));
+            if (files == null || files.length == 0) {
+                runOnUiThread(() -> addLog("METRICS: 計測値の記録はまだありません。"));
+                return;
+            }
+            // ファイル名は録音開始の日時なので、名前の順が新しさの順
+            File latest = files[0];
+            for (File file : files) {
+                if (file.getName().compareTo(latest.getName()) > 0) {
+                    latest = file;
+                }
+            }
+            try {
+                JSONObject json = new JSONObject(new String(Files.readAllBytes(latest.toPath()), StandardCharsets.UTF_8));
+                JSONObject writeUs = json.getJSONObject("writeUs");
+                String summary = String.format(Locale.JAPAN,
+                        "METRICS: %s: 最初のサンプルまで %.1f ms, オーバーラン %d, 書き込み p99 %.1f ms / 最大 %.1f ms, "
+                                + "停滞 %d 回, %,d bytes/秒, CPU %d ms",
+                        json.optString("recording"), json.getLong("timeToFirstSampleUs") / 1000.0,
+                        json.getLong("overruns"), writeUs.getLong("p99") / 1000.0, writeUs.getLong("max") / 1000.0,
+                        json.getLong("writeStalls"), json.getLong("bytesPerSecond"), json.getLong("cpuTimeMillis"));
+                runOnUiThread(() -> addLog(summary));
+            } catch (IOException | JSONException e) {
+                runOnUiThread(() -> addLog("WARN: 計測値を読み込めませんでした: " + e.getMessage()));
+            }
+        });
+    }
+
     /**
      * 録音サービスを停止する
      */
@@ -207,31 +410,127 @@ public class MainActivity extends AppCompatActivity {
             tvStatus.setTextColor(ContextCompat.getColor(this, android.R.color.holo_red_dark));
             btnStart.setEnabled(false);
             btnStop.setEnabled(true);
+            startLevelMeter();
             addLog("UIを「録音中」状態に更新しました。");
         } else {
             // 待機中のUI設定
-            tvStatus.setText("待機中");
+            tvStatus.setText(swArm.isChecked() ? "待機中 (直前の音声を保持中)" : "待機中");
             // デフォルトのテキストカラーに戻す (テーマによって色が変わるように)
             tvStatus.setTextAppearance(android.R.style.TextAppearance_DeviceDefault_Large);
             btnStart.setEnabled(true);
             btnStop.setEnabled(false);
+            // 待機モードでは録音前から入力レベルを表示する
+            if (swArm.isChecked()) {
+                startLevelMeter();
+            } else {
+                stopLevelMeter();
+            }
             addLog("UIを「待機中」状態に更新しました。");
         }
     }
 
     /**
-     * ログ表示用のTextViewに新しいログメッセージを追加する
+     * ログ表示用のバッファに新しいログメッセージを追加する
      * @param message ログメッセージ
      */
     private void addLog(String message) {
-        // 現在時刻を取得してフォーマット
-        String currentTime = new SimpleDateFormat("HH:mm:ss.SSS", Locale.JAPAN).format(new Date());
-        String logText = currentTime + " - " + message + "\n";
+        addLog(System.currentTimeMillis(), message);
+    }
 
-        // UIスレッドでTextViewを更新
-        tvLog.append(logText);
+    /**
+     * ログ表示用のバッファに、指定した時刻のログメッセージを追加する。
+     * 画面への反映は次のフレームでまとめて行う。
+     * @param timeMillis ログが記録された時刻
+     * @param message ログメッセージ
+     */
+    private void addLog(long timeMillis, String message) {
+        logEntries.append(timeMillis, message);
+        if (!logFrameScheduled) {
+            logFrameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(logFrameCallback);
+        }
+    }
 
-        // 自動的に一番下までスクロール
-        scrollView.post(() -> scrollView.fullScroll(View.FOCUS_DOWN));
+    /**
+     * 前のフレーム以降に追加されたログをまとめて画面に反映する (1フレームに最大1回)
+     */
+    private void renderLogs() {
+        logFrameScheduled = false;
+        // 一番下を表示していたときだけ自動スクロールする (過去のログを読んでいる最中は動かさない)
+        boolean atBottom = !rvLog.canScrollVertically(1);
+        if (logAdapter.sync() && atBottom) {
+            rvLog.scrollToPosition(logAdapter.getItemCount() - 1);
+        }
+    }
+
+    /**
+     * 入力レベルの表示を開始する (バインド済みのときだけ動く)
+     */
+    private void startLevelMeter() {
+        if (levelMeterRunning || recordingService == null) {
+            return;
+        }
+        levelMeterRunning = true;
+        SpectrumFrames frames = recordingService.getSpectrumFrames();
+        if (spectrumFrame == null || spectrumFrame.length != frames.getBandCount()) {
+            spectrumFrame = new float[frames.getBandCount()];
+        }
+        spectrogram.setBandCount(frames.getBandCount());
+        nextSpectrumSequence = frames.getNextSequence();
+        Choreographer.getInstance().postFrameCallback(levelFrameCallback);
+    }
+
+    /**
+     * 入力レベルの表示を止めて、表示を初期状態に戻す
+     */
+    private void stopLevelMeter() {
+        levelMeterRunning = false;
+        Choreographer.getInstance().removeFrameCallback(levelFrameCallback);
+        shownLevel = -1;
+        pbLevel.setProgress(0);
+        tvLevel.setText("入力レベル: -");
+        spectrogram.clear();
+    }
+
+    /**
+     * サービスが公開している最新の入力レベルを表示する。
+     * サービス側の公開は最大30Hzなので、値が変わったときだけ画面を更新する。
+     */
+    private void renderLevel() {
+        if (!levelMeterRunning || recordingService == null) {
+            return;
+        }
+        long level = recordingService.getLevelSnapshot().get();
+        if (level != shownLevel) {
+            shownLevel = level;
+            float rmsDb = LevelSnapshot.toDbfs(LevelSnapshot.rmsOf(level));
+            float peakDb = LevelSnapshot.toDbfs(LevelSnapshot.peakOf(level));
+            pbLevel.setProgress(Math.round(rmsDb - LevelSnapshot.MIN_DBFS));
+            levelText.setLength(0);
+            levelText.append("入力レベル: RMS ").append(Math.round(rmsDb))
+                    .append(" dBFS / ピーク ").append(Math.round(peakDb)).append(" dBFS");
+            tvLevel.setText(levelText);
+        }
+        renderSpectrum();
+        Choreographer.getInstance().postFrameCallback(levelFrameCallback);
+    }
+
+    /**
+     * 前のフレーム (画面の) から後に公開されたスペクトルを、スペクトログラムに追加する。
+     * 画面が止まっていた間に上書きされたフレームは飛ばす。
+     */
+    private void renderSpectrum() {
+        SpectrumFrames frames = recordingService.getSpectrumFrames();
+        long next = frames.getNextSequence();
+        if (next == nextSpectrumSequence) {
+            return;
+        }
+        nextSpectrumSequence = Math.max(nextSpectrumSequence, next - frames.getCapacity());
+        for (; nextSpectrumSequence < next; nextSpectrumSequence++) {
+            if (frames.read(nextSpectrumSequence, spectrumFrame)) {
+                spectrogram.addFrame(spectrumFrame);
+            }
+        }
+        spectrogram.invalidate();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,177 @@
+package com.example.recordingapp;
+
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * MediaRecorder にマイク入力・AACエンコード・MPEG-4書き出しを全て任せる録音エンジン。
+ * AudioRecord が使えない端末向けのフォールバックとして残している。
+ * サンプリングレート、チャンネル数、ビットレートは {@link EncoderProfile} に従う
+ * (Opus の設定なら、Android 10 以降ではOGGに書き出す)。録音中にビットレートは変えられない。
+ */
+public final class MediaRecorderEngine implements CaptureEngine {
+
+    // デバッグ用の特別なタグ
+    private static final String TAG = "RECORDER_DEBUG";
+
+    private final Consumer<String> logger;
+    private EncoderProfile profile;
+    private MediaRecorder mediaRecorder;
+    // mediaRecorder を準備したときのコーデック
+    private String preparedCodec;
+    private long firstSampleNanos;
+    private SessionMetrics metrics;
+
+    /**
+     * @param logger ログの出力先
+     * @param profile エンコードの設定
+     */
+    public MediaRecorderEngine(Consumer<String> logger, EncoderProfile profile) {
+        this.logger = logger;
+        this.profile = profile;
+    }
+
+    /**
+     * エンコードの設定を差し替える。start() の前に呼べる。
+     * 準備済みの MediaRecorder とコーデックが違う場合は、start() で作り直す。
+     */
+    public void setProfile(EncoderProfile profile) {
+        this.profile = profile;
+        if (mediaRecorder != null && !codecFor(profile).equals(preparedCodec)) {
+            mediaRecorder.release();
+            mediaRecorder = null;
+        }
+    }
+
+    /**
+     * MediaRecorder で使うコーデック。Opus は Android 10 から
+     */
+    private static String codecFor(EncoderProfile profile) {
+        return EncoderProfile.CODEC_OPUS.equals(profile.getCodec()) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                ? EncoderProfile.CODEC_OPUS : EncoderProfile.CODEC_AAC;
+    }
+
+    /**
+     * MediaRecorder を作り、入力とエンコーダーの設定までを済ませておく。
+     * prepare() (MediaRecorder の方) は出力ファイルが決まらないと呼べないので、start() で行う。
+     */
+    @Override
+    public void prepare() {
+        if (mediaRecorder != null) {
+            return;
+        }
+        Log.d(TAG, "prepare: メソッドが開始されました。");
+        mediaRecorder = new MediaRecorder();
+        Log.d(TAG, "prepare: new MediaRecorder() が完了しました。");
+
+        try {
+            Log.d(TAG, "prepare: 音声ソースをマイクに設定します...");
+            mediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+            Log.d(TAG, "prepare: -> 成功");
+
+            String codec = codecFor(profile);
+            if (EncoderProfile.CODEC_OPUS.equals(codec)) {
+                Log.d(TAG, "prepare: 出力フォーマットをOGG、音声エンコーダーをOpusに設定します...");
+                mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.OGG);
+                mediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.OPUS);
+            } else {
+                Log.d(TAG, "prepare: 出力フォーマットをMPEG_4、音声エンコーダーをAACに設定します...");
+                mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+                mediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+            }
+            preparedCodec = codec;
+            Log.d(TAG, "prepare: -> 成功");
+        } catch (RuntimeException e) {
+            mediaRecorder.release();
+            mediaRecorder = null;
+            throw e;
+        }
+    }
+
+    /**
+     * MediaRecorder の内部の処理は計測できないので、エンコードの設定だけを記録する
+     */
+    @Override
+    public void setMetrics(SessionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void start(String outputFilePath) throws IOException {
+        Log.d(TAG, "start: メソッドが開始されました。");
+        // prepare() が呼ばれていなければここで作る
+        prepare();
+
+        try {
+            mediaRecorder.setOutputFile(outputFilePath);
+            Log.d(TAG, "start: 出力ファイルパスの設定完了: " + outputFilePath);
+
+            // 設定しないと端末ごとの既定値 (8kHz や低いビットレートのことがある) になる
+            mediaRecorder.setAudioSamplingRate(profile.getSampleRate());
+            mediaRecorder.setAudioChannels(profile.getChannelCount());
+            mediaRecorder.setAudioEncodingBitRate(profile.getBitRate());
+            Log.d(TAG, "start: エンコードの設定完了: " + profile);
+            if (metrics != null) {
+                metrics.setEncoder(profile, profile.getBitRate(), false);
+            }
+
+            Log.d(TAG, "start: mediaRecorder.prepare() を呼び出します...");
+            mediaRecorder.prepare();
+            Log.d(TAG, "start: -> 成功");
+
+            Log.d(TAG, "start: mediaRecorder.start() を呼び出します...");
+            mediaRecorder.start();
+            // MediaRecorder からは実際のサンプルの到着が分からないので、start() から戻った時刻で代用する
+            firstSampleNanos = System.nanoTime();
+            Log.d(TAG, "start: -> 成功！録音を完全に開始しました。");
+        } catch (IOException | RuntimeException e) {
+            mediaRecorder.release();
+            mediaRecorder = null;
+            throw e;
+        }
+    }
+
+    @Override
+    public long getFirstSampleNanos() {
+        return firstSampleNanos;
+    }
+
+    @Override
+    public void stop() throws IOException {
+        if (mediaRecorder == null) {
+            logger.accept("INFO: MediaRecorderは既にnullのため、停止処理をスキップします。");
+            return;
+        }
+        if (firstSampleNanos == 0) {
+            // prepare() だけで録音を開始しなかった
+            mediaRecorder.release();
+            mediaRecorder = null;
+            logger.accept("INFO: 準備済みの MediaRecorder を使わずに解放しました。");
+            return;
+        }
+        try {
+            // 8. 録音を停止 (State: Recording -> Initial)
+            logger.accept("[State: Recording] MediaRecorder.stop() を呼び出します...");
+            mediaRecorder.stop();
+            logger.accept("[State: Initial] 録音を停止しました。");
+        } catch (IllegalStateException e) {
+            // 既に停止している場合などに発生する可能性がある
+            logger.accept("WARN: MediaRecorder.stop() で例外発生 (おそらく既に停止済み): " + e.getMessage());
+        } finally {
+            // 9. リソースを解放 (State: Initial -> Released)
+            logger.accept("[State: Initial] MediaRecorder.release() を呼び出します...");
+            mediaRecorder.release();
+            mediaRecorder = null;
+            logger.accept("[State: Released] リソースを解放しました。");
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "MediaRecorder";
+    }
+}
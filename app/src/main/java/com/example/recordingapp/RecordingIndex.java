@@ -0,0 +1,473 @@
+package com.example.recordingapp;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.media.MediaMetadataRetriever;
+import android.util.Log;
+
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 録音の一覧を SQLite に保持するインデックス。
+ *
+ * 録音を開始した時点で「録音中」の行を追加し、停止処理が終わったら長さ・サイズ・セグメント一覧を書き込む。
+ * 一覧はソート列のインデックスを使ったキーセット方式でページごとに読み出すので、
+ * 何万件あっても全件をメモリに載せることはない。
+ *
+ * 強制終了された後の起動時 ({@link #recover(File)}) は「録音中」のまま残った行のファイルだけを調べ直す。
+ * 保存先ディレクトリ全体を調べるのは、データベースを新しく作ったとき (初回起動やデータ消去の後) だけ。
+ *
+ * 保存容量の上限 ({@link StorageQuota}) を超えそうなときに消す録音は、{@link #queryEvictionCandidates(int)} で
+ * 優先度の低い順、古い順に選ぶ。固定された録音 ({@link #setPinned(String, boolean)}) は選ばない。
+ *
+ * 読み書きはディスクI/Oを伴うので、{@link #getExecutor()} のスレッドなど、メインスレッド以外から呼ぶこと。
+ */
+public final class RecordingIndex extends SQLiteOpenHelper {
+
+    private static final String TAG = "RecordingIndex";
+    private static final String DATABASE_NAME = "recordings.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE_RECORDINGS = "recordings";
+    private static final String TABLE_SEGMENTS = "segments";
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_PATH = "path";
+    private static final String COLUMN_START_TIME = "start_time_ms";
+    private static final String COLUMN_DURATION = "duration_us";
+    private static final String COLUMN_SIZE = "size_bytes";
+    private static final String COLUMN_FORMAT = "format";
+    private static final String COLUMN_SEGMENT_COUNT = "segment_count";
+    private static final String COLUMN_STATUS = "status";
+    private static final String COLUMN_PINNED = "pinned";
+    private static final String COLUMN_PRIORITY = "priority";
+    private static final String COLUMN_RECORDING_ID = "recording_id";
+    private static final String COLUMN_SEGMENT_INDEX = "segment_index";
+    private static final String COLUMN_FILE_NAME = "file_name";
+    private static final String COLUMN_START_US = "start_us";
+    private static final String COLUMN_BYTES = "bytes";
+
+    private static final String[] RECORDING_COLUMNS = {
+            COLUMN_ID, COLUMN_PATH, COLUMN_START_TIME, COLUMN_DURATION, COLUMN_SIZE,
+            COLUMN_FORMAT, COLUMN_SEGMENT_COUNT, COLUMN_STATUS};
+
+    /**
+     * 一覧の並び順
+     */
+    public enum Sort {
+        START_TIME(COLUMN_START_TIME),
+        DURATION(COLUMN_DURATION),
+        SIZE(COLUMN_SIZE);
+
+        final String column;
+
+        Sort(String column) {
+            this.column = column;
+        }
+
+        long valueOf(RecordingEntry entry) {
+            switch (this) {
+                case DURATION:
+                    return entry.durationUs;
+                case SIZE:
+                    return entry.sizeBytes;
+                default:
+                    return entry.startTimeMillis;
+            }
+        }
+    }
+
+    private static RecordingIndex instance;
+
+    // 書き込みを順番に実行するための専用スレッド
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(r -> new Thread(r, "RecordingIndex"));
+    // onCreate() でデータベースを新しく作ったかどうか (作った場合は保存先ディレクトリから登録し直す)
+    private boolean created;
+
+    private RecordingIndex(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    /**
+     * プロセスで1つのインデックスを返す (RecordingService と MainActivity で共有する)
+     */
+    public static synchronized RecordingIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new RecordingIndex(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * インデックスの読み書きに使うスレッド。書き込みはこのスレッドから順番に行う
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.setForeignKeyConstraintsEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_RECORDINGS + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COLUMN_PATH + " TEXT NOT NULL UNIQUE, "
+                + COLUMN_START_TIME + " INTEGER NOT NULL, "
+                + COLUMN_DURATION + " INTEGER NOT NULL, "
+                + COLUMN_SIZE + " INTEGER NOT NULL, "
+                + COLUMN_FORMAT + " TEXT NOT NULL, "
+                + COLUMN_SEGMENT_COUNT + " INTEGER NOT NULL, "
+                + COLUMN_STATUS + " INTEGER NOT NULL, "
+                + COLUMN_PINNED + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_PRIORITY + " INTEGER NOT NULL DEFAULT 0)");
+        // ソートに使う列ごとのインデックス (行IDも含まれるので、同じ値の行の順番も決まる)
+        db.execSQL("CREATE INDEX recordings_start_time ON " + TABLE_RECORDINGS + " (" + COLUMN_START_TIME + ")");
+        db.execSQL("CREATE INDEX recordings_duration ON " + TABLE_RECORDINGS + " (" + COLUMN_DURATION + ")");
+        db.execSQL("CREATE INDEX recordings_size ON " + TABLE_RECORDINGS + " (" + COLUMN_SIZE + ")");
+        db.execSQL("CREATE INDEX recordings_status ON " + TABLE_RECORDINGS + " (" + COLUMN_STATUS + ")");
+        createEvictionIndex(db);
+        db.execSQL("CREATE TABLE " + TABLE_SEGMENTS + " ("
+                + COLUMN_RECORDING_ID + " INTEGER NOT NULL REFERENCES " + TABLE_RECORDINGS
+                + " (" + COLUMN_ID + ") ON DELETE CASCADE, "
+                + COLUMN_SEGMENT_INDEX + " INTEGER NOT NULL, "
+                + COLUMN_FILE_NAME + " TEXT NOT NULL, "
+                + COLUMN_START_US + " INTEGER NOT NULL, "
+                + COLUMN_DURATION + " INTEGER NOT NULL, "
+                + COLUMN_BYTES + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + COLUMN_RECORDING_ID + ", " + COLUMN_SEGMENT_INDEX + "))");
+        created = true;
+    }
+
+    /**
+     * 消す候補を選ぶ順番のインデックス
+     */
+    private static void createEvictionIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX recordings_eviction ON " + TABLE_RECORDINGS + " ("
+                + COLUMN_PINNED + ", " + COLUMN_PRIORITY + ", " + COLUMN_START_TIME + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion == 1) {
+            // 固定と優先度の列を足すだけなので、登録済みの行はそのまま使う
+            db.execSQL("ALTER TABLE " + TABLE_RECORDINGS + " ADD COLUMN " + COLUMN_PINNED + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE_RECORDINGS + " ADD COLUMN " + COLUMN_PRIORITY + " INTEGER NOT NULL DEFAULT 0");
+            createEvictionIndex(db);
+            return;
+        }
+        // インデックスはファイルから作り直せるので、古い形式は捨てて作り直す
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_SEGMENTS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_RECORDINGS);
+        onCreate(db);
+    }
+
+    /**
+     * 録音の開始を登録する。停止処理が終わるまでは「録音中」の行として残る。
+     */
+    @WorkerThread
+    public void beginRecording(String path, long startTimeMillis) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_PATH, path);
+        values.put(COLUMN_START_TIME, startTimeMillis);
+        values.put(COLUMN_DURATION, RecordingEntry.UNKNOWN_DURATION);
+        values.put(COLUMN_SIZE, 0L);
+        values.put(COLUMN_FORMAT, RecordingProbe.formatOf(path));
+        values.put(COLUMN_SEGMENT_COUNT, 0);
+        values.put(COLUMN_STATUS, RecordingEntry.STATUS_RECORDING);
+        getWritableDatabase().insertWithOnConflict(TABLE_RECORDINGS, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * 停止処理が終わった録音のファイルを調べ、長さ・サイズ・セグメント一覧を書き込む。
+     * ファイルが見つからなければ行を削除して null を返す。
+     */
+    @WorkerThread
+    public RecordingEntry finishRecording(String path) throws IOException {
+        return update(path, RecordingEntry.STATUS_COMPLETE);
+    }
+
+    /**
+     * 強制終了された後の起動時に呼ぶ。「録音中」のまま残った行のファイルだけを調べ直して登録し直す。
+     * データベースを新しく作った直後なら、保存先ディレクトリにある録音をすべて登録する。
+     * @return 登録し直した件数
+     */
+    @WorkerThread
+    public int recover(File directory) throws IOException {
+        SQLiteDatabase db = getWritableDatabase();
+        if (created) {
+            created = false;
+            return importDirectory(directory);
+        }
+        List<String> pending = new ArrayList<>();
+        try (Cursor cursor = db.query(TABLE_RECORDINGS, new String[]{COLUMN_PATH},
+                COLUMN_STATUS + " = " + RecordingEntry.STATUS_RECORDING, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                pending.add(cursor.getString(0));
+            }
+        }
+        for (String path : pending) {
+            update(path, RecordingEntry.STATUS_INCOMPLETE);
+        }
+        return pending.size();
+    }
+
+    /**
+     * 保存先ディレクトリにある録音をすべて登録し直す
+     * @return 登録した件数
+     */
+    @WorkerThread
+    public int importDirectory(File directory) throws IOException {
+        SQLiteDatabase db = getWritableDatabase();
+        int count = 0;
+        // 1件ごとにコミットすると件数が多いときに遅いので、まとめて1つのトランザクションにする
+        db.beginTransaction();
+        try {
+            for (String path : RecordingProbe.listRecordings(directory)) {
+                if (update(path, RecordingEntry.STATUS_COMPLETE) != null) {
+                    count++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return count;
+    }
+
+    /**
+     * 一覧を1ページ分読み出す
+     * @param after 前のページの最後の要素。null なら先頭のページ
+     * @param limit 1ページの件数
+     */
+    @WorkerThread
+    public List<RecordingEntry> query(Sort sort, boolean descending, RecordingEntry after, int limit) {
+        String selection = null;
+        String[] args = null;
+        String op = descending ? "<" : ">";
+        if (after != null) {
+            String value = Long.toString(sort.valueOf(after));
+            selection = sort.column + " " + op + " ? OR (" + sort.column + " = ? AND " + COLUMN_ID + " " + op + " ?)";
+            args = new String[]{value, value, Long.toString(after.id)};
+        }
+        String direction = descending ? " DESC" : " ASC";
+        String orderBy = sort.column + direction + ", " + COLUMN_ID + direction;
+        List<RecordingEntry> entries = new ArrayList<>(limit);
+        try (Cursor cursor = getReadableDatabase().query(TABLE_RECORDINGS, RECORDING_COLUMNS,
+                selection, args, null, null, orderBy, Integer.toString(limit))) {
+            while (cursor.moveToNext()) {
+                entries.add(readEntry(cursor));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * {@link #RECORDING_COLUMNS} の順に読み出した行を変換する
+     */
+    private static RecordingEntry readEntry(Cursor cursor) {
+        return new RecordingEntry(cursor.getLong(0), cursor.getString(1), cursor.getLong(2),
+                cursor.getLong(3), cursor.getLong(4), cursor.getString(5), cursor.getInt(6), cursor.getInt(7));
+    }
+
+    /**
+     * 登録されている録音の件数
+     */
+    @WorkerThread
+    public long getCount() {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE_RECORDINGS);
+    }
+
+    /**
+     * 登録されている録音の合計サイズ。保存容量の使用量の初期値に使う (ディレクトリを調べ直さずに済む)
+     */
+    @WorkerThread
+    public long getTotalSizeBytes() {
+        return DatabaseUtils.longForQuery(getReadableDatabase(),
+                "SELECT COALESCE(SUM(" + COLUMN_SIZE + "), 0) FROM " + TABLE_RECORDINGS, null);
+    }
+
+    /**
+     * 登録した後に増えたファイル (後処理したファイルなど) の分を、録音のサイズに足す
+     * @return 録音が登録されていれば true
+     */
+    @WorkerThread
+    public boolean addSize(String path, long deltaBytes) {
+        try (SQLiteStatement statement = getWritableDatabase().compileStatement("UPDATE " + TABLE_RECORDINGS
+                + " SET " + COLUMN_SIZE + " = " + COLUMN_SIZE + " + ? WHERE " + COLUMN_PATH + " = ?")) {
+            statement.bindLong(1, deltaBytes);
+            statement.bindString(2, path);
+            return statement.executeUpdateDelete() > 0;
+        }
+    }
+
+    /**
+     * 録音を固定する (固定した録音は保存容量の上限を超えても消さない)。固定を外すには false を渡す
+     * @return 録音が登録されていれば true
+     */
+    @WorkerThread
+    public boolean setPinned(String path, boolean pinned) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_PINNED, pinned ? 1 : 0);
+        return getWritableDatabase().update(TABLE_RECORDINGS, values, COLUMN_PATH + " = ?", new String[]{path}) > 0;
+    }
+
+    /**
+     * 録音の優先度を変える。保存容量の上限を超えそうなときは、優先度の低い録音から消す (既定は 0)
+     * @return 録音が登録されていれば true
+     */
+    @WorkerThread
+    public boolean setPriority(String path, int priority) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_PRIORITY, priority);
+        return getWritableDatabase().update(TABLE_RECORDINGS, values, COLUMN_PATH + " = ?", new String[]{path}) > 0;
+    }
+
+    /**
+     * 保存容量の上限を超えそうなときに消してよい録音を、消す順 (優先度の低い順、古い順) に読み出す。
+     * 固定された録音と、録音中の録音は含めない。
+     */
+    @WorkerThread
+    public List<RecordingEntry> queryEvictionCandidates(int limit) {
+        List<RecordingEntry> entries = new ArrayList<>(limit);
+        try (Cursor cursor = getReadableDatabase().query(TABLE_RECORDINGS, RECORDING_COLUMNS,
+                COLUMN_PINNED + " = 0 AND " + COLUMN_STATUS + " != " + RecordingEntry.STATUS_RECORDING, null,
+                null, null, COLUMN_PRIORITY + ", " + COLUMN_START_TIME + ", " + COLUMN_ID, Integer.toString(limit))) {
+            while (cursor.moveToNext()) {
+                entries.add(readEntry(cursor));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * 録音の行を削除する (セグメントの行も一緒に消える)。ファイルは消さない
+     */
+    @WorkerThread
+    public void delete(long recordingId) {
+        getWritableDatabase().delete(TABLE_RECORDINGS, COLUMN_ID + " = ?", new String[]{Long.toString(recordingId)});
+    }
+
+    /**
+     * 分割録音のセグメント一覧を読み出す
+     */
+    @WorkerThread
+    public List<SessionManifest.Segment> getSegments(long recordingId) {
+        List<SessionManifest.Segment> segments = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(TABLE_SEGMENTS,
+                new String[]{COLUMN_SEGMENT_INDEX, COLUMN_FILE_NAME, COLUMN_START_US, COLUMN_DURATION, COLUMN_BYTES},
+                COLUMN_RECORDING_ID + " = ?", new String[]{Long.toString(recordingId)},
+                null, null, COLUMN_SEGMENT_INDEX)) {
+            while (cursor.moveToNext()) {
+                segments.add(new SessionManifest.Segment(cursor.getInt(0), cursor.getString(1),
+                        cursor.getLong(2), cursor.getLong(3), cursor.getLong(4)));
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * ファイルを調べて行を書き換える (無ければ追加する)。ファイルが見つからなければ行を削除する。
+     */
+    private RecordingEntry update(String path, int status) throws IOException {
+        SQLiteDatabase db = getWritableDatabase();
+        RecordingEntry entry = RecordingProbe.probe(path, startTimeOf(db, path), status);
+        if (entry == null) {
+            db.delete(TABLE_RECORDINGS, COLUMN_PATH + " = ?", new String[]{path});
+            return null;
+        }
+        if (entry.durationUs == RecordingEntry.UNKNOWN_DURATION && entry.segmentCount == 0) {
+            entry = entry.withDurationUs(mediaDurationUs(path));
+        }
+        List<SessionManifest.Segment> segments = entry.segmentCount > 0
+                ? new SessionManifest(SessionManifest.forRecording(path)).read()
+                : new ArrayList<>();
+
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_PATH, entry.path);
+        values.put(COLUMN_START_TIME, entry.startTimeMillis);
+        values.put(COLUMN_DURATION, entry.durationUs);
+        values.put(COLUMN_SIZE, entry.sizeBytes);
+        values.put(COLUMN_FORMAT, entry.format);
+        values.put(COLUMN_SEGMENT_COUNT, entry.segmentCount);
+        values.put(COLUMN_STATUS, entry.status);
+        db.beginTransaction();
+        try {
+            long id;
+            if (db.update(TABLE_RECORDINGS, values, COLUMN_PATH + " = ?", new String[]{path}) > 0) {
+                id = idOf(db, path);
+                db.delete(TABLE_SEGMENTS, COLUMN_RECORDING_ID + " = ?", new String[]{Long.toString(id)});
+            } else {
+                id = db.insertOrThrow(TABLE_RECORDINGS, null, values);
+            }
+            ContentValues segmentValues = new ContentValues();
+            for (SessionManifest.Segment segment : segments) {
+                segmentValues.clear();
+                segmentValues.put(COLUMN_RECORDING_ID, id);
+                segmentValues.put(COLUMN_SEGMENT_INDEX, segment.index);
+                segmentValues.put(COLUMN_FILE_NAME, segment.fileName);
+                segmentValues.put(COLUMN_START_US, segment.startUs);
+                segmentValues.put(COLUMN_DURATION, segment.durationUs);
+                segmentValues.put(COLUMN_BYTES, segment.bytes);
+                db.insertOrThrow(TABLE_SEGMENTS, null, segmentValues);
+            }
+            db.setTransactionSuccessful();
+            return new RecordingEntry(id, entry.path, entry.startTimeMillis, entry.durationUs, entry.sizeBytes,
+                    entry.format, entry.segmentCount, entry.status);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * 登録済みの開始時刻を返す。未登録なら -1 (ファイル名から求める)
+     */
+    private static long startTimeOf(SQLiteDatabase db, String path) {
+        try (Cursor cursor = db.query(TABLE_RECORDINGS, new String[]{COLUMN_START_TIME},
+                COLUMN_PATH + " = ?", new String[]{path}, null, null, null)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        }
+    }
+
+    private static long idOf(SQLiteDatabase db, String path) {
+        return DatabaseUtils.longForQuery(db,
+                "SELECT " + COLUMN_ID + " FROM " + TABLE_RECORDINGS + " WHERE " + COLUMN_PATH + " = ?",
+                new String[]{path});
+    }
+
+    /**
+     * MPEG-4 の長さをコンテナのメタデータから読む。読めなければ不明とする (書きかけのファイルなど)
+     */
+    private static long mediaDurationUs(String path) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(path);
+            String millis = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            return millis != null ? Long.parseLong(millis) * 1000 : RecordingEntry.UNKNOWN_DURATION;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "mediaDurationUs: 長さを読み取れませんでした: " + path, e);
+            return RecordingEntry.UNKNOWN_DURATION;
+        } finally {
+            try {
+                retriever.release();
+            } catch (IOException | RuntimeException ignored) {
+                // 解放の失敗は無視する
+            }
+        }
+    }
+}
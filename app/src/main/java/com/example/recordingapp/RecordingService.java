@@ -6,9 +6,14 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
-import android.media.MediaRecorder;
+import android.content.SharedPreferences;
+import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
@@ -16,28 +21,197 @@ import androidx.core.app.NotificationCompat;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 // extends Service という部分が「このRecordingServiceクラスは、AndroidのService部品としてのルールブックに従います」という宣言にあたる。
 // サービス開始(ServiceIntent)するときは、OSは onStartCommand() という名前のメソッドを呼びますね、のようなもの。
 public class RecordingService extends Service {
 
-    private MediaRecorder mediaRecorder;
+    private static final String TAG = "RecordingService";
+
+    // ログの保持件数
+    private static final int LOG_BUFFER_CAPACITY = 1024;
+    // ログをActivityへ届ける最短間隔 (約1フレーム)
+    private static final long LOG_DELIVERY_INTERVAL_MS = 16;
+
+    // 最初のサンプルが届いたかを確認する間隔
+    private static final long FIRST_SAMPLE_CHECK_INTERVAL_MS = 100;
+
+    // 録音中のPCMを配るリングの大きさ (48kHz ステレオの 20ms バッファで約1.3秒分)
+    private static final int PCM_FANOUT_SLOTS = 64;
+    private static final int PCM_FANOUT_SAMPLES_PER_SLOT = 2048;
+
+    // 画面に渡すスペクトルの帯域の数と、保持するフレーム数 (48kHz なら約1.4秒分)
+    private static final int SPECTRUM_BANDS = 96;
+    private static final int SPECTRUM_FRAME_CAPACITY = 64;
+
+    // サービスが作り直されてもログが失われないよう、プロセス全体で1つのバッファを使う
+    private static final LogBuffer logBuffer = new LogBuffer(LOG_BUFFER_CAPACITY);
+
+    // 録音エンジンの生成・開始・停止は、すべてこのスレッドで受け取った順に1つずつ行う。
+    // サービスが作り直されても前のインスタンスの停止処理の後に次の開始処理が動くよう、プロセス全体で1つにする
+    private static Handler controlHandler;
+
+    // 録音後の後処理のジョブ。サービスが作り直されても実行中のジョブを続けられるよう、プロセス全体で1つにする
+    private static PostProcessScheduler postProcessScheduler;
+
+    // 保存容量の上限と使用量。使用量を録音ごとに数え続けるので、プロセス全体で1つにする
+    private static StorageQuota storageQuota;
+
+    // このプロセスで始めた録音のジャーナル。録音中かもしれないので、強制終了された録音として修復しない
+    private static final Set<String> journalsOfThisProcess = ConcurrentHashMap.newKeySet();
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final IBinder binder = new LocalBinder();
+    private final AtomicBoolean logDeliveryScheduled = new AtomicBoolean();
+    // 録音中の入力レベル。MainActivity がバインド経由で直接読み出す
+    private final LevelSnapshot levelSnapshot = new LevelSnapshot();
+    // 録音中のスペクトル。開始コマンドで EXTRA_SPECTRUM_ANALYZER を指定したときだけ書き込まれる
+    private final SpectrumFrames spectrumFrames = new SpectrumFrames(SPECTRUM_FRAME_CAPACITY, SPECTRUM_BANDS);
+    private final Runnable deliverLogs = this::deliverLogs;
+    private final Runnable reportStartupTiming = this::reportStartupTiming;
+    // 録音中のPCMを同じプロセス内の読み手に配る。録音エンジンが変わっても読み手はそのまま読み続けられる
+    private final PcmFanout pcmFanout = new PcmFanout(PCM_FANOUT_SLOTS, PCM_FANOUT_SAMPLES_PER_SLOT);
+    // バインド経由で送ったコマンドの完了を待っているもの (コマンドのIDごと)
+    private final Map<Long, CompletableFuture<RecordingStatus>> pendingAcks = new ConcurrentHashMap<>();
+    private final AtomicLong nextAckId = new AtomicLong();
+    // 制御スレッドがコマンドを処理するたびに作り直す
+    private volatile RecordingStatus status = RecordingStatus.IDLE;
+    private LogListener logListener;
+    private Handler control;
+
+    // ここから下の録音の状態は、制御スレッドからだけ読み書きする
+    private CaptureEngine captureEngine;
+    private String captureMode = CAPTURE_MODE_AUDIO_RECORD;
+    private RecordingOptions recordingOptions = new RecordingOptions();
     private String outputFilePath;
     private boolean isRecording = false;
+    // 待機モードで動いている録音エンジン (録音を開始するとそのまま captureEngine になる)
+    private AudioRecordEngine armedEngine;
+    // 待機モードから録音した場合は、録音を停止した後にまた待機モードに戻る
+    private int armedPreRollSeconds;
+    // ウォームアップで準備しておいた録音エンジンと、その録音モード
+    private CaptureEngine warmEngine;
+    private String warmEngineMode;
+    // ウォームアップを求められている録音モード (バインドが解除されるまで、録音の停止後にも準備し直す)
+    private String warmUpMode;
+    // 最後に処理したコマンドの startId
+    private int lastStartId = -1;
+    // 録音開始の各段階の時刻 (System.nanoTime())。最初のサンプルまでの時間の内訳として出力する
+    private long startRequestedNanos;
+    private long startReceivedNanos;
+    private long startDispatchedNanos;
+    private long engineStartedNanos;
+    private String startPath;
+    private boolean startupTimingReported;
+    // 録音中 (停止後は直前) の録音の計測値。MainActivity がバインド経由で読み出す
+    private volatile SessionMetrics sessionMetrics;
+    // 録音開始時点のプロセスのCPU時間 (ミリ秒)
+    private long cpuTimeAtStartMillis;
+    // 要求されたエンコードの設定がこの端末で使えず、別の設定に変えた理由 (次の録音の計測値に記録する)
+    private String encoderFallbackReason;
+    // 処理中のコマンドを処理できなかった理由 (RecordingStatus#error になる)
+    private String commandError;
+    private long recordingStartTimeMillis;
+    // 録音の一覧。読み書きはインデックス専用のスレッドで行う
+    private RecordingIndex recordingIndex;
+    // 録音中の録音が書き込んだバイト数 (停止後にファイルの実際のサイズで合わせ直す)
+    private StorageQuota.Session storageSession;
 
     // 通知チャンネルのID
     private static final String CHANNEL_ID = "RecordingServiceChannel";
     // 通知のID
     private static final int NOTIFICATION_ID = 1;
 
-    // MainActivityにログを送信するためのアクション定義
-    public static final String ACTION_UPDATE_LOG = "com.example.recordingapp.UPDATE_LOG";
-    public static final String EXTRA_LOG_MESSAGE = "extra_log_message";
+    // MainActivityから録音を操作するためのアクション定義
     public static final String ACTION_START_RECORDING = "com.example.recordingapp.ACTION_START";
     public static final String ACTION_STOP_RECORDING = "com.example.recordingapp.ACTION_STOP";
+    // 待機モード: 録音開始前から直近の音声をメモリに保持し続け、録音開始時にそれを先頭に書き込む
+    public static final String ACTION_ARM_RECORDING = "com.example.recordingapp.ACTION_ARM";
+    public static final String ACTION_DISARM_RECORDING = "com.example.recordingapp.ACTION_DISARM";
+
+    // 録音エンジンの選択 (ACTION_START_RECORDING のExtra)
+    public static final String EXTRA_CAPTURE_MODE = "extra_capture_mode";
+    public static final String CAPTURE_MODE_AUDIO_RECORD = "audio_record";
+    public static final String CAPTURE_MODE_MEDIA_RECORDER = "media_recorder";
+
+    // 保存形式 (ACTION_START_RECORDING のExtra、AudioRecordモードのみ)。値は RecordingOptions.OUTPUT_FORMAT_*
+    public static final String EXTRA_OUTPUT_FORMAT = "extra_output_format";
+
+    // 分割録音の設定 (ACTION_START_RECORDING のExtra、AudioRecordモードのみ)。0 または未指定なら分割しない
+    public static final String EXTRA_SEGMENT_MAX_SECONDS = "extra_segment_max_seconds";
+    public static final String EXTRA_SEGMENT_MAX_BYTES = "extra_segment_max_bytes";
+
+    // 無音の間の書き込みを止めるかどうか (ACTION_START_RECORDING のExtra、AudioRecordモードのみ)
+    public static final String EXTRA_VAD_ENABLED = "extra_vad_enabled";
+
+    // 録音中にスペクトルを求めて画面に渡すかどうか (ACTION_START_RECORDING のExtra、AudioRecordモードのみ)
+    public static final String EXTRA_SPECTRUM_ANALYZER = "extra_spectrum_analyzer";
+
+    // 強制終了された後にシステムがサービスを再起動したとき、同じ設定の新しいファイルで録音を再開するかどうか
+    // (ACTION_START_RECORDING のExtra)。録音を停止するまで、開始コマンドを保存しておく
+    public static final String EXTRA_RESUME_AFTER_RESTART = "extra_resume_after_restart";
+    private static final String SESSION_PREFERENCES = "recording_session";
+    private static final String PREF_RESUME_INTENT = "resume_intent";
+
+    // 録音開始が指示された時刻 (ACTION_START_RECORDING のExtra、System.nanoTime())。最初のサンプルまでの時間の起点になる
+    public static final String EXTRA_REQUESTED_AT_NANOS = "extra_requested_at_nanos";
+
+    // バインド経由で送ったコマンドのID。処理し終えたら、このIDで待っている呼び出し元に録音の状態を返す
+    private static final String EXTRA_ACK_ID = "extra_ack_id";
+
+    // 待機モードで保持する秒数 (ACTION_ARM_RECORDING のExtra)
+    public static final String EXTRA_PRE_ROLL_SECONDS = "extra_pre_roll_seconds";
+    private static final int DEFAULT_PRE_ROLL_SECONDS = 10;
+
+    // エンコードの設定 (ACTION_START_RECORDING / ACTION_ARM_RECORDING のExtra)。値は EncoderProfile の名前
+    // ("speech" / "standard" / "music" / "opus")。未指定なら "standard"
+    public static final String EXTRA_ENCODER_PROFILE = "extra_encoder_profile";
+    // 書き込みの遅れや空き容量の不足に応じて録音中にビットレートを上げ下げするかどうか (AudioRecordモードのみ)
+    public static final String EXTRA_ADAPTIVE_BITRATE = "extra_adaptive_bitrate";
+
+    // 録音の停止後にかける後処理 (ACTION_START_RECORDING のExtra、WAVのみ)。PostProcessor.STAGE_* のカンマ区切り
+    public static final String EXTRA_POST_PROCESS = "extra_post_process";
+    // 後処理の結果をAACで保存する場合のビットレート (保管用)
+    private static final int POST_PROCESS_AAC_BIT_RATE = 64_000;
+
+    // 保存容量の上限 (ACTION_START_RECORDING のExtra)。指定すると保存され、以降の録音でも使われる。0 は上限なし
+    public static final String EXTRA_QUOTA_MAX_BYTES = "extra_quota_max_bytes";
+    public static final String EXTRA_QUOTA_MAX_DAYS = "extra_quota_max_days";
+    private static final String QUOTA_PREFERENCES = "storage_quota";
+    private static final String PREF_QUOTA_MAX_BYTES = "max_bytes";
+    private static final String PREF_QUOTA_MAX_DAYS = "max_days";
+    // 録音を始めるときに空けておく容量 (この時間だけ録音できる分)
+    private static final long QUOTA_RESERVE_SECONDS = 10 * 60;
+    // 消す候補を一度に読み出す件数
+    private static final int EVICTION_BATCH = 100;
+
+    /**
+     * 新しいログが追加されたことを受け取るリスナー。メインスレッドで、最大でも1フレームに1回呼ばれる。
+     */
+    public interface LogListener {
+        void onLogsAvailable();
+    }
+
+    /**
+     * 同じプロセス内の MainActivity がサービスを直接参照するためのBinder
+     */
+    public class LocalBinder extends Binder {
+        public RecordingService getService() {
+            return RecordingService.this;
+        }
+    }
 
     @Override
     public void onCreate() {
@@ -45,6 +219,77 @@ public class RecordingService extends Service {
         // サービスが作成されたときに一度だけ呼ばれる
         sendToLog("--------------------");
         sendToLog("LIFECYCLE: RecordingService#onCreate: サービスがメモリ上に初めて作成されました。");
+        control = getControlHandler();
+
+        // 前回強制終了されたときに録音中だった録音を、ジャーナルに従って修復してから、インデックスに登録し直す
+        recordingIndex = RecordingIndex.getInstance(this);
+        File storageDir = getExternalFilesDir(null);
+        if (storageDir != null) {
+            runOnIndexThread(() -> {
+                recoverInterruptedSessions(storageDir);
+                int recovered = recordingIndex.recover(storageDir);
+                if (recovered > 0) {
+                    sendToLog("INDEX: 録音インデックスに " + recovered + " 件を登録し直しました。");
+                }
+            });
+        }
+
+        // 保存容量の使用量は、インデックスの合計サイズから数え始める
+        if (storageQuota == null) {
+            SharedPreferences preferences = getSharedPreferences(QUOTA_PREFERENCES, MODE_PRIVATE);
+            StorageQuota quota = new StorageQuota(preferences.getLong(PREF_QUOTA_MAX_BYTES, StorageQuota.UNLIMITED),
+                    preferences.getInt(PREF_QUOTA_MAX_DAYS, (int) StorageQuota.UNLIMITED));
+            storageQuota = quota;
+            // 登録し直しの後に実行される。その前に始まった録音の分は既に数えているので、足し込む
+            runOnIndexThread(() -> quota.add(recordingIndex.getTotalSizeBytes()));
+            // 保存期間を過ぎた録音を消す
+            evictInBackground(0, null);
+        }
+
+        // 前回のプロセスで終わっていなかった後処理のジョブを再開する
+        if (postProcessScheduler == null) {
+            PostProcessScheduler scheduler = createPostProcessScheduler(getFilesDir());
+            postProcessScheduler = scheduler;
+            control.post(() -> {
+                try {
+                    int resumed = scheduler.start();
+                    if (resumed > 0) {
+                        sendToLog("POSTPROCESS: 前回終わっていなかった後処理 " + resumed + " 件を再開します。");
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "onCreate: 後処理のジョブを読み込めませんでした", e);
+                    sendToLog("WARN: 後処理のジョブを読み込めませんでした: " + e.getMessage());
+                }
+            });
+        }
+        postProcessScheduler.setListener(this::logPostProcessJob);
+    }
+
+    /**
+     * 制御スレッドのHandler。最初に呼ばれたときにスレッドを起動し、以降はプロセスが終わるまで使い続ける。
+     */
+    private static synchronized Handler getControlHandler() {
+        if (controlHandler == null) {
+            HandlerThread thread = new HandlerThread("RecordingControl", Process.THREAD_PRIORITY_FOREGROUND);
+            thread.start();
+            controlHandler = new Handler(thread.getLooper());
+        }
+        return controlHandler;
+    }
+
+    /**
+     * 後処理のスケジューラを作る。作業スレッドはバックグラウンドの優先度で動かし、録音のスレッドより後回しにする。
+     */
+    private static PostProcessScheduler createPostProcessScheduler(File filesDir) {
+        PostProcessJobStore store = new PostProcessJobStore(new File(filesDir, "postprocess.jobs"));
+        return new PostProcessScheduler(store, PostProcessScheduler.defaultThreadCount(),
+                runnable -> new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }, "PostProcess"),
+                (outputPath, tempPath) -> outputPath.endsWith(".mp4")
+                        ? new AacEncoderSink(tempPath, POST_PROCESS_AAC_BIT_RATE)
+                        : new WavFileSink(tempPath));
     }
 
     @Override
@@ -52,34 +297,29 @@ public class RecordingService extends Service {
         // サービスが開始されるたびに呼ばれる
         // Intentがnullでない、かつアクションが指定されている場合のみ処理
         if (intent != null && intent.getAction() != null) {
+            long receivedNanos = System.nanoTime();
+            // フォアグラウンド化は startForegroundService() から数秒以内に必要なので、ここ (メインスレッド) で済ませる
             switch (intent.getAction()) {
                 case ACTION_START_RECORDING:
-                    sendToLog("LIFECYCLE: RecordingService#onStartCommand: サービスが開始コマンドを受け取りました。");
-
-                    // 通知とフォアグラウンド化の処理
-                    createNotificationChannel();
-                    Intent notificationIntent = new Intent(this, MainActivity.class);
-                    PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, notificationIntent, PendingIntent.FLAG_IMMUTABLE);
-                    Notification notification = new NotificationCompat.Builder(this, CHANNEL_ID)
-                            .setContentTitle("録音サービス")
-                            .setContentText("バックグラウンドで録音を実行中です。")
-                            .setSmallIcon(android.R.drawable.ic_media_play)
-                            .setContentIntent(pendingIntent)
-                            .build();
-                    startForeground(NOTIFICATION_ID, notification);
-                    sendToLog("SYSTEM: startForeground() を呼び出し、フォアグラウンドサービスを開始しました。");
-
-                    // 録音処理を開始
-                    startRecording();
+                    startForegroundWithNotification("バックグラウンドで録音を実行中です。");
                     break;
-
-                case ACTION_STOP_RECORDING:
-                    sendToLog("LIFECYCLE: RecordingService#onStartCommand: サービスが停止コマンドを受け取りました。");
-                    // 録音を停止し、サービス自身も停止する
-                    stopRecording();
-                    stopSelf(); // サービス自身に終了を命令する
+                case ACTION_ARM_RECORDING:
+                    startForegroundWithNotification("録音の待機中です (直近の音声を保持しています)。");
                     break;
             }
+            // 録音エンジンの操作は制御スレッドで行う。連続して届いたコマンドも届いた順に処理される
+            control.post(() -> handleCommand(intent, startId, receivedNanos));
+        } else if (intent == null) {
+            // 強制終了された後に、システムがサービスを再起動した (START_STICKY)
+            long receivedNanos = System.nanoTime();
+            sendToLog("LIFECYCLE: RecordingService#onStartCommand: 強制終了の後にシステムがサービスを再起動しました。");
+            Intent resume = readResumeIntent();
+            if (resume != null) {
+                startForegroundWithNotification("中断された録音を再開しています。");
+            }
+            // onCreate() で始めた修復 (インデックス専用のスレッド) が終わってから、制御スレッドで処理する
+            recordingIndex.getExecutor().execute(() ->
+                    control.post(() -> handleRestart(resume, startId, receivedNanos)));
         }
 
         // START_STICKY: システムによってサービスが強制終了された場合、システムがサービスを再作成する
@@ -87,60 +327,525 @@ public class RecordingService extends Service {
     }
 
     /**
-     * 録音を開始する処理
+     * コマンドを処理する (制御スレッド)
+     * @param receivedNanos onStartCommand() でコマンドを受け取った時刻
+     */
+    private void handleCommand(Intent intent, int startId, long receivedNanos) {
+        lastStartId = startId;
+        commandError = null;
+        switch (intent.getAction()) {
+            case ACTION_START_RECORDING:
+                sendToLog("LIFECYCLE: RecordingService#onStartCommand: サービスが開始コマンドを受け取りました。");
+
+                // 録音処理を開始
+                String mode = intent.getStringExtra(EXTRA_CAPTURE_MODE);
+                captureMode = mode != null ? mode : CAPTURE_MODE_AUDIO_RECORD;
+                recordingOptions = readRecordingOptions(intent);
+                readQuotaLimits(intent);
+                boolean wasRecording = isRecording;
+                startRecording(intent.getLongExtra(EXTRA_REQUESTED_AT_NANOS, receivedNanos), receivedNanos);
+                if (!wasRecording && isRecording) {
+                    saveResumeIntent(intent);
+                }
+                break;
+
+            case ACTION_STOP_RECORDING:
+                sendToLog("LIFECYCLE: RecordingService#onStartCommand: サービスが停止コマンドを受け取りました。");
+                // 録音を停止し、サービス自身も停止する (待機モードから録音した場合は待機モードに戻る)
+                boolean rearm = armedPreRollSeconds > 0 && isRecording;
+                stopRecording();
+                if (rearm) {
+                    arm(armedPreRollSeconds);
+                } else {
+                    disarm();
+                    // 画面が表示されていれば、次の録音に備えて録音エンジンを準備し直しておく
+                    warmUpIfIdle();
+                    stopSelfIfLatest(); // サービス自身に終了を命令する
+                }
+                break;
+
+            case ACTION_ARM_RECORDING:
+                sendToLog("LIFECYCLE: RecordingService#onStartCommand: サービスが待機コマンドを受け取りました。");
+                recordingOptions = readRecordingOptions(intent);
+                arm(intent.getIntExtra(EXTRA_PRE_ROLL_SECONDS, DEFAULT_PRE_ROLL_SECONDS));
+                break;
+
+            case ACTION_DISARM_RECORDING:
+                sendToLog("LIFECYCLE: RecordingService#onStartCommand: サービスが待機解除コマンドを受け取りました。");
+                armedPreRollSeconds = 0;
+                if (!isRecording) {
+                    disarm();
+                    warmUpIfIdle();
+                    stopSelfIfLatest();
+                }
+                break;
+        }
+        updatePostProcessGate();
+        publishStatus();
+        completeAck(intent);
+    }
+
+    /**
+     * システムによる再起動を処理する (制御スレッド)。
+     * 再開するように指定した録音の途中で強制終了されていれば、同じ設定で新しいファイルに録音を再開する。
+     * そうでなければ、修復だけ済ませてサービスを終了する。
+     * @param resume 保存しておいた開始コマンド。無ければ null
      */
-    private void startRecording() {
-        // デバッグ用の特別なタグ
-        final String TAG = "RECORDER_DEBUG";
-        Log.d(TAG, "startRecording: メソッドが開始されました。");
+    private void handleRestart(@Nullable Intent resume, int startId, long receivedNanos) {
+        if (resume == null || isRecording) {
+            lastStartId = Math.max(lastStartId, startId);
+            if (!isRecording && armedEngine == null) {
+                stopSelfIfLatest();
+            }
+            return;
+        }
+        sendToLog("ENGINE: 中断された録音と同じ設定で、新しいファイルに録音を再開します。");
+        handleCommand(resume, startId, receivedNanos);
+    }
 
-        if (mediaRecorder != null) {
-            Log.d(TAG, "startRecording: 既存のmediaRecorderインスタンスを解放します。");
-            mediaRecorder.release();
+    /**
+     * 始めた録音が再開するように指定されていれば、その開始コマンドを保存する。そうでなければ保存したものを消す (制御スレッド)
+     */
+    private void saveResumeIntent(@Nullable Intent intent) {
+        SharedPreferences.Editor editor = getSharedPreferences(SESSION_PREFERENCES, MODE_PRIVATE).edit();
+        if (intent != null && intent.getBooleanExtra(EXTRA_RESUME_AFTER_RESTART, false)) {
+            Intent resume = new Intent(intent);
+            // 前のプロセスの時刻と呼び出し元は、再開するときには意味が無い
+            resume.removeExtra(EXTRA_REQUESTED_AT_NANOS);
+            resume.removeExtra(EXTRA_ACK_ID);
+            editor.putString(PREF_RESUME_INTENT, resume.toUri(0));
+        } else {
+            editor.remove(PREF_RESUME_INTENT);
         }
-        mediaRecorder = new MediaRecorder();
-        Log.d(TAG, "startRecording: new MediaRecorder() が完了しました。");
+        editor.apply();
+    }
 
+    /**
+     * 保存しておいた開始コマンド。無ければ null
+     */
+    @Nullable
+    private Intent readResumeIntent() {
+        String uri = getSharedPreferences(SESSION_PREFERENCES, MODE_PRIVATE).getString(PREF_RESUME_INTENT, null);
+        if (uri == null) {
+            return null;
+        }
         try {
-            Log.d(TAG, "startRecording: 音声ソースをマイクに設定します...");
-            mediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-            Log.d(TAG, "startRecording: -> 成功");
-
-            Log.d(TAG, "startRecording: 出力フォーマットをMPEG_4に設定します...");
-            mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-            Log.d(TAG, "startRecording: -> 成功");
-
-            Log.d(TAG, "startRecording: 音声エンコーダーをAACに設定します...");
-            mediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
-            Log.d(TAG, "startRecording: -> 成功");
-
-            outputFilePath = getOutputFilePath();
-            Log.d(TAG, "startRecording: 出力ファイルパスを取得: " + outputFilePath);
-            if (outputFilePath == null) {
-                Log.e(TAG, "startRecording: ファイルパスがnullのため終了します。");
-                stopSelf();
-                return;
+            return Intent.parseUri(uri, 0);
+        } catch (URISyntaxException e) {
+            Log.w(TAG, "readResumeIntent: 保存した開始コマンドを読めませんでした", e);
+            return null;
+        }
+    }
+
+    /**
+     * 強制終了されたセッションのジャーナルが残っていれば、書きかけのファイルを修復する (インデックス専用のスレッド)。
+     * ジャーナルの末尾だけを読むので、録音の長さに関係なくすぐに終わる
+     */
+    private void recoverInterruptedSessions(File directory) {
+        for (File journal : SessionRecovery.listJournals(directory)) {
+            if (journalsOfThisProcess.contains(journal.getPath())) {
+                continue;
+            }
+            long begin = System.nanoTime();
+            try {
+                SessionRecovery.Result result = SessionRecovery.recover(journal);
+                if (!result.interrupted) {
+                    continue;
+                }
+                sendToLog(String.format(Locale.JAPAN, "RECOVERY: 中断された録音 %s を修復しました (%d 件、%.1f 秒分、%.1f ms)",
+                        new File(result.recordingPath).getName(), result.repairedFiles,
+                        result.recoveredDurationUs / 1_000_000.0, (System.nanoTime() - begin) / 1_000_000.0));
+                if (result.unplayableFiles > 0) {
+                    sendToLog("WARN: 仕上げる前に中断された " + result.unplayableFiles
+                            + " 件のファイルは再生できない可能性があります (OGG は作り直せません)。");
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "recoverInterruptedSessions: 修復できませんでした: " + journal, e);
+                sendToLog("WARN: 中断された録音を修復できませんでした: " + journal.getName() + ": " + e.getMessage());
             }
-            mediaRecorder.setOutputFile(outputFilePath);
-            Log.d(TAG, "startRecording: 出力ファイルパスの設定完了");
+        }
+    }
+
+    /**
+     * 制御スレッドの録音の状態を、どのスレッドからでも読める形で公開する (制御スレッド)
+     */
+    private void publishStatus() {
+        if (isRecording) {
+            status = new RecordingStatus(RecordingStatus.STATE_RECORDING, outputFilePath, captureEngine.getName(),
+                    recordingStartTimeMillis, commandError);
+        } else {
+            status = new RecordingStatus(armedEngine != null ? RecordingStatus.STATE_ARMED : RecordingStatus.STATE_IDLE,
+                    null, null, 0, commandError);
+        }
+    }
+
+    /**
+     * バインド経由で送られたコマンドなら、処理し終えた後の録音の状態を呼び出し元に返す (制御スレッド)
+     */
+    private void completeAck(Intent intent) {
+        long ackId = intent.getLongExtra(EXTRA_ACK_ID, 0);
+        if (ackId == 0) {
+            return;
+        }
+        CompletableFuture<RecordingStatus> ack = pendingAcks.remove(ackId);
+        if (ack != null) {
+            ack.complete(status);
+        }
+    }
+
+    /**
+     * 録音中と待機中は後処理を止め、それ以外なら再開する (制御スレッド)。
+     * 後処理の作業スレッドが録音のスレッドとCPUやストレージを取り合わないようにする。
+     */
+    private void updatePostProcessGate() {
+        if (isRecording || armedEngine != null) {
+            if (!postProcessScheduler.isPaused()) {
+                postProcessScheduler.pause();
+                sendToLog("POSTPROCESS: 録音中は後処理を止めます。");
+            }
+        } else if (postProcessScheduler.isPaused()) {
+            postProcessScheduler.resume();
+            sendToLog("POSTPROCESS: 後処理を再開します。");
+        }
+    }
+
+    /**
+     * 最後に処理したコマンドより後に届いたコマンドが無ければ、サービスを終了する。
+     * 後から届いたコマンドがある場合は、そのコマンドの処理に任せる (開始の直後の停止などで順序が入れ替わらないように)。
+     */
+    private void stopSelfIfLatest() {
+        stopSelf(lastStartId);
+    }
 
-            Log.d(TAG, "startRecording: mediaRecorder.prepare() を呼び出します...");
-            mediaRecorder.prepare();
-            Log.d(TAG, "startRecording: -> 成功");
+    /**
+     * 通知を表示してフォアグラウンドサービスにする
+     */
+    private void startForegroundWithNotification(String text) {
+        createNotificationChannel();
+        Intent notificationIntent = new Intent(this, MainActivity.class);
+        PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, notificationIntent, PendingIntent.FLAG_IMMUTABLE);
+        Notification notification = new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setContentTitle("録音サービス")
+                .setContentText(text)
+                .setSmallIcon(android.R.drawable.ic_media_play)
+                .setContentIntent(pendingIntent)
+                .build();
+        startForeground(NOTIFICATION_ID, notification);
+        sendToLog("SYSTEM: startForeground() を呼び出し、フォアグラウンドサービスを開始しました。");
+    }
+
+    /**
+     * 待機モードを開始する。録音パイプラインを動かし、直近 preRollSeconds 秒の音声をメモリに保持し続ける。
+     */
+    private void arm(int preRollSeconds) {
+        if (isRecording || armedEngine != null) {
+            return;
+        }
+        armedPreRollSeconds = preRollSeconds;
+        // 待機モードの録音エンジンがそのまま録音に使われるので、ウォームアップ分は要らない
+        releaseWarmEngine();
+        AudioRecordEngine engine = (AudioRecordEngine) createCaptureEngine(CAPTURE_MODE_AUDIO_RECORD, recordingOptions);
+        try {
+            engine.arm(preRollSeconds);
+            armedEngine = engine;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "arm: 待機モードを開始できませんでした", e);
+            sendToLog("ERROR: 待機モードを開始できませんでした: " + e.getMessage());
+            commandError = "待機モードを開始できませんでした: " + e.getMessage();
+            armedPreRollSeconds = 0;
+            stopSelfIfLatest();
+        }
+    }
 
-            Log.d(TAG, "startRecording: mediaRecorder.start() を呼び出します...");
-            mediaRecorder.start();
-            Log.d(TAG, "startRecording: -> 成功！録音を完全に開始しました。");
-            isRecording = true;
+    /**
+     * 待機モードを終了し、保持していた音声を捨てる
+     */
+    private void disarm() {
+        if (armedEngine == null) {
+            return;
+        }
+        try {
+            armedEngine.stop();
+        } catch (IOException e) {
+            sendToLog("WARN: 待機モードの終了中に例外発生: " + e.getMessage());
+        } finally {
+            armedEngine = null;
+            levelSnapshot.reset();
+        }
+        sendToLog("ENGINE: 待機モードを終了しました。");
+    }
 
+    /**
+     * 録音を開始する処理
+     * @param requestedNanos 録音開始が指示された時刻
+     * @param receivedNanos サービスがコマンドを受け取った時刻
+     */
+    private void startRecording(long requestedNanos, long receivedNanos) {
+        long dispatchedNanos = System.nanoTime();
+        if (isRecording) {
+            sendToLog("WARN: 既に録音中のため、開始コマンドを無視しました。");
+            commandError = "既に録音中です";
+            return;
+        }
+        if (armedEngine != null) {
+            captureMode = CAPTURE_MODE_AUDIO_RECORD;
+        }
+        // MediaRecorder はエンコードして保存する (WAVには対応しない)
+        String extension = CAPTURE_MODE_MEDIA_RECORDER.equals(captureMode)
+                ? recordingOptions.getEncoderProfile().getFileExtension() : recordingOptions.getFileExtension();
+        outputFilePath = getOutputFilePath(extension);
+        if (outputFilePath == null) {
+            sendToLog("ERROR: ファイルパスがnullのため終了します。");
+            commandError = "保存先にアクセスできません";
+            stopSelfIfLatest();
+            return;
+        }
+        // ジャーナルは録音エンジンの書き込みスレッドで作られる。先に登録して、修復の対象から外す
+        journalsOfThisProcess.add(SessionJournal.pathFor(outputFilePath));
+
+        if (armedEngine != null) {
+            // 待機モードの録音エンジンは既に音声を読み込んでいるので、出力先を渡すだけで録音が始まる
+            armedEngine.setOptions(recordingOptions);
+            captureEngine = armedEngine;
+            armedEngine = null;
+            startPath = "待機モード";
+        } else if (warmEngine != null && captureMode.equals(warmEngineMode)) {
+            // ウォームアップで準備済みの録音エンジンを使う
+            if (warmEngine instanceof AudioRecordEngine) {
+                ((AudioRecordEngine) warmEngine).setOptions(recordingOptions);
+            } else if (warmEngine instanceof MediaRecorderEngine) {
+                ((MediaRecorderEngine) warmEngine).setProfile(recordingOptions.getEncoderProfile());
+            }
+            captureEngine = warmEngine;
+            warmEngine = null;
+            startPath = "ウォームアップ済み";
+        } else {
+            releaseWarmEngine();
+            captureEngine = createCaptureEngine(captureMode, recordingOptions);
+            startPath = "コールドスタート";
+        }
+        SessionMetrics metrics = new SessionMetrics();
+        if (encoderFallbackReason != null) {
+            metrics.recordEncoderChange(0, recordingOptions.getEncoderProfile().getName(),
+                    recordingOptions.getEncoderProfile().getBitRate(), encoderFallbackReason);
+        }
+        captureEngine.setMetrics(metrics);
+        StorageQuota.Session session = storageQuota.openSession();
+        if (captureEngine instanceof AudioRecordEngine) {
+            ((AudioRecordEngine) captureEngine).setStorageSession(session);
+        }
+        sendToLog("ENGINE: 録音エンジン「" + captureEngine.getName() + "」で録音を開始します...");
+        try {
+            captureEngine.start(outputFilePath);
         } catch (Exception e) {
-            // catchする例外をExceptionに広げて、あらゆるエラーを捕捉する
-            Log.e(TAG, "★★★★★★★★★★★★★★★★★★★★★★★★");
-            Log.e(TAG, "startRecording: 処理中に致命的なエラーが発生しました！", e);
-            Log.e(TAG, "★★★★★★★★★★★★★★★★★★★★★★★★");
+            Log.e(TAG, "startRecording: " + captureEngine.getName() + " の開始に失敗しました", e);
+            sendToLog("WARN: " + captureEngine.getName() + " の開始に失敗しました: " + e.getMessage());
+            captureEngine = null;
+        }
+
+        if (captureEngine == null && !CAPTURE_MODE_MEDIA_RECORDER.equals(captureMode)) {
+            // AudioRecord が使えない場合は MediaRecorder にフォールバックする
+            sendToLog("ENGINE: フォールバックとして MediaRecorder で録音を開始します...");
+            outputFilePath = SessionManifest.stripExtension(outputFilePath)
+                    + recordingOptions.getEncoderProfile().getFileExtension();
+            captureEngine = createCaptureEngine(CAPTURE_MODE_MEDIA_RECORDER, recordingOptions);
+            metrics.recordEncoderChange(0, recordingOptions.getEncoderProfile().getName(),
+                    recordingOptions.getEncoderProfile().getBitRate(), "MediaRecorder へのフォールバック");
+            captureEngine.setMetrics(metrics);
+            startPath = "フォールバック";
+            try {
+                captureEngine.start(outputFilePath);
+            } catch (Exception e) {
+                Log.e(TAG, "startRecording: フォールバックの開始にも失敗しました", e);
+                captureEngine = null;
+            }
+        }
+
+        if (captureEngine == null) {
+            sendToLog("ERROR: 録音を開始できませんでした。");
+            commandError = "録音を開始できませんでした";
             isRecording = false;
-            stopSelf();
+            stopSelfIfLatest();
+            return;
+        }
+        sendToLog("ENGINE: 録音を開始しました。");
+        isRecording = true;
+        startRequestedNanos = requestedNanos;
+        startReceivedNanos = receivedNanos;
+        startDispatchedNanos = dispatchedNanos;
+        engineStartedNanos = System.nanoTime();
+        startupTimingReported = false;
+        control.post(reportStartupTiming);
+
+        final String path = outputFilePath;
+        final long startTimeMillis = System.currentTimeMillis();
+        recordingStartTimeMillis = startTimeMillis;
+        metrics.setRecording(path, captureEngine.getName(), startPath, startTimeMillis);
+        cpuTimeAtStartMillis = Process.getElapsedCpuTime();
+        sessionMetrics = metrics;
+        storageSession = session;
+        runOnIndexThread(() -> recordingIndex.beginRecording(path, startTimeMillis));
+        // 上限に近ければ、録音を続けている間に古い録音を消して空ける
+        evictInBackground(quotaReserveBytes(), path);
+    }
+
+    /**
+     * 開始コマンドのExtraで保存容量の上限が指定されていれば、差し替えて保存する
+     */
+    private void readQuotaLimits(Intent intent) {
+        if (!intent.hasExtra(EXTRA_QUOTA_MAX_BYTES) && !intent.hasExtra(EXTRA_QUOTA_MAX_DAYS)) {
+            return;
+        }
+        long maxBytes = intent.getLongExtra(EXTRA_QUOTA_MAX_BYTES, storageQuota.getMaxBytes());
+        int maxDays = intent.getIntExtra(EXTRA_QUOTA_MAX_DAYS, storageQuota.getMaxAgeDays());
+        try {
+            storageQuota.setLimits(maxBytes, maxDays);
+        } catch (IllegalArgumentException e) {
+            sendToLog("WARN: 保存容量の上限の指定が正しくありません: " + e.getMessage());
+            return;
+        }
+        getSharedPreferences(QUOTA_PREFERENCES, MODE_PRIVATE).edit()
+                .putLong(PREF_QUOTA_MAX_BYTES, maxBytes)
+                .putInt(PREF_QUOTA_MAX_DAYS, maxDays)
+                .apply();
+        sendToLog(String.format(Locale.JAPAN, "QUOTA: 保存容量の上限を %,.1f MB / %d 日にしました (0 は上限なし)",
+                maxBytes / (1024.0 * 1024), maxDays));
+    }
+
+    /**
+     * これから始める録音のために空けておく容量。WAVならPCMのまま、それ以外は既定のビットレートで見積もる
+     */
+    private long quotaReserveBytes() {
+        EncoderProfile profile = recordingOptions.getEncoderProfile();
+        long bytesPerSecond = RecordingOptions.OUTPUT_FORMAT_WAV.equals(recordingOptions.getOutputFormat())
+                ? (long) profile.getFormat().getBytesPerFrame() * profile.getSampleRate()
+                : profile.getBitRate() / 8;
+        return bytesPerSecond * QUOTA_RESERVE_SECONDS;
+    }
+
+    /**
+     * 保存容量の上限を超えそうなら、消してよい録音を優先度の低い順、古い順に消す。
+     * インデックス専用のスレッドで実行するので、録音の開始や停止を待たせない。
+     * 録音中の録音 (インデックスで「録音中」のもの) と後処理で読み込み中の録音は消さない。
+     * @param reserveBytes これから始める録音のために空けておく容量
+     * @param activePath 録音中のファイル。無ければ null
+     */
+    private void evictInBackground(long reserveBytes, @Nullable String activePath) {
+        StorageQuota quota = storageQuota;
+        if (!quota.isLimited()) {
+            return;
+        }
+        runOnIndexThread(() -> {
+            List<String> protectedPaths = new ArrayList<>();
+            protectedPaths.add(activePath);
+            for (PostProcessJob job : postProcessScheduler.getJobs()) {
+                if (!job.isFinished()) {
+                    protectedPaths.add(job.inputPath);
+                }
+            }
+            int evicted = 0;
+            long evictedBytes = 0;
+            boolean more = true;
+            while (more) {
+                List<RecordingEntry> candidates = recordingIndex.queryEvictionCandidates(EVICTION_BATCH);
+                List<RecordingEntry> plan = quota.planEviction(candidates, reserveBytes,
+                        System.currentTimeMillis(), protectedPaths);
+                // 1件も消せなかったら、同じ候補を選び続けないように終わる
+                more = !plan.isEmpty() && candidates.size() == EVICTION_BATCH;
+                for (RecordingEntry entry : plan) {
+                    try {
+                        StorageQuota.deleteRecording(entry.path);
+                    } catch (IOException e) {
+                        sendToLog("WARN: 録音を削除できませんでした: " + e.getMessage());
+                        more = false;
+                        continue;
+                    }
+                    recordingIndex.delete(entry.id);
+                    quota.add(-entry.sizeBytes);
+                    evicted++;
+                    evictedBytes += entry.sizeBytes;
+                }
+            }
+            if (evicted > 0) {
+                sendToLog(String.format(Locale.JAPAN, "QUOTA: 保存容量の上限のため、古い録音 %d 件 (%,d bytes) を削除しました (使用量 %,d bytes)",
+                        evicted, evictedBytes, quota.getUsedBytes()));
+            }
+            if (quota.isOverLimit(reserveBytes)) {
+                sendToLog("WARN: 固定された録音などを除くと、保存容量の上限まで空けられませんでした。");
+            }
+        });
+    }
+
+    /**
+     * 録音を固定する (固定した録音は保存容量の上限を超えても消さない)。どのスレッドから呼んでもよい。
+     * @param pinned false なら固定を外す
+     */
+    public void setRecordingPinned(String path, boolean pinned) {
+        runOnIndexThread(() -> {
+            if (!recordingIndex.setPinned(path, pinned)) {
+                sendToLog("WARN: 録音インデックスに登録されていない録音です: " + path);
+            }
+        });
+    }
+
+    /**
+     * 開始コマンドのExtraから録音の設定を組み立てる
+     */
+    private RecordingOptions readRecordingOptions(Intent intent) {
+        RecordingOptions options = new RecordingOptions();
+        options.setOutputFormat(intent.getStringExtra(EXTRA_OUTPUT_FORMAT));
+        options.setSegmentMaxDurationMs(intent.getIntExtra(EXTRA_SEGMENT_MAX_SECONDS, 0) * 1000L);
+        options.setSegmentMaxBytes(intent.getLongExtra(EXTRA_SEGMENT_MAX_BYTES, 0));
+        options.setVadEnabled(intent.getBooleanExtra(EXTRA_VAD_ENABLED, false));
+        options.setSpectrumAnalyzer(intent.getBooleanExtra(EXTRA_SPECTRUM_ANALYZER, false));
+        options.setPostProcessStages(intent.getStringExtra(EXTRA_POST_PROCESS));
+        options.setAdaptiveBitrate(intent.getBooleanExtra(EXTRA_ADAPTIVE_BITRATE, false));
+        EncoderProfile profile = EncoderProfile.forName(intent.getStringExtra(EXTRA_ENCODER_PROFILE));
+        encoderFallbackReason = null;
+        // AAC はどの端末でも使えるので、Opus の場合だけ確かめる
+        if (EncoderProfile.CODEC_OPUS.equals(profile.getCodec())
+                && !RecordingOptions.OUTPUT_FORMAT_WAV.equals(options.getOutputFormat())
+                && !AacEncoderSink.isEncoderAvailable(profile)) {
+            encoderFallbackReason = "この端末では " + profile.getName() + " を使えません";
+            sendToLog("WARN: " + encoderFallbackReason + "。" + EncoderProfile.SPEECH + " で録音します。");
+            profile = EncoderProfile.SPEECH;
+        }
+        options.setEncoderProfile(profile);
+        return options;
+    }
+
+    /**
+     * 録音モードに応じた録音エンジンを生成する
+     */
+    private CaptureEngine createCaptureEngine(String mode, RecordingOptions options) {
+        if (CAPTURE_MODE_MEDIA_RECORDER.equals(mode)) {
+            if (options.isSegmented()) {
+                sendToLog("WARN: MediaRecorderモードでは分割録音に対応していないため、1つのファイルに録音します。");
+            }
+            if (options.isVadEnabled()) {
+                sendToLog("WARN: MediaRecorderモードでは無音のスキップに対応していないため、すべて録音します。");
+            }
+            if (options.isAdaptiveBitrate()) {
+                sendToLog("WARN: MediaRecorderモードではビットレートの自動調整に対応していないため、固定のビットレートで録音します。");
+            }
+            return new MediaRecorderEngine(this::sendToLog, options.getEncoderProfile());
         }
+        AudioRecordEngine engine = new AudioRecordEngine(this::sendToLog, options);
+        engine.setLevelSnapshot(levelSnapshot);
+        engine.setSpectrumFrames(spectrumFrames);
+        engine.setPcmFanout(pcmFanout);
+        // パイプラインのスレッドで起きたエラーは、制御スレッドで録音を止めて処理する
+        engine.setErrorListener(e -> control.post(() -> {
+            sendToLog("ERROR: 録音中にエラーが発生しました: " + e.getMessage());
+            armedPreRollSeconds = 0;
+            stopRecording();
+            disarm();
+            updatePostProcessGate();
+            commandError = "録音中にエラーが発生しました: " + e.getMessage();
+            publishStatus();
+            stopSelfIfLatest();
+        }));
+        return engine;
     }
 
     /**
@@ -151,62 +856,310 @@ public class RecordingService extends Service {
             return;
         }
         isRecording = false; // ←←← 停止処理に入ったので、まず旗を降ろす
+        // 停止した録音は、再起動されても再開しない
+        saveResumeIntent(null);
         sendToLog("--------------------");
         sendToLog("ACTION: 録音処理を停止します...");
 
-        if (mediaRecorder != null) {
-            try {
-                // 8. 録音を停止 (State: Recording -> Initial)
-                sendToLog("[State: Recording] MediaRecorder.stop() を呼び出します...");
-                mediaRecorder.stop();
-                sendToLog("[State: Initial] 録音を停止しました。");
-
-                // ファイルサイズの情報をログに出力
-                File file = new File(outputFilePath);
-                if (file.exists()) {
-                    long fileSize = file.length();
-                    sendToLog("FILE_IO: ファイルが正常に保存されました。");
-                    sendToLog(String.format(Locale.JAPAN, "FILE_INFO: ファイルサイズ: %,d bytes (%.2f KB)", fileSize, fileSize / 1024.0));
-                } else {
-                    sendToLog("WARN: 保存されたはずのファイルが見つかりません。");
-                }
+        // 録音が短くてまだ出力していなければ、ここで出力する
+        control.removeCallbacks(reportStartupTiming);
+        if (!startupTimingReported) {
+            logStartupTiming(captureEngine.getFirstSampleNanos());
+        }
+        String engineName = captureEngine.getName();
+        try {
+            captureEngine.stop();
+        } catch (IOException e) {
+            sendToLog("WARN: 録音エンジンの停止中に例外発生: " + e.getMessage());
+        } finally {
+            captureEngine = null;
+            levelSnapshot.reset();
+        }
+        long durationUs = (System.nanoTime() - engineStartedNanos) / 1000;
+        long cpuTimeMillis = Process.getElapsedCpuTime() - cpuTimeAtStartMillis;
+
+        // ファイルサイズの情報をログに出力
+        long bytesWritten = 0;
+        File manifestFile = SessionManifest.forRecording(outputFilePath);
+        if (manifestFile.exists()) {
+            bytesWritten = logSegments(new SessionManifest(manifestFile));
+        } else {
+            File file = new File(outputFilePath);
+            if (file.exists()) {
+                bytesWritten = file.length();
+                sendToLog("FILE_IO: ファイルが正常に保存されました。");
+                sendToLog(String.format(Locale.JAPAN, "FILE_INFO: ファイルサイズ: %,d bytes (%.2f KB)",
+                        bytesWritten, bytesWritten / 1024.0));
+            } else {
+                sendToLog("WARN: 保存されたはずのファイルが見つかりません。");
+            }
+            sendToLog("録音が完了しました。ファイルが保存されました: " + outputFilePath);
+        }
+        exportSessionMetrics(engineName, durationUs, bytesWritten, cpuTimeMillis);
+
+        // 停止処理で書き終えたファイルの長さとサイズをインデックスに登録する (サイズに計測値のファイルも含めるので、書き出した後で)
+        final String path = outputFilePath;
+        final StorageQuota.Session session = storageSession;
+        storageSession = null;
+        runOnIndexThread(() -> {
+            RecordingEntry entry = recordingIndex.finishRecording(path);
+            // 録音中に数えた分を、登録したサイズで合わせ直す
+            session.finish(entry != null ? entry.sizeBytes : 0);
+            if (entry != null) {
+                sendToLog(String.format(Locale.JAPAN, "INDEX: 録音インデックスに登録しました (%.1f 秒, %,d bytes, 登録件数 %,d)",
+                        entry.durationUs / 1_000_000.0, entry.sizeBytes, recordingIndex.getCount()));
+            }
+        });
+        enqueuePostProcess(manifestFile);
+    }
 
-            } catch (IllegalStateException e) {
-                // 既に停止している場合などに発生する可能性がある
-                sendToLog("WARN: MediaRecorder.stop() で例外発生 (おそらく既に停止済み): " + e.getMessage());
-            } finally {
-                // 9. リソースを解放 (State: Initial -> Released)
-                sendToLog("[State: Initial] MediaRecorder.release() を呼び出します...");
-                mediaRecorder.release();
-                mediaRecorder = null;
-                sendToLog("[State: Released] リソースを解放しました。");
-                sendToLog("録音が完了しました。ファイルが保存されました: " + outputFilePath);
+    /**
+     * 録音の設定で後処理が指定されていれば、録音ファイル (分割録音ならセグメントごと) のジョブを追加する。
+     * ジョブは録音と待機が終わってから、バックグラウンドの作業スレッドで並列に実行される。
+     */
+    private void enqueuePostProcess(File manifestFile) {
+        String stages = recordingOptions.getPostProcessStages();
+        if (stages == null) {
+            return;
+        }
+        if (!outputFilePath.endsWith(".wav")) {
+            sendToLog("WARN: 後処理はWAVで保存した録音にだけ対応しているため、後処理しません。");
+            return;
+        }
+        try {
+            List<String> inputs = new ArrayList<>();
+            if (manifestFile.exists()) {
+                File dir = manifestFile.getParentFile();
+                for (SessionManifest.Segment segment : new SessionManifest(manifestFile).read()) {
+                    inputs.add(new File(dir, segment.fileName).getPath());
+                }
+            } else {
+                inputs.add(outputFilePath);
+            }
+            for (String input : inputs) {
+                String output = SessionManifest.stripExtension(input) + StorageQuota.POST_PROCESS_SUFFIX;
+                PostProcessJob job = postProcessScheduler.enqueue(input, output, stages);
+                sendToLog("POSTPROCESS: #" + job.id + " " + new File(input).getName() + " の後処理 (" + stages + ") を予約しました。");
             }
+        } catch (IOException e) {
+            sendToLog("WARN: 後処理を予約できませんでした: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 後処理のジョブが終わったことをログに出力する (後処理の作業スレッド)。
+     * 書き出したファイルは、元の録音のサイズと保存容量の使用量に数える
+     */
+    private void logPostProcessJob(PostProcessJob job) {
+        if (job.state == PostProcessJob.STATE_DONE) {
+            sendToLog("POSTPROCESS: #" + job.id + " 後処理が完了しました: " + new File(job.outputPath).getName());
+            long outputBytes = new File(job.outputPath).length();
+            String recordingPath = SegmentedSink.basePathOf(job.inputPath);
+            runOnIndexThread(() -> {
+                // 録音が消された後なら、消すときに数えられないので足さない
+                if (recordingIndex.addSize(recordingPath, outputBytes)) {
+                    storageQuota.add(outputBytes);
+                }
+            });
         } else {
-            sendToLog("INFO: MediaRecorderは既にnullのため、停止処理をスキップします。");
+            sendToLog("WARN: #" + job.id + " 後処理に失敗しました: " + job.error);
+        }
+    }
+
+    /**
+     * 録音の計測値を締めくくり、録音ファイルの隣の .metrics.json に書き出す
+     */
+    private void exportSessionMetrics(String engineName, long durationUs, long bytesWritten, long cpuTimeMillis) {
+        SessionMetrics metrics = sessionMetrics;
+        if (metrics == null) {
+            return;
+        }
+        metrics.setTotals(durationUs, bytesWritten, cpuTimeMillis);
+        sendToLog("METRICS: " + engineName + ": " + metrics.toSummary());
+        File metricsFile = new File(SessionMetrics.pathFor(outputFilePath));
+        try {
+            metrics.writeJson(metricsFile);
+            sendToLog("METRICS: 計測値を保存しました: " + metricsFile.getName());
+        } catch (IOException e) {
+            sendToLog("WARN: 計測値を保存できませんでした: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * 録音開始の指示を受ける前に、録音エンジンの初期化を済ませておく (ウォームアップ)。
+     * バインドが解除されるまでは、録音を停止した後にも次の録音のために準備し直す。
+     * どのスレッドから呼んでもよい。
+     * @param mode 録音モード (CAPTURE_MODE_*)
+     */
+    public void warmUp(String mode) {
+        control.post(() -> {
+            warmUpMode = mode;
+            warmUpIfIdle();
+        });
+    }
+
+    /**
+     * ウォームアップが求められていて、録音中でも待機中でもなければ、録音エンジンを準備する (制御スレッド)
+     */
+    private void warmUpIfIdle() {
+        if (warmUpMode == null || isRecording || armedEngine != null || warmEngine != null) {
+            return;
+        }
+        // 開始時に渡される設定はまだ分からないので、既定の設定で準備する
+        CaptureEngine engine = createCaptureEngine(warmUpMode, new RecordingOptions());
+        long begin = System.nanoTime();
+        try {
+            engine.prepare();
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "warmUpIfIdle: 録音エンジンを準備できませんでした", e);
+            sendToLog("WARN: 録音エンジンを準備できませんでした (録音開始時に改めて初期化します): " + e.getMessage());
+            return;
+        }
+        warmEngine = engine;
+        warmEngineMode = warmUpMode;
+        sendToLog(String.format(Locale.JAPAN, "ENGINE: 録音エンジン「%s」を準備しました (%.1f ms)",
+                engine.getName(), (System.nanoTime() - begin) / 1_000_000.0));
+    }
+
+    /**
+     * ウォームアップで準備したまま使わなかった録音エンジンを解放する (制御スレッド)
+     */
+    private void releaseWarmEngine() {
+        if (warmEngine == null) {
+            return;
+        }
+        try {
+            warmEngine.stop();
+        } catch (IOException e) {
+            sendToLog("WARN: 準備済みの録音エンジンの解放中に例外発生: " + e.getMessage());
+        } finally {
+            warmEngine = null;
+            warmEngineMode = null;
         }
     }
 
+    /**
+     * 最初のサンプルが届いていれば、そこまでの時間を出力する。まだなら少し後に確認し直す (制御スレッド)
+     */
+    private void reportStartupTiming() {
+        if (!isRecording || startupTimingReported) {
+            return;
+        }
+        long firstSampleNanos = captureEngine.getFirstSampleNanos();
+        if (firstSampleNanos == 0) {
+            control.postDelayed(reportStartupTiming, FIRST_SAMPLE_CHECK_INTERVAL_MS);
+            return;
+        }
+        logStartupTiming(firstSampleNanos);
+    }
+
+    /**
+     * 録音開始の指示から最初のサンプルまでの時間と、その内訳をログに出力する
+     * @param firstSampleNanos 最初のサンプルを受け取った時刻。受け取っていなければ 0
+     */
+    private void logStartupTiming(long firstSampleNanos) {
+        startupTimingReported = true;
+        String breakdown = String.format(Locale.JAPAN,
+                "%s: 指示→受信 %.1f ms, 受信→制御スレッド %.1f ms, エンジン開始 %.1f ms",
+                startPath, millisBetween(startRequestedNanos, startReceivedNanos),
+                millisBetween(startReceivedNanos, startDispatchedNanos),
+                millisBetween(startDispatchedNanos, engineStartedNanos));
+        if (firstSampleNanos == 0) {
+            sendToLog("TIMING: 最初のサンプルを受け取る前に停止しました (" + breakdown + ")");
+            return;
+        }
+        SessionMetrics metrics = sessionMetrics;
+        if (metrics != null) {
+            metrics.setTimeToFirstSampleUs((firstSampleNanos - startRequestedNanos) / 1000);
+        }
+        sendToLog(String.format(Locale.JAPAN, "TIMING: 最初のサンプルまで %.1f ms (%s, 開始→最初のサンプル %.1f ms)",
+                millisBetween(startRequestedNanos, firstSampleNanos), breakdown,
+                millisBetween(engineStartedNanos, firstSampleNanos)));
+    }
+
+    private static double millisBetween(long fromNanos, long toNanos) {
+        return (toNanos - fromNanos) / 1_000_000.0;
+    }
+
+    /**
+     * インデックスの読み書きを、インデックス専用のスレッドで実行する
+     */
+    private void runOnIndexThread(IndexTask task) {
+        recordingIndex.getExecutor().execute(() -> {
+            try {
+                task.run();
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "runOnIndexThread: 録音インデックスの更新に失敗しました", e);
+                sendToLog("WARN: 録音インデックスの更新に失敗しました: " + e.getMessage());
+            }
+        });
+    }
+
+    private interface IndexTask {
+        void run() throws IOException;
+    }
+
+    /**
+     * 分割録音したセグメントの一覧をログに出力する
+     * @return セグメントの合計バイト数
+     */
+    private long logSegments(SessionManifest manifest) {
+        try {
+            long totalBytes = 0;
+            for (SessionManifest.Segment segment : manifest.read()) {
+                totalBytes += segment.bytes;
+                sendToLog(String.format(Locale.JAPAN, "FILE_INFO: #%d %s (%.1f 秒, %,d bytes)",
+                        segment.index, segment.fileName, segment.durationUs / 1_000_000.0, segment.bytes));
+            }
+            sendToLog(String.format(Locale.JAPAN, "FILE_IO: 分割録音が完了しました。合計 %,d bytes", totalBytes));
+            sendToLog("セグメント一覧: " + manifest.getFile().getAbsolutePath());
+            return totalBytes;
+        } catch (IOException e) {
+            sendToLog("WARN: セグメント一覧を読み込めませんでした: " + e.getMessage());
+            return 0;
+        }
+    }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         sendToLog("--------------------");
         sendToLog("LIFECYCLE: RecordingService#onDestroy: サービスが破棄されます。");
-        if (isRecording) { // ←←← 条件を追加
-            stopRecording(); // 録音中だった場合のみ停止処理を呼ぶ
-        }
-        sendToLog("LIFECYCLE: サービスが完全に停止しました。");
-        sendToLog("--------------------");
+        // 先に届いているコマンドを処理し終えてから、録音エンジンを片付ける
+        control.removeCallbacks(reportStartupTiming);
+        control.post(() -> {
+            warmUpMode = null;
+            if (isRecording) { // ←←← 条件を追加
+                stopRecording(); // 録音中だった場合のみ停止処理を呼ぶ
+            }
+            disarm();
+            releaseWarmEngine();
+            updatePostProcessGate();
+            publishStatus();
+            // 届かなかったコマンドを待っている呼び出し元を待たせたままにしない
+            for (CompletableFuture<RecordingStatus> ack : pendingAcks.values()) {
+                ack.completeExceptionally(new IllegalStateException("録音サービスが終了しました"));
+            }
+            pendingAcks.clear();
+            sendToLog("LIFECYCLE: サービスが完全に停止しました。");
+            sendToLog("--------------------");
+        });
+        // 未配信のログはバッファに残るので、次にバインドしたActivityが読み出す
+        mainHandler.removeCallbacks(deliverLogs);
+        logDeliveryScheduled.set(false);
+        logListener = null;
+        postProcessScheduler.setListener(null);
     }
 
 
     /**
      * アプリ固有の外部ストレージ領域に、録音ファイルの保存パスを生成する
      * この領域は、ユーザーからは直接見えにくく、アプリがアンインストールされると自動的に削除される
+     * @param extension ファイルの拡張子 (ドット付き)
      * @return ファイルのフルパス
      */
-    private String getOutputFilePath() {
+    private String getOutputFilePath(String extension) {
         // getExternalFilesDir(null)で /Android/data/パッケージ名/files を指す
         File mediaStorageDir = getExternalFilesDir(null);
         if (mediaStorageDir == null) {
@@ -223,7 +1176,7 @@ public class RecordingService extends Service {
         }
         // ファイル名は現在の日時を使って一意にする (例: REC_20250621_183000.mp4)
         String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.JAPAN).format(new Date());
-        return mediaStorageDir.getPath() + File.separator + "REC_" + timeStamp + ".mp4";
+        return mediaStorageDir.getPath() + File.separator + "REC_" + timeStamp + extension;
     }
 
     /**
@@ -244,19 +1197,152 @@ public class RecordingService extends Service {
     }
 
     /**
-     * ログメッセージをMainActivityに送信する
+     * ログメッセージをバッファに追加し、MainActivityへの配信を予約する。
+     * どのスレッドから呼んでもよい。
      * @param message 送信するログメッセージ
      */
     private void sendToLog(String message) {
-        Intent intent = new Intent(ACTION_UPDATE_LOG);
-        intent.putExtra(EXTRA_LOG_MESSAGE, message);
-        sendBroadcast(intent);
+        logBuffer.append(System.currentTimeMillis(), message);
+        // 既に配信が予約されていれば何もしない。連続したログは次のフレームでまとめて届ける。
+        if (logDeliveryScheduled.compareAndSet(false, true)) {
+            mainHandler.postDelayed(deliverLogs, LOG_DELIVERY_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * 溜まったログが読めることをリスナーに知らせる (メインスレッド)
+     */
+    private void deliverLogs() {
+        logDeliveryScheduled.set(false);
+        if (logListener != null) {
+            logListener.onLogsAvailable();
+        }
+    }
+
+    /**
+     * ログのリスナーを設定する。null で解除する。
+     * 設定した時点でバッファに残っているログも読めるよう、すぐに1回通知する。
+     * メインスレッドから呼ぶこと。
+     */
+    public void setLogListener(@Nullable LogListener listener) {
+        logListener = listener;
+        if (listener != null) {
+            listener.onLogsAvailable();
+        }
+    }
+
+    /**
+     * 指定したシーケンス番号以降のログを読み出す
+     * @return 次に読み出すべきシーケンス番号
+     */
+    public long readLogs(long fromSequence, LogBuffer.Reader reader) {
+        return logBuffer.readFrom(fromSequence, reader);
+    }
+
+    /**
+     * 録音中の録音、または直前に停止した録音の計測値。まだ一度も録音していなければ null。
+     * 録音中の値は概算で、停止後に確定する。
+     */
+    @Nullable
+    public SessionMetrics getSessionMetrics() {
+        return sessionMetrics;
+    }
+
+    /**
+     * 録音を開始する (バインドした同じプロセス内のコードから使う)。
+     * Intent で送る場合と同じ ACTION_START_RECORDING のコマンドとして制御スレッドで処理され、
+     * 処理し終えた後の録音の状態で完了する。開始できなかった場合は {@link RecordingStatus#error} に理由が入る。
+     * 完了を待つ (get() する) 場合はメインスレッド以外から呼ぶこと (コマンドはメインスレッドを通って届く)。
+     * @param options 開始コマンドのExtra (EXTRA_*) を入れた Intent。アクションと宛先はここで設定する
+     */
+    public CompletableFuture<RecordingStatus> requestStart(Intent options) {
+        Intent intent = new Intent(options).setClass(this, RecordingService.class).setAction(ACTION_START_RECORDING);
+        if (!intent.hasExtra(EXTRA_REQUESTED_AT_NANOS)) {
+            intent.putExtra(EXTRA_REQUESTED_AT_NANOS, System.nanoTime());
+        }
+        return sendCommand(intent, true);
+    }
+
+    /**
+     * 録音を停止する (バインドした同じプロセス内のコードから使う)。処理し終えた後の録音の状態で完了する
+     */
+    public CompletableFuture<RecordingStatus> requestStop() {
+        return sendCommand(new Intent(this, RecordingService.class).setAction(ACTION_STOP_RECORDING), false);
+    }
+
+    /**
+     * 自分宛てにコマンドを送る。バインドが解除されても録音が続くよう、バインドではなく開始コマンドとして送る
+     */
+    private CompletableFuture<RecordingStatus> sendCommand(Intent intent, boolean foreground) {
+        long ackId = nextAckId.incrementAndGet();
+        CompletableFuture<RecordingStatus> ack = new CompletableFuture<>();
+        pendingAcks.put(ackId, ack);
+        intent.putExtra(EXTRA_ACK_ID, ackId);
+        try {
+            if (foreground) {
+                startForegroundService(intent);
+            } else {
+                startService(intent);
+            }
+        } catch (RuntimeException e) {
+            pendingAcks.remove(ackId);
+            ack.completeExceptionally(e);
+        }
+        return ack;
+    }
+
+    /**
+     * 最後に処理したコマンドの後の録音の状態。どのスレッドから呼んでもよい
+     */
+    public RecordingStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * 録音中のPCMを読み始める。AudioRecordモードで録音 (または待機) している間、読み手ごとにコピーせずに配られる。
+     * 読み手が遅れても録音は止まらず、追い越された分は読み飛ばして {@link PcmFanout.Subscription#getDroppedFrames()} で数える。
+     * 形式は {@link #getPcmFormat()} で分かる。
+     */
+    public PcmFanout.Subscription subscribePcm() {
+        return pcmFanout.subscribe();
+    }
+
+    /**
+     * 配っているPCMの形式。まだ一度も録音していなければ null
+     */
+    @Nullable
+    public PcmFormat getPcmFormat() {
+        return pcmFanout.getFormat();
+    }
+
+    /**
+     * 録音中の入力レベル。AudioRecordモードで録音している間だけ更新される。
+     */
+    public LevelSnapshot getLevelSnapshot() {
+        return levelSnapshot;
+    }
+
+    /**
+     * 録音中のスペクトル。AudioRecordモードで EXTRA_SPECTRUM_ANALYZER を指定して録音している間だけ書き込まれる。
+     */
+    public SpectrumFrames getSpectrumFrames() {
+        return spectrumFrames;
     }
 
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
-        // 今回はバインドしないのでnullを返す
-        return null;
+        // MainActivityがログを受け取るため、同じプロセス内のコードが録音を操作したりPCMを読んだりするためにバインドする
+        return binder;
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        // 画面が閉じられたら、ウォームアップで準備していた録音エンジンは解放する
+        control.post(() -> {
+            warmUpMode = null;
+            releaseWarmEngine();
+        });
+        return false;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,50 @@
+package com.example.recordingapp;
+
+/**
+ * RecordingService の録音の状態。コマンドを処理するたびに制御スレッドで作り直す (変更しない)。
+ */
+public final class RecordingStatus {
+
+    /** 録音も待機もしていない */
+    public static final int STATE_IDLE = 0;
+    /** 待機モードで直近の音声を保持している */
+    public static final int STATE_ARMED = 1;
+    /** 録音中 */
+    public static final int STATE_RECORDING = 2;
+
+    public static final RecordingStatus IDLE = new RecordingStatus(STATE_IDLE, null, null, 0, null);
+
+    public final int state;
+    // 録音中のファイル。録音中でなければ null
+    public final String outputPath;
+    // 録音中の録音エンジンの名前。録音中でなければ null
+    public final String engineName;
+    // 録音を開始した時刻 (System.currentTimeMillis())。録音中でなければ 0
+    public final long startTimeMillis;
+    // 直前のコマンドを処理できなかった理由。処理できていれば null
+    public final String error;
+
+    public RecordingStatus(int state, String outputPath, String engineName, long startTimeMillis, String error) {
+        this.state = state;
+        this.outputPath = outputPath;
+        this.engineName = engineName;
+        this.startTimeMillis = startTimeMillis;
+        this.error = error;
+    }
+
+    public boolean isRecording() {
+        return state == STATE_RECORDING;
+    }
+
+    @Override
+    public String toString() {
+        switch (state) {
+            case STATE_RECORDING:
+                return "録音中 (" + engineName + ", " + outputPath + ")";
+            case STATE_ARMED:
+                return "待機中";
+            default:
+                return error != null ? "停止中 (" + error + ")" : "停止中";
+        }
+    }
+}
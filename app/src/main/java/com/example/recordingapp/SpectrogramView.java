@@ -0,0 +1,142 @@
+package com.example.recordingapp;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.View;
+
+import androidx.annotation.Nullable;
+
+/**
+ * スペクトルのフレームを1列ずつ右端に追加し、左へ流れていくように表示するスペクトログラム。
+ * 縦軸は帯域 (下が低い周波数)、色は dBFS。
+ *
+ * 画像は「横: 表示する列数、縦: 帯域の数」のビットマップをリングとして使い、新しい列を1列だけ書き換える。
+ * 描画は古い側と新しい側の2回の drawBitmap で済ませ、フレームの追加でも描画でもメモリを確保しない。
+ */
+public class SpectrogramView extends View {
+
+    // 色を割り当てる範囲 (dBFS)
+    private static final float FLOOR_DBFS = -100f;
+    private static final float CEILING_DBFS = 0f;
+    private static final int PALETTE_SIZE = 256;
+    // 1列あたりの幅 (px)
+    private static final int COLUMN_WIDTH_PX = 2;
+
+    private final int[] palette = new int[PALETTE_SIZE];
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect source = new Rect();
+    private final Rect destination = new Rect();
+
+    private Bitmap bitmap;
+    private int[] column;
+    private int bandCount;
+    // 次に書き換える列
+    private int nextColumn;
+
+    public SpectrogramView(Context context) {
+        this(context, null);
+    }
+
+    public SpectrogramView(Context context, @Nullable AttributeSet attrs) {
+        super(context, attrs);
+        // 黒 → 青 → 赤 → 黄 → 白
+        for (int i = 0; i < PALETTE_SIZE; i++) {
+            float t = i / (float) (PALETTE_SIZE - 1);
+            float r = clamp(t * 3 - 1);
+            float g = clamp(t * 3 - 2);
+            // 青は中ほどで最も強く、上の方では白に向かってもう一度強くなる
+            float b = Math.max(clamp(t < 0.5f ? t * 3 : 2.5f - t * 3), g);
+            palette[i] = Color.rgb(Math.round(255 * r), Math.round(255 * g), Math.round(255 * b));
+        }
+        setBackgroundColor(Color.BLACK);
+    }
+
+    private static float clamp(float value) {
+        return Math.max(0f, Math.min(1f, value));
+    }
+
+    /**
+     * 帯域の数を指定し、表示を消す。フレームを追加する前に呼ぶこと
+     */
+    public void setBandCount(int bandCount) {
+        if (this.bandCount == bandCount) {
+            return;
+        }
+        this.bandCount = bandCount;
+        column = new int[bandCount];
+        allocateBitmap(getWidth());
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        allocateBitmap(width);
+    }
+
+    private void allocateBitmap(int width) {
+        if (bitmap != null) {
+            bitmap.recycle();
+            bitmap = null;
+        }
+        int columns = width / COLUMN_WIDTH_PX;
+        if (columns <= 0 || bandCount <= 0) {
+            return;
+        }
+        bitmap = Bitmap.createBitmap(columns, bandCount, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(palette[0]);
+        nextColumn = 0;
+    }
+
+    /**
+     * フレームを1列追加する。再描画は {@link #invalidate()} で呼び出し側が行う
+     * @param bandsDbfs 帯域ごとの dBFS (低い周波数から)
+     */
+    public void addFrame(float[] bandsDbfs) {
+        if (bitmap == null) {
+            return;
+        }
+        for (int band = 0; band < bandCount; band++) {
+            float t = (bandsDbfs[band] - FLOOR_DBFS) / (CEILING_DBFS - FLOOR_DBFS);
+            // 低い周波数を下にする
+            column[bandCount - 1 - band] = palette[Math.round(clamp(t) * (PALETTE_SIZE - 1))];
+        }
+        bitmap.setPixels(column, 0, 1, nextColumn, 0, 1, bandCount);
+        nextColumn = (nextColumn + 1) % bitmap.getWidth();
+    }
+
+    /**
+     * 表示を消す
+     */
+    public void clear() {
+        if (bitmap != null) {
+            bitmap.eraseColor(palette[0]);
+            nextColumn = 0;
+            invalidate();
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (bitmap == null) {
+            return;
+        }
+        int columns = bitmap.getWidth();
+        int height = getHeight();
+        // 古い側 (nextColumn から右端まで) を左に、新しい側 (先頭から nextColumn まで) を右に描く
+        int olderColumns = columns - nextColumn;
+        source.set(nextColumn, 0, columns, bandCount);
+        destination.set(0, 0, olderColumns * COLUMN_WIDTH_PX, height);
+        canvas.drawBitmap(bitmap, source, destination, paint);
+        if (nextColumn > 0) {
+            source.set(0, 0, nextColumn, bandCount);
+            destination.set(olderColumns * COLUMN_WIDTH_PX, 0, columns * COLUMN_WIDTH_PX, height);
+            canvas.drawBitmap(bitmap, source, destination, paint);
+        }
+    }
+}
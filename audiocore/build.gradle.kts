@@ -0,0 +1,18 @@
+// 録音の中核 (バッファリング、レベル計測、書き込み、インデックス、ログ) のうち Android に依存しない部分。
+// app から使い、benchmarks からデスクトップのJVMで計測する。
+plugins {
+    `java-library`
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+tasks.withType<JavaCompile>().configureEach {
+    options.encoding = "UTF-8"
+}
+
+dependencies {
+    testImplementation(libs.junit)
+}
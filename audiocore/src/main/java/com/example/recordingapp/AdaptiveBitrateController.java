@@ -0,0 +1,150 @@
+package com.example.recordingapp;
+
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * 録音中の状況に応じて、エンコードのビットレートを {@link EncoderProfile#getBitRateLadder()} の段の中で上げ下げする。
+ *
+ * 録音の1秒ごとに、その間の受け渡し待ちのバッファ数の最大値と保存先の空き容量を調べ、
+ * 書き込みが遅れているか、今のビットレートで録音し続けられる時間が短くなっていれば1段下げる。
+ * どちらも落ち着いた状態が続き、1段上げても十分に録音し続けられるなら1段戻す。
+ * 切り替えるたびに新しいファイル (セグメント) を作ることになるので、切り替えの直後はしばらく切り替えない。
+ *
+ * AACのエンコーダーは録音中にビットレートを変えられないので、このクラスは決めるだけで、
+ * 実際の切り替えは {@link Listener} が次のセグメントから行う。
+ * 書き込みスレッドの上で {@link PcmProcessor} として動く。
+ */
+public final class AdaptiveBitrateController implements PcmProcessor {
+
+    /**
+     * ビットレートを切り替えたときの通知先。書き込みスレッドから呼ばれる。
+     */
+    public interface Listener {
+        /**
+         * @param presentationTimeUs 切り替えを決めた時点の録音の位置
+         */
+        void onBitRateChanged(int previousBitRate, int bitRate, String reason, long presentationTimeUs);
+    }
+
+    /** 状況を調べる間隔 (録音の時間) */
+    static final long EVALUATION_INTERVAL_US = 1_000_000;
+    /** 今のビットレートで録音し続けられる時間がこれより短ければ下げる */
+    static final long LOW_SPACE_SECONDS = 30 * 60;
+    /** 1段上げてもこの時間以上録音し続けられなければ上げない */
+    static final long RECOVER_SPACE_SECONDS = 2 * 60 * 60;
+    /** 落ち着いた状態がこの回数続いたら1段上げる */
+    static final int RECOVER_EVALUATIONS = 10;
+    /** 切り替えた後、次に下げるまでに空ける回数 */
+    static final int HOLD_EVALUATIONS = 5;
+
+    private final int[] ladder;
+    private final int lagThreshold;
+    private final int calmThreshold;
+    private final IntSupplier queuedBuffers;
+    private final LongSupplier usableBytes;
+    private final Listener listener;
+
+    private int level;
+    private int maxQueued;
+    private long nextEvaluationUs = EVALUATION_INTERVAL_US;
+    private int calmCount;
+    private int holdCount;
+    private int changeCount;
+
+    /**
+     * @param bufferCount 受け渡し用のバッファの個数。その 1/4 以上が溜まったら書き込みが遅れているとみなす
+     * @param queuedBuffers 受け渡しを待っているバッファの数
+     * @param usableBytes 保存先の空き容量
+     */
+    public AdaptiveBitrateController(EncoderProfile profile, int bufferCount, IntSupplier queuedBuffers,
+                                     LongSupplier usableBytes, Listener listener) {
+        this.ladder = profile.getBitRateLadder();
+        this.lagThreshold = Math.max(2, bufferCount / 4);
+        this.calmThreshold = Math.max(1, bufferCount / 16);
+        this.queuedBuffers = queuedBuffers;
+        this.usableBytes = usableBytes;
+        this.listener = listener;
+    }
+
+    /**
+     * 今のビットレート。次に作るセグメントはこのビットレートでエンコードする
+     */
+    public int getBitRate() {
+        return ladder[level];
+    }
+
+    /**
+     * 今の段 (0 が既定のビットレート)
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * これまでに切り替えた回数
+     */
+    public int getChangeCount() {
+        return changeCount;
+    }
+
+    @Override
+    public void process(short[] buffer, int offset, int length, long presentationTimeUs) {
+        int queued = queuedBuffers.getAsInt();
+        if (queued > maxQueued) {
+            maxQueued = queued;
+        }
+        if (presentationTimeUs < nextEvaluationUs) {
+            return;
+        }
+        nextEvaluationUs = presentationTimeUs + EVALUATION_INTERVAL_US;
+        evaluate(maxQueued, usableBytes.getAsLong(), presentationTimeUs);
+        maxQueued = 0;
+    }
+
+    /**
+     * 1回分の状況からビットレートを決める
+     * @param maxQueued この間の受け渡し待ちのバッファ数の最大値
+     * @param freeBytes 保存先の空き容量
+     */
+    void evaluate(int maxQueued, long freeBytes, long presentationTimeUs) {
+        if (holdCount > 0) {
+            holdCount--;
+        }
+        String pressure = null;
+        if (maxQueued >= lagThreshold) {
+            pressure = "書き込みの遅れ (待ち " + maxQueued + " バッファ)";
+        } else if (secondsLeft(freeBytes, ladder[level]) < LOW_SPACE_SECONDS) {
+            pressure = "空き容量の不足 (残り " + freeBytes / (1024 * 1024) + " MB)";
+        }
+        if (pressure != null) {
+            calmCount = 0;
+            if (holdCount == 0 && level < ladder.length - 1) {
+                change(level + 1, pressure, presentationTimeUs);
+            }
+            return;
+        }
+        boolean calm = maxQueued <= calmThreshold
+                && level > 0 && secondsLeft(freeBytes, ladder[level - 1]) >= RECOVER_SPACE_SECONDS;
+        if (!calm) {
+            calmCount = 0;
+            return;
+        }
+        if (++calmCount >= RECOVER_EVALUATIONS) {
+            calmCount = 0;
+            change(level - 1, "回復", presentationTimeUs);
+        }
+    }
+
+    private void change(int newLevel, String reason, long presentationTimeUs) {
+        int previous = ladder[level];
+        level = newLevel;
+        holdCount = HOLD_EVALUATIONS;
+        changeCount++;
+        listener.onBitRateChanged(previous, ladder[level], reason, presentationTimeUs);
+    }
+
+    private static long secondsLeft(long freeBytes, int bitRate) {
+        return freeBytes / Math.max(1, bitRate / 8);
+    }
+}
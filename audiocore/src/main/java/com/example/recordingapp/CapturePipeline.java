@@ -0,0 +1,314 @@
+package com.example.recordingapp;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link PcmSource} から読み込んだPCMを {@link PcmSink} へ流す録音パイプライン。
+ *
+ * 録音スレッドはソースからの読み込みだけを行い、エンコードやファイル書き込みは
+ * 書き込みスレッドが担当する。両者の間は {@link PcmRingBuffer} で受け渡し、
+ * 録音スレッドはリングバッファのスロットへ直接読み込む。
+ * 書き込みが遅れてリングバッファが満杯になった場合、録音スレッドは待たずにそのバッファ分を捨て、
+ * オーバーラン回数として数える。
+ * 書き込みスレッドはリングバッファが空になると眠り、録音スレッドが次のバッファを公開したときに起こされる。
+ * 起こすのには {@link LockSupport#unpark} を使うので、書き込みスレッドで呼ばれる {@link PcmProcessor} と
+ * {@link PcmSink} は {@link LockSupport#park} で待たないこと (起こし合いが重なると早く戻ることがある)。
+ *
+ * Android には依存しないので、偽のソースを使ってJVM上でテストできる。
+ */
+public final class CapturePipeline {
+
+    /**
+     * パイプラインのスレッドで発生したエラーの通知先
+     */
+    public interface Listener {
+        /**
+         * 録音スレッドまたは書き込みスレッドから呼ばれる
+         */
+        void onError(Exception e);
+    }
+
+    // リングバッファが空のときに書き込みスレッドが待つ最長の時間。
+    // 通常は録音スレッドが起こすので、起こし損ねたときの保険
+    private static final long IDLE_WAIT_NANOS = 2_000_000;
+
+    private final PcmSource source;
+    private final PcmSink sink;
+    private final PcmFormat format;
+    private final PcmRingBuffer ringBuffer;
+    // 空きバッファが無いときに読み捨てるための領域
+    private final short[] discardBuffer;
+
+    // 書き込み前にPCMを読み取る処理。書き込みスレッドでイテレータを作らないよう配列で持つ
+    private PcmProcessor[] processors = new PcmProcessor[0];
+    private ThreadFactory threadFactory = Thread::new;
+    private Listener listener;
+    // 書き込みスレッドがバッファごとの計測値を記録する先。録音中に差し替えられる
+    private volatile SessionMetrics metrics;
+
+    private Thread captureThread;
+    private Thread writerThread;
+    private volatile boolean capturing;
+    private volatile boolean writing;
+    // 書き込みスレッドが空のリングバッファを待って眠っている (または眠ろうとしている) 間 true。
+    // 起こす側が compareAndSet で false に戻してから unpark するので、1回眠るごとに unpark は高々1回
+    private final AtomicBoolean writerParked = new AtomicBoolean();
+    private volatile Exception error;
+
+    private volatile long capturedSamples;
+    private volatile long firstSampleNanos;
+
+    /**
+     * @param bufferCount 受け渡し用バッファの個数 (2のべき乗)
+     * @param samplesPerBuffer 1バッファあたりのサンプル数 (インターリーブ後のshort数)
+     */
+    public CapturePipeline(PcmSource source, PcmSink sink, int bufferCount, int samplesPerBuffer) {
+        this.source = source;
+        this.sink = sink;
+        this.format = source.getFormat();
+        this.ringBuffer = new PcmRingBuffer(bufferCount, samplesPerBuffer);
+        this.discardBuffer = new short[samplesPerBuffer];
+    }
+
+    /**
+     * スレッドの生成方法を指定する。Androidではここで録音用の高い優先度を設定する。
+     * start() より前に呼ぶこと。
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * 書き込み前にPCMを読み取る処理を追加する。start() より前に呼ぶこと。
+     */
+    public void addProcessor(PcmProcessor processor) {
+        PcmProcessor[] added = Arrays.copyOf(processors, processors.length + 1);
+        added[processors.length] = processor;
+        processors = added;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * バッファごとの計測値の記録先を指定する。null で記録をやめる。録音中にも呼べる (次のバッファから記録する)。
+     * 1バッファ分の時間を超えた書き込みを停滞として数えるよう設定する。
+     */
+    public void setMetrics(SessionMetrics metrics) {
+        if (metrics != null) {
+            metrics.setStallThresholdUs(format.samplesToUs(ringBuffer.getSamplesPerSlot()));
+        }
+        this.metrics = metrics;
+    }
+
+    public PcmFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * 出力先を開き、ソースを開始して録音スレッドと書き込みスレッドを起動する
+     */
+    public void start() throws IOException {
+        if (captureThread != null) {
+            throw new IllegalStateException("pipeline already started");
+        }
+        sink.open(format);
+        try {
+            source.start();
+        } catch (IOException | RuntimeException e) {
+            sink.close();
+            throw e;
+        }
+        capturing = true;
+        writing = true;
+        writerThread = threadFactory.newThread(this::writeLoop);
+        writerThread.setName("PcmWriter");
+        captureThread = threadFactory.newThread(this::captureLoop);
+        captureThread.setName("PcmCapture");
+        writerThread.start();
+        captureThread.start();
+    }
+
+    /**
+     * 録音を止め、受け渡し中のバッファを全て書き出してから出力先を閉じる。
+     * パイプラインのスレッドで発生したエラーがあれば、ここで改めて投げる。
+     */
+    public void stop() throws IOException {
+        if (captureThread == null) {
+            return;
+        }
+        capturing = false;
+        source.stop();
+        joinQuietly(captureThread);
+        writing = false;
+        wakeWriter();
+        joinQuietly(writerThread);
+        captureThread = null;
+        writerThread = null;
+        source.release();
+        sink.close();
+
+        Exception failure = error;
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure != null) {
+            throw new IOException("capture pipeline failed", failure);
+        }
+    }
+
+    /**
+     * これまでに読み込んだサンプル数
+     */
+    public long getCapturedSamples() {
+        return capturedSamples;
+    }
+
+    /**
+     * 録音スレッドが最初のサンプルを読み込んだ時刻 ({@link System#nanoTime()})。まだ読み込んでいなければ 0
+     */
+    public long getFirstSampleNanos() {
+        return firstSampleNanos;
+    }
+
+    /**
+     * 書き込みスレッドへの受け渡しを待っているバッファの数 (書き込みスレッドから呼ぶと正確な値になる)
+     */
+    public int getQueuedBuffers() {
+        return ringBuffer.size();
+    }
+
+    /**
+     * 書き込みが追いつかずに捨てたバッファの数
+     */
+    public long getOverrunCount() {
+        return ringBuffer.getOverrunCount();
+    }
+
+    /**
+     * 書き込みスレッドが読み出し待ちのバッファを見つけられなかった回数 (書き込みが追いついている間は増え続ける)
+     */
+    public long getIdlePollCount() {
+        return ringBuffer.getIdlePollCount();
+    }
+
+    private void captureLoop() {
+        try {
+            while (capturing) {
+                short[] slot = ringBuffer.claim();
+                if (slot == null) {
+                    // 書き込みが詰まっていても録音スレッドは待たない。読み捨てるだけ (オーバーランとして数え済み)。
+                    int read = source.read(discardBuffer, 0, discardBuffer.length);
+                    if (read > 0) {
+                        markFirstSample();
+                        capturedSamples += read;
+                    }
+                    continue;
+                }
+                int read = source.read(slot, 0, slot.length);
+                if (read <= 0) {
+                    continue;
+                }
+                markFirstSample();
+                ringBuffer.publish(read, format.samplesToUs(capturedSamples));
+                capturedSamples += read;
+                wakeWriter();
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    private void markFirstSample() {
+        if (firstSampleNanos == 0) {
+            firstSampleNanos = System.nanoTime();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                short[] slot = ringBuffer.poll();
+                if (slot == null) {
+                    if (!writing) {
+                        // 停止後、受け渡し中のバッファを全て書き終えた
+                        return;
+                    }
+                    awaitPublish();
+                    continue;
+                }
+                try {
+                    SessionMetrics m = metrics;
+                    long beginNanos = m != null ? System.nanoTime() : 0;
+                    int length = ringBuffer.peekLength();
+                    long presentationTimeUs = ringBuffer.peekPresentationTimeUs();
+                    for (PcmProcessor processor : processors) {
+                        processor.process(slot, 0, length, presentationTimeUs);
+                    }
+                    sink.write(slot, 0, length, presentationTimeUs);
+                    if (m != null) {
+                        m.recordWrite(ringBuffer.size(), (beginNanos - ringBuffer.peekPublishTimeNanos()) / 1000,
+                                (System.nanoTime() - beginNanos) / 1000);
+                    }
+                } finally {
+                    ringBuffer.release();
+                }
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * 録音スレッドが次のバッファを公開するまで眠る。
+     * 眠る印を付けてから空であることを確かめ直すので、その間に公開されたバッファは取りこぼさない。
+     * 公開 (lazySet) と印の読み込みが入れ替わって起こし損ねた場合も、IDLE_WAIT_NANOS で目を覚ます。
+     * 眠らずに済んだのに録音スレッドが印を外していたら、届く unpark をここで受け取っておき、
+     * 後で出力先が眠ったときに早く起きてしまわないようにする。
+     */
+    private void awaitPublish() {
+        writerParked.set(true);
+        boolean parked = false;
+        if (ringBuffer.isEmpty() && writing) {
+            LockSupport.parkNanos(IDLE_WAIT_NANOS);
+            parked = true;
+        }
+        if (!writerParked.compareAndSet(true, false) && !parked) {
+            // 録音スレッドが印を外した後なので、unpark はすぐに届く
+            LockSupport.park(this);
+        }
+    }
+
+    /**
+     * 書き込みスレッドが眠っていれば起こす。印を外せたときだけ unpark するので、余計な許可を残さない
+     */
+    private void wakeWriter() {
+        if (writerParked.compareAndSet(true, false)) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    private void fail(Exception e) {
+        if (error == null) {
+            error = e;
+        }
+        capturing = false;
+        writing = false;
+        Listener l = listener;
+        if (l != null) {
+            l.onError(e);
+        }
+    }
+
+    private static void joinQuietly(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
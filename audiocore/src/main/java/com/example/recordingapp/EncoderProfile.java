@@ -0,0 +1,129 @@
+package com.example.recordingapp;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * 名前付きのエンコード設定 (コーデック、サンプリングレート、チャンネル数、ビットレート)。
+ *
+ * 録音ごとに開始コマンドで選ぶ。ビットレートは {@link #getBitRateLadder()} の段の中で
+ * {@link AdaptiveBitrateController} が録音中に上げ下げする (最初の段が既定のビットレート)。
+ */
+public final class EncoderProfile {
+
+    /** AAC-LC (MPEG-4) */
+    public static final String CODEC_AAC = "aac";
+    /** Opus (OGG)。Android 10 以降で、端末にエンコーダーがある場合だけ使える */
+    public static final String CODEC_OPUS = "opus";
+
+    /** 会話用: 16kHz モノラル、低ビットレート */
+    public static final EncoderProfile SPEECH = new EncoderProfile("speech", CODEC_AAC, 16000, 1, 32_000, 16_000);
+    /** 標準: 44.1kHz モノラル (従来の設定) */
+    public static final EncoderProfile STANDARD = new EncoderProfile("standard", CODEC_AAC, 44100, 1, 128_000, 64_000);
+    /** 音楽用: 48kHz ステレオ、高ビットレート */
+    public static final EncoderProfile MUSIC = new EncoderProfile("music", CODEC_AAC, 48000, 2, 256_000, 96_000);
+    /** 会話用の Opus: 48kHz モノラル。同じ音質なら AAC よりファイルが小さい */
+    public static final EncoderProfile OPUS = new EncoderProfile("opus", CODEC_OPUS, 48000, 1, 32_000, 12_000);
+
+    private static final EncoderProfile[] ALL = {SPEECH, STANDARD, MUSIC, OPUS};
+
+    private final String name;
+    private final String codec;
+    private final int sampleRate;
+    private final int channelCount;
+    private final int bitRate;
+    private final int minBitRate;
+    private final int[] ladder;
+
+    public EncoderProfile(String name, String codec, int sampleRate, int channelCount, int bitRate, int minBitRate) {
+        if (minBitRate <= 0 || minBitRate > bitRate) {
+            throw new IllegalArgumentException("minBitRate must be in (0, bitRate]: " + minBitRate);
+        }
+        this.name = name;
+        this.codec = codec;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.bitRate = bitRate;
+        this.minBitRate = minBitRate;
+        this.ladder = buildLadder(bitRate, minBitRate);
+    }
+
+    /**
+     * 名前から選ぶ。null や知らない名前の場合は {@link #STANDARD}
+     */
+    public static EncoderProfile forName(String name) {
+        for (EncoderProfile profile : ALL) {
+            if (profile.name.equals(name)) {
+                return profile;
+            }
+        }
+        return STANDARD;
+    }
+
+    /**
+     * 既定のビットレートから 3/4 倍ずつ下げ、最低ビットレートで終わる段
+     */
+    private static int[] buildLadder(int bitRate, int minBitRate) {
+        int[] steps = new int[16];
+        int count = 0;
+        int rate = bitRate;
+        while (rate > minBitRate && count < steps.length - 1) {
+            steps[count++] = rate;
+            // 1kbps 単位に丸める
+            rate = rate * 3 / 4 / 1000 * 1000;
+        }
+        steps[count++] = minBitRate;
+        return Arrays.copyOf(steps, count);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * 既定のビットレート (bps)
+     */
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    public int getMinBitRate() {
+        return minBitRate;
+    }
+
+    /**
+     * 使えるビットレートを高い順に並べたもの (最初が既定、最後が最低)
+     */
+    public int[] getBitRateLadder() {
+        return ladder.clone();
+    }
+
+    public PcmFormat getFormat() {
+        return new PcmFormat(sampleRate, channelCount);
+    }
+
+    /**
+     * 保存するファイルの拡張子 (ドット付き)
+     */
+    public String getFileExtension() {
+        return CODEC_OPUS.equals(codec) ? ".ogg" : ".mp4";
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s (%s %dHz %s %dkbps)", name, codec.toUpperCase(Locale.ROOT),
+                sampleRate, channelCount == 1 ? "mono" : channelCount + "ch", bitRate / 1000);
+    }
+}
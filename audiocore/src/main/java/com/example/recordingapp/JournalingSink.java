@@ -0,0 +1,77 @@
+package com.example.recordingapp;
+
+import java.io.IOException;
+
+/**
+ * 1つのファイルへの出力先に挟み、開いたこと・書き込んだ位置・閉じ終えたことを {@link SessionJournal} に記録する {@link PcmSink}。
+ *
+ * 書き込んだ位置は、ファイルに書き込み済みのバイト数が {@link #DEFAULT_SYNC_INTERVAL_BYTES} 以上進むたびに記録する。
+ * WAVの場合はバッファからファイルへ書き出した分 ({@link WavFileSink#getFlushedBytes()}) を記録するので、
+ * ヘッダを書き換える間隔より細かく、強制終了されたときに失う音声が短くなる。
+ */
+public final class JournalingSink implements PcmSink {
+
+    /** 書き込んだ位置を記録する既定の間隔 (WAVのバッファ1つ分) */
+    public static final long DEFAULT_SYNC_INTERVAL_BYTES = 64 * 1024;
+
+    private final PcmSink downstream;
+    private final SessionJournal journal;
+    private final long syncIntervalBytes;
+
+    private PcmFormat format;
+    private int segment;
+    private long journaledBytes;
+    private long durationUs;
+
+    public JournalingSink(PcmSink downstream, SessionJournal journal) {
+        this(downstream, journal, DEFAULT_SYNC_INTERVAL_BYTES);
+    }
+
+    /**
+     * @param syncIntervalBytes 書き込んだ位置を記録する間隔 (バイト数)
+     */
+    JournalingSink(PcmSink downstream, SessionJournal journal, long syncIntervalBytes) {
+        this.downstream = downstream;
+        this.journal = journal;
+        this.syncIntervalBytes = syncIntervalBytes;
+    }
+
+    @Override
+    public void open(PcmFormat format) throws IOException {
+        this.format = format;
+        downstream.open(format);
+        journaledBytes = 0;
+        durationUs = 0;
+        segment = journal.openSegment(format);
+    }
+
+    @Override
+    public void write(short[] buffer, int offset, int length, long presentationTimeUs) throws IOException {
+        downstream.write(buffer, offset, length, presentationTimeUs);
+        durationUs = presentationTimeUs + format.samplesToUs(length);
+        long bytes = durableBytes();
+        if (bytes - journaledBytes >= syncIntervalBytes) {
+            journal.sync(segment, bytes, durationUs);
+            journaledBytes = bytes;
+        }
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return downstream.getBytesWritten();
+    }
+
+    @Override
+    public void close() throws IOException {
+        downstream.close();
+        journal.closeSegment(segment, downstream.getBytesWritten(), durationUs);
+    }
+
+    /**
+     * 強制終了されてもファイルに残っているバイト数
+     */
+    private long durableBytes() {
+        return downstream instanceof WavFileSink
+                ? ((WavFileSink) downstream).getFlushedBytes() : downstream.getBytesWritten();
+    }
+}
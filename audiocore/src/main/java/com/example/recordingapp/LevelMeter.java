@@ -0,0 +1,68 @@
+package com.example.recordingapp;
+
+/**
+ * 録音中のPCMからピークとRMSを計算し、一定の頻度で {@link LevelSnapshot} に公開する {@link PcmProcessor}。
+ *
+ * 受け取ったバッファをその場で1回なめるだけで、バッファのコピーやオブジェクトの確保、
+ * ボクシングは行わない。公開は「指定した頻度に相当するサンプル数が溜まったバッファの終わり」で行うので、
+ * 公開頻度が指定値を超えることはない。
+ */
+public final class LevelMeter implements PcmProcessor {
+
+    private static final float FULL_SCALE = 32768f;
+
+    private final LevelSnapshot snapshot;
+    // 1回の公開に必要なサンプル数 (インターリーブ後)
+    private final int samplesPerPublish;
+
+    private int peak;
+    private double sumOfSquares;
+    private int sampleCount;
+    private long publishCount;
+
+    /**
+     * @param publishRateHz 1秒あたりの最大の公開回数
+     */
+    public LevelMeter(PcmFormat format, int publishRateHz, LevelSnapshot snapshot) {
+        if (publishRateHz <= 0) {
+            throw new IllegalArgumentException("publishRateHz must be positive: " + publishRateHz);
+        }
+        this.snapshot = snapshot;
+        this.samplesPerPublish = Math.max(1, format.getSampleRate() / publishRateHz) * format.getChannelCount();
+    }
+
+    @Override
+    public void process(short[] buffer, int offset, int length, long presentationTimeUs) {
+        int localPeak = peak;
+        // long で足し合わせると 1バッファ内では桁あふれしない (32768^2 * 2^31 < 2^63)
+        long localSum = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            int sample = buffer[i];
+            int magnitude = sample < 0 ? -sample : sample;
+            if (magnitude > localPeak) {
+                localPeak = magnitude;
+            }
+            localSum += (long) sample * sample;
+        }
+        peak = localPeak;
+        sumOfSquares += localSum;
+        sampleCount += length;
+
+        if (sampleCount >= samplesPerPublish) {
+            float rms = (float) (Math.sqrt(sumOfSquares / sampleCount) / FULL_SCALE);
+            snapshot.publish(peak / FULL_SCALE, rms);
+            publishCount++;
+            peak = 0;
+            sumOfSquares = 0;
+            sampleCount = 0;
+        }
+    }
+
+    /**
+     * これまでに公開した回数
+     */
+    public long getPublishCount() {
+        return publishCount;
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.recordingapp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 最新の入力レベル (ピークとRMS) をスレッド間で共有するための入れ物。
+ *
+ * 2つの float を1つの long にまとめて1回の書き込みで公開するので、読み出し側が
+ * 別々の時点のピークとRMSを組み合わせて読んでしまうことはない。オブジェクトの確保も一切しない。
+ * 値はいずれもフルスケールを 1.0 とした振幅。
+ */
+public final class LevelSnapshot {
+
+    /** 無音を dBFS で表すときの下限 */
+    public static final float MIN_DBFS = -96f;
+
+    private final AtomicLong packed = new AtomicLong();
+
+    /**
+     * 新しいレベルを公開する
+     */
+    public void publish(float peak, float rms) {
+        packed.lazySet(((long) Float.floatToRawIntBits(peak) << 32)
+                | (Float.floatToRawIntBits(rms) & 0xFFFFFFFFL));
+    }
+
+    /**
+     * レベルを0に戻す
+     */
+    public void reset() {
+        packed.set(0);
+    }
+
+    /**
+     * ピークとRMSをまとめた値。{@link #peakOf(long)} と {@link #rmsOf(long)} で取り出す。
+     */
+    public long get() {
+        return packed.get();
+    }
+
+    public static float peakOf(long packedValue) {
+        return Float.intBitsToFloat((int) (packedValue >>> 32));
+    }
+
+    public static float rmsOf(long packedValue) {
+        return Float.intBitsToFloat((int) packedValue);
+    }
+
+    /**
+     * 振幅を dBFS に変換する。0 の場合は {@link #MIN_DBFS} を返す。
+     */
+    public static float toDbfs(float amplitude) {
+        if (amplitude <= 0f) {
+            return MIN_DBFS;
+        }
+        return Math.max(MIN_DBFS, (float) (20 * Math.log10(amplitude)));
+    }
+}
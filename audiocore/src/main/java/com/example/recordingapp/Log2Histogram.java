@@ -0,0 +1,109 @@
+package com.example.recordingapp;
+
+/**
+ * 0以上の整数値の分布を、2のべき乗ごとのバケツで数えるヒストグラム。
+ *
+ * バケツ k (k ≥ 1) には 2^(k-1) 以上 2^k 未満の値が入り、バケツ 0 には 0 が入る。
+ * 記録は配列の1要素を増やすだけで、オブジェクトの確保はしない。
+ * 記録は1つのスレッドからだけ行うこと。別のスレッドから読んだ値は概算になる。
+ */
+public final class Log2Histogram {
+
+    private static final int BUCKET_COUNT = 64;
+
+    private final long[] buckets = new long[BUCKET_COUNT];
+    private long count;
+    private long sum;
+    private long max;
+
+    /**
+     * 値を1つ記録する。負の値は 0 として扱う。
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets[bucketOf(value)]++;
+        count++;
+        sum += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * 値が入るバケツの番号
+     */
+    static int bucketOf(long value) {
+        return value <= 0 ? 0 : Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    /**
+     * バケツに入る値の上限 (この値未満)
+     */
+    static long upperBoundOf(int bucket) {
+        return bucket >= 63 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count > 0 ? (double) sum / count : 0;
+    }
+
+    public long getBucket(int bucket) {
+        return buckets[bucket];
+    }
+
+    /**
+     * 記録した値のうち、割合 fraction (0〜1) 以下に入る値の概算。
+     * 該当するバケツの上限を返す (ただし最大値を超えない)。何も記録していなければ 0
+     */
+    public long getPercentile(double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += buckets[bucket];
+            if (seen >= rank) {
+                return bucket == 0 ? 0 : Math.min(max, upperBoundOf(bucket) - 1);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * JSONのオブジェクトとして書き出す。bucketsは最後の空でないバケツまで
+     */
+    void appendJson(StringBuilder out) {
+        out.append("{\"count\":").append(count)
+                .append(",\"mean\":").append(Math.round(getMean()))
+                .append(",\"p50\":").append(getPercentile(0.5))
+                .append(",\"p99\":").append(getPercentile(0.99))
+                .append(",\"max\":").append(max)
+                .append(",\"buckets\":[");
+        int last = BUCKET_COUNT - 1;
+        while (last >= 0 && buckets[last] == 0) {
+            last--;
+        }
+        for (int bucket = 0; bucket <= last; bucket++) {
+            if (bucket > 0) {
+                out.append(',');
+            }
+            out.append(buckets[bucket]);
+        }
+        out.append("]}");
+    }
+}
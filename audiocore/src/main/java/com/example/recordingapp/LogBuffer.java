@@ -0,0 +1,116 @@
+package com.example.recordingapp;
+
+/**
+ * 容量固定のログバッファ。時刻は long 配列、メッセージは String 配列に保持し、
+ * 容量を超えたら古いものから上書きする。
+ *
+ * 各エントリには追加順の通し番号 (シーケンス番号) が付く。読み出し側は
+ * 「次に読むシーケンス番号」を覚えておけば、いつでも続きから読み出せる。
+ * 複数スレッドから追加できるよう、全てのメソッドは同期化している。
+ */
+public final class LogBuffer {
+
+    /**
+     * エントリを1件ずつ受け取るコールバック
+     */
+    public interface Reader {
+        void onEntry(long sequence, long timeMillis, String message);
+
+        /**
+         * 読み出す前に上書きされて読めなかったエントリがあったときに、続きのエントリより先に1回だけ呼ばれる
+         * @param count 読めなかったエントリの数
+         * @param timeMillis 読めなかった範囲の直後の (残っている最も古い) エントリの時刻
+         */
+        default void onSkipped(long count, long timeMillis) {
+        }
+    }
+
+    private final long[] timesMillis;
+    private final String[] messages;
+    // 次に追加するエントリのシーケンス番号 (= これまでに追加した総数)
+    private long nextSequence;
+
+    public LogBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        timesMillis = new long[capacity];
+        messages = new String[capacity];
+    }
+
+    public int getCapacity() {
+        return messages.length;
+    }
+
+    /**
+     * エントリを追加する
+     * @return 追加したエントリのシーケンス番号
+     */
+    public synchronized long append(long timeMillis, String message) {
+        int index = (int) (nextSequence % messages.length);
+        timesMillis[index] = timeMillis;
+        messages[index] = message;
+        return nextSequence++;
+    }
+
+    /**
+     * 次に追加されるエントリのシーケンス番号
+     */
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * バッファに残っている最も古いエントリのシーケンス番号
+     */
+    public synchronized long getOldestSequence() {
+        return Math.max(0, nextSequence - messages.length);
+    }
+
+    /**
+     * バッファに残っているエントリの数
+     */
+    public synchronized int size() {
+        return (int) Math.min(nextSequence, messages.length);
+    }
+
+    /**
+     * 指定したシーケンス番号のエントリの時刻。範囲外の場合は例外を投げる。
+     */
+    public synchronized long getTimeMillis(long sequence) {
+        return timesMillis[indexOf(sequence)];
+    }
+
+    /**
+     * 指定したシーケンス番号のエントリのメッセージ。範囲外の場合は例外を投げる。
+     */
+    public synchronized String getMessage(long sequence) {
+        return messages[indexOf(sequence)];
+    }
+
+    /**
+     * 指定したシーケンス番号以降のエントリを古い順に読み出す。
+     * 既に上書きされたエントリは飛ばし、その数を {@link Reader#onSkipped} で知らせてから、残っている最も古いものから読み出す。
+     * コールバックはロックを保持したまま呼ばれるので、その中で重い処理をしないこと。
+     * @return 次に読み出すべきシーケンス番号
+     */
+    public synchronized long readFrom(long fromSequence, Reader reader) {
+        long sequence = Math.max(fromSequence, getOldestSequence());
+        if (sequence > fromSequence) {
+            reader.onSkipped(sequence - fromSequence, timesMillis[(int) (sequence % messages.length)]);
+        }
+        for (; sequence < nextSequence; sequence++) {
+            int index = (int) (sequence % messages.length);
+            reader.onEntry(sequence, timesMillis[index], messages[index]);
+        }
+        return nextSequence;
+    }
+
+    private int indexOf(long sequence) {
+        if (sequence < getOldestSequence() || sequence >= nextSequence) {
+            throw new IndexOutOfBoundsException("sequence " + sequence + " is not in ["
+                    + getOldestSequence() + ", " + nextSequence + ")");
+        }
+        return (int) (sequence % messages.length);
+    }
+}
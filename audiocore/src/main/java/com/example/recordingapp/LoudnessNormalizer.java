@@ -0,0 +1,119 @@
+package com.example.recordingapp;
+
+/**
+ * 録音全体の音量を目標の大きさに揃える {@link PostProcessStage}。
+ *
+ * 1回目の読み込みで 400ms ごとのブロックのRMSを求め、ほぼ無音のブロック (ゲート未満) を除いた
+ * 平均のRMSを録音の音量とする。ラウドネスの規格 (LUFS) のような聴感の補正はしない簡易的なもの。
+ * 目標の音量にするためのゲインを、ピークが上限を超えない範囲、かつ最大ゲイン以下に抑えて全体にかける。
+ */
+public final class LoudnessNormalizer implements PostProcessStage {
+
+    /** 既定の目標の音量 (RMS、dBFS) */
+    public static final double DEFAULT_TARGET_DBFS = -20;
+    /** 既定のピークの上限 (dBFS) */
+    public static final double DEFAULT_CEILING_DBFS = -1;
+    /** 既定の最大ゲイン (dB)。ほぼ無音の録音の雑音を持ち上げすぎないようにする */
+    public static final double DEFAULT_MAX_GAIN_DB = 20;
+
+    private static final int BLOCK_MILLIS = 400;
+    // これより小さいブロックは音量の計算に含めない
+    private static final double GATE_DBFS = -60;
+
+    private final double targetDbfs;
+    private final double ceilingDbfs;
+    private final double maxGainDb;
+    private final int blockSamples;
+    private final double gateMeanSquare;
+
+    private double blockSum;
+    private int blockCount;
+    private double gatedSum;
+    private long gatedCount;
+    private int peak;
+    private float gain = 1f;
+
+    public LoudnessNormalizer(PcmFormat format) {
+        this(format, DEFAULT_TARGET_DBFS, DEFAULT_CEILING_DBFS, DEFAULT_MAX_GAIN_DB);
+    }
+
+    public LoudnessNormalizer(PcmFormat format, double targetDbfs, double ceilingDbfs, double maxGainDb) {
+        this.targetDbfs = targetDbfs;
+        this.ceilingDbfs = ceilingDbfs;
+        this.maxGainDb = maxGainDb;
+        this.blockSamples = format.samplesForMillis(BLOCK_MILLIS);
+        this.gateMeanSquare = Math.pow(10, GATE_DBFS / 10) * 32768.0 * 32768.0;
+    }
+
+    @Override
+    public String getName() {
+        return "normalize";
+    }
+
+    @Override
+    public void analyze(short[] buffer, int offset, int length) {
+        double sum = blockSum;
+        int count = blockCount;
+        int max = peak;
+        for (int i = offset; i < offset + length; i++) {
+            int sample = buffer[i];
+            sum += sample * sample;
+            int magnitude = sample < 0 ? -sample : sample;
+            if (magnitude > max) {
+                max = magnitude;
+            }
+            if (++count == blockSamples) {
+                addBlock(sum, count);
+                sum = 0;
+                count = 0;
+            }
+        }
+        blockSum = sum;
+        blockCount = count;
+        peak = max;
+    }
+
+    @Override
+    public void endAnalysis() {
+        // 最後の半端なブロックも含める
+        if (blockCount > 0) {
+            addBlock(blockSum, blockCount);
+            blockSum = 0;
+            blockCount = 0;
+        }
+        if (gatedCount == 0 || peak == 0) {
+            gain = 1f;
+            return;
+        }
+        double rmsDbfs = 10 * Math.log10(gatedSum / gatedCount / (32768.0 * 32768.0));
+        double peakDbfs = 20 * Math.log10(peak / 32768.0);
+        double gainDb = Math.min(targetDbfs - rmsDbfs, Math.min(ceilingDbfs - peakDbfs, maxGainDb));
+        gain = (float) Math.pow(10, gainDb / 20);
+    }
+
+    /**
+     * かけるゲイン (倍率)。endAnalysis() の後に決まる
+     */
+    public float getGain() {
+        return gain;
+    }
+
+    @Override
+    public void apply(short[] buffer, int offset, int length) {
+        float g = gain;
+        if (g == 1f) {
+            return;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            int value = Math.round(buffer[i] * g);
+            buffer[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+        }
+    }
+
+    private void addBlock(double sum, int count) {
+        if (sum / count >= gateMeanSquare) {
+            gatedSum += sum;
+            gatedCount += count;
+        }
+    }
+}
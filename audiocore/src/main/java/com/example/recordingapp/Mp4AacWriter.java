@@ -0,0 +1,524 @@
+package com.example.recordingapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * エンコード済みのAAC (AAC-LC、1フレーム1024サンプル) を、MPEG-4ファイル (.mp4) に書き出す。
+ * MediaMuxer の代わりに使い、強制終了されても {@link #recover(File)} で再生できるファイルに仕上げられるようにする。
+ *
+ * ファイルは ftyp、mdat (64bitのサイズ欄)、moov の順に並べる。フレームは mdat にそのまま追記し、
+ * 各フレームのバイト数はサイドカーファイル (.frames) に追記していく。moov はファイルを閉じるときに、
+ * .frames からサンプルの表を作って末尾に書く。MPEG-4 はフレームの境目を moov の表でしか表さないので、
+ * moov が無いファイルを作り直すにはこの記録が要る。
+ *
+ * <pre>
+ * .frames のヘッダ (64バイト、リトルエンディアン)
+ *   0  int   マジック "RFRM"
+ *   4  int   バージョン (1)
+ *   8  int   サンプリングレート
+ *   12 int   チャンネル数
+ *   16 int   ビットレート
+ *   20 int   mdat のデータの先頭の、ファイル先頭からのバイト位置
+ *   24 int   AudioSpecificConfig (csd-0) のバイト数
+ *   28 byte[36] AudioSpecificConfig (余りは 0)
+ * レコード (ヘッダの直後から4バイトずつ)
+ *   int   フレームのバイト数 (mdat に書いた順)
+ * </pre>
+ *
+ * フレームと .frames のレコードはバッファに溜め、{@link #FLUSH_FRAMES} フレームごと (48kHz なら約0.7秒ごと) に、
+ * フレームを先に書き出してからレコードを書き出す。
+ * そのため、強制終了されても .frames に記録されたフレームはファイルに書き込み済みで、
+ * 修復では .frames と mdat の両方に揃っているフレームまでを使う。どちらもディスクへの同期はしない
+ * (プロセスが強制終了されてもOSのキャッシュからファイルに残る)。
+ * 修復で読むのは .frames (1フレーム4バイトで、音声データの1〜2%程度) とファイルの長さだけで、音声データには触れない。
+ *
+ * 書き込みスレッド上で使うバッファは構築時に確保する。1つのスレッドから使うこと。
+ */
+public final class Mp4AacWriter {
+
+    /** AAC-LC の1フレームのサンプル数 (チャンネルあたり) */
+    public static final int SAMPLES_PER_FRAME = 1024;
+    /** .frames のヘッダのバイト数 */
+    public static final int FRAMES_HEADER_SIZE = 64;
+    /** .frames の1レコードのバイト数 */
+    public static final int FRAME_RECORD_SIZE = 4;
+    /** .frames のヘッダの先頭のマジック ("RFRM" をリトルエンディアンの int として読んだ値) */
+    public static final int MAGIC = 'R' | 'F' << 8 | 'R' << 16 | 'M' << 24;
+    public static final int VERSION = 1;
+    /** まとめて書き出すフレーム数。強制終了されたときに失うのは最大でこの分 */
+    static final int FLUSH_FRAMES = 32;
+
+    static final int CONFIG_OFFSET = 28;
+    static final int MAX_CONFIG_BYTES = FRAMES_HEADER_SIZE - CONFIG_OFFSET;
+
+    private static final int FTYP_SIZE = 24;
+    // mdat のヘッダ: サイズ欄 (1 = 64bitのサイズが続く)、"mdat"、64bitのサイズ
+    private static final int MDAT_HEADER_SIZE = 16;
+    private static final int DATA_OFFSET = FTYP_SIZE + MDAT_HEADER_SIZE;
+    private static final int DEFAULT_BUFFER_BYTES = 32 * 1024;
+
+    private final String outputFilePath;
+    private final String framesPath;
+    private final ByteBuffer data;
+    private final ByteBuffer records;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private RandomAccessFile framesFile;
+    private FileChannel framesChannel;
+    // ファイルに書き込み済みのフレームのデータのバイト数 (バッファに残っている分は含まない)
+    private long flushedDataBytes;
+    private long framesPosition;
+
+    public Mp4AacWriter(String outputFilePath) {
+        this(outputFilePath, DEFAULT_BUFFER_BYTES);
+    }
+
+    /**
+     * @param bufferBytes 書き出す前にフレームを溜めるバッファの大きさ
+     */
+    Mp4AacWriter(String outputFilePath, int bufferBytes) {
+        this.outputFilePath = outputFilePath;
+        this.framesPath = framesPathFor(outputFilePath);
+        this.data = ByteBuffer.allocateDirect(bufferBytes);
+        this.records = ByteBuffer.allocateDirect(FLUSH_FRAMES * FRAME_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * 録音ファイルに対応する .frames のパス (拡張子を .frames に置き換えたもの)
+     */
+    public static String framesPathFor(String recordingPath) {
+        return SessionManifest.stripExtension(recordingPath) + ".frames";
+    }
+
+    /**
+     * ファイルと .frames を作り、ヘッダを書く。エンコーダーの出力形式 (csd-0) が分かったときに呼ぶ
+     * @param audioSpecificConfig エンコーダーの csd-0
+     */
+    public void start(int sampleRate, int channelCount, int bitRate, ByteBuffer audioSpecificConfig) throws IOException {
+        if (audioSpecificConfig.remaining() > MAX_CONFIG_BYTES) {
+            throw new IOException("AudioSpecificConfig is too long: " + audioSpecificConfig.remaining());
+        }
+        flushedDataBytes = 0;
+        data.clear();
+        records.clear();
+        try {
+            file = new RandomAccessFile(outputFilePath, "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+            ByteBuffer head = ByteBuffer.allocate(DATA_OFFSET);
+            putFtyp(head);
+            head.putInt(1).put(type("mdat")).putLong(MDAT_HEADER_SIZE);
+            head.flip();
+            writeFully(channel, head, 0);
+
+            framesFile = new RandomAccessFile(framesPath, "rw");
+            framesFile.setLength(0);
+            framesChannel = framesFile.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(FRAMES_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(sampleRate);
+            header.putInt(channelCount);
+            header.putInt(bitRate);
+            header.putInt(DATA_OFFSET);
+            header.putInt(audioSpecificConfig.remaining());
+            header.put(audioSpecificConfig.duplicate());
+            header.position(FRAMES_HEADER_SIZE);
+            header.flip();
+            framesPosition = writeFully(framesChannel, header, 0);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    /**
+     * start() を呼んだかどうか
+     */
+    public boolean isStarted() {
+        return channel != null;
+    }
+
+    /**
+     * 1フレームを追記する
+     * @param frame position から limit までが1フレーム。戻った後、position は limit まで進む
+     */
+    public void writeFrame(ByteBuffer frame) throws IOException {
+        int size = frame.remaining();
+        if (size > data.remaining()) {
+            flush();
+        }
+        if (size > data.capacity()) {
+            // バッファより大きいフレームは直接書き出す (AAC-LC では起きない)
+            writeFully(channel, frame, DATA_OFFSET + flushedDataBytes);
+            flushedDataBytes += size;
+            records.putInt(size);
+            flush();
+            return;
+        }
+        data.put(frame);
+        records.putInt(size);
+        if (!records.hasRemaining()) {
+            flush();
+        }
+    }
+
+    /**
+     * これまでに追記したフレームのデータのバイト数
+     */
+    public long getDataBytes() {
+        return flushedDataBytes + data.position();
+    }
+
+    /**
+     * 溜めたフレームを書き出す。フレームを先に書き、その後で .frames に記録する
+     */
+    public void flush() throws IOException {
+        if (data.position() > 0) {
+            data.flip();
+            flushedDataBytes += writeFully(channel, data, DATA_OFFSET + flushedDataBytes);
+            data.clear();
+        }
+        if (records.position() > 0) {
+            records.flip();
+            framesPosition += writeFully(framesChannel, records, framesPosition);
+            records.clear();
+        }
+    }
+
+    /**
+     * 残りのフレームを書き出し、moov を書いてファイルを仕上げる。.frames は削除する
+     * @return {フレームのデータのバイト数, 長さ (us)}
+     */
+    public long[] close() throws IOException {
+        if (channel == null) {
+            return new long[]{0, 0};
+        }
+        try {
+            flush();
+        } finally {
+            closeQuietly();
+        }
+        long[] finished = finish(new File(outputFilePath), new File(framesPath));
+        delete(new File(framesPath));
+        return finished;
+    }
+
+    /**
+     * 強制終了されて moov が無いファイルを、.frames の記録から仕上げる。.frames は削除する。
+     * .frames が無ければ、moov まで書き終えていればその内容を、そうでなければ null を返す
+     * @return 使えるようになったファイルの {フレームのデータのバイト数, 長さ (us)}。仕上げられなければ null
+     */
+    public static long[] recover(File file) throws IOException {
+        File frames = new File(framesPathFor(file.getPath()));
+        if (!frames.isFile()) {
+            // .frames を消したのは moov を書き終えた後
+            return readFinished(file);
+        }
+        if (frames.length() < FRAMES_HEADER_SIZE || !file.isFile()) {
+            // 最初のフレームより前に終了した
+            delete(frames);
+            return null;
+        }
+        long[] finished = finish(file, frames);
+        delete(frames);
+        return finished;
+    }
+
+    /**
+     * .frames に記録されていて、ファイルにもデータが揃っているフレームまでを残し、moov を書く。
+     * 閉じるときと修復するときの両方で使う。moov まで書き終えたファイルにもう一度呼んでも同じ内容になる
+     */
+    static long[] finish(File file, File frames) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FRAMES_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer sizes;
+        try (RandomAccessFile in = new RandomAccessFile(frames, "r")) {
+            in.readFully(header.array());
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException(".frames の形式が正しくありません: " + frames);
+            }
+            long recordBytes = (in.length() - FRAMES_HEADER_SIZE) / FRAME_RECORD_SIZE * FRAME_RECORD_SIZE;
+            sizes = ByteBuffer.allocate((int) recordBytes).order(ByteOrder.LITTLE_ENDIAN);
+            in.readFully(sizes.array());
+        }
+        int sampleRate = header.getInt(8);
+        int channelCount = header.getInt(12);
+        int bitRate = header.getInt(16);
+        int dataOffset = header.getInt(20);
+        byte[] config = new byte[header.getInt(24)];
+        header.position(CONFIG_OFFSET);
+        header.get(config);
+
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            // ファイルに揃っているフレームまで (最後のフレームは途中までしか書かれていないことがある)
+            long available = out.length() - dataOffset;
+            long dataBytes = 0;
+            int frameCount = 0;
+            while (frameCount < sizes.capacity() / FRAME_RECORD_SIZE) {
+                int size = sizes.getInt(frameCount * FRAME_RECORD_SIZE);
+                if (size <= 0 || dataBytes + size > available) {
+                    break;
+                }
+                dataBytes += size;
+                frameCount++;
+            }
+            ByteBuffer moov = buildMoov(sampleRate, channelCount, bitRate, config, sizes, frameCount, dataOffset);
+            ByteBuffer mdatSize = ByteBuffer.allocate(8);
+            mdatSize.putLong(MDAT_HEADER_SIZE + dataBytes).flip();
+            FileChannel channel = out.getChannel();
+            channel.truncate(dataOffset + dataBytes);
+            writeFully(channel, moov, dataOffset + dataBytes);
+            writeFully(channel, mdatSize, dataOffset - 8);
+            channel.force(true);
+            return new long[]{dataBytes, (long) frameCount * SAMPLES_PER_FRAME * 1_000_000 / sampleRate};
+        }
+    }
+
+    /**
+     * moov まで書き終えたファイルの {フレームのデータのバイト数, 長さ (us)}。moov が無ければ null。
+     * 先頭の箱を順にたどり、mvhd だけを読む
+     */
+    static long[] readFinished(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long dataBytes = -1;
+            long position = 0;
+            byte[] box = new byte[16];
+            while (position + 8 <= in.length()) {
+                in.seek(position);
+                in.readFully(box, 0, 8);
+                ByteBuffer head = ByteBuffer.wrap(box);
+                long size = head.getInt(0) & 0xFFFFFFFFL;
+                int headerSize = 8;
+                if (size == 1) {
+                    in.readFully(box, 8, 8);
+                    size = head.getLong(8);
+                    headerSize = 16;
+                }
+                if (size < headerSize || position + size > in.length()) {
+                    return null;
+                }
+                String type = new String(box, 4, 4, StandardCharsets.US_ASCII);
+                if (type.equals("mdat")) {
+                    dataBytes = size - headerSize;
+                } else if (type.equals("moov") && dataBytes >= 0) {
+                    // moov の最初の子は mvhd (version 1 なら時刻が64bit)
+                    byte[] mvhd = new byte[40];
+                    in.readFully(mvhd);
+                    ByteBuffer m = ByteBuffer.wrap(mvhd);
+                    boolean wide = m.get(8) == 1;
+                    long timescale = (wide ? m.getInt(28) : m.getInt(20)) & 0xFFFFFFFFL;
+                    long duration = wide ? m.getLong(32) : m.getInt(24) & 0xFFFFFFFFL;
+                    return new long[]{dataBytes, timescale > 0 ? duration * 1_000_000 / timescale : 0};
+                }
+                position += size;
+            }
+            return null;
+        }
+    }
+
+    private static ByteBuffer buildMoov(int sampleRate, int channelCount, int bitRate, byte[] config,
+                                        ByteBuffer sizes, int frameCount, int dataOffset) {
+        long duration = (long) frameCount * SAMPLES_PER_FRAME;
+        boolean wide = duration > 0xFFFFFFFFL;
+        ByteBuffer b = ByteBuffer.allocate(1024 + frameCount * FRAME_RECORD_SIZE);
+
+        int moov = begin(b, "moov");
+        // 映像が無いので、全ての時刻をサンプリングレート単位で表す
+        int mvhd = beginFull(b, "mvhd", wide ? 1 : 0, 0);
+        putTimes(b, wide, sampleRate, duration);
+        b.putInt(0x00010000);           // 再生速度 1.0
+        b.putShort((short) 0x0100);     // 音量 1.0
+        b.put(new byte[10]);
+        putMatrix(b);
+        b.put(new byte[24]);
+        b.putInt(2);                    // 次のトラックID
+        end(b, mvhd);
+
+        int trak = begin(b, "trak");
+        int tkhd = beginFull(b, "tkhd", wide ? 1 : 0, 7);  // 有効、ムービーとプレビューで使う
+        if (wide) {
+            b.putLong(0).putLong(0).putInt(1).putInt(0).putLong(duration);
+        } else {
+            b.putInt(0).putInt(0).putInt(1).putInt(0).putInt((int) duration);
+        }
+        b.put(new byte[8]);
+        b.putShort((short) 0);          // レイヤー
+        b.putShort((short) 0);          // 代替グループ
+        b.putShort((short) 0x0100);     // 音量 1.0
+        b.putShort((short) 0);
+        putMatrix(b);
+        b.putInt(0).putInt(0);          // 幅と高さ
+        end(b, tkhd);
+
+        int mdia = begin(b, "mdia");
+        int mdhd = beginFull(b, "mdhd", wide ? 1 : 0, 0);
+        putTimes(b, wide, sampleRate, duration);
+        b.putShort((short) 0x55C4);     // 言語 "und"
+        b.putShort((short) 0);
+        end(b, mdhd);
+        int hdlr = beginFull(b, "hdlr", 0, 0);
+        b.putInt(0).put(type("soun")).put(new byte[12]);
+        b.put(new byte[]{'S', 'o', 'u', 'n', 'd', 'H', 'a', 'n', 'd', 'l', 'e', 'r', 0});
+        end(b, hdlr);
+
+        int minf = begin(b, "minf");
+        int smhd = beginFull(b, "smhd", 0, 0);
+        b.putInt(0);                    // バランスと予約
+        end(b, smhd);
+        int dinf = begin(b, "dinf");
+        int dref = beginFull(b, "dref", 0, 0);
+        b.putInt(1);
+        int url = beginFull(b, "url ", 0, 1);  // データは同じファイルにある
+        end(b, url);
+        end(b, dref);
+        end(b, dinf);
+
+        int stbl = begin(b, "stbl");
+        int stsd = beginFull(b, "stsd", 0, 0);
+        b.putInt(1);
+        int mp4a = begin(b, "mp4a");
+        b.put(new byte[6]).putShort((short) 1);  // データ参照のインデックス
+        b.put(new byte[8]);
+        b.putShort((short) channelCount).putShort((short) 16).putInt(0);
+        b.putInt(sampleRate <= 0xFFFF ? sampleRate << 16 : 0);
+        putEsds(b, channelCount, bitRate, config);
+        end(b, mp4a);
+        end(b, stsd);
+        int stts = beginFull(b, "stts", 0, 0);
+        if (frameCount > 0) {
+            b.putInt(1).putInt(frameCount).putInt(SAMPLES_PER_FRAME);
+        } else {
+            b.putInt(0);
+        }
+        end(b, stts);
+        // mdat のデータ全体を1つのチャンクとして扱う
+        int stsc = beginFull(b, "stsc", 0, 0);
+        if (frameCount > 0) {
+            b.putInt(1).putInt(1).putInt(frameCount).putInt(1);
+        } else {
+            b.putInt(0);
+        }
+        end(b, stsc);
+        int stsz = beginFull(b, "stsz", 0, 0);
+        b.putInt(0).putInt(frameCount);
+        for (int i = 0; i < frameCount; i++) {
+            b.putInt(sizes.getInt(i * FRAME_RECORD_SIZE));
+        }
+        end(b, stsz);
+        int stco = beginFull(b, "stco", 0, 0);
+        if (frameCount > 0) {
+            b.putInt(1).putInt(dataOffset);
+        } else {
+            b.putInt(0);
+        }
+        end(b, stco);
+        end(b, stbl);
+        end(b, minf);
+        end(b, mdia);
+        end(b, trak);
+        end(b, moov);
+        b.flip();
+        return b;
+    }
+
+    /**
+     * ES_Descriptor (ISO/IEC 14496-1)。長さは全て1バイトで表せる
+     */
+    private static void putEsds(ByteBuffer b, int channelCount, int bitRate, byte[] config) {
+        int esds = beginFull(b, "esds", 0, 0);
+        int decoderSpecific = 2 + config.length;
+        int decoderConfig = 2 + 13 + decoderSpecific;
+        int slConfig = 3;
+        b.put((byte) 0x03).put((byte) (3 + decoderConfig + slConfig));
+        b.putShort((short) 0).put((byte) 0);     // ES_ID とフラグ
+        b.put((byte) 0x04).put((byte) (13 + decoderSpecific));
+        b.put((byte) 0x40);                      // MPEG-4 Audio
+        b.put((byte) 0x15);                      // 音声ストリーム
+        int bufferSize = 768 * channelCount;     // 1フレームの最大のバイト数
+        b.put((byte) (bufferSize >> 16)).putShort((short) bufferSize);
+        b.putInt(bitRate).putInt(bitRate);
+        b.put((byte) 0x05).put((byte) config.length).put(config);
+        b.put((byte) 0x06).put((byte) 1).put((byte) 0x02);
+        end(b, esds);
+    }
+
+    private static void putFtyp(ByteBuffer b) {
+        int ftyp = begin(b, "ftyp");
+        b.put(type("mp42")).putInt(0).put(type("isom")).put(type("mp42"));
+        end(b, ftyp);
+    }
+
+    private static void putTimes(ByteBuffer b, boolean wide, int timescale, long duration) {
+        if (wide) {
+            b.putLong(0).putLong(0).putInt(timescale).putLong(duration);
+        } else {
+            b.putInt(0).putInt(0).putInt(timescale).putInt((int) duration);
+        }
+    }
+
+    private static void putMatrix(ByteBuffer b) {
+        b.putInt(0x00010000).putInt(0).putInt(0);
+        b.putInt(0).putInt(0x00010000).putInt(0);
+        b.putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    private static int begin(ByteBuffer b, String type) {
+        int start = b.position();
+        b.putInt(0).put(type(type));
+        return start;
+    }
+
+    private static int beginFull(ByteBuffer b, String type, int version, int flags) {
+        int start = begin(b, type);
+        b.putInt(version << 24 | flags);
+        return start;
+    }
+
+    private static void end(ByteBuffer b, int start) {
+        b.putInt(start, b.position() - start);
+    }
+
+    private static byte[] type(String type) {
+        return type.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    private void closeQuietly() {
+        for (RandomAccessFile f : new RandomAccessFile[]{file, framesFile}) {
+            if (f != null) {
+                try {
+                    f.close();
+                } catch (IOException ignored) {
+                    // 閉じられなくても、書いた内容はファイルに残っている
+                }
+            }
+        }
+        file = null;
+        channel = null;
+        framesFile = null;
+        framesChannel = null;
+    }
+
+    private static void delete(File file) throws IOException {
+        if (!file.delete() && file.exists()) {
+            throw new IOException("削除できませんでした: " + file);
+        }
+    }
+}
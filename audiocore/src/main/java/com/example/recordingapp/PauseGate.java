@@ -0,0 +1,40 @@
+package com.example.recordingapp;
+
+/**
+ * 処理を一時停止させるための門。
+ *
+ * 作業スレッドは区切りのよいところで {@link #awaitOpen()} を呼び、門が閉じていれば開くまで待つ。
+ * 録音中は後処理を止めて、録音スレッドとCPUを取り合わないようにするのに使う。
+ */
+public final class PauseGate {
+
+    private boolean closed;
+
+    /**
+     * 門を閉じる。これ以降に awaitOpen() を呼んだスレッドは open() まで待つ。
+     */
+    public synchronized void close() {
+        closed = true;
+    }
+
+    /**
+     * 門を開き、待っているスレッドを全て再開させる
+     */
+    public synchronized void open() {
+        closed = false;
+        notifyAll();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 門が開くまで待つ。開いていればすぐに戻る。
+     */
+    public synchronized void awaitOpen() throws InterruptedException {
+        while (closed) {
+            wait();
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.example.recordingapp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 録音中のPCMを、同じプロセス内の複数の読み手 (レベルメーター、VAD、解析、別の書き込み先など) に配る {@link PcmProcessor}。
+ *
+ * 書き込みスレッドは受け取ったPCMを共有のリングのスロットへ1回だけコピーし、通し番号を公開する。
+ * 読み手は {@link #subscribe()} で受け取った {@link Subscription} を自分のスレッドで読み進め、
+ * スロットの配列をそのまま受け取る (読み手ごとのコピーはしない)。
+ * 書き込み側は読み手を待たず、読み手の数や進み具合を一切見ないので、遅い読み手が録音を止めることはない。
+ * 追い越された読み手は、リングの半分だけ手前まで読み飛ばし、飛ばしたフレーム数を {@link Subscription#getDroppedFrames()} で数える。
+ *
+ * スロットの読み書きはシーケンスロック ({@link java.util.concurrent.locks.StampedLock} の楽観的読み込みと同じ形) で守る。
+ * 書き込み側は通し番号を -1 にしてから中身を書き換え、最後に新しい通し番号を公開する。
+ * 読み手は通し番号を読んでから中身を読み、最後にもう一度通し番号を確かめる。
+ *
+ * スロットは全てコンストラクタで確保し、書き込みスレッド上では確保を行わない。
+ */
+public final class PcmFanout implements PcmProcessor {
+
+    /**
+     * 読み手がスロットを受け取る
+     */
+    public interface Consumer {
+        /**
+         * buffer は共有のスロットそのものなので、内容を書き換えたり、呼び出しの後まで参照したりしないこと
+         */
+        void onPcm(short[] buffer, int offset, int length, long presentationTimeUs);
+    }
+
+    private final int mask;
+    private final short[][] slots;
+    private final int[] lengths;
+    private final long[] presentationTimesUs;
+    // スロットの先頭のフレームの通し番号。読み飛ばしたフレーム数を正確に求めるのに使う
+    private final long[] firstFrames;
+    // スロットに入っているデータの通し番号。書き込み中は -1
+    private final AtomicLongArray slotSequences;
+    // 次に公開する通し番号
+    private final AtomicLong cursor = new AtomicLong();
+    private final Object signal = new Object();
+    private final AtomicInteger waitingConsumers = new AtomicInteger();
+
+    private volatile PcmFormat format;
+    // 書き込みスレッドだけが更新する
+    private long publishedFrames;
+
+    /**
+     * @param slotCount スロット数 (2のべき乗)
+     * @param samplesPerSlot 1スロットあたりのサンプル数 (インターリーブ後のshort数)。これより長いバッファは分けて入れる
+     */
+    public PcmFanout(int slotCount, int samplesPerSlot) {
+        if (slotCount < 2 || Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("slotCount must be a power of two >= 2: " + slotCount);
+        }
+        if (samplesPerSlot <= 0) {
+            throw new IllegalArgumentException("samplesPerSlot must be positive: " + samplesPerSlot);
+        }
+        this.mask = slotCount - 1;
+        this.slots = new short[slotCount][samplesPerSlot];
+        this.lengths = new int[slotCount];
+        this.presentationTimesUs = new long[slotCount];
+        this.firstFrames = new long[slotCount];
+        this.slotSequences = new AtomicLongArray(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slotSequences.set(i, -1);
+        }
+    }
+
+    /**
+     * これから配るPCMの形式を設定する。録音パイプラインを動かす前に書き込み側が呼ぶ
+     */
+    public void setFormat(PcmFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * 配っているPCMの形式。まだ一度も録音パイプラインを動かしていなければ null
+     */
+    public PcmFormat getFormat() {
+        return format;
+    }
+
+    public int getSlotCount() {
+        return slots.length;
+    }
+
+    /**
+     * これまでに公開したスロット数
+     */
+    public long getPublishedSlots() {
+        return cursor.get();
+    }
+
+    @Override
+    public void process(short[] buffer, int offset, int length, long presentationTimeUs) {
+        PcmFormat f = format;
+        int channels = f != null ? f.getChannelCount() : 1;
+        int capacity = slots[0].length - slots[0].length % channels;
+        for (int done = 0; done < length; ) {
+            int chunk = Math.min(length - done, capacity);
+            // 分けた後の時刻は、丸め誤差がたまらないよう元のバッファの先頭から求める
+            long chunkTimeUs = f != null ? presentationTimeUs + f.samplesToUs(done) : presentationTimeUs;
+            publish(buffer, offset + done, chunk, chunkTimeUs, channels);
+            done += chunk;
+        }
+    }
+
+    private void publish(short[] buffer, int offset, int length, long presentationTimeUs, int channels) {
+        long sequence = cursor.get();
+        int index = (int) (sequence & mask);
+        // 書き込み中であることを先に示す。読み手はこれを見てスロットが書き換えられたことを知る。
+        // set だと後の書き込みが先に見えることがあるので、前後の読み書きを越えない getAndSet を使う
+        slotSequences.getAndSet(index, -1);
+        System.arraycopy(buffer, offset, slots[index], 0, length);
+        lengths[index] = length;
+        presentationTimesUs[index] = presentationTimeUs;
+        firstFrames[index] = publishedFrames;
+        publishedFrames += length / channels;
+        slotSequences.set(index, sequence);
+        cursor.set(sequence + 1);
+        // 待っている読み手がいる場合だけ起こす
+        if (waitingConsumers.get() > 0) {
+            synchronized (signal) {
+                signal.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * スロットを読み終えた後、まだ sequence の内容のままかを確かめる ({@link java.util.concurrent.locks.StampedLock#validate} に当たる)。
+     * 同じ値を書き戻す compareAndSet は volatile の読み書きを兼ねるので、それより前のスロットの読み込みが後へずれない
+     * (VarHandle.acquireFence は Android 13 からしか使えない)
+     */
+    private boolean validate(int index, long sequence) {
+        return slotSequences.compareAndSet(index, sequence, sequence);
+    }
+
+    /**
+     * 読み手を1つ追加する。今後公開されるスロットから読み始める
+     */
+    public Subscription subscribe() {
+        long sequence = cursor.get();
+        return new Subscription(sequence, sequence > 0 ? endFrameOf(sequence - 1) : 0);
+    }
+
+    /**
+     * 公開済みのスロットの直後のフレームの通し番号。既に書き換えられていれば -1
+     */
+    private long endFrameOf(long sequence) {
+        int index = (int) (sequence & mask);
+        if (slotSequences.get(index) != sequence) {
+            return -1;
+        }
+        long firstFrame = firstFrames[index];
+        int length = lengths[index];
+        if (!validate(index, sequence)) {
+            return -1;
+        }
+        PcmFormat f = format;
+        return firstFrame + length / (f != null ? f.getChannelCount() : 1);
+    }
+
+    /**
+     * 1つの読み手の読み出し位置。1つのスレッドから使うこと
+     */
+    public final class Subscription {
+        private long next;
+        // 次に読むはずのフレームの通し番号 (-1 は未定)
+        private long expectedFrame = -1;
+        private volatile long droppedFrames;
+        private volatile long droppedSlots;
+
+        private Subscription(long next, long expectedFrame) {
+            this.next = next;
+            this.expectedFrame = expectedFrame;
+        }
+
+        /**
+         * 読んでいないスロットを最大 maxSlots 個、古い順に consumer に渡す。待たずに戻る
+         * @return 渡したスロット数
+         */
+        public int read(Consumer consumer, int maxSlots) {
+            int count = 0;
+            while (count < maxSlots) {
+                long published = cursor.get();
+                if (next >= published) {
+                    break;
+                }
+                if (published - next > slots.length) {
+                    // 追い越されたので、すぐにまた追い越されないようリングの半分だけ手前から読み直す
+                    skipTo(published - slots.length / 2);
+                    continue;
+                }
+                int index = (int) (next & mask);
+                if (slotSequences.get(index) != next) {
+                    // 読み始める前に書き換えられた
+                    skipTo(cursor.get() - slots.length / 2);
+                    continue;
+                }
+                long firstFrame = firstFrames[index];
+                int length = lengths[index];
+                long presentationTimeUs = presentationTimesUs[index];
+                if (!validate(index, next)) {
+                    // 長さや時刻を読んでいる間に書き換えられた
+                    skipTo(cursor.get() - slots.length / 2);
+                    continue;
+                }
+                if (expectedFrame >= 0 && firstFrame > expectedFrame) {
+                    droppedFrames += firstFrame - expectedFrame;
+                }
+                consumer.onPcm(slots[index], 0, length, presentationTimeUs);
+                PcmFormat f = format;
+                long frames = length / (f != null ? f.getChannelCount() : 1);
+                if (!validate(index, next)) {
+                    // 読んでいる間に書き換えられたので、渡した内容は当てにならない
+                    droppedFrames += frames;
+                    droppedSlots++;
+                }
+                expectedFrame = firstFrame + frames;
+                next++;
+                count++;
+            }
+            return count;
+        }
+
+        /**
+         * 読んでいないスロットが公開されるまで待つ
+         * @return 読めるスロットがあれば true。timeoutMillis が過ぎたら false
+         */
+        public boolean await(long timeoutMillis) throws InterruptedException {
+            if (cursor.get() > next) {
+                return true;
+            }
+            long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+            synchronized (signal) {
+                waitingConsumers.incrementAndGet();
+                try {
+                    long remaining;
+                    while (cursor.get() <= next && (remaining = deadline - System.nanoTime()) > 0) {
+                        signal.wait(Math.max(1, remaining / 1_000_000));
+                    }
+                } finally {
+                    waitingConsumers.decrementAndGet();
+                }
+            }
+            return cursor.get() > next;
+        }
+
+        /**
+         * 追い越されて読めなかったフレーム数 (どのスレッドから読んでもよい)
+         */
+        public long getDroppedFrames() {
+            return droppedFrames;
+        }
+
+        /**
+         * 追い越されて読めなかったか、読んでいる間に書き換えられたスロット数 (どのスレッドから読んでもよい)
+         */
+        public long getDroppedSlots() {
+            return droppedSlots;
+        }
+
+        /**
+         * 公開済みで、まだ読んでいないスロット数
+         */
+        public long getLag() {
+            return Math.max(0, cursor.get() - next);
+        }
+
+        private void skipTo(long sequence) {
+            if (sequence > next) {
+                droppedSlots += sequence - next;
+                next = sequence;
+            }
+        }
+    }
+}
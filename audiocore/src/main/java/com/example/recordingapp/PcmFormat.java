@@ -0,0 +1,73 @@
+package com.example.recordingapp;
+
+/**
+ * 16bit リニアPCMのフォーマット (サンプリングレートとチャンネル数) を表す値クラス。
+ * パイプライン内では常に short[] のインターリーブ形式でサンプルを扱う。
+ */
+public final class PcmFormat {
+
+    /** 1サンプルあたりのバイト数 (16bit固定) */
+    public static final int BYTES_PER_SAMPLE = 2;
+
+    private final int sampleRate;
+    private final int channelCount;
+
+    public PcmFormat(int sampleRate, int channelCount) {
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("sampleRate must be positive: " + sampleRate);
+        }
+        if (channelCount <= 0) {
+            throw new IllegalArgumentException("channelCount must be positive: " + channelCount);
+        }
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * 1フレーム (全チャンネル分の1サンプル) あたりのバイト数
+     */
+    public int getBytesPerFrame() {
+        return channelCount * BYTES_PER_SAMPLE;
+    }
+
+    /**
+     * 指定したミリ秒に相当するサンプル数 (インターリーブ後のshort数) を返す
+     */
+    public int samplesForMillis(int millis) {
+        return (int) ((long) sampleRate * millis / 1000) * channelCount;
+    }
+
+    /**
+     * インターリーブ後のサンプル数を、先頭からの再生時間 (マイクロ秒) に変換する
+     */
+    public long samplesToUs(long samples) {
+        return samples / channelCount * 1_000_000L / sampleRate;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof PcmFormat)) {
+            return false;
+        }
+        PcmFormat other = (PcmFormat) o;
+        return sampleRate == other.sampleRate && channelCount == other.channelCount;
+    }
+
+    @Override
+    public int hashCode() {
+        return sampleRate * 31 + channelCount;
+    }
+
+    @Override
+    public String toString() {
+        return sampleRate + "Hz/" + channelCount + "ch/16bit";
+    }
+}
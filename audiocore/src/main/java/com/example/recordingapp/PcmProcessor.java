@@ -0,0 +1,11 @@
+package com.example.recordingapp;
+
+/**
+ * 録音中のPCMを読み取って処理する段 (レベルメーターなど)。
+ * 書き込みスレッドから、出力先へ書き込む前に呼ばれる ({@link PcmSink} と同じく LockSupport.park で待たないこと)。
+ * buffer はリングバッファのスロットそのものなので、内容を書き換えたり、呼び出しの後まで参照したりしないこと。
+ */
+public interface PcmProcessor {
+
+    void process(short[] buffer, int offset, int length, long presentationTimeUs);
+}
@@ -0,0 +1,207 @@
+package com.example.recordingapp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 1つの書き込み側 (録音スレッド) と1つの読み出し側 (書き込みスレッド) の間で
+ * PCMを受け渡す、ロックを使わないリングバッファ。
+ *
+ * スロットは全てコンストラクタで確保し、以降は一切メモリを確保しない。
+ * 書き込み側は {@link #claim()} で空きスロットの配列を受け取り、そこへ直接読み込んでから
+ * {@link #publish(int, long)} で公開する。読み出し側は {@link #poll()} で先頭のスロットを受け取り、
+ * 処理を終えたら {@link #release()} で返却する。
+ *
+ * 満杯で書き込めなかった回数をオーバーランとして数える。空で読み出せなかった回数は空振りとして別に数えるが、
+ * 読み出し側が書き込み側より速ければ空振りするのは当然なので、音の欠けを表すものではない。
+ * claim/publish は書き込み側の1スレッドから、poll/release は読み出し側の1スレッドからのみ呼ぶこと。
+ */
+public final class PcmRingBuffer {
+
+    private final int mask;
+    private final short[][] slots;
+    private final int[] lengths;
+    private final long[] presentationTimesUs;
+    // 公開した時刻 (System.nanoTime())。読み出し側で受け渡しの待ち時間を測るのに使う
+    private final long[] publishTimesNanos;
+
+    // 次に書き込むスロットの通し番号 (書き込み側だけが更新する)
+    private final AtomicLong tail = new AtomicLong();
+    // 次に読み出すスロットの通し番号 (読み出し側だけが更新する)
+    private final AtomicLong head = new AtomicLong();
+    // 書き込み側が最後に見た head。毎回 volatile を読まずに済ませるためのキャッシュ
+    private long cachedHead;
+    // 読み出し側が最後に見た tail
+    private long cachedTail;
+
+    // カウンタもそれぞれ片側のスレッドだけが更新するので、CASは使わない
+    private final AtomicLong overrunCount = new AtomicLong();
+    private final AtomicLong idlePollCount = new AtomicLong();
+
+    /**
+     * @param slotCount スロット数 (2のべき乗)
+     * @param samplesPerSlot 1スロットあたりのサンプル数 (インターリーブ後のshort数)
+     */
+    public PcmRingBuffer(int slotCount, int samplesPerSlot) {
+        if (slotCount < 2 || Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("slotCount must be a power of two >= 2: " + slotCount);
+        }
+        if (samplesPerSlot <= 0) {
+            throw new IllegalArgumentException("samplesPerSlot must be positive: " + samplesPerSlot);
+        }
+        this.mask = slotCount - 1;
+        this.slots = new short[slotCount][samplesPerSlot];
+        this.lengths = new int[slotCount];
+        this.presentationTimesUs = new long[slotCount];
+        this.publishTimesNanos = new long[slotCount];
+    }
+
+    /**
+     * 指定サンプル数以上を格納できる、最小の2のべき乗のスロット数を返す
+     */
+    public static int slotCountFor(int totalSamples, int samplesPerSlot) {
+        int needed = Math.max(2, (totalSamples + samplesPerSlot - 1) / samplesPerSlot);
+        return Integer.highestOneBit(needed - 1) << 1;
+    }
+
+    public int getSlotCount() {
+        return slots.length;
+    }
+
+    public int getSamplesPerSlot() {
+        return slots[0].length;
+    }
+
+    // ---- 書き込み側 ----
+
+    /**
+     * 次に書き込むスロットの配列を返す。満杯の場合はオーバーランを数えて null を返す。
+     * 返した配列は {@link #publish(int, long)} を呼ぶまで書き込み側だけのもの。
+     */
+    public short[] claim() {
+        long t = tail.get();
+        if (t - cachedHead > mask) {
+            cachedHead = head.get();
+            if (t - cachedHead > mask) {
+                overrunCount.lazySet(overrunCount.get() + 1);
+                return null;
+            }
+        }
+        return slots[(int) t & mask];
+    }
+
+    /**
+     * {@link #claim()} で受け取ったスロットを読み出し側へ公開する
+     * @param length スロットに書き込んだサンプル数
+     * @param presentationTimeUs 先頭サンプルの時刻 (マイクロ秒)
+     */
+    public void publish(int length, long presentationTimeUs) {
+        long t = tail.get();
+        int index = (int) t & mask;
+        lengths[index] = length;
+        presentationTimesUs[index] = presentationTimeUs;
+        publishTimesNanos[index] = System.nanoTime();
+        // lazySet により、ここまでのスロットへの書き込みが読み出し側から見えることが保証される
+        tail.lazySet(t + 1);
+    }
+
+    /**
+     * 配列の内容をコピーして書き込む。満杯ならオーバーランを数えて false を返す。
+     */
+    public boolean write(short[] source, int offset, int length, long presentationTimeUs) {
+        short[] slot = claim();
+        if (slot == null) {
+            return false;
+        }
+        if (length > slot.length) {
+            throw new IllegalArgumentException("length " + length + " exceeds slot size " + slot.length);
+        }
+        System.arraycopy(source, offset, slot, 0, length);
+        publish(length, presentationTimeUs);
+        return true;
+    }
+
+    // ---- 読み出し側 ----
+
+    /**
+     * 先頭のスロットの配列を返す。空の場合は空振りを数えて null を返す。
+     * 有効なサンプル数は {@link #peekLength()}、時刻は {@link #peekPresentationTimeUs()} で取得する。
+     */
+    public short[] poll() {
+        long h = head.get();
+        if (h >= cachedTail) {
+            cachedTail = tail.get();
+            if (h >= cachedTail) {
+                idlePollCount.lazySet(idlePollCount.get() + 1);
+                return null;
+            }
+        }
+        return slots[(int) h & mask];
+    }
+
+    /**
+     * {@link #poll()} で受け取ったスロットの有効なサンプル数
+     */
+    public int peekLength() {
+        return lengths[(int) head.get() & mask];
+    }
+
+    /**
+     * {@link #poll()} で受け取ったスロットの先頭サンプルの時刻
+     */
+    public long peekPresentationTimeUs() {
+        return presentationTimesUs[(int) head.get() & mask];
+    }
+
+    /**
+     * {@link #poll()} で受け取ったスロットが公開された時刻 ({@link System#nanoTime()})
+     */
+    public long peekPublishTimeNanos() {
+        return publishTimesNanos[(int) head.get() & mask];
+    }
+
+    /**
+     * {@link #poll()} で受け取ったスロットを書き込み側へ返却する
+     */
+    public void release() {
+        head.lazySet(head.get() + 1);
+    }
+
+    /**
+     * 先頭のスロットを配列へコピーして返却する
+     * @return コピーしたサンプル数。空の場合は -1
+     */
+    public int read(short[] destination, int offset) {
+        short[] slot = poll();
+        if (slot == null) {
+            return -1;
+        }
+        int length = peekLength();
+        System.arraycopy(slot, 0, destination, offset, length);
+        release();
+        return length;
+    }
+
+    // ---- 状態 ----
+
+    /**
+     * 読み出し待ちのスロット数 (どちらのスレッドから呼んでもよいが、値は概算)
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public long getOverrunCount() {
+        return overrunCount.get();
+    }
+
+    /**
+     * 読み出し側が空のリングバッファを読もうとした回数
+     */
+    public long getIdlePollCount() {
+        return idlePollCount.get();
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.recordingapp;
+
+import java.io.IOException;
+
+/**
+ * PCMサンプルの出力先 (エンコーダーやファイルライター)。
+ * 全てのメソッドは書き込みスレッドからのみ呼ばれる。
+ * 書き込みスレッドは {@link CapturePipeline} が unpark で起こすので、待つときは LockSupport.park を使わないこと。
+ */
+public interface PcmSink {
+
+    /**
+     * 出力を開始する
+     */
+    void open(PcmFormat format) throws IOException;
+
+    /**
+     * サンプルを書き込む。呼び出しから戻った後、buffer の内容は再利用される。
+     * @param presentationTimeUs 先頭サンプルの録音開始からの時刻 (マイクロ秒)
+     */
+    void write(short[] buffer, int offset, int length, long presentationTimeUs) throws IOException;
+
+    /**
+     * これまでに出力したバイト数 (ファイルのヘッダ等を除いた概算でよい)。
+     * ファイルを分割するかどうかの判定に使う。
+     */
+    long getBytesWritten();
+
+    /**
+     * 残りのデータを書き出して出力を終了する
+     */
+    void close() throws IOException;
+}
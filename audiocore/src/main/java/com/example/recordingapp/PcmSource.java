@@ -0,0 +1,36 @@
+package com.example.recordingapp;
+
+import java.io.IOException;
+
+/**
+ * PCMサンプルの供給元。実機では AudioRecord、JVMのテストでは偽のソースが実装する。
+ * read() は録音スレッドからのみ呼ばれる。
+ */
+public interface PcmSource {
+
+    /**
+     * このソースが出力するPCMのフォーマット
+     */
+    PcmFormat getFormat();
+
+    /**
+     * サンプルの供給を開始する
+     */
+    void start() throws IOException;
+
+    /**
+     * サンプルを読み込む。データが揃うまでブロックしてよい。
+     * @return 読み込んだサンプル数。停止済みで読むものが無い場合は 0
+     */
+    int read(short[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * 供給を停止する。ブロック中の read() はこの呼び出しで戻らなければならない。
+     */
+    void stop();
+
+    /**
+     * 保持しているリソースを解放する
+     */
+    void release();
+}
@@ -0,0 +1,302 @@
+package com.example.recordingapp;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * 録音中のPCMから、波形表示用の最小値/最大値 (ピーク) を複数の解像度で作り、サイドカーファイル (.peaks) に書き出す
+ * {@link PcmProcessor}。
+ *
+ * 解像度 (レベル) ごとに「1バケツあたりのフレーム数」が決まっていて (既定は 256 / 4096 / 65536)、
+ * 各バケツにその範囲の全チャンネルの最小値と最大値を short で2つ記録する。
+ *
+ * ファイルは固定長のヘッダと、それに続く固定長のブロックの並びでできている。
+ * 1ブロックは最も粗いレベルのバケツ {@code topBucketsPerBlock} 個分の時間を受け持ち、その中に
+ * レベル0、レベル1、… のバケツを順番に並べる (ブロック単位のインターリーブ)。
+ * 録音しながら先頭から順に追記でき、粗いレベルを読むときもブロックごとの小さな連続領域しか触らない。
+ *
+ * <pre>
+ * ヘッダ (64バイト、リトルエンディアン)
+ *   0  int   マジック "RPKS"
+ *   4  int   バージョン (1)
+ *   8  int   サンプリングレート
+ *   12 int   チャンネル数
+ *   16 int   レベル数 (最大 8)
+ *   20 int   1ブロックに含まれる最も粗いレベルのバケツ数
+ *   24 int[8] レベルごとの1バケツあたりのフレーム数
+ *   56 long  記録済みのフレーム数 (これを超える部分は読まない)
+ * ブロック k (ヘッダの直後から blockBytes ごと)
+ *   レベル0のバケツ × (blockFrames / bucketFrames[0]) 個、レベル1のバケツ × …
+ *   バケツ = short 最小値, short 最大値
+ * </pre>
+ *
+ * ブロックが埋まるたびに書き出してヘッダのフレーム数を更新するので、強制終了されても
+ * 最後に書き出したブロックまでは読める。書きかけのブロックは close() で書き出す。
+ * 書き込みスレッド上で使うバッファはすべて構築時に確保する。
+ * ファイルの書き込みに失敗しても録音は止めず、以降のピークの記録をやめて close() で例外を投げる。
+ */
+public final class PeakPyramidBuilder implements PcmProcessor {
+
+    /** ヘッダのバイト数 */
+    public static final int HEADER_SIZE = 64;
+    /** ヘッダの先頭のマジック ("RPKS" をリトルエンディアンの int として読んだ値) */
+    public static final int MAGIC = 'R' | 'P' << 8 | 'K' << 16 | 'S' << 24;
+    public static final int VERSION = 1;
+    /** レベル数の上限 */
+    public static final int MAX_LEVELS = 8;
+    /** 1バケツのバイト数 (最小値と最大値) */
+    public static final int BUCKET_BYTES = 4;
+    /** ヘッダ内の「記録済みのフレーム数」の位置 */
+    static final int TOTAL_FRAMES_OFFSET = 56;
+
+    private static final int[] DEFAULT_BUCKET_FRAMES = {256, 4096, 65536};
+    private static final int DEFAULT_TOP_BUCKETS_PER_BLOCK = 16;
+
+    private final String outputFilePath;
+    private final PcmFormat format;
+    private final int channelCount;
+    private final int[] bucketFrames;
+    private final int blockFrames;
+    private final int blockBytes;
+    // レベルごとの、書きかけのブロック内のバケツ
+    private final short[][] blockMin;
+    private final short[][] blockMax;
+    private final ByteBuffer blockBuffer;
+    private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private IOException failure;
+
+    // 書きかけのレベル0のバケツ
+    private int bucketMin = Short.MAX_VALUE;
+    private int bucketMax = Short.MIN_VALUE;
+    private int framesInBucket;
+    // 書きかけのブロックに入っているフレーム数
+    private int framesInBlock;
+    private long blockIndex;
+    private long totalFrames;
+
+    /**
+     * 既定のレベル (256 / 4096 / 65536 フレーム) で作る
+     */
+    public PeakPyramidBuilder(String outputFilePath, PcmFormat format) {
+        this(outputFilePath, format, DEFAULT_BUCKET_FRAMES, DEFAULT_TOP_BUCKETS_PER_BLOCK);
+    }
+
+    /**
+     * @param bucketFrames レベルごとの1バケツあたりのフレーム数。細かい順で、それぞれ前の値の倍数であること
+     * @param topBucketsPerBlock 1ブロックに含める最も粗いレベルのバケツ数
+     */
+    public PeakPyramidBuilder(String outputFilePath, PcmFormat format, int[] bucketFrames, int topBucketsPerBlock) {
+        if (bucketFrames.length == 0 || bucketFrames.length > MAX_LEVELS || topBucketsPerBlock <= 0) {
+            throw new IllegalArgumentException("invalid pyramid shape");
+        }
+        for (int level = 0; level < bucketFrames.length; level++) {
+            if (bucketFrames[level] <= 0 || (level > 0 && bucketFrames[level] % bucketFrames[level - 1] != 0)) {
+                throw new IllegalArgumentException("bucketFrames must be positive multiples of the previous level");
+            }
+        }
+        this.outputFilePath = outputFilePath;
+        this.format = format;
+        this.channelCount = format.getChannelCount();
+        this.bucketFrames = bucketFrames.clone();
+        this.blockFrames = bucketFrames[bucketFrames.length - 1] * topBucketsPerBlock;
+        this.blockMin = new short[bucketFrames.length][];
+        this.blockMax = new short[bucketFrames.length][];
+        int bytes = 0;
+        for (int level = 0; level < bucketFrames.length; level++) {
+            int buckets = blockFrames / bucketFrames[level];
+            blockMin[level] = new short[buckets];
+            blockMax[level] = new short[buckets];
+            bytes += buckets * BUCKET_BYTES;
+        }
+        this.blockBytes = bytes;
+        this.blockBuffer = ByteBuffer.allocateDirect(blockBytes).order(ByteOrder.LITTLE_ENDIAN);
+        resetBlock();
+    }
+
+    /**
+     * 録音ファイルに対応するピークファイルのパス (拡張子を .peaks に置き換えたもの)
+     */
+    public static String pathFor(String recordingPath) {
+        return SessionManifest.stripExtension(recordingPath) + ".peaks";
+    }
+
+    /**
+     * ファイルを作ってヘッダを書く。process() より前に呼ぶこと。
+     */
+    public void open() throws IOException {
+        file = new RandomAccessFile(outputFilePath, "rw");
+        try {
+            file.setLength(0);
+            channel = file.getChannel();
+            writeHeader();
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            file = null;
+            channel = null;
+            throw e;
+        }
+    }
+
+    @Override
+    public void process(short[] buffer, int offset, int length, long presentationTimeUs) {
+        if (channel == null) {
+            return;
+        }
+        int end = offset + length - length % channelCount;
+        int min = bucketMin;
+        int max = bucketMax;
+        int frames = framesInBucket;
+        int bucketSize = bucketFrames[0];
+        for (int i = offset; i < end; i += channelCount) {
+            for (int c = 0; c < channelCount; c++) {
+                int sample = buffer[i + c];
+                if (sample < min) {
+                    min = sample;
+                }
+                if (sample > max) {
+                    max = sample;
+                }
+            }
+            if (++frames == bucketSize) {
+                finishBucket(min, max, frames);
+                if (channel == null) {
+                    return;
+                }
+                min = Short.MAX_VALUE;
+                max = Short.MIN_VALUE;
+                frames = 0;
+            }
+        }
+        bucketMin = min;
+        bucketMax = max;
+        framesInBucket = frames;
+    }
+
+    /**
+     * 記録したフレーム数 (書きかけのバケツも含む)
+     */
+    public long getTotalFrames() {
+        return totalFrames + framesInBucket;
+    }
+
+    /**
+     * 書きかけのバケツとブロックを書き出してファイルを閉じる。
+     * 録音中に書き込みに失敗していた場合はその例外を投げる。
+     */
+    public void close() throws IOException {
+        if (file == null) {
+            throwIfFailed();
+            return;
+        }
+        try {
+            if (channel != null && framesInBucket > 0) {
+                finishBucket(bucketMin, bucketMax, framesInBucket);
+                framesInBucket = 0;
+            }
+            if (channel != null && framesInBlock > 0) {
+                writeBlock();
+            }
+            if (channel != null) {
+                channel.force(true);
+            }
+        } finally {
+            file.close();
+            file = null;
+            channel = null;
+        }
+        throwIfFailed();
+    }
+
+    private void throwIfFailed() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * 完成したレベル0のバケツを書きかけのブロックに入れ、上のレベルにも反映する
+     */
+    private void finishBucket(int min, int max, int frames) {
+        int firstFrame = framesInBlock;
+        for (int level = 0; level < bucketFrames.length; level++) {
+            int index = firstFrame / bucketFrames[level];
+            short[] mins = blockMin[level];
+            short[] maxs = blockMax[level];
+            if (min < mins[index]) {
+                mins[index] = (short) min;
+            }
+            if (max > maxs[index]) {
+                maxs[index] = (short) max;
+            }
+        }
+        framesInBlock += frames;
+        totalFrames += frames;
+        if (framesInBlock == blockFrames) {
+            writeBlock();
+            blockIndex++;
+            framesInBlock = 0;
+            resetBlock();
+        }
+    }
+
+    /**
+     * 書きかけのブロックをファイルの所定の位置に書き、ヘッダのフレーム数を更新する
+     */
+    private void writeBlock() {
+        blockBuffer.clear();
+        for (int level = 0; level < bucketFrames.length; level++) {
+            short[] mins = blockMin[level];
+            short[] maxs = blockMax[level];
+            for (int i = 0; i < mins.length; i++) {
+                // 値の入っていないバケツは 0 にしておく
+                boolean empty = mins[i] > maxs[i];
+                blockBuffer.putShort(empty ? 0 : mins[i]);
+                blockBuffer.putShort(empty ? 0 : maxs[i]);
+            }
+        }
+        blockBuffer.flip();
+        try {
+            long position = HEADER_SIZE + blockIndex * blockBytes;
+            while (blockBuffer.hasRemaining()) {
+                position += channel.write(blockBuffer, position);
+            }
+            writeHeader();
+        } catch (IOException e) {
+            failure = e;
+            channel = null;
+        }
+    }
+
+    private void resetBlock() {
+        for (int level = 0; level < bucketFrames.length; level++) {
+            Arrays.fill(blockMin[level], Short.MAX_VALUE);
+            Arrays.fill(blockMax[level], Short.MIN_VALUE);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        header.clear();
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(format.getSampleRate());
+        header.putInt(channelCount);
+        header.putInt(bucketFrames.length);
+        header.putInt(blockFrames / bucketFrames[bucketFrames.length - 1]);
+        for (int level = 0; level < MAX_LEVELS; level++) {
+            header.putInt(level < bucketFrames.length ? bucketFrames[level] : 0);
+        }
+        header.putLong(totalFrames);
+        header.flip();
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+    }
+}
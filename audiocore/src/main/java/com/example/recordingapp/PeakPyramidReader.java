@@ -0,0 +1,167 @@
+package com.example.recordingapp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link PeakPyramidBuilder} が書いたピークファイルを読み出す。
+ *
+ * ファイルはメモリマップして必要なバケツだけを直接読むので、録音の長さに関係なく
+ * 使うメモリは一定で、表示幅ぶんの列を作るのに読むバケツの数も表示幅に比例する程度で済む。
+ * 開いた時点でヘッダに記録されていたフレーム数までを読む (録音中のファイルも開ける)。
+ */
+public final class PeakPyramidReader implements Closeable {
+
+    private final RandomAccessFile file;
+    private final ByteBuffer data;
+    private final PcmFormat format;
+    private final int levelCount;
+    private final int[] bucketFrames;
+    private final int[] levelOffsets;
+    private final int blockFrames;
+    private final int blockBytes;
+    private final long totalFrames;
+
+    public PeakPyramidReader(File peaksFile) throws IOException {
+        file = new RandomAccessFile(peaksFile, "r");
+        try {
+            long length = file.length();
+            if (length < PeakPyramidBuilder.HEADER_SIZE || length > Integer.MAX_VALUE) {
+                throw new IOException("ピークファイルの長さが不正です: " + length);
+            }
+            data = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (data.getInt(0) != PeakPyramidBuilder.MAGIC || data.getInt(4) != PeakPyramidBuilder.VERSION) {
+                throw new IOException("ピークファイルではないか、対応していない版です: " + peaksFile);
+            }
+            format = new PcmFormat(data.getInt(8), data.getInt(12));
+            levelCount = data.getInt(16);
+            int topBucketsPerBlock = data.getInt(20);
+            if (levelCount <= 0 || levelCount > PeakPyramidBuilder.MAX_LEVELS || topBucketsPerBlock <= 0) {
+                throw new IOException("ピークファイルのヘッダが不正です: " + peaksFile);
+            }
+            bucketFrames = new int[levelCount];
+            for (int level = 0; level < levelCount; level++) {
+                bucketFrames[level] = data.getInt(24 + level * 4);
+                if (bucketFrames[level] <= 0) {
+                    throw new IOException("ピークファイルのヘッダが不正です: " + peaksFile);
+                }
+            }
+            blockFrames = bucketFrames[levelCount - 1] * topBucketsPerBlock;
+            levelOffsets = new int[levelCount];
+            int bytes = 0;
+            for (int level = 0; level < levelCount; level++) {
+                levelOffsets[level] = bytes;
+                bytes += blockFrames / bucketFrames[level] * PeakPyramidBuilder.BUCKET_BYTES;
+            }
+            blockBytes = bytes;
+            // ヘッダの値を信じすぎず、ファイルに実際にあるブロックの範囲までに制限する
+            long storedBlocks = (length - PeakPyramidBuilder.HEADER_SIZE) / blockBytes;
+            totalFrames = Math.min(data.getLong(PeakPyramidBuilder.TOTAL_FRAMES_OFFSET), storedBlocks * blockFrames);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public PcmFormat getFormat() {
+        return format;
+    }
+
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    /**
+     * レベルの1バケツあたりのフレーム数
+     */
+    public int getBucketFrames(int level) {
+        return bucketFrames[level];
+    }
+
+    /**
+     * レベルのバケツの数 (最後のバケツは途中までしか埋まっていないことがある)
+     */
+    public long getBucketCount(int level) {
+        return (totalFrames + bucketFrames[level] - 1) / bucketFrames[level];
+    }
+
+    public long getTotalFrames() {
+        return totalFrames;
+    }
+
+    /**
+     * バケツ1つの最小値
+     */
+    public short getMin(int level, long bucket) {
+        return data.getShort(bucketPosition(level, bucket));
+    }
+
+    /**
+     * バケツ1つの最大値
+     */
+    public short getMax(int level, long bucket) {
+        return data.getShort(bucketPosition(level, bucket) + 2);
+    }
+
+    /**
+     * [startFrame, endFrame) を width 列に分け、列ごとの最小値と最大値を求める。
+     * 1列あたりのフレーム数を超えない範囲で最も粗いレベルを使う。
+     * 録音の範囲外の列は 0 になる。
+     * @return 使ったレベル
+     */
+    public int render(long startFrame, long endFrame, int width, short[] minOut, short[] maxOut) {
+        if (width <= 0 || endFrame <= startFrame) {
+            return 0;
+        }
+        long framesPerColumn = (endFrame - startFrame) / width;
+        int level = 0;
+        while (level + 1 < levelCount && bucketFrames[level + 1] <= framesPerColumn) {
+            level++;
+        }
+        long bucketSize = bucketFrames[level];
+        long bucketCount = getBucketCount(level);
+        long span = endFrame - startFrame;
+        for (int column = 0; column < width; column++) {
+            long columnStart = startFrame + span * column / width;
+            long columnEnd = startFrame + span * (column + 1) / width;
+            long first = Math.max(0, columnStart / bucketSize);
+            long last = Math.min(bucketCount, (columnEnd + bucketSize - 1) / bucketSize);
+            int min = Short.MAX_VALUE;
+            int max = Short.MIN_VALUE;
+            for (long bucket = first; bucket < last; bucket++) {
+                int position = bucketPosition(level, bucket);
+                short bucketMin = data.getShort(position);
+                short bucketMax = data.getShort(position + 2);
+                if (bucketMin < min) {
+                    min = bucketMin;
+                }
+                if (bucketMax > max) {
+                    max = bucketMax;
+                }
+            }
+            boolean empty = min > max;
+            minOut[column] = empty ? 0 : (short) min;
+            maxOut[column] = empty ? 0 : (short) max;
+        }
+        return level;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private int bucketPosition(int level, long bucket) {
+        long bucketsPerBlock = blockFrames / bucketFrames[level];
+        long block = bucket / bucketsPerBlock;
+        long index = bucket - block * bucketsPerBlock;
+        return (int) (PeakPyramidBuilder.HEADER_SIZE + block * blockBytes + levelOffsets[level]
+                + index * PeakPyramidBuilder.BUCKET_BYTES);
+    }
+}
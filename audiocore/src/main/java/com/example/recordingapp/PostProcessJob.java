@@ -0,0 +1,56 @@
+package com.example.recordingapp;
+
+/**
+ * 後処理のジョブ1件の情報 (入力、出力、かける段、状態)
+ */
+public final class PostProcessJob {
+
+    /** 実行待ち */
+    public static final int STATE_PENDING = 0;
+    /** 実行中 (または実行中にプロセスが終了した) */
+    public static final int STATE_RUNNING = 1;
+    /** 完了した */
+    public static final int STATE_DONE = 2;
+    /** 失敗した (再実行しない) */
+    public static final int STATE_FAILED = 3;
+
+    public final long id;
+    public final String inputPath;
+    public final String outputPath;
+    // かける段の名前をカンマ区切りで並べたもの (PostProcessor.STAGE_*)
+    public final String stages;
+    public final int state;
+    // 実行を始めた回数
+    public final int attempts;
+    // 失敗した理由。失敗していなければ null
+    public final String error;
+
+    public PostProcessJob(long id, String inputPath, String outputPath, String stages, int state, int attempts,
+                          String error) {
+        this.id = id;
+        this.inputPath = inputPath;
+        this.outputPath = outputPath;
+        this.stages = stages;
+        this.state = state;
+        this.attempts = attempts;
+        this.error = error;
+    }
+
+    /**
+     * 状態を差し替えたコピーを返す
+     */
+    public PostProcessJob withState(int state, String error) {
+        return new PostProcessJob(id, inputPath, outputPath, stages, state, attempts, error);
+    }
+
+    /**
+     * 実行を始めた状態 (実行回数を1つ増やしたもの) のコピーを返す
+     */
+    public PostProcessJob started() {
+        return new PostProcessJob(id, inputPath, outputPath, stages, STATE_RUNNING, attempts + 1, null);
+    }
+
+    public boolean isFinished() {
+        return state == STATE_DONE || state == STATE_FAILED;
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.recordingapp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 後処理のジョブの一覧を保存するテキストファイル。
+ *
+ * 1行に1ジョブを、タブ区切りで「ID 状態 実行回数 入力 出力 段 エラー」の順に書く。
+ * 保存するたびに一時ファイルに全体を書いてから置き換えるので、途中でプロセスが終了しても
+ * 前回保存した内容か今回の内容のどちらかが残る。
+ */
+public final class PostProcessJobStore {
+
+    private static final String HEADER = "# RecordingApp post-process jobs v1";
+
+    private final File file;
+
+    public PostProcessJobStore(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * 保存されているジョブを読み込む。ファイルが無ければ空のリストを返す。解釈できない行は読み飛ばす。
+     */
+    public List<PostProcessJob> load() throws IOException {
+        List<PostProcessJob> jobs = new ArrayList<>();
+        if (!file.exists()) {
+            return jobs;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t", -1);
+                if (fields.length < 7) {
+                    continue;
+                }
+                try {
+                    jobs.add(new PostProcessJob(Long.parseLong(fields[0]), fields[3], fields[4], fields[5],
+                            Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+                            fields[6].isEmpty() ? null : fields[6]));
+                } catch (NumberFormatException ignored) {
+                    // 壊れた行
+                }
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * ジョブの一覧を保存する (ファイル全体を置き換える)
+     */
+    public void save(Collection<PostProcessJob> jobs) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp);
+             Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (PostProcessJob job : jobs) {
+                writer.write(job.id + "\t" + job.state + "\t" + job.attempts + "\t" + clean(job.inputPath)
+                        + "\t" + clean(job.outputPath) + "\t" + clean(job.stages)
+                        + "\t" + (job.error != null ? clean(job.error) : "") + "\n");
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("ジョブの一覧を保存できませんでした: " + file);
+        }
+    }
+
+    /**
+     * タブと改行は区切りと紛らわしいので空白にする
+     */
+    private static String clean(String value) {
+        return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+}
@@ -0,0 +1,245 @@
+package com.example.recordingapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 録音済みのファイルに対する後処理のジョブを、決まった数の作業スレッドで並列に実行する。
+ *
+ * ジョブの状態は変わるたびに {@link PostProcessJobStore} に保存し、{@link #start()} で読み込み直して
+ * 完了していないジョブを最初から実行し直す (出力は一時ファイルに書いて、完了したときに置き換える)。
+ * 実行中にプロセスが何度も終了するジョブは {@link #MAX_ATTEMPTS} 回で失敗扱いにする。
+ *
+ * 録音中は {@link #pause()} で止める。作業スレッドは次のジョブを始める前と、ジョブの中の一定量ごとに
+ * 止まるので、録音スレッドとCPUを取り合わない。
+ * Android には依存しないので、JVM上でテストできる。
+ */
+public final class PostProcessScheduler {
+
+    /** 1つのジョブを実行する回数の上限 */
+    public static final int MAX_ATTEMPTS = 3;
+    // 保存しておく完了済みのジョブの数
+    private static final int MAX_FINISHED_JOBS = 100;
+
+    /**
+     * ジョブの完了・失敗の通知先。作業スレッドから呼ばれる。
+     */
+    public interface Listener {
+        void onJobFinished(PostProcessJob job);
+    }
+
+    /**
+     * 出力先を作る
+     */
+    public interface OutputFactory {
+        /**
+         * @param outputPath 最終的な出力のパス。拡張子に応じてWAVやAACを選ぶ
+         * @param tempPath 実際に書き込む一時ファイルのパス
+         */
+        PcmSink create(String outputPath, String tempPath);
+    }
+
+    private final PostProcessJobStore store;
+    private final OutputFactory outputFactory;
+    private final ThreadPoolExecutor executor;
+    private final PauseGate gate = new PauseGate();
+    // 全てのジョブ (IDの順)。this で保護する
+    private final Map<Long, PostProcessJob> jobs = new LinkedHashMap<>();
+    private long nextId = 1;
+    private volatile Listener listener;
+
+    /**
+     * @param threadCount 作業スレッドの数
+     * @param threadFactory 作業スレッドの作り方 (Androidではここで優先度を下げる)
+     */
+    public PostProcessScheduler(PostProcessJobStore store, int threadCount, ThreadFactory threadFactory,
+                                OutputFactory outputFactory) {
+        this.store = store;
+        this.outputFactory = outputFactory;
+        this.executor = new ThreadPoolExecutor(threadCount, threadCount, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), threadFactory);
+        // ジョブが無い間はスレッドを残さない
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 端末のコア数に合わせた作業スレッドの数。録音や画面の処理のために1コアは空けておく。
+     */
+    public static int defaultThreadCount() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 保存されているジョブを読み込み、完了していないものを実行し直す
+     * @return 実行し直すジョブの数
+     */
+    public synchronized int start() throws IOException {
+        int resumed = 0;
+        for (PostProcessJob job : store.load()) {
+            if (job.state == PostProcessJob.STATE_RUNNING) {
+                // 実行中にプロセスが終了した
+                job = job.attempts >= MAX_ATTEMPTS
+                        ? job.withState(PostProcessJob.STATE_FAILED, "実行中に " + job.attempts + " 回中断されました")
+                        : job.withState(PostProcessJob.STATE_PENDING, null);
+            }
+            jobs.put(job.id, job);
+            nextId = Math.max(nextId, job.id + 1);
+        }
+        store.save(jobs.values());
+        for (PostProcessJob job : jobs.values()) {
+            if (job.state == PostProcessJob.STATE_PENDING) {
+                submit(job.id);
+                resumed++;
+            }
+        }
+        return resumed;
+    }
+
+    /**
+     * ジョブを追加する
+     * @param stages かける段の名前をカンマ区切りで並べたもの (PostProcessor.STAGE_*)
+     */
+    public synchronized PostProcessJob enqueue(String inputPath, String outputPath, String stages) throws IOException {
+        PostProcessJob job = new PostProcessJob(nextId++, inputPath, outputPath, stages,
+                PostProcessJob.STATE_PENDING, 0, null);
+        jobs.put(job.id, job);
+        store.save(jobs.values());
+        submit(job.id);
+        return job;
+    }
+
+    /**
+     * 実行を止める。実行中のジョブも一定量ごとの区切りで止まる。
+     */
+    public void pause() {
+        gate.close();
+    }
+
+    /**
+     * 止めていた実行を再開する
+     */
+    public void resume() {
+        gate.open();
+    }
+
+    public boolean isPaused() {
+        return gate.isClosed();
+    }
+
+    /**
+     * 全てのジョブの状態 (IDの順)
+     */
+    public synchronized List<PostProcessJob> getJobs() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    /**
+     * 作業スレッドを止める。実行中のジョブは中断され、次の start() で実行し直される。
+     * @return timeoutMillis 以内に全ての作業スレッドが終わったかどうか
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        executor.shutdownNow();
+        return executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void submit(long id) {
+        executor.execute(() -> run(id));
+    }
+
+    /**
+     * ジョブを実行する (作業スレッド)
+     */
+    private void run(long id) {
+        PostProcessJob job;
+        File temp;
+        try {
+            // 録音中なら、終わるまで始めない
+            gate.awaitOpen();
+            synchronized (this) {
+                job = jobs.get(id);
+                if (job == null || job.state != PostProcessJob.STATE_PENDING) {
+                    return;
+                }
+                job = update(job.started());
+            }
+            temp = new File(job.outputPath + ".tmp");
+        } catch (InterruptedException | IOException e) {
+            // 止められた、または状態を保存できなかった。次の start() で実行し直す
+            return;
+        }
+
+        PostProcessJob finished;
+        try {
+            PostProcessor.process(new File(job.inputPath), job.stages, outputFactory.create(job.outputPath, temp.getPath()), gate);
+            File output = new File(job.outputPath);
+            if (!temp.renameTo(output)) {
+                throw new IOException("出力ファイルを置き換えられませんでした: " + output);
+            }
+            finished = job.withState(PostProcessJob.STATE_DONE, null);
+        } catch (InterruptedException e) {
+            // 止められた。状態は実行中のまま残し、次の start() で実行し直す
+            temp.delete();
+            return;
+        } catch (IOException | RuntimeException e) {
+            temp.delete();
+            finished = job.withState(PostProcessJob.STATE_FAILED, e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+        try {
+            synchronized (this) {
+                finished = update(finished);
+                pruneFinished();
+            }
+        } catch (IOException e) {
+            // 状態を保存できなくても、次の start() で実行し直されるだけ
+        }
+        Listener l = listener;
+        if (l != null) {
+            l.onJobFinished(finished);
+        }
+    }
+
+    /**
+     * ジョブの状態を更新して保存する (this を保持して呼ぶこと)
+     */
+    private PostProcessJob update(PostProcessJob job) throws IOException {
+        jobs.put(job.id, job);
+        store.save(jobs.values());
+        return job;
+    }
+
+    /**
+     * 完了済みのジョブが多すぎれば古いものから捨てる (this を保持して呼ぶこと)
+     */
+    private void pruneFinished() throws IOException {
+        int finished = 0;
+        for (PostProcessJob job : jobs.values()) {
+            if (job.isFinished()) {
+                finished++;
+            }
+        }
+        if (finished <= MAX_FINISHED_JOBS) {
+            return;
+        }
+        Iterator<PostProcessJob> iterator = jobs.values().iterator();
+        while (finished > MAX_FINISHED_JOBS && iterator.hasNext()) {
+            if (iterator.next().isFinished()) {
+                iterator.remove();
+                finished--;
+            }
+        }
+        store.save(jobs.values());
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.recordingapp;
+
+/**
+ * 録音済みのPCMに対する後処理の段 (音量の正規化、無音の切り詰めなど)。
+ *
+ * {@link PostProcessor} は入力を2回読む。1回目は全ての段の {@link #analyze(short[], int, int)} に
+ * 入力全体を先頭から順に見せ、2回目は出力する範囲のサンプルを {@link #apply(short[], int, int)} で
+ * 順に書き換えてから出力先へ書き込む。
+ */
+public interface PostProcessStage {
+
+    /**
+     * ログやジョブの記録に使う段の名前
+     */
+    String getName();
+
+    /**
+     * 1回目の読み込みで、入力のサンプルを先頭から順に受け取る (インターリーブのまま)
+     */
+    void analyze(short[] buffer, int offset, int length);
+
+    /**
+     * 1回目の読み込みが終わったときに呼ばれる
+     */
+    default void endAnalysis() {
+    }
+
+    /**
+     * 出力の先頭にするフレーム。1回目の読み込みの後に呼ばれる。
+     * @param totalFrames 入力のフレーム数
+     */
+    default long getStartFrame(long totalFrames) {
+        return 0;
+    }
+
+    /**
+     * 出力の終端にするフレーム (このフレームは含まない)。1回目の読み込みの後に呼ばれる。
+     */
+    default long getEndFrame(long totalFrames) {
+        return totalFrames;
+    }
+
+    /**
+     * 2回目の読み込みで、出力する範囲のサンプルをその場で書き換える
+     */
+    default void apply(short[] buffer, int offset, int length) {
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.recordingapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 録音済みのWAVファイルに {@link PostProcessStage} を順にかけ、結果を {@link PcmSink} に書き出す。
+ *
+ * 入力は2回読む (1回目で各段が解析し、2回目で出力する範囲を書き換えて書き出す) ので、
+ * 録音の長さに関係なく使うメモリは一定。
+ * 一定量ごとに {@link PauseGate} を確認し、閉じていれば開くまで待つ。
+ */
+public final class PostProcessor {
+
+    /** 音量の正規化 ({@link LoudnessNormalizer}) */
+    public static final String STAGE_NORMALIZE = "normalize";
+    /** 前後の無音の切り詰め ({@link SilenceTrimmer}) */
+    public static final String STAGE_TRIM = "trim";
+
+    // 1回に読み込むフレーム数。一時停止の確認もこの単位で行う
+    private static final int CHUNK_FRAMES = 8192;
+
+    private PostProcessor() {
+    }
+
+    /**
+     * 段の名前をカンマ区切りで並べた文字列 ("trim,normalize" など) から段を作る
+     * @throws IllegalArgumentException 知らない名前が含まれている場合
+     */
+    public static List<PostProcessStage> createStages(String stageNames, PcmFormat format) {
+        List<PostProcessStage> stages = new ArrayList<>();
+        for (String name : stageNames.split(",")) {
+            switch (name.trim()) {
+                case STAGE_NORMALIZE:
+                    stages.add(new LoudnessNormalizer(format));
+                    break;
+                case STAGE_TRIM:
+                    stages.add(new SilenceTrimmer(format));
+                    break;
+                case "":
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown post-process stage: " + name);
+            }
+        }
+        return stages;
+    }
+
+    /**
+     * WAVファイルに段を名前で指定してかける
+     * @return 出力したフレーム数
+     */
+    public static long process(File input, String stageNames, PcmSink output, PauseGate gate)
+            throws IOException, InterruptedException {
+        try (WavReader reader = new WavReader(input)) {
+            return process(reader, createStages(stageNames, reader.getFormat()), output, gate);
+        }
+    }
+
+    /**
+     * 読み込み中のWAVに段をかける。出力先はここで開いて閉じる。
+     * @return 出力したフレーム数
+     */
+    public static long process(WavReader reader, List<PostProcessStage> stages, PcmSink output, PauseGate gate)
+            throws IOException, InterruptedException {
+        PcmFormat format = reader.getFormat();
+        int channelCount = format.getChannelCount();
+        short[] buffer = new short[CHUNK_FRAMES * channelCount];
+
+        // 1回目: 全ての段に入力全体を見せる
+        reader.seek(0);
+        int read;
+        while ((read = reader.read(buffer, 0, buffer.length)) > 0) {
+            for (PostProcessStage stage : stages) {
+                stage.analyze(buffer, 0, read);
+            }
+            gate.awaitOpen();
+        }
+        long totalFrames = reader.getTotalFrames();
+        long startFrame = 0;
+        long endFrame = totalFrames;
+        for (PostProcessStage stage : stages) {
+            stage.endAnalysis();
+            startFrame = Math.max(startFrame, stage.getStartFrame(totalFrames));
+            endFrame = Math.min(endFrame, stage.getEndFrame(totalFrames));
+        }
+        endFrame = Math.max(startFrame, endFrame);
+
+        // 2回目: 出力する範囲だけを書き換えて書き出す
+        output.open(format);
+        boolean completed = false;
+        try {
+            reader.seek(startFrame);
+            long remainingSamples = (endFrame - startFrame) * channelCount;
+            long writtenSamples = 0;
+            while (remainingSamples > 0) {
+                read = reader.read(buffer, 0, (int) Math.min(buffer.length, remainingSamples));
+                if (read <= 0) {
+                    break;
+                }
+                for (PostProcessStage stage : stages) {
+                    stage.apply(buffer, 0, read);
+                }
+                output.write(buffer, 0, read, format.samplesToUs(writtenSamples));
+                writtenSamples += read;
+                remainingSamples -= read;
+                gate.awaitOpen();
+            }
+            completed = true;
+            return writtenSamples / channelCount;
+        } finally {
+            if (completed) {
+                output.close();
+            } else {
+                closeQuietly(output);
+            }
+        }
+    }
+
+    private static void closeQuietly(PcmSink output) {
+        try {
+            output.close();
+        } catch (IOException ignored) {
+            // 元の例外を優先する
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.recordingapp;
+
+import java.io.IOException;
+
+/**
+ * 直近の一定時間分のPCMだけを保持する固定長の循環バッファ。
+ *
+ * 領域は構築時に「秒数 × サンプリングレート × チャンネル数」個の short として一度だけ確保し、
+ * 以降は古いサンプルから上書きする。使うメモリは {@link #bytesFor(PcmFormat, int)} で正確に分かる。
+ * 1つのスレッド (書き込みスレッド) からだけ使うこと。
+ */
+public final class PreRollBuffer {
+
+    private final PcmFormat format;
+    private final short[] samples;
+    // 一番古いサンプルの位置
+    private int start;
+    private int size;
+
+    public PreRollBuffer(PcmFormat format, int seconds) {
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("seconds must be positive: " + seconds);
+        }
+        this.format = format;
+        this.samples = new short[capacityFor(format, seconds)];
+    }
+
+    /**
+     * 指定した秒数の循環バッファが使うサンプル領域のバイト数
+     */
+    public static long bytesFor(PcmFormat format, int seconds) {
+        return (long) capacityFor(format, seconds) * PcmFormat.BYTES_PER_SAMPLE;
+    }
+
+    private static int capacityFor(PcmFormat format, int seconds) {
+        long capacity = (long) format.getSampleRate() * format.getChannelCount() * seconds;
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("pre-roll too long: " + seconds + " s");
+        }
+        return (int) capacity;
+    }
+
+    /**
+     * 保持できるサンプル数 (インターリーブ後)
+     */
+    public int getCapacity() {
+        return samples.length;
+    }
+
+    /**
+     * 保持しているサンプル数 (インターリーブ後)
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 保持している長さ (マイクロ秒)
+     */
+    public long getDurationUs() {
+        return format.samplesToUs(size);
+    }
+
+    /**
+     * サンプルを追加する。容量を超えた分は古いものから捨てる。
+     */
+    public void write(short[] buffer, int offset, int length) {
+        int capacity = samples.length;
+        if (length >= capacity) {
+            System.arraycopy(buffer, offset + length - capacity, samples, 0, capacity);
+            start = 0;
+            size = capacity;
+            return;
+        }
+        int overflow = size + length - capacity;
+        if (overflow > 0) {
+            start = (start + overflow) % capacity;
+            size -= overflow;
+        }
+        int tail = (start + size) % capacity;
+        int first = Math.min(length, capacity - tail);
+        System.arraycopy(buffer, offset, samples, tail, first);
+        System.arraycopy(buffer, offset + first, samples, 0, length - first);
+        size += length;
+    }
+
+    /**
+     * 保持しているサンプルを古い順に sink へ書き込み、空にする
+     * @param startUs 一番古いサンプルのタイムスタンプ
+     * @return 書き込んだサンプル数
+     */
+    public int drainTo(PcmSink sink, long startUs) throws IOException {
+        int drained = size;
+        int first = Math.min(size, samples.length - start);
+        if (first > 0) {
+            sink.write(samples, start, first, startUs);
+        }
+        if (size > first) {
+            sink.write(samples, 0, size - first, startUs + format.samplesToUs(first));
+        }
+        clear();
+        return drained;
+    }
+
+    /**
+     * 保持しているサンプルを捨てる
+     */
+    public void clear() {
+        start = 0;
+        size = 0;
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.recordingapp;
+
+import java.io.IOException;
+
+/**
+ * 待機 (アーム) 中は直近のPCMを {@link PreRollBuffer} に溜めておき、録音開始の指示で
+ * 溜めた分を先頭にして出力先へ書き込み始める {@link PcmSink}。
+ *
+ * 録音パイプラインは待機の時点で動かしておき、{@link #attach(PcmSink)} で出力先を渡すだけで録音が始まる。
+ * 出力先を開く処理とプリロールの書き込みは、次のバッファが届いたときに書き込みスレッド上で行うので、
+ * attach() を呼ぶスレッドは待たされない (その間のPCMはパイプラインのリングバッファに溜まる)。
+ *
+ * 出力先へ渡すタイムスタンプは、プリロールの先頭を 0 とした連続した時刻になる。
+ */
+public final class PreRollSink implements PcmSink {
+
+    private final PreRollBuffer preRoll;
+
+    private PcmFormat format;
+    // 録音開始の指示で渡された出力先 (まだ書き込みスレッドが受け取っていないもの)
+    private volatile PcmSink pendingTarget;
+    // 書き込みスレッドが書き込み中の出力先
+    private volatile PcmSink target;
+    // 出力先のタイムスタンプの原点 (パイプライン上の時刻)
+    private long baseUs;
+    private long lastEndUs;
+    private int committedSamples = -1;
+    private volatile long commitNanos;
+
+    public PreRollSink(PreRollBuffer preRoll) {
+        this.preRoll = preRoll;
+    }
+
+    /**
+     * 録音を開始する。次に書き込みスレッドへバッファが届いた時点で、プリロールに続けて出力先への書き込みが始まる。
+     * 1回だけ呼べる。
+     */
+    public void attach(PcmSink sink) {
+        if (pendingTarget != null) {
+            throw new IllegalStateException("already attached");
+        }
+        pendingTarget = sink;
+    }
+
+    /**
+     * 出力先への書き込みが始まっているかどうか
+     */
+    public boolean isCommitted() {
+        return target != null;
+    }
+
+    /**
+     * 出力先の先頭に書き込んだプリロールのサンプル数。まだ書き込んでいなければ -1
+     */
+    public int getCommittedSamples() {
+        return committedSamples;
+    }
+
+    /**
+     * 書き込みスレッドが出力先への書き込みを始めた時刻 ({@link System#nanoTime()})。まだ始めていなければ 0
+     */
+    public long getCommitNanos() {
+        return commitNanos;
+    }
+
+    @Override
+    public void open(PcmFormat format) {
+        this.format = format;
+        preRoll.clear();
+    }
+
+    @Override
+    public void write(short[] buffer, int offset, int length, long presentationTimeUs) throws IOException {
+        PcmSink sink = target;
+        if (sink == null && pendingTarget != null) {
+            sink = commit(presentationTimeUs);
+        }
+        lastEndUs = presentationTimeUs + format.samplesToUs(length);
+        if (sink != null) {
+            sink.write(buffer, offset, length, presentationTimeUs - baseUs);
+        } else {
+            preRoll.write(buffer, offset, length);
+        }
+    }
+
+    @Override
+    public long getBytesWritten() {
+        PcmSink sink = target;
+        return sink != null ? sink.getBytesWritten() : 0;
+    }
+
+    /**
+     * 出力先を閉じる。録音が開始されないまま閉じた場合は、プリロールを捨てるだけ。
+     */
+    @Override
+    public void close() throws IOException {
+        if (target == null && pendingTarget != null) {
+            // 録音開始の直後に止められ、まだバッファが届いていなかった場合もプリロールは保存する
+            commit(lastEndUs);
+        }
+        PcmSink sink = target;
+        preRoll.clear();
+        if (sink != null) {
+            sink.close();
+        }
+    }
+
+    /**
+     * 出力先を開き、プリロールを書き込む
+     * @param liveStartUs 最初のライブのバッファのタイムスタンプ
+     */
+    private PcmSink commit(long liveStartUs) throws IOException {
+        PcmSink sink = pendingTarget;
+        sink.open(format);
+        baseUs = liveStartUs - preRoll.getDurationUs();
+        committedSamples = preRoll.drainTo(sink, 0);
+        commitNanos = System.nanoTime();
+        target = sink;
+        return sink;
+    }
+}
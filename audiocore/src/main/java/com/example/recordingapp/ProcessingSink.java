@@ -0,0 +1,41 @@
+package com.example.recordingapp;
+
+import java.io.IOException;
+
+/**
+ * 書き込むPCMを {@link PcmProcessor} に見せてから、次の出力先へ渡す {@link PcmSink}。
+ *
+ * パイプラインの処理 ({@link CapturePipeline#addProcessor(PcmProcessor)}) は録音前の待機中のPCMも受け取るが、
+ * こちらは実際に出力先へ書き込まれるPCMだけを、出力先と同じタイムスタンプで受け取る。
+ */
+public final class ProcessingSink implements PcmSink {
+
+    private final PcmProcessor processor;
+    private final PcmSink downstream;
+
+    public ProcessingSink(PcmProcessor processor, PcmSink downstream) {
+        this.processor = processor;
+        this.downstream = downstream;
+    }
+
+    @Override
+    public void open(PcmFormat format) throws IOException {
+        downstream.open(format);
+    }
+
+    @Override
+    public void write(short[] buffer, int offset, int length, long presentationTimeUs) throws IOException {
+        processor.process(buffer, offset, length, presentationTimeUs);
+        downstream.write(buffer, offset, length, presentationTimeUs);
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return downstream.getBytesWritten();
+    }
+
+    @Override
+    public void close() throws IOException {
+        downstream.close();
+    }
+}
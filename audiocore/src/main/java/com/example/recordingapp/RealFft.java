@@ -0,0 +1,141 @@
+package com.example.recordingapp;
+
+/**
+ * 実数の入力に対する高速フーリエ変換 (大きさは2のべき乗)。
+ *
+ * n 点の実数列を n/2 点の複素数列 (偶数番目を実部、奇数番目を虚部) として基数2の FFT にかけ、
+ * 最後に n 点の実数の変換へ組み直す。回転因子とビット反転の表、作業用の配列は全てコンストラクタで確保し、
+ * 変換のたびにメモリを確保することはない。
+ *
+ * 作業用の配列を持つので、1つのインスタンスは1つのスレッドから使うこと。
+ */
+public final class RealFft {
+
+    private final int size;
+    private final int half;
+    // n/2 点の複素 FFT の回転因子 (cos, sin)。長さは n/4
+    private final float[] cos;
+    private final float[] sin;
+    // n 点の実数の変換へ組み直すときの回転因子 e^{-2πik/n} (k = 0 .. n/2)
+    private final float[] splitCos;
+    private final float[] splitSin;
+    private final int[] bitReversed;
+    private final float[] re;
+    private final float[] im;
+    // powerSpectrum() で使う変換結果
+    private final float[] binRe;
+    private final float[] binIm;
+
+    /**
+     * @param size 変換の点数 (4 以上の2のべき乗)
+     */
+    public RealFft(int size) {
+        if (size < 4 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("size must be a power of two >= 4: " + size);
+        }
+        this.size = size;
+        this.half = size / 2;
+        cos = new float[half / 2];
+        sin = new float[half / 2];
+        for (int j = 0; j < half / 2; j++) {
+            double angle = 2 * Math.PI * j / half;
+            cos[j] = (float) Math.cos(angle);
+            sin[j] = (float) Math.sin(angle);
+        }
+        splitCos = new float[half + 1];
+        splitSin = new float[half + 1];
+        for (int k = 0; k <= half; k++) {
+            double angle = 2 * Math.PI * k / size;
+            splitCos[k] = (float) Math.cos(angle);
+            splitSin[k] = (float) Math.sin(angle);
+        }
+        bitReversed = new int[half];
+        int bits = Integer.numberOfTrailingZeros(half);
+        for (int i = 0; i < half; i++) {
+            bitReversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+        re = new float[half];
+        im = new float[half];
+        binRe = new float[half + 1];
+        binIm = new float[half + 1];
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * 出力のビン数 (直流からナイキスト周波数まで、n/2 + 1)
+     */
+    public int getBinCount() {
+        return half + 1;
+    }
+
+    /**
+     * 変換して、各ビンの実部と虚部を書き込む
+     * @param input 長さ n の実数列 (書き換えない)
+     * @param outRe 長さ n/2 + 1 以上
+     * @param outIm 長さ n/2 + 1 以上
+     */
+    public void transform(float[] input, float[] outRe, float[] outIm) {
+        complexTransform(input);
+        for (int k = 0; k <= half; k++) {
+            // Z[k] と Z[n/2 - k] の共役から、偶数番目と奇数番目の変換を取り出す
+            int kk = k == half ? 0 : k;
+            int mirror = k == 0 ? 0 : half - k;
+            float a = re[kk];
+            float b = im[kk];
+            float c = re[mirror];
+            float d = im[mirror];
+            float evenRe = (a + c) * 0.5f;
+            float evenIm = (b - d) * 0.5f;
+            float oddRe = (b + d) * 0.5f;
+            float oddIm = (c - a) * 0.5f;
+            float wc = splitCos[k];
+            float ws = splitSin[k];
+            outRe[k] = evenRe + wc * oddRe + ws * oddIm;
+            outIm[k] = evenIm + wc * oddIm - ws * oddRe;
+        }
+    }
+
+    /**
+     * 変換して、各ビンのパワー (実部と虚部の2乗の和) を書き込む
+     * @param input 長さ n の実数列 (書き換えない)
+     * @param power 長さ n/2 + 1 以上
+     */
+    public void powerSpectrum(float[] input, float[] power) {
+        transform(input, binRe, binIm);
+        for (int k = 0; k <= half; k++) {
+            power[k] = binRe[k] * binRe[k] + binIm[k] * binIm[k];
+        }
+    }
+
+    /**
+     * 入力を n/2 点の複素数列として re/im に並べ (ビット反転順)、その場で基数2の FFT をかける
+     */
+    private void complexTransform(float[] input) {
+        for (int i = 0; i < half; i++) {
+            int j = bitReversed[i];
+            re[j] = input[2 * i];
+            im[j] = input[2 * i + 1];
+        }
+        for (int length = 2; length <= half; length <<= 1) {
+            int halfLength = length >> 1;
+            int step = half / length;
+            for (int start = 0; start < half; start += length) {
+                for (int j = 0; j < halfLength; j++) {
+                    float wc = cos[j * step];
+                    float ws = -sin[j * step];
+                    int p = start + j;
+                    int q = p + halfLength;
+                    float tr = re[q] * wc - im[q] * ws;
+                    float ti = re[q] * ws + im[q] * wc;
+                    re[q] = re[p] - tr;
+                    im[q] = im[p] - ti;
+                    re[p] += tr;
+                    im[p] += ti;
+                }
+            }
+        }
+    }
+}
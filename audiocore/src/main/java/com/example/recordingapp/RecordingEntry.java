@@ -0,0 +1,49 @@
+package com.example.recordingapp;
+
+/**
+ * 録音インデックスに登録された1件の録音の情報
+ */
+public final class RecordingEntry {
+
+    /** 録音中 (または録音中にプロセスが終了した) */
+    public static final int STATUS_RECORDING = 0;
+    /** 正常に停止した */
+    public static final int STATUS_COMPLETE = 1;
+    /** 録音中に強制終了され、起動時の復旧で登録し直した */
+    public static final int STATUS_INCOMPLETE = 2;
+
+    /** 長さが分からない場合の durationUs */
+    public static final long UNKNOWN_DURATION = -1;
+
+    public final long id;
+    // 録音ファイルのパス。分割録音の場合はセグメントの元になったパス (ファイル自体は存在しない)
+    public final String path;
+    public final long startTimeMillis;
+    public final long durationUs;
+    // 分割録音の場合は全セグメントの合計
+    public final long sizeBytes;
+    // RecordingOptions.OUTPUT_FORMAT_*
+    public final String format;
+    // 分割録音でなければ 0
+    public final int segmentCount;
+    public final int status;
+
+    public RecordingEntry(long id, String path, long startTimeMillis, long durationUs, long sizeBytes,
+                          String format, int segmentCount, int status) {
+        this.id = id;
+        this.path = path;
+        this.startTimeMillis = startTimeMillis;
+        this.durationUs = durationUs;
+        this.sizeBytes = sizeBytes;
+        this.format = format;
+        this.segmentCount = segmentCount;
+        this.status = status;
+    }
+
+    /**
+     * 長さだけを差し替えたコピーを返す
+     */
+    public RecordingEntry withDurationUs(long durationUs) {
+        return new RecordingEntry(id, path, startTimeMillis, durationUs, sizeBytes, format, segmentCount, status);
+    }
+}
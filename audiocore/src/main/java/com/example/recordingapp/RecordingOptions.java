@@ -0,0 +1,136 @@
+package com.example.recordingapp;
+
+/**
+ * 1回の録音セッションの設定。RecordingService が開始コマンドのExtraから組み立てて録音エンジンに渡す。
+ */
+public final class RecordingOptions {
+
+    /** AACエンコードしてMPEG-4に保存する (既定) */
+    public static final String OUTPUT_FORMAT_AAC = "aac";
+    /** エンコードせずにWAV (16bit PCM) で保存する */
+    public static final String OUTPUT_FORMAT_WAV = "wav";
+    /** Opus でエンコードしてOGGに保存する (エンコードの設定が Opus の場合) */
+    public static final String OUTPUT_FORMAT_OPUS = "opus";
+
+    private String outputFormat = OUTPUT_FORMAT_AAC;
+
+    // サンプリングレート、チャンネル数、コーデック、ビットレート
+    private EncoderProfile encoderProfile = EncoderProfile.STANDARD;
+    // true の場合は書き込みの遅れや空き容量に応じて録音中にビットレートを上げ下げする
+    private boolean adaptiveBitrate;
+
+    // 0 の場合は時間でファイルを分割しない
+    private long segmentMaxDurationMs;
+    // 0 の場合はサイズでファイルを分割しない
+    private long segmentMaxBytes;
+
+    // true の場合は無音の間の書き込みを止める
+    private boolean vadEnabled;
+
+    // true の場合は録音中にスペクトルを求めて画面に渡す
+    private boolean spectrumAnalyzer;
+
+    // 録音の停止後にかける後処理の段 (PostProcessor.STAGE_* のカンマ区切り)。null なら後処理しない
+    private String postProcessStages;
+
+    /**
+     * 保存形式。WAVでなければエンコードの設定のコーデック (OUTPUT_FORMAT_AAC か OUTPUT_FORMAT_OPUS)
+     */
+    public String getOutputFormat() {
+        if (OUTPUT_FORMAT_WAV.equals(outputFormat)) {
+            return OUTPUT_FORMAT_WAV;
+        }
+        return EncoderProfile.CODEC_OPUS.equals(encoderProfile.getCodec()) ? OUTPUT_FORMAT_OPUS : OUTPUT_FORMAT_AAC;
+    }
+
+    /**
+     * 保存形式を指定する。未知の値の場合はエンコードして保存する (コーデックはエンコードの設定で決まる)。
+     */
+    public void setOutputFormat(String outputFormat) {
+        this.outputFormat = OUTPUT_FORMAT_WAV.equals(outputFormat) ? OUTPUT_FORMAT_WAV : OUTPUT_FORMAT_AAC;
+    }
+
+    /**
+     * 保存形式に対応するファイルの拡張子 (ドット付き)
+     */
+    public String getFileExtension() {
+        return OUTPUT_FORMAT_WAV.equals(outputFormat) ? ".wav" : encoderProfile.getFileExtension();
+    }
+
+    public EncoderProfile getEncoderProfile() {
+        return encoderProfile;
+    }
+
+    /**
+     * エンコードの設定を指定する。null の場合は {@link EncoderProfile#STANDARD}。
+     * WAVで保存する場合も、サンプリングレートとチャンネル数はこの設定に従う。
+     */
+    public void setEncoderProfile(EncoderProfile encoderProfile) {
+        this.encoderProfile = encoderProfile != null ? encoderProfile : EncoderProfile.STANDARD;
+    }
+
+    /**
+     * 録音中にビットレートを上げ下げするかどうか (エンコードして保存する場合だけ有効)
+     */
+    public boolean isAdaptiveBitrate() {
+        return adaptiveBitrate && !OUTPUT_FORMAT_WAV.equals(outputFormat);
+    }
+
+    public void setAdaptiveBitrate(boolean adaptiveBitrate) {
+        this.adaptiveBitrate = adaptiveBitrate;
+    }
+
+    public long getSegmentMaxDurationMs() {
+        return segmentMaxDurationMs;
+    }
+
+    public void setSegmentMaxDurationMs(long segmentMaxDurationMs) {
+        this.segmentMaxDurationMs = Math.max(0, segmentMaxDurationMs);
+    }
+
+    public long getSegmentMaxBytes() {
+        return segmentMaxBytes;
+    }
+
+    public void setSegmentMaxBytes(long segmentMaxBytes) {
+        this.segmentMaxBytes = Math.max(0, segmentMaxBytes);
+    }
+
+    /**
+     * 録音を複数のファイル (セグメント) に分割するかどうか
+     */
+    public boolean isSegmented() {
+        return segmentMaxDurationMs > 0 || segmentMaxBytes > 0;
+    }
+
+    public boolean isVadEnabled() {
+        return vadEnabled;
+    }
+
+    public void setVadEnabled(boolean vadEnabled) {
+        this.vadEnabled = vadEnabled;
+    }
+
+    /**
+     * 録音中にスペクトルを求めるかどうか (AudioRecordモードだけ有効)
+     */
+    public boolean isSpectrumAnalyzer() {
+        return spectrumAnalyzer;
+    }
+
+    public void setSpectrumAnalyzer(boolean spectrumAnalyzer) {
+        this.spectrumAnalyzer = spectrumAnalyzer;
+    }
+
+    public String getPostProcessStages() {
+        return postProcessStages;
+    }
+
+    /**
+     * 録音の停止後にかける後処理の段を指定する。空の場合は後処理しない。
+     */
+    public void setPostProcessStages(String postProcessStages) {
+        this.postProcessStages = postProcessStages == null || postProcessStages.trim().isEmpty()
+                ? null : postProcessStages;
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.recordingapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * 録音ファイル (またはセッションマニフェスト) から、インデックスに登録する情報を読み取る。
+ *
+ * 読むのはファイルサイズ、マニフェスト、WAVヘッダだけで、音声データには触れない。
+ * サイズには後処理したファイルと付随ファイルの分も含める ({@link StorageQuota#deleteRecording} で消える分と揃える)。
+ * MPEG-4 の長さはここでは分からないので {@link RecordingEntry#UNKNOWN_DURATION} になる。
+ */
+public final class RecordingProbe {
+
+    /** 録音ファイル名の接頭辞 */
+    public static final String FILE_PREFIX = "REC_";
+
+    private static final String FILE_TIME_PATTERN = "yyyyMMdd_HHmmss";
+    private static final Pattern RECORDING_NAME = Pattern.compile("REC_\\d{8}_\\d{6}\\.(mp4|ogg|wav)");
+    private static final String MANIFEST_EXTENSION = ".manifest";
+
+    private RecordingProbe() {
+    }
+
+    /**
+     * 録音1件の情報を読み取る。録音ファイルもマニフェストも無ければ null を返す。
+     * @param startTimeMillis 開始時刻。負の値ならファイル名から求める
+     */
+    public static RecordingEntry probe(String path, long startTimeMillis, int status) throws IOException {
+        if (startTimeMillis < 0) {
+            startTimeMillis = parseStartTime(new File(path).getName());
+        }
+        String format = formatOf(path);
+        File manifestFile = SessionManifest.forRecording(path);
+        if (manifestFile.exists()) {
+            List<SessionManifest.Segment> segments = new SessionManifest(manifestFile).read();
+            File directory = manifestFile.getAbsoluteFile().getParentFile();
+            List<File> files = new ArrayList<>();
+            long durationUs = 0;
+            long bytes = 0;
+            for (SessionManifest.Segment segment : segments) {
+                durationUs += segment.durationUs;
+                bytes += segment.bytes;
+                files.add(new File(directory, segment.fileName));
+            }
+            bytes += StorageQuota.attachedBytes(path, files);
+            return new RecordingEntry(0, path, startTimeMillis, durationUs, bytes, format, segments.size(), status);
+        }
+        File file = new File(path);
+        if (!file.isFile()) {
+            return probeUnlistedSegments(path, startTimeMillis, format, status);
+        }
+        long durationUs = RecordingOptions.OUTPUT_FORMAT_WAV.equals(format)
+                ? wavDurationUs(file) : RecordingEntry.UNKNOWN_DURATION;
+        long bytes = file.length() + StorageQuota.attachedBytes(path, Collections.singletonList(file));
+        return new RecordingEntry(0, path, startTimeMillis, durationUs, bytes, format, 0, status);
+    }
+
+    /**
+     * マニフェストに1つも記録される前に終了した分割録音を、残っているセグメントのファイルから読み取る
+     */
+    private static RecordingEntry probeUnlistedSegments(String path, long startTimeMillis, String format,
+                                                        int status) {
+        List<File> files = new ArrayList<>();
+        long bytes = 0;
+        File segment;
+        while ((segment = new File(SegmentedSink.segmentPath(path, files.size() + 1))).isFile()) {
+            bytes += segment.length();
+            files.add(segment);
+        }
+        if (files.isEmpty()) {
+            return null;
+        }
+        bytes += StorageQuota.attachedBytes(path, files);
+        return new RecordingEntry(0, path, startTimeMillis, RecordingEntry.UNKNOWN_DURATION, bytes, format,
+                files.size(), status);
+    }
+
+    /**
+     * WAVヘッダに記録されたデータ部の長さから再生時間を求める。
+     * 強制終了されたファイルでも、ヘッダを最後に更新した時点までの長さになる。
+     */
+    public static long wavDurationUs(File file) throws IOException {
+        try (RandomAccessFile wav = new RandomAccessFile(file, "r")) {
+            if (wav.length() < WavFileSink.HEADER_SIZE) {
+                return RecordingEntry.UNKNOWN_DURATION;
+            }
+            byte[] header = new byte[WavFileSink.HEADER_SIZE];
+            wav.readFully(header);
+            int byteRate = readIntLe(header, 28);
+            long dataBytes = readIntLe(header, 40) & 0xFFFFFFFFL;
+            if (byteRate <= 0) {
+                return RecordingEntry.UNKNOWN_DURATION;
+            }
+            dataBytes = Math.min(dataBytes, wav.length() - WavFileSink.HEADER_SIZE);
+            return dataBytes * 1_000_000L / byteRate;
+        }
+    }
+
+    /**
+     * ファイル名 (REC_20250621_183000.mp4 など) から録音の開始時刻を求める。求められなければ 0 を返す。
+     */
+    public static long parseStartTime(String fileName) {
+        if (!fileName.startsWith(FILE_PREFIX) || fileName.length() < FILE_PREFIX.length() + FILE_TIME_PATTERN.length()) {
+            return 0;
+        }
+        String time = fileName.substring(FILE_PREFIX.length(), FILE_PREFIX.length() + FILE_TIME_PATTERN.length());
+        try {
+            return new SimpleDateFormat(FILE_TIME_PATTERN, Locale.JAPAN).parse(time).getTime();
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * パスの拡張子から保存形式を求める
+     */
+    public static String formatOf(String path) {
+        if (path.endsWith(".wav")) {
+            return RecordingOptions.OUTPUT_FORMAT_WAV;
+        }
+        return path.endsWith(".ogg") ? RecordingOptions.OUTPUT_FORMAT_OPUS : RecordingOptions.OUTPUT_FORMAT_AAC;
+    }
+
+    /**
+     * 保存先ディレクトリにある録音の一覧 (インデックスに登録するパス) を返す。
+     * 分割録音はマニフェストから元のパスを求め、セグメントのファイルは数えない。
+     */
+    public static List<String> listRecordings(File directory) throws IOException {
+        String[] names = directory.list();
+        if (names == null) {
+            throw new IOException("ディレクトリを読み込めません: " + directory);
+        }
+        List<String> paths = new ArrayList<>();
+        for (String name : names) {
+            if (RECORDING_NAME.matcher(name).matches()) {
+                paths.add(new File(directory, name).getPath());
+            } else if (name.startsWith(FILE_PREFIX) && name.endsWith(MANIFEST_EXTENSION)) {
+                paths.add(segmentedRecordingPath(new File(directory, name)));
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * マニフェストから、分割録音の元のパスを求める (最初のセグメントの拡張子を使う)
+     */
+    private static String segmentedRecordingPath(File manifestFile) throws IOException {
+        List<SessionManifest.Segment> segments = new SessionManifest(manifestFile).read();
+        String stem = SessionManifest.stripExtension(manifestFile.getPath());
+        if (segments.isEmpty()) {
+            // 解釈できる行が無い場合は、拡張子をセグメントのファイルから求める
+            File first = new File(SegmentedSink.segmentPath(stem + ".wav", 1));
+            return first.exists() ? stem + ".wav" : stem + ".mp4";
+        }
+        String fileName = segments.get(0).fileName;
+        return stem + fileName.substring(SessionManifest.stripExtension(fileName).length());
+    }
+
+    private static int readIntLe(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+                | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+    }
+}
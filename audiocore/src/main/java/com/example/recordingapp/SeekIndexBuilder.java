@@ -0,0 +1,252 @@
+package com.example.recordingapp;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * 録音ファイルへの書き込みを次の出力先へ渡しながら、一定の間隔ごとに「時刻 → セグメントとバイト位置」の対応を
+ * サイドカーファイル (.seek) に記録する {@link PcmSink}。
+ *
+ * 長い録音の途中の時刻へ移動するときに、MP4のコンテナを先頭から解析したり、セグメントを順に調べたりせずに、
+ * {@link SeekIndexReader} で1回の二分探索で位置が分かるようにする。
+ *
+ * <pre>
+ * ヘッダ (32バイト、リトルエンディアン)
+ *   0  int   マジック "RSKI"
+ *   4  int   バージョン (1)
+ *   8  long  記録の間隔 (us)
+ *   16 int   各ファイルの先頭から最初のサンプルまでのバイト数 (WAVなら 44)。
+ *            -1 ならバイト位置はエンコード後のデータの累計 (コンテナ内の位置ではない)
+ *   20 int   1フレームのバイト数 (PCMの場合。エンコードする場合は 0)
+ *   24 int   サンプリングレート
+ *   28 int   記録済みのエントリ数 (これを超える部分は読まない)
+ * エントリ (ヘッダの直後から20バイトずつ、時刻の昇順)
+ *   long 時刻 (us、出力上の時刻) / long 最初のサンプルまでを除いたバイト位置 / int セグメント番号 (分割しなければ 0)
+ * </pre>
+ *
+ * エントリはバッファの境目で記録するので、時刻は間隔のちょうど倍数になるとは限らない。
+ * セグメントが切り替わったバッファでは間隔に関係なく記録し、どのセグメントも先頭のエントリを持つようにする。
+ * 無音のスキップが有効な場合、時刻は無音を詰めた後の出力上の時刻になる (.vad の記録で元の時刻に戻せる)。
+ *
+ * エントリは {@link #FLUSH_ENTRIES} 個ずつまとめて書き出してヘッダのエントリ数を更新するので、
+ * 強制終了されても最後に書き出したところまでは読める。書き込みスレッド上で使うバッファは構築時に確保する。
+ * サイドカーファイルの書き込みに失敗しても録音は止めず、以降の記録をやめて {@link #getFailure()} で知らせる。
+ */
+public final class SeekIndexBuilder implements PcmSink {
+
+    /** ヘッダのバイト数 */
+    public static final int HEADER_SIZE = 32;
+    /** 1エントリのバイト数 */
+    public static final int ENTRY_SIZE = 20;
+    /** ヘッダの先頭のマジック ("RSKI" をリトルエンディアンの int として読んだ値) */
+    public static final int MAGIC = 'R' | 'S' << 8 | 'K' << 16 | 'I' << 24;
+    public static final int VERSION = 1;
+    /** バイト位置がエンコード後のデータの累計であることを表す dataOffset */
+    public static final int ENCODED_STREAM = -1;
+    /** 既定の記録の間隔 */
+    public static final long DEFAULT_INTERVAL_US = 1_000_000;
+    /** まとめて書き出すエントリ数 */
+    static final int FLUSH_ENTRIES = 64;
+    /** ヘッダ内の「記録済みのエントリ数」の位置 */
+    static final int ENTRY_COUNT_OFFSET = 28;
+
+    private final String indexPath;
+    private final PcmSink downstream;
+    private final SegmentedSink segments;
+    private final int dataOffset;
+    private final long intervalUs;
+    private final ByteBuffer entries = ByteBuffer.allocateDirect(FLUSH_ENTRIES * ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    private PcmFormat format;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private IOException failure;
+    private long nextEntryUs;
+    private int lastSegment = -1;
+    private int entryCount;
+    private int flushedCount;
+
+    /**
+     * @param indexPath サイドカーファイルのパス ({@link #pathFor(String)})
+     * @param downstream 録音の書き込み先
+     * @param segments 分割録音の場合は downstream と同じ (またはその先の) SegmentedSink。分割しなければ null
+     * @param dataOffset 各ファイルの先頭から最初のサンプルまでのバイト数。エンコードする場合は {@link #ENCODED_STREAM}
+     * @param intervalUs 記録の間隔
+     */
+    public SeekIndexBuilder(String indexPath, PcmSink downstream, SegmentedSink segments, int dataOffset,
+                            long intervalUs) {
+        if (intervalUs <= 0) {
+            throw new IllegalArgumentException("intervalUs must be positive: " + intervalUs);
+        }
+        this.indexPath = indexPath;
+        this.downstream = downstream;
+        this.segments = segments;
+        this.dataOffset = dataOffset;
+        this.intervalUs = intervalUs;
+    }
+
+    /**
+     * 録音ファイルに対応するシークインデックスのパス (拡張子を .seek に置き換えたもの)
+     */
+    public static String pathFor(String recordingPath) {
+        return SessionManifest.stripExtension(recordingPath) + ".seek";
+    }
+
+    @Override
+    public void open(PcmFormat format) throws IOException {
+        this.format = format;
+        downstream.open(format);
+        nextEntryUs = 0;
+        lastSegment = -1;
+        entryCount = 0;
+        flushedCount = 0;
+        entries.clear();
+        try {
+            file = new RandomAccessFile(indexPath, "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+            writeHeader();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void write(short[] buffer, int offset, int length, long presentationTimeUs) throws IOException {
+        int segmentBefore = segmentIndex();
+        long bytesBefore = segmentBytes();
+        downstream.write(buffer, offset, length, presentationTimeUs);
+        if (channel == null) {
+            return;
+        }
+        // 書き込みの途中でセグメントが切り替わった場合、このバッファは新しいセグメントの先頭にある
+        int segment = segmentIndex();
+        boolean rotated = segment != segmentBefore;
+        if (!rotated && segment == lastSegment && presentationTimeUs < nextEntryUs) {
+            return;
+        }
+        addEntry(presentationTimeUs, rotated ? 0 : bytesBefore, segment);
+        lastSegment = segment;
+        nextEntryUs = presentationTimeUs + intervalUs;
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return downstream.getBytesWritten();
+    }
+
+    /**
+     * 録音ファイルを閉じてから、残りのエントリを書き出してサイドカーファイルを閉じる
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            downstream.close();
+        } finally {
+            closeIndex();
+        }
+    }
+
+    /**
+     * 記録したエントリ数
+     */
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * サイドカーファイルの書き込みに失敗していればその例外。失敗していなければ null
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    private int segmentIndex() {
+        return segments != null ? segments.getSegmentIndex() : 0;
+    }
+
+    private long segmentBytes() {
+        return segments != null ? segments.getCurrentSegmentBytes() : downstream.getBytesWritten();
+    }
+
+    private void addEntry(long timeUs, long bytes, int segment) {
+        entries.putLong(timeUs);
+        entries.putLong(bytes);
+        entries.putInt(segment);
+        entryCount++;
+        if (!entries.hasRemaining()) {
+            flush();
+        }
+    }
+
+    /**
+     * 溜まったエントリをファイルの末尾に書き、ヘッダのエントリ数を更新する
+     */
+    private void flush() {
+        entries.flip();
+        try {
+            long position = HEADER_SIZE + (long) flushedCount * ENTRY_SIZE;
+            while (entries.hasRemaining()) {
+                position += channel.write(entries, position);
+            }
+            flushedCount = entryCount;
+            writeHeader();
+        } catch (IOException e) {
+            fail(e);
+        }
+        entries.clear();
+    }
+
+    private void closeIndex() {
+        if (file == null) {
+            return;
+        }
+        try {
+            if (channel != null && entries.position() > 0) {
+                flush();
+            }
+            if (channel != null) {
+                channel.force(true);
+            }
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            try {
+                file.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+            file = null;
+            channel = null;
+        }
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        channel = null;
+    }
+
+    private void writeHeader() throws IOException {
+        header.clear();
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(intervalUs);
+        header.putInt(dataOffset);
+        header.putInt(dataOffset == ENCODED_STREAM ? 0 : format.getBytesPerFrame());
+        header.putInt(format.getSampleRate());
+        header.putInt(flushedCount);
+        header.flip();
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+    }
+}
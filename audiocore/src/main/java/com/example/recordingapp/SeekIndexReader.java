@@ -0,0 +1,176 @@
+package com.example.recordingapp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link SeekIndexBuilder} が書いたシークインデックスを読み出す。
+ *
+ * ファイルはメモリマップし、時刻からエントリを探すときは固定長のエントリを直接二分探索するので、
+ * 録音の長さに関係なくファイル全体を読み込むことはない。
+ * 開いた時点でヘッダに記録されていたエントリ数までを読む (録音中や強制終了されたファイルも開ける)。
+ */
+public final class SeekIndexReader implements Closeable {
+
+    /**
+     * 時刻から求めた位置
+     */
+    public static final class SeekPoint {
+        /** 位置を求めた時刻 (PCMの場合は要求した時刻、それ以外は直前のエントリの時刻) */
+        public final long timeUs;
+        /** セグメント番号 (分割しなければ 0) */
+        public final int segmentIndex;
+        /** セグメントの先頭の時刻 */
+        public final long segmentStartUs;
+        /**
+         * PCMの場合はファイルの先頭からのバイト位置。エンコードした場合は、エンコード後のデータの
+         * セグメント内での累計 (その時刻までに書き出したおおよその量)
+         */
+        public final long byteOffset;
+
+        SeekPoint(long timeUs, int segmentIndex, long segmentStartUs, long byteOffset) {
+            this.timeUs = timeUs;
+            this.segmentIndex = segmentIndex;
+            this.segmentStartUs = segmentStartUs;
+            this.byteOffset = byteOffset;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final ByteBuffer data;
+    private final long intervalUs;
+    private final int dataOffset;
+    private final int bytesPerFrame;
+    private final int sampleRate;
+    private final int entryCount;
+
+    public SeekIndexReader(File seekFile) throws IOException {
+        file = new RandomAccessFile(seekFile, "r");
+        try {
+            long length = file.length();
+            if (length < SeekIndexBuilder.HEADER_SIZE || length > Integer.MAX_VALUE) {
+                throw new IOException("シークインデックスの長さが不正です: " + length);
+            }
+            data = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (data.getInt(0) != SeekIndexBuilder.MAGIC || data.getInt(4) != SeekIndexBuilder.VERSION) {
+                throw new IOException("シークインデックスではないか、対応していない版です: " + seekFile);
+            }
+            intervalUs = data.getLong(8);
+            dataOffset = data.getInt(16);
+            bytesPerFrame = data.getInt(20);
+            sampleRate = data.getInt(24);
+            if (intervalUs <= 0 || sampleRate <= 0 || bytesPerFrame < 0) {
+                throw new IOException("シークインデックスのヘッダが不正です: " + seekFile);
+            }
+            // ヘッダの値を信じすぎず、ファイルに実際にあるエントリの範囲までに制限する
+            long stored = (length - SeekIndexBuilder.HEADER_SIZE) / SeekIndexBuilder.ENTRY_SIZE;
+            entryCount = (int) Math.min(Math.max(0, data.getInt(SeekIndexBuilder.ENTRY_COUNT_OFFSET)), stored);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public long getIntervalUs() {
+        return intervalUs;
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * バイト位置が PCM のファイル内の位置かどうか (WAVで録音した場合)
+     */
+    public boolean isPcm() {
+        return dataOffset != SeekIndexBuilder.ENCODED_STREAM;
+    }
+
+    public long getTimeUs(int entry) {
+        return data.getLong(position(entry));
+    }
+
+    /**
+     * エントリのバイト位置 (各ファイルの最初のサンプルを 0 とした位置)
+     */
+    public long getBytes(int entry) {
+        return data.getLong(position(entry) + 8);
+    }
+
+    public int getSegmentIndex(int entry) {
+        return data.getInt(position(entry) + 16);
+    }
+
+    /**
+     * timeUs 以前で最後のエントリを二分探索で探す
+     * @return エントリの番号。timeUs が最初のエントリより前か、エントリが無ければ -1
+     */
+    public int find(long timeUs) {
+        int low = 0;
+        int high = entryCount - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getTimeUs(mid) <= timeUs) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * 時刻に対応するセグメントと位置を求める。
+     * PCMの場合は直前のエントリからフレーム単位で進めた、要求した時刻のちょうどの位置を返す。
+     * @return timeUs が最初のエントリより前ならその先頭の位置。エントリが無ければ null
+     */
+    public SeekPoint seek(long timeUs) {
+        if (entryCount == 0) {
+            return null;
+        }
+        int entry = Math.max(0, find(timeUs));
+        long entryTimeUs = getTimeUs(entry);
+        int segment = getSegmentIndex(entry);
+        long segmentStartUs = getTimeUs(firstEntryOfSegment(entry, segment));
+        if (!isPcm()) {
+            return new SeekPoint(entryTimeUs, segment, segmentStartUs, getBytes(entry));
+        }
+        long targetUs = Math.max(timeUs, entryTimeUs);
+        long frames = (targetUs - entryTimeUs) * sampleRate / 1_000_000;
+        return new SeekPoint(targetUs, segment, segmentStartUs, dataOffset + getBytes(entry) + frames * bytesPerFrame);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * entry 以前で、同じセグメントの最初のエントリを二分探索で探す (セグメント番号は昇順に並んでいる)
+     */
+    private int firstEntryOfSegment(int entry, int segment) {
+        int low = 0;
+        int high = entry;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getSegmentIndex(mid) < segment) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int position(int entry) {
+        return SeekIndexBuilder.HEADER_SIZE + entry * SeekIndexBuilder.ENTRY_SIZE;
+    }
+}
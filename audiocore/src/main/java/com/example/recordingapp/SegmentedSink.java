@@ -0,0 +1,221 @@
+package com.example.recordingapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 録音を一定の長さ・サイズごとに別ファイル (セグメント) へ切り替えて書き込む {@link PcmSink}。
+ *
+ * 切り替えは書き込みスレッドの上で、バッファの境目で行う。次のセグメントを開いてから
+ * 同じバッファをそちらへ書き込むので、セグメントの間で音が途切れることはない。
+ * 書き終えたセグメントを閉じる処理 (エンコーダーの残りの書き出しやMP4の仕上げ) は
+ * 専用のスレッドに任せ、書き込みスレッドを待たせない。録音スレッドとの間には
+ * リングバッファがあるので、切り替えが録音スレッドを止めることはない。
+ *
+ * 閉じたセグメントは順番に {@link SessionManifest} へ記録する。
+ * 長さやサイズに関係なく、{@link #requestRotation()} で次のバッファから新しいセグメントに切り替えることもできる
+ * (エンコードの設定を録音中に変えるときなど)。
+ */
+public final class SegmentedSink implements PcmSink {
+
+    /**
+     * セグメントごとの出力先を作る
+     */
+    public interface SinkFactory {
+        PcmSink create(String path) throws IOException;
+    }
+
+    // セグメントのパスで、拡張子の前に付く番号 ("_part001" など)
+    private static final Pattern PART_SUFFIX = Pattern.compile("_part\\d{3,}$");
+
+    private final String basePath;
+    private final SinkFactory factory;
+    private final long maxDurationUs;
+    private final long maxBytes;
+    private final SessionManifest manifest;
+
+    private PcmFormat format;
+    // 閉じる処理を順番に実行するためのスレッド
+    private ExecutorService closer;
+    private volatile IOException closeError;
+    // 次のバッファで切り替える
+    private volatile boolean rotationRequested;
+
+    private PcmSink current;
+    private int segmentIndex;
+    private String currentPath;
+    private long segmentStartUs;
+    private long lastEndUs;
+    private long totalBytesOfClosedSegments;
+
+    /**
+     * @param basePath 録音ファイルのパス。セグメントは「拡張子の前に _partNNN を付けた名前」になる
+     * @param maxDurationMs 1セグメントの最大の長さ。0 なら時間では分割しない
+     * @param maxBytes 1セグメントの最大のバイト数。0 ならサイズでは分割しない
+     */
+    public SegmentedSink(String basePath, SinkFactory factory, long maxDurationMs, long maxBytes,
+                         SessionManifest manifest) {
+        this.basePath = basePath;
+        this.factory = factory;
+        this.maxDurationUs = maxDurationMs * 1000;
+        this.maxBytes = maxBytes;
+        this.manifest = manifest;
+    }
+
+    /**
+     * index 番目のセグメントのパス (例: REC_20250621_183000_part001.mp4)
+     */
+    public static String segmentPath(String basePath, int index) {
+        String stem = SessionManifest.stripExtension(basePath);
+        String extension = basePath.substring(stem.length());
+        return String.format(Locale.ROOT, "%s_part%03d%s", stem, index, extension);
+    }
+
+    /**
+     * セグメントのパスから元の録音のパスを求める ({@link #segmentPath} の逆)。セグメントのパスでなければそのまま返す
+     */
+    public static String basePathOf(String path) {
+        String stem = SessionManifest.stripExtension(path);
+        Matcher part = PART_SUFFIX.matcher(stem);
+        if (!part.find()) {
+            return path;
+        }
+        return stem.substring(0, part.start()) + path.substring(stem.length());
+    }
+
+    @Override
+    public void open(PcmFormat format) throws IOException {
+        this.format = format;
+        closer = Executors.newSingleThreadExecutor(r -> new Thread(r, "SegmentCloser"));
+        segmentIndex = 0;
+        try {
+            openSegment(0);
+        } catch (IOException | RuntimeException e) {
+            closer.shutdown();
+            closer = null;
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(short[] buffer, int offset, int length, long presentationTimeUs) throws IOException {
+        IOException failure = closeError;
+        if (failure != null) {
+            throw failure;
+        }
+        if (current != null && shouldRotate(presentationTimeUs)) {
+            rotate(presentationTimeUs);
+        }
+        if (current == null) {
+            throw new IOException("セグメントが開かれていません");
+        }
+        current.write(buffer, offset, length, presentationTimeUs - segmentStartUs);
+        lastEndUs = presentationTimeUs + format.samplesToUs(length);
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return totalBytesOfClosedSegments + (current != null ? current.getBytesWritten() : 0);
+    }
+
+    /**
+     * 次に書き込むバッファから新しいセグメントに切り替える
+     */
+    public void requestRotation() {
+        rotationRequested = true;
+    }
+
+    /**
+     * 現在書き込み中のセグメントの番号 (1から)
+     */
+    public int getSegmentIndex() {
+        return segmentIndex;
+    }
+
+    /**
+     * 現在書き込み中のセグメントに書き込んだバイト数
+     */
+    public long getCurrentSegmentBytes() {
+        return current != null ? current.getBytesWritten() : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closer == null) {
+            return;
+        }
+        if (current != null) {
+            finishSegment(lastEndUs);
+        }
+        closer.shutdown();
+        try {
+            if (!closer.awaitTermination(30, TimeUnit.SECONDS)) {
+                throw new IOException("セグメントの終了処理がタイムアウトしました");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("セグメントの終了処理の待機中に割り込まれました", e);
+        } finally {
+            closer = null;
+        }
+        IOException failure = closeError;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private boolean shouldRotate(long presentationTimeUs) {
+        if (rotationRequested) {
+            return true;
+        }
+        if (maxDurationUs > 0 && presentationTimeUs - segmentStartUs >= maxDurationUs) {
+            return true;
+        }
+        return maxBytes > 0 && current.getBytesWritten() >= maxBytes;
+    }
+
+    private void rotate(long presentationTimeUs) throws IOException {
+        rotationRequested = false;
+        finishSegment(presentationTimeUs);
+        openSegment(presentationTimeUs);
+    }
+
+    private void openSegment(long startUs) throws IOException {
+        segmentIndex++;
+        currentPath = segmentPath(basePath, segmentIndex);
+        PcmSink sink = factory.create(currentPath);
+        sink.open(format);
+        current = sink;
+        segmentStartUs = startUs;
+    }
+
+    /**
+     * 現在のセグメントを閉じる処理を専用スレッドに渡す
+     */
+    private void finishSegment(long endUs) {
+        final PcmSink sink = current;
+        current = null;
+        totalBytesOfClosedSegments += sink.getBytesWritten();
+        final int index = segmentIndex;
+        final String fileName = new File(currentPath).getName();
+        final long startUs = segmentStartUs;
+        final long durationUs = endUs - startUs;
+        closer.execute(() -> {
+            try {
+                sink.close();
+                manifest.append(new SessionManifest.Segment(index, fileName, startUs, durationUs,
+                        sink.getBytesWritten()));
+            } catch (IOException e) {
+                if (closeError == null) {
+                    closeError = e;
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,228 @@
+package com.example.recordingapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 録音中のセッションの状態を追記していくサイドカーファイル (.journal)。
+ * プロセスが強制終了された後に、{@link SessionRecovery} が書きかけのファイルを修復するために使う。
+ *
+ * <pre>
+ * ヘッダ (32バイト、リトルエンディアン)
+ *   0  int   マジック "RJNL"
+ *   4  int   バージョン (1)
+ *   8  int   サンプリングレート
+ *   12 int   チャンネル数
+ *   16 int   各ファイルの先頭から最初のサンプルまでのバイト数 (WAVなら 44)。エンコードする場合は -1
+ *   20 int   フラグ (1: 分割録音)
+ *   24 byte[8] 録音ファイルの拡張子 (".wav" など、ASCII、余りは 0)
+ * レコード (ヘッダの直後から32バイトずつ)
+ *   0  int   種類 (TYPE_*)
+ *   4  int   セグメント番号 (分割しなければ 0)
+ *   8  long  そのファイルに書き込み済みのデータ部のバイト数
+ *   16 long  そのファイルに書き込んだ音声の長さ (us)
+ *   24 int   チェックサム (途中までしか書かれなかったレコードを見分ける)
+ *   28 int   予約 (0)
+ * </pre>
+ *
+ * レコードはどれも、そのファイルについて修復に必要なことを全部持っている。そのため修復するときは、
+ * ヘッダと末尾のいくつかのレコードだけを読めばよく、録音の長さやファイルの大きさに関係なく一定の時間で終わる。
+ *
+ * 書き込みはレコードごとに FileChannel で行い、ディスクへの同期はしない (プロセスが強制終了されても
+ * OSのキャッシュからファイルに残る)。電源が落ちた場合は、各ファイルが自分で同期した位置 (WAVならヘッダ) まで戻る。
+ * 書き込みスレッドとセグメントを閉じるスレッドから呼ばれるので、書き込みは同期化している。
+ * ジャーナルの書き込みに失敗しても録音は止めず、以降の記録をやめて {@link #getFailure()} で知らせる。
+ */
+public final class SessionJournal {
+
+    /** ヘッダのバイト数 */
+    public static final int HEADER_SIZE = 32;
+    /** 1レコードのバイト数 */
+    public static final int RECORD_SIZE = 32;
+    /** ヘッダの先頭のマジック ("RJNL" をリトルエンディアンの int として読んだ値) */
+    public static final int MAGIC = 'R' | 'J' << 8 | 'N' << 16 | 'L' << 24;
+    public static final int VERSION = 1;
+    /** 分割録音であることを表すフラグ */
+    public static final int FLAG_SEGMENTED = 1;
+
+    /** ファイルを開いた */
+    public static final int TYPE_OPEN = 1;
+    /** ファイルにここまで書き込んだ */
+    public static final int TYPE_SYNC = 2;
+    /** ファイルを閉じ終えた (再生できる状態になった) */
+    public static final int TYPE_CLOSE = 3;
+    /** セッションを最後まで書き終えた */
+    public static final int TYPE_END = 4;
+
+    static final int EXTENSION_OFFSET = 24;
+    static final int EXTENSION_LENGTH = 8;
+
+    private final String journalPath;
+    private final int dataOffset;
+    private final String extension;
+    private final boolean segmented;
+    private final ByteBuffer record = ByteBuffer.allocateDirect(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private IOException failure;
+    private long position;
+    private int segmentCount;
+    private boolean finished;
+
+    /**
+     * @param journalPath ジャーナルのパス ({@link #pathFor(String)})
+     * @param dataOffset 各ファイルの先頭から最初のサンプルまでのバイト数。エンコードする場合は {@link SeekIndexBuilder#ENCODED_STREAM}
+     * @param extension 録音ファイルの拡張子 (ドット付き)
+     * @param segmented 分割録音なら true。セグメント番号は {@link SegmentedSink} と同じく1から数える
+     */
+    public SessionJournal(String journalPath, int dataOffset, String extension, boolean segmented) {
+        if (extension.length() > EXTENSION_LENGTH) {
+            throw new IllegalArgumentException("extension is too long: " + extension);
+        }
+        this.journalPath = journalPath;
+        this.dataOffset = dataOffset;
+        this.extension = extension;
+        this.segmented = segmented;
+    }
+
+    /**
+     * 録音ファイルに対応するジャーナルのパス (拡張子を .journal に置き換えたもの)
+     */
+    public static String pathFor(String recordingPath) {
+        return SessionManifest.stripExtension(recordingPath) + ".journal";
+    }
+
+    /**
+     * ファイルを開いたことを記録する。最初のファイルのときにジャーナルを作る
+     * @return このファイルのセグメント番号
+     */
+    public synchronized int openSegment(PcmFormat format) {
+        if (file == null && failure == null && !finished) {
+            create(format);
+        }
+        int segment = segmented ? ++segmentCount : 0;
+        append(TYPE_OPEN, segment, 0, 0);
+        return segment;
+    }
+
+    /**
+     * ファイルにここまで書き込んだことを記録する
+     * @param bytes ファイルに書き込み済みのデータ部のバイト数
+     * @param durationUs そのファイルに書き込んだ音声の長さ
+     */
+    public synchronized void sync(int segment, long bytes, long durationUs) {
+        append(TYPE_SYNC, segment, bytes, durationUs);
+    }
+
+    /**
+     * ファイルを閉じ終えたことを記録する
+     */
+    public synchronized void closeSegment(int segment, long bytes, long durationUs) {
+        append(TYPE_CLOSE, segment, bytes, durationUs);
+    }
+
+    /**
+     * セッションを最後まで書き終えたことを記録してジャーナルを閉じ、削除する (修復するものが無いので)。
+     * 削除できなくても、最後のレコードで書き終えたことが分かる
+     */
+    public synchronized void finish() {
+        if (finished) {
+            return;
+        }
+        append(TYPE_END, 0, 0, 0);
+        finished = true;
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        } finally {
+            file = null;
+            channel = null;
+        }
+        if (!new File(journalPath).delete() && failure == null) {
+            failure = new IOException("ジャーナルを削除できませんでした: " + journalPath);
+        }
+    }
+
+    /**
+     * ジャーナルの書き込みに失敗していればその例外。失敗していなければ null
+     */
+    public synchronized IOException getFailure() {
+        return failure;
+    }
+
+    public String getPath() {
+        return journalPath;
+    }
+
+    private void create(PcmFormat format) {
+        try {
+            file = new RandomAccessFile(journalPath, "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(format.getSampleRate());
+            header.putInt(format.getChannelCount());
+            header.putInt(dataOffset);
+            header.putInt(segmented ? FLAG_SEGMENTED : 0);
+            header.put(extension.getBytes(StandardCharsets.US_ASCII));
+            header.position(HEADER_SIZE);
+            header.flip();
+            position = 0;
+            while (header.hasRemaining()) {
+                position += channel.write(header, position);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void append(int type, int segment, long bytes, long durationUs) {
+        if (channel == null) {
+            return;
+        }
+        record.clear();
+        record.putInt(type);
+        record.putInt(segment);
+        record.putLong(bytes);
+        record.putLong(durationUs);
+        record.putInt(checksum(type, segment, bytes, durationUs));
+        record.putInt(0);
+        record.flip();
+        try {
+            while (record.hasRemaining()) {
+                position += channel.write(record, position);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        channel = null;
+    }
+
+    /**
+     * レコードのチェックサム。途中までしか書かれなかったレコード (残りが 0) では一致しない
+     */
+    static int checksum(int type, int segment, long bytes, long durationUs) {
+        long mixed = bytes * 31 + durationUs;
+        return (MAGIC ^ type * 0x9E3779B9 ^ segment * 0x85EBCA6B) + (int) mixed + (int) (mixed >>> 32) * 31;
+    }
+}
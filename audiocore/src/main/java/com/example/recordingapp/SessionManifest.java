@@ -0,0 +1,113 @@
+package com.example.recordingapp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分割録音したセッションのセグメント一覧を記録するテキストファイル (REC_xxx.manifest)。
+ *
+ * 1行に1セグメントを、タブ区切りで「番号 ファイル名 開始時刻(us) 長さ(us) バイト数」の順に書く。
+ * セグメントを閉じるたびに1行追記してフラッシュするので、途中でプロセスが終了しても
+ * それまでに完成したセグメントは一覧に残る。
+ */
+public final class SessionManifest {
+
+    private static final String HEADER = "# RecordingApp session manifest v1";
+
+    /**
+     * 1つのセグメントの情報
+     */
+    public static final class Segment {
+        public final int index;
+        public final String fileName;
+        public final long startUs;
+        public final long durationUs;
+        public final long bytes;
+
+        public Segment(int index, String fileName, long startUs, long durationUs, long bytes) {
+            this.index = index;
+            this.fileName = fileName;
+            this.startUs = startUs;
+            this.durationUs = durationUs;
+            this.bytes = bytes;
+        }
+    }
+
+    private final File file;
+
+    public SessionManifest(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * 録音ファイルのパスから、対応するマニフェストのパスを作る (拡張子を .manifest に置き換える)
+     */
+    public static File forRecording(String recordingPath) {
+        return new File(stripExtension(recordingPath) + ".manifest");
+    }
+
+    /**
+     * セグメントを1件追記する
+     */
+    public synchronized void append(Segment segment) throws IOException {
+        boolean isNew = !file.exists() || file.length() == 0;
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            if (isNew) {
+                writer.write(HEADER);
+                writer.write('\n');
+            }
+            writer.write(segment.index + "\t" + segment.fileName + "\t" + segment.startUs
+                    + "\t" + segment.durationUs + "\t" + segment.bytes + "\n");
+        }
+    }
+
+    /**
+     * 記録されているセグメントを順番に読み込む。ファイルが無ければ空のリストを返す。
+     * 書きかけの行など、解釈できない行は読み飛ばす。
+     */
+    public List<Segment> read() throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        if (!file.exists()) {
+            return segments;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                if (fields.length < 5) {
+                    continue;
+                }
+                try {
+                    segments.add(new Segment(Integer.parseInt(fields[0]), fields[1],
+                            Long.parseLong(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4])));
+                } catch (NumberFormatException ignored) {
+                    // 書きかけの行
+                }
+            }
+        }
+        return segments;
+    }
+
+    static String stripExtension(String path) {
+        int slash = path.lastIndexOf(File.separatorChar);
+        int dot = path.lastIndexOf('.');
+        return dot > slash ? path.substring(0, dot) : path;
+    }
+}
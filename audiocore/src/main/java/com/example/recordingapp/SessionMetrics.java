@@ -0,0 +1,324 @@
+package com.example.recordingapp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 1回の録音 (セッション) の性能の計測値。
+ *
+ * 書き込みスレッドがバッファごとに記録する値 (受け渡しの待ち数・待ち時間、出力先への書き込み時間) は
+ * {@link Log2Histogram} に数えるだけで、オブジェクトの確保はしない。
+ * それ以外の値は録音の開始時と停止時に RecordingService と録音エンジンが設定する。
+ * エンコードの設定と、録音中にそれを切り替えた記録 ({@link EncoderChange}) もここに残す。
+ * 停止後に {@link #writeJson(File)} で録音ファイルの隣の .metrics.json に書き出す。
+ *
+ * バッファごとの記録は書き込みスレッドからだけ行う。録音中に別のスレッドから読んだ値は概算になる。
+ */
+public final class SessionMetrics {
+
+    /** JSONの形式のバージョン */
+    public static final int VERSION = 1;
+
+    /**
+     * エンコードの設定を切り替えた記録
+     */
+    public static final class EncoderChange {
+        // 切り替えた録音の位置 (録音開始前に切り替えた場合は 0)
+        public final long atUs;
+        public final String profileName;
+        public final int bitRate;
+        public final String reason;
+
+        public EncoderChange(long atUs, String profileName, int bitRate, String reason) {
+            this.atUs = atUs;
+            this.profileName = profileName;
+            this.bitRate = bitRate;
+            this.reason = reason;
+        }
+    }
+
+    // 書き込みスレッドが記録する値
+    private final Log2Histogram queueDepth = new Log2Histogram();
+    private final Log2Histogram queueLatencyUs = new Log2Histogram();
+    private final Log2Histogram writeUs = new Log2Histogram();
+    private long stallThresholdUs = Long.MAX_VALUE;
+    private long stallCount;
+    private long stallTotalUs;
+
+    // 開始時と停止時に設定する値
+    private volatile String recordingPath;
+    private volatile String engineName;
+    private volatile String startPath;
+    private volatile long startTimeMillis;
+    private volatile long timeToFirstSampleUs = -1;
+    private volatile long durationUs;
+    private volatile long capturedSamples;
+    private volatile long overrunCount;
+    private volatile long bytesWritten;
+    private volatile long cpuTimeMillis = -1;
+    // 録音開始時のエンコードの設定
+    private volatile EncoderProfile encoderProfile;
+    private volatile int encoderBitRate;
+    private volatile boolean adaptiveBitrate;
+    // this で保護する。切り替えたときだけ追加するので、録音中の確保はまれ
+    private final List<EncoderChange> encoderChanges = new ArrayList<>();
+
+    /**
+     * 録音ファイルに対応する計測値のファイルのパス (拡張子を .metrics.json に置き換えたもの)
+     */
+    public static String pathFor(String recordingPath) {
+        return SessionManifest.stripExtension(recordingPath) + ".metrics.json";
+    }
+
+    /**
+     * 書き込みに時間がかかったとみなす長さ。これを超えた書き込みを停滞として数える。
+     * 書き込みがこれより長くかかり続けると受け渡し用のバッファが溢れる (通常は1バッファ分の時間)。
+     */
+    public void setStallThresholdUs(long stallThresholdUs) {
+        this.stallThresholdUs = stallThresholdUs;
+    }
+
+    /**
+     * 書き込みスレッドが1バッファを処理するたびに呼ぶ
+     * @param queued 処理を終えた時点で受け渡しを待っていたバッファの数 (このバッファを含む)
+     * @param latencyUs 録音スレッドがバッファを公開してから、書き込みスレッドが処理を始めるまでの時間
+     * @param durationUs 処理と出力先への書き込みにかかった時間
+     */
+    public void recordWrite(int queued, long latencyUs, long durationUs) {
+        queueDepth.record(queued);
+        queueLatencyUs.record(latencyUs);
+        writeUs.record(durationUs);
+        if (durationUs > stallThresholdUs) {
+            stallCount++;
+            stallTotalUs += durationUs;
+        }
+    }
+
+    public void setRecording(String recordingPath, String engineName, String startPath, long startTimeMillis) {
+        this.recordingPath = recordingPath;
+        this.engineName = engineName;
+        this.startPath = startPath;
+        this.startTimeMillis = startTimeMillis;
+    }
+
+    /**
+     * 録音開始時のエンコードの設定
+     * @param bitRate 最初のビットレート。WAVで保存する場合は 0
+     * @param adaptive 録音中にビットレートを上げ下げするかどうか
+     */
+    public void setEncoder(EncoderProfile profile, int bitRate, boolean adaptive) {
+        this.encoderProfile = profile;
+        this.encoderBitRate = bitRate;
+        this.adaptiveBitrate = adaptive;
+    }
+
+    /**
+     * エンコードの設定を切り替えたことを記録する。どのスレッドから呼んでもよい。
+     */
+    public synchronized void recordEncoderChange(long atUs, String profileName, int bitRate, String reason) {
+        encoderChanges.add(new EncoderChange(atUs, profileName, bitRate, reason));
+    }
+
+    public synchronized List<EncoderChange> getEncoderChanges() {
+        return new ArrayList<>(encoderChanges);
+    }
+
+    public EncoderProfile getEncoderProfile() {
+        return encoderProfile;
+    }
+
+    public int getEncoderBitRate() {
+        return encoderBitRate;
+    }
+
+    public void setTimeToFirstSampleUs(long timeToFirstSampleUs) {
+        this.timeToFirstSampleUs = timeToFirstSampleUs;
+    }
+
+    public void setCapture(long capturedSamples, long overrunCount) {
+        this.capturedSamples = capturedSamples;
+        this.overrunCount = overrunCount;
+    }
+
+    /**
+     * @param durationUs 録音を開始してから停止するまでの時間
+     * @param bytesWritten 保存したファイルの合計バイト数
+     * @param cpuTimeMillis 録音中にプロセスが使ったCPU時間。分からなければ -1
+     */
+    public void setTotals(long durationUs, long bytesWritten, long cpuTimeMillis) {
+        this.durationUs = durationUs;
+        this.bytesWritten = bytesWritten;
+        this.cpuTimeMillis = cpuTimeMillis;
+    }
+
+    public String getRecordingPath() {
+        return recordingPath;
+    }
+
+    /**
+     * 録音開始の指示から最初のサンプルまでの時間。分からなければ -1
+     */
+    public long getTimeToFirstSampleUs() {
+        return timeToFirstSampleUs;
+    }
+
+    public long getDurationUs() {
+        return durationUs;
+    }
+
+    public long getCapturedSamples() {
+        return capturedSamples;
+    }
+
+    public long getOverrunCount() {
+        return overrunCount;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * 録音の長さあたりの保存バイト数
+     */
+    public long getBytesPerSecond() {
+        return durationUs > 0 ? bytesWritten * 1_000_000 / durationUs : 0;
+    }
+
+    public long getCpuTimeMillis() {
+        return cpuTimeMillis;
+    }
+
+    public long getStallCount() {
+        return stallCount;
+    }
+
+    public long getStallTotalUs() {
+        return stallTotalUs;
+    }
+
+    public Log2Histogram getQueueDepth() {
+        return queueDepth;
+    }
+
+    public Log2Histogram getQueueLatencyUs() {
+        return queueLatencyUs;
+    }
+
+    public Log2Histogram getWriteUs() {
+        return writeUs;
+    }
+
+    /**
+     * 画面やログに出す1行の要約
+     */
+    public String toSummary() {
+        return String.format(Locale.JAPAN,
+                "最初のサンプルまで %s, オーバーラン %d, 待ち数 最大 %d, 待ち時間 p99 %.1f ms, "
+                        + "書き込み p99 %.1f ms / 最大 %.1f ms, 停滞 %d 回, %,d bytes/秒, CPU %s",
+                timeToFirstSampleUs >= 0 ? String.format(Locale.JAPAN, "%.1f ms", timeToFirstSampleUs / 1000.0) : "不明",
+                overrunCount, queueDepth.getMax(), queueLatencyUs.getPercentile(0.99) / 1000.0,
+                writeUs.getPercentile(0.99) / 1000.0, writeUs.getMax() / 1000.0, stallCount,
+                getBytesPerSecond(), cpuTimeMillis >= 0 ? cpuTimeMillis + " ms" : "不明")
+                + (encoderProfile != null ? ", " + encoderProfile.getName() + " 切り替え " + getEncoderChanges().size() + " 回" : "");
+    }
+
+    /**
+     * JSONの文字列にする
+     */
+    public String toJson() {
+        StringBuilder out = new StringBuilder(1024);
+        out.append("{\"version\":").append(VERSION);
+        appendString(out, "recording", recordingPath != null ? new File(recordingPath).getName() : null);
+        appendString(out, "engine", engineName);
+        appendString(out, "startPath", startPath);
+        out.append(",\"startTimeMillis\":").append(startTimeMillis)
+                .append(",\"durationUs\":").append(durationUs)
+                .append(",\"timeToFirstSampleUs\":").append(timeToFirstSampleUs)
+                .append(",\"capturedSamples\":").append(capturedSamples)
+                .append(",\"overruns\":").append(overrunCount)
+                .append(",\"bytesWritten\":").append(bytesWritten)
+                .append(",\"bytesPerSecond\":").append(getBytesPerSecond())
+                .append(",\"cpuTimeMillis\":").append(cpuTimeMillis)
+                .append(",\"writeStalls\":").append(stallCount)
+                .append(",\"writeStallUs\":").append(stallTotalUs);
+        appendEncoder(out);
+        out.append(",\"queueDepth\":");
+        queueDepth.appendJson(out);
+        out.append(",\"queueLatencyUs\":");
+        queueLatencyUs.appendJson(out);
+        out.append(",\"writeUs\":");
+        writeUs.appendJson(out);
+        out.append('}');
+        return out.toString();
+    }
+
+    /**
+     * JSONをファイルに書き出す
+     */
+    public void writeJson(File file) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(toJson().getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        }
+    }
+
+    private void appendEncoder(StringBuilder out) {
+        EncoderProfile profile = encoderProfile;
+        if (profile == null) {
+            return;
+        }
+        out.append(",\"encoder\":{\"profile\":");
+        appendQuoted(out, profile.getName());
+        out.append(",\"codec\":");
+        appendQuoted(out, profile.getCodec());
+        out.append(",\"sampleRate\":").append(profile.getSampleRate())
+                .append(",\"channels\":").append(profile.getChannelCount())
+                .append(",\"bitRate\":").append(encoderBitRate)
+                .append(",\"adaptive\":").append(adaptiveBitrate)
+                .append("},\"encoderChanges\":[");
+        List<EncoderChange> changes = getEncoderChanges();
+        for (int i = 0; i < changes.size(); i++) {
+            EncoderChange change = changes.get(i);
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append("{\"atUs\":").append(change.atUs).append(",\"profile\":");
+            appendQuoted(out, change.profileName);
+            out.append(",\"bitRate\":").append(change.bitRate).append(",\"reason\":");
+            appendQuoted(out, change.reason);
+            out.append('}');
+        }
+        out.append(']');
+    }
+
+    private static void appendString(StringBuilder out, String name, String value) {
+        out.append(",\"").append(name).append("\":");
+        appendQuoted(out, value);
+    }
+
+    private static void appendQuoted(StringBuilder out, String value) {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
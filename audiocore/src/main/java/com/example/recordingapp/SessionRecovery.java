@@ -0,0 +1,263 @@
+package com.example.recordingapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 強制終了されたセッションを、{@link SessionJournal} を使って修復・完成させる。
+ *
+ * 読むのはジャーナルのヘッダと末尾のいくつかのレコード、マニフェスト、WAVヘッダだけで、音声データには触れない。
+ * そのため、録音がどれだけ長くても修復にかかる時間は変わらない。
+ *
+ * <ul>
+ * <li>WAV: ヘッダのデータ部の長さを、ジャーナルに記録した位置 (ヘッダに記録済みの位置の方が後ならそちら) に書き換え、
+ *     先に確保した領域の余りを切り詰める。</li>
+ * <li>エンコードしたファイル: 閉じ終えていれば (マニフェストへの追記だけが漏れていれば) そのまま使う。
+ *     閉じる前に終了したMPEG-4 (AAC) は、{@link Mp4AacWriter} が残したフレームの記録 (.frames) から moov を書いて仕上げる。
+ *     MediaMuxer で書くOGG (Opus) は作り直せないので、再生できないものとして数える。</li>
+ * <li>分割録音: マニフェストに無いセグメントを、修復した順に追記する。</li>
+ * </ul>
+ * 修復し終えたジャーナルは削除する。
+ */
+public final class SessionRecovery {
+
+    private static final String JOURNAL_EXTENSION = ".journal";
+    // 末尾からさかのぼって読む最大のレコード数 (途中までしか書かれなかったレコードと、前のセグメントを閉じ終えたレコードの分)
+    private static final int MAX_TAIL_RECORDS = 16;
+
+    /**
+     * 1つのセッションを修復した結果
+     */
+    public static final class Result {
+        /** 録音ファイルのパス (分割録音なら元のパス) */
+        public final String recordingPath;
+        /** 書き終える前に終了していたら true。false なら修復するものは無かった */
+        public final boolean interrupted;
+        /** 直したファイル (ヘッダと長さを直したWAV、moov を書いたMPEG-4) の数 */
+        public final int repairedFiles;
+        /** 閉じる前に終了した、再生できないエンコード済みのファイル (OGG) の数 */
+        public final int unplayableFiles;
+        /** 直したファイルで再生できる長さ (us) */
+        public final long recoveredDurationUs;
+
+        Result(String recordingPath, boolean interrupted, int repairedFiles, int unplayableFiles,
+               long recoveredDurationUs) {
+            this.recordingPath = recordingPath;
+            this.interrupted = interrupted;
+            this.repairedFiles = repairedFiles;
+            this.unplayableFiles = unplayableFiles;
+            this.recoveredDurationUs = recoveredDurationUs;
+        }
+    }
+
+    private SessionRecovery() {
+    }
+
+    /**
+     * 保存先ディレクトリにあるジャーナルの一覧。書き終えたセッションのジャーナルは削除されているので、
+     * 残っているのは強制終了されたセッション (または録音中のセッション) のもの
+     */
+    public static List<File> listJournals(File directory) {
+        List<File> journals = new ArrayList<>();
+        File[] files = directory.listFiles((dir, name) ->
+                name.startsWith(RecordingProbe.FILE_PREFIX) && name.endsWith(JOURNAL_EXTENSION));
+        if (files != null) {
+            for (File file : files) {
+                journals.add(file);
+            }
+        }
+        return journals;
+    }
+
+    /**
+     * ジャーナルに従ってセッションを修復し、ジャーナルを削除する。録音中のセッションのジャーナルを渡さないこと
+     */
+    public static Result recover(File journalFile) throws IOException {
+        String stem = SessionManifest.stripExtension(journalFile.getPath());
+        ByteBuffer header = ByteBuffer.allocate(SessionJournal.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        // 末尾から読んだレコードのうち、閉じ終えたセグメントごとの {バイト数, 長さ}
+        Map<Integer, long[]> closedSegments = new HashMap<>();
+        boolean found = false;
+        boolean ended = false;
+        int currentSegment = 0;
+        long currentBytes = 0;
+        try (RandomAccessFile journal = new RandomAccessFile(journalFile, "r")) {
+            if (journal.length() < SessionJournal.HEADER_SIZE) {
+                // ヘッダを書く前に終了した。記録したものは何も無い
+                delete(journalFile);
+                return new Result(stem, false, 0, 0, 0);
+            }
+            journal.readFully(header.array());
+            if (header.getInt(0) != SessionJournal.MAGIC || header.getInt(4) != SessionJournal.VERSION) {
+                throw new IOException("ジャーナルの形式が正しくありません: " + journalFile);
+            }
+            // 最も新しいセグメントの最後のレコードを探す。閉じる処理は別のスレッドで行うので、
+            // その後ろに前のセグメントを閉じ終えたレコードが続いていることがある
+            long records = (journal.length() - SessionJournal.HEADER_SIZE) / SessionJournal.RECORD_SIZE;
+            ByteBuffer record = ByteBuffer.allocate(SessionJournal.RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            for (long i = records - 1; i >= Math.max(0, records - MAX_TAIL_RECORDS); i--) {
+                journal.seek(SessionJournal.HEADER_SIZE + i * SessionJournal.RECORD_SIZE);
+                journal.readFully(record.array());
+                int type = record.getInt(0);
+                int segment = record.getInt(4);
+                long bytes = record.getLong(8);
+                long durationUs = record.getLong(16);
+                if (record.getInt(24) != SessionJournal.checksum(type, segment, bytes, durationUs)) {
+                    continue;
+                }
+                if (type == SessionJournal.TYPE_END) {
+                    ended = !found;
+                    break;
+                }
+                if (type == SessionJournal.TYPE_CLOSE) {
+                    closedSegments.putIfAbsent(segment, new long[]{bytes, durationUs});
+                }
+                if (!found || segment > currentSegment) {
+                    found = true;
+                    currentSegment = segment;
+                    currentBytes = bytes;
+                }
+                if (type != SessionJournal.TYPE_CLOSE) {
+                    break;
+                }
+            }
+        }
+
+        PcmFormat format = new PcmFormat(header.getInt(8), header.getInt(12));
+        boolean segmented = (header.getInt(20) & SessionJournal.FLAG_SEGMENTED) != 0;
+        String recordingPath = stem + readExtension(header);
+        if (!found || ended) {
+            delete(journalFile);
+            return new Result(recordingPath, false, 0, 0, 0);
+        }
+
+        Session session = new Session(format, header.getInt(16) != SeekIndexBuilder.ENCODED_STREAM);
+        if (!segmented) {
+            if (!closedSegments.containsKey(0)) {
+                session.finishFile(new File(recordingPath), currentBytes, null);
+            }
+        } else {
+            SessionManifest manifest = new SessionManifest(SessionManifest.forRecording(recordingPath));
+            List<SessionManifest.Segment> listed = manifest.read();
+            int nextIndex = 1;
+            long startUs = 0;
+            if (!listed.isEmpty()) {
+                SessionManifest.Segment previous = listed.get(listed.size() - 1);
+                nextIndex = previous.index + 1;
+                startUs = previous.startUs + previous.durationUs;
+            }
+            // 最も新しいセグメントより前でマニフェストに無いものは、閉じている途中で終了したもの。
+            // ジャーナルに位置が無いので、そのファイル自身が記録した位置まで戻す
+            for (int index = nextIndex; index <= currentSegment; index++) {
+                File segmentFile = new File(SegmentedSink.segmentPath(recordingPath, index));
+                long[] finished = session.finishFile(segmentFile, index == currentSegment ? currentBytes : 0,
+                        closedSegments.get(index));
+                if (finished == null) {
+                    continue;
+                }
+                manifest.append(new SessionManifest.Segment(index, segmentFile.getName(), startUs, finished[1],
+                        finished[0]));
+                startUs += finished[1];
+            }
+        }
+        delete(journalFile);
+        return new Result(recordingPath, true, session.repairedFiles, session.unplayableFiles,
+                session.recoveredDurationUs);
+    }
+
+    /**
+     * 修復しながら数える
+     */
+    private static final class Session {
+        final PcmFormat format;
+        final boolean wav;
+        int repairedFiles;
+        int unplayableFiles;
+        long recoveredDurationUs;
+
+        Session(PcmFormat format, boolean wav) {
+            this.format = format;
+            this.wav = wav;
+        }
+
+        /**
+         * 1つのファイルを修復する
+         * @param journaledBytes ジャーナルに記録した、書き込み済みのデータ部のバイト数
+         * @param closed 閉じ終えていれば、ジャーナルに記録した {バイト数, 長さ}。閉じていなければ null
+         * @return 使えるようになったファイルの {データ部のバイト数, 長さ (us)}。使えなければ null
+         */
+        long[] finishFile(File file, long journaledBytes, long[] closed) throws IOException {
+            if (!file.isFile()) {
+                return null;
+            }
+            if (closed != null) {
+                return closed;
+            }
+            long[] repaired;
+            if (wav) {
+                long dataBytes = repairWav(file, format, journaledBytes);
+                repaired = new long[]{dataBytes, format.samplesToUs(dataBytes / PcmFormat.BYTES_PER_SAMPLE)};
+            } else {
+                repaired = Mp4AacWriter.recover(file);
+                if (repaired == null) {
+                    unplayableFiles++;
+                    return null;
+                }
+            }
+            repairedFiles++;
+            recoveredDurationUs += repaired[1];
+            return repaired;
+        }
+    }
+
+    /**
+     * WAVヘッダのデータ部の長さを書き換え、その後ろを切り詰める
+     * @param journaledBytes ジャーナルに記録した、書き込み済みのデータ部のバイト数
+     * @return 書き換えたデータ部のバイト数
+     */
+    static long repairWav(File file, PcmFormat format, long journaledBytes) throws IOException {
+        try (RandomAccessFile wav = new RandomAccessFile(file, "rw")) {
+            long available = Math.max(0, wav.length() - WavFileSink.HEADER_SIZE);
+            long committed = 0;
+            if (wav.length() >= WavFileSink.HEADER_SIZE) {
+                byte[] current = new byte[WavFileSink.HEADER_SIZE];
+                wav.readFully(current);
+                committed = ByteBuffer.wrap(current).order(ByteOrder.LITTLE_ENDIAN).getInt(40) & 0xFFFFFFFFL;
+            }
+            long dataBytes = Math.min(Math.max(committed, journaledBytes), available);
+            dataBytes -= dataBytes % format.getBytesPerFrame();
+            ByteBuffer header = ByteBuffer.allocate(WavFileSink.HEADER_SIZE);
+            WavFileSink.putHeader(header, format, dataBytes);
+            wav.seek(0);
+            wav.write(header.array());
+            wav.setLength(WavFileSink.HEADER_SIZE + dataBytes);
+            wav.getFD().sync();
+            return dataBytes;
+        }
+    }
+
+    private static String readExtension(ByteBuffer header) {
+        byte[] bytes = new byte[SessionJournal.EXTENSION_LENGTH];
+        header.position(SessionJournal.EXTENSION_OFFSET);
+        header.get(bytes);
+        int length = 0;
+        while (length < bytes.length && bytes[length] != 0) {
+            length++;
+        }
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    private static void delete(File journalFile) throws IOException {
+        if (!journalFile.delete() && journalFile.exists()) {
+            throw new IOException("ジャーナルを削除できませんでした: " + journalFile);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.recordingapp;
+
+/**
+ * 録音の先頭と末尾の無音を切り詰める {@link PostProcessStage}。
+ *
+ * 1回目の読み込みで、いずれかのチャンネルの振幅がしきい値を超えた最初と最後のフレームを探し、
+ * その前後に余白を残した範囲だけを出力する。全体が無音なら何も出力しない。
+ */
+public final class SilenceTrimmer implements PostProcessStage {
+
+    /** 既定のしきい値 (dBFS) */
+    public static final double DEFAULT_THRESHOLD_DBFS = -50;
+    /** 既定の前後に残す余白 */
+    public static final int DEFAULT_PADDING_MILLIS = 200;
+
+    private final int channelCount;
+    private final int threshold;
+    private final long paddingFrames;
+
+    private long frame;
+    private long firstLoudFrame = -1;
+    private long lastLoudFrame = -1;
+
+    public SilenceTrimmer(PcmFormat format) {
+        this(format, DEFAULT_THRESHOLD_DBFS, DEFAULT_PADDING_MILLIS);
+    }
+
+    public SilenceTrimmer(PcmFormat format, double thresholdDbfs, int paddingMillis) {
+        this.channelCount = format.getChannelCount();
+        this.threshold = (int) Math.round(32768 * Math.pow(10, thresholdDbfs / 20));
+        this.paddingFrames = (long) format.getSampleRate() * paddingMillis / 1000;
+    }
+
+    @Override
+    public String getName() {
+        return "trim";
+    }
+
+    @Override
+    public void analyze(short[] buffer, int offset, int length) {
+        int end = offset + length - length % channelCount;
+        for (int i = offset; i < end; i += channelCount) {
+            for (int c = 0; c < channelCount; c++) {
+                int sample = buffer[i + c];
+                if (sample > threshold || -sample > threshold) {
+                    if (firstLoudFrame < 0) {
+                        firstLoudFrame = frame;
+                    }
+                    lastLoudFrame = frame;
+                    break;
+                }
+            }
+            frame++;
+        }
+    }
+
+    @Override
+    public long getStartFrame(long totalFrames) {
+        if (firstLoudFrame < 0) {
+            return 0;
+        }
+        return Math.max(0, firstLoudFrame - paddingFrames);
+    }
+
+    @Override
+    public long getEndFrame(long totalFrames) {
+        if (lastLoudFrame < 0) {
+            return 0;
+        }
+        return Math.min(totalFrames, lastLoudFrame + 1 + paddingFrames);
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.recordingapp;
+
+import java.util.function.LongSupplier;
+
+/**
+ * 録音中のPCMのスペクトルを求めて {@link SpectrumFrames} に公開する {@link PcmProcessor}。
+ * ハム (電源の 50/60Hz)、クリップ (高域に広がる歪み)、特定の帯域の欠落を録音中に見つけるために使う。
+ *
+ * 入力をモノラルにまとめて直近 fftSize サンプルを保持し、hopSize サンプルごとに Hann 窓をかけて
+ * {@link RealFft} で変換する。変換したビンは対数で等間隔に分けた帯域にまとめ (帯域内の最大値)、
+ * フルスケールの正弦波が 0 dBFS になるように換算して公開する。
+ * 窓、FFT の表、作業用の配列は全てコンストラクタで確保し、process() ではメモリを確保しない。
+ *
+ * 書き込みスレッドの時間を使いすぎないよう、1回の解析にかかった時間 (移動平均) が
+ * 解析する間隔の音声の長さの budgetFraction を超えたら、解析を2回に1回、4回に1回…と間引く
+ * (最大 {@link #MAX_STRIDE} 回に1回)。余裕が戻れば間引きを減らす。
+ */
+public final class SpectrumAnalyzer implements PcmProcessor {
+
+    /** 解析を間引く最大の間隔 */
+    public static final int MAX_STRIDE = 8;
+    /** 書き込みスレッドで使ってよい時間の既定の割合 */
+    public static final float DEFAULT_BUDGET_FRACTION = 0.1f;
+
+    // 最も低い帯域の下端 (ハムの 50Hz より下から表示する)
+    private static final float MIN_FREQUENCY_HZ = 30f;
+    private static final float FULL_SCALE = 32768f;
+    // 解析にかかった時間の移動平均の重み
+    private static final float COST_SMOOTHING = 0.125f;
+
+    private final SpectrumFrames frames;
+    private final LongSupplier nanoClock;
+    private final int channelCount;
+    private final int sampleRate;
+    private final int fftSize;
+    private final int hopSize;
+    private final float budgetFraction;
+    private final long hopNanos;
+    private final RealFft fft;
+    private final float[] window;
+    // 直近 fftSize サンプル (モノラル) のリング
+    private final float[] history;
+    private final float[] fftInput;
+    private final float[] power;
+    // 帯域ごとのビンの範囲 [bandStarts[b], bandStarts[b + 1])
+    private final int[] bandStarts;
+    // パワーを dBFS に換算するときの基準 (フルスケールの正弦波のピークのビンのパワー)
+    private final float referencePower;
+
+    private int historyPosition;
+    private int samplesSinceFrame;
+    // 入力の先頭からのモノラルのサンプル数
+    private long inputSamples;
+    // 処理中のバッファの先頭の時刻と、そこから数えたフレーム数
+    private long bufferTimeUs;
+    private int bufferFrames;
+    private int hopsUntilAnalysis = 1;
+    private int stride = 1;
+    private float costNanos;
+    private long analyzedFrames;
+    private long skippedFrames;
+    private int maxStride = 1;
+
+    /**
+     * 既定の大きさ (1/24 秒以上の2のべき乗のサンプル数、半分ずつずらす) で解析する
+     */
+    public SpectrumAnalyzer(PcmFormat format, SpectrumFrames frames) {
+        this(format, fftSizeFor(format.getSampleRate()), fftSizeFor(format.getSampleRate()) / 2,
+                DEFAULT_BUDGET_FRACTION, frames, System::nanoTime);
+    }
+
+    /**
+     * @param fftSize 1回に変換するサンプル数 (2のべき乗)
+     * @param hopSize 解析する間隔 (サンプル数)
+     * @param budgetFraction 解析に使ってよい時間の、解析する間隔の音声の長さに対する割合
+     * @param nanoClock 解析にかかった時間を測る時計 (テストで差し替える)
+     */
+    SpectrumAnalyzer(PcmFormat format, int fftSize, int hopSize, float budgetFraction, SpectrumFrames frames,
+                     LongSupplier nanoClock) {
+        if (hopSize <= 0 || hopSize > fftSize) {
+            throw new IllegalArgumentException("hopSize must be in (0, fftSize]: " + hopSize);
+        }
+        this.frames = frames;
+        this.nanoClock = nanoClock;
+        this.channelCount = format.getChannelCount();
+        this.sampleRate = format.getSampleRate();
+        this.fftSize = fftSize;
+        this.hopSize = hopSize;
+        this.budgetFraction = budgetFraction;
+        this.hopNanos = hopSize * 1_000_000_000L / format.getSampleRate();
+        this.fft = new RealFft(fftSize);
+        this.window = new float[fftSize];
+        double windowSum = 0;
+        for (int i = 0; i < fftSize; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / fftSize));
+            windowSum += window[i];
+        }
+        this.referencePower = (float) (FULL_SCALE * windowSum / 2 * (FULL_SCALE * windowSum / 2));
+        this.history = new float[fftSize];
+        this.fftInput = new float[fftSize];
+        this.power = new float[fft.getBinCount()];
+        this.bandStarts = bandStarts(frames.getBandCount(), fft.getBinCount(), fftSize, format.getSampleRate());
+    }
+
+    /**
+     * サンプリングレートに対する既定の FFT の大きさ (1/24 秒以上。48kHz なら 2048 で、1ビンあたり約23Hz)
+     */
+    static int fftSizeFor(int sampleRate) {
+        return Math.max(256, Integer.highestOneBit(Math.max(1, sampleRate / 24 - 1)) << 1);
+    }
+
+    /**
+     * 帯域ごとの最初のビンを、MIN_FREQUENCY_HZ からナイキスト周波数までの対数で等間隔に決める。
+     * 低い周波数で1ビンより狭くなる帯域は、前の帯域と同じビンを使う
+     */
+    private static int[] bandStarts(int bandCount, int binCount, int fftSize, int sampleRate) {
+        int[] starts = new int[bandCount + 1];
+        double binHz = (double) sampleRate / fftSize;
+        double nyquist = sampleRate / 2.0;
+        double low = Math.min(MIN_FREQUENCY_HZ, nyquist / 2);
+        double ratio = Math.log(nyquist / low);
+        for (int band = 0; band <= bandCount; band++) {
+            double frequency = low * Math.exp(ratio * band / bandCount);
+            starts[band] = Math.min(binCount - 1, Math.max(1, (int) Math.round(frequency / binHz)));
+        }
+        starts[bandCount] = binCount;
+        return starts;
+    }
+
+    @Override
+    public void process(short[] buffer, int offset, int length, long presentationTimeUs) {
+        int end = offset + length;
+        float scale = 1f / channelCount;
+        bufferTimeUs = presentationTimeUs;
+        bufferFrames = 0;
+        for (int i = offset; i + channelCount <= end; i += channelCount) {
+            float sum = 0;
+            for (int c = 0; c < channelCount; c++) {
+                sum += buffer[i + c];
+            }
+            history[historyPosition] = sum * scale;
+            historyPosition = (historyPosition + 1) & (fftSize - 1);
+            inputSamples++;
+            bufferFrames++;
+            if (++samplesSinceFrame == hopSize) {
+                samplesSinceFrame = 0;
+                onHop();
+            }
+        }
+    }
+
+    private void onHop() {
+        if (inputSamples < fftSize) {
+            // 最初の1フレーム分が溜まるまでは解析しない
+            return;
+        }
+        if (--hopsUntilAnalysis > 0) {
+            skippedFrames++;
+            return;
+        }
+        long begin = nanoClock.getAsLong();
+        analyze();
+        long cost = nanoClock.getAsLong() - begin;
+        costNanos = analyzedFrames == 0 ? cost : costNanos + (cost - costNanos) * COST_SMOOTHING;
+        analyzedFrames++;
+        adjustStride();
+        hopsUntilAnalysis = stride;
+    }
+
+    /**
+     * 解析にかかる時間が予算を超えていれば間引きを倍に、予算の1/4を下回れば半分にする
+     */
+    private void adjustStride() {
+        float load = costNanos / (stride * (float) hopNanos);
+        if (load > budgetFraction && stride < MAX_STRIDE) {
+            stride <<= 1;
+            maxStride = Math.max(maxStride, stride);
+        } else if (load < budgetFraction / 4 && stride > 1) {
+            stride >>= 1;
+        }
+    }
+
+    private void analyze() {
+        // 古い順に並べながら窓をかける
+        int first = fftSize - historyPosition;
+        for (int i = 0; i < first; i++) {
+            fftInput[i] = history[historyPosition + i] * window[i];
+        }
+        for (int i = first; i < fftSize; i++) {
+            fftInput[i] = history[i - first] * window[i];
+        }
+        fft.powerSpectrum(fftInput, power);
+
+        float[] frame = frames.claim();
+        for (int band = 0; band < frame.length; band++) {
+            float max = 0;
+            for (int bin = bandStarts[band], last = Math.max(bandStarts[band] + 1, bandStarts[band + 1]);
+                 bin < last; bin++) {
+                if (power[bin] > max) {
+                    max = power[bin];
+                }
+            }
+            frame[band] = max > 0
+                    ? Math.max(SpectrumFrames.MIN_DBFS, (float) (10 * Math.log10(max / referencePower)))
+                    : SpectrumFrames.MIN_DBFS;
+        }
+        // フレームの時刻は、変換した範囲の先頭のサンプルの時刻
+        frames.publish(bufferTimeUs + (bufferFrames - fftSize) * 1_000_000L / sampleRate);
+    }
+
+    /**
+     * 解析を間引いている間隔 (1 なら間引いていない)
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * これまでで最も大きかった間引きの間隔
+     */
+    public int getMaxStride() {
+        return maxStride;
+    }
+
+    /**
+     * 解析したフレーム数
+     */
+    public long getAnalyzedFrames() {
+        return analyzedFrames;
+    }
+
+    /**
+     * 間引いて解析しなかったフレーム数
+     */
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    /**
+     * 1回の解析にかかった時間の移動平均 (ナノ秒)
+     */
+    public long getCostNanos() {
+        return (long) costNanos;
+    }
+
+    public int getFftSize() {
+        return fftSize;
+    }
+
+    /**
+     * 帯域の下端の周波数 (Hz)。band が帯域の数のときはナイキスト周波数
+     */
+    public float getBandFrequencyHz(int band) {
+        return (float) bandStarts[band] * sampleRate / fftSize;
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.recordingapp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link SpectrumAnalyzer} が作ったスペクトルのフレーム (帯域ごとの dBFS) を、画面などの読み手に渡す。
+ *
+ * フレームは容量固定のリングに書き、通し番号で読み出す。書き込み側 (書き込みスレッド) は読み手を待たず、
+ * 読み手が遅れて上書きされたフレームは読めない ({@link #read} が false を返す)。
+ * 配列は全てコンストラクタで確保し、書き込みでも読み出しでもメモリを確保しない。
+ * 書き込みは1つのスレッドから、読み出しはどのスレッドからでもよい。
+ */
+public final class SpectrumFrames {
+
+    /** 表示の下限 (これより小さい値はこの値にする) */
+    public static final float MIN_DBFS = -120f;
+
+    private final int mask;
+    private final int bandCount;
+    private final float[][] frames;
+    private final long[] presentationTimesUs;
+    // フレームに入っているデータの通し番号。書き込み中は -1
+    private final AtomicLongArray frameSequences;
+    // 次に書くフレームの通し番号 (= これまでに書いたフレーム数)
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    /**
+     * @param capacity 保持するフレーム数 (2のべき乗)
+     * @param bandCount 1フレームあたりの帯域の数
+     */
+    public SpectrumFrames(int capacity, int bandCount) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two >= 2: " + capacity);
+        }
+        if (bandCount <= 0) {
+            throw new IllegalArgumentException("bandCount must be positive: " + bandCount);
+        }
+        this.mask = capacity - 1;
+        this.bandCount = bandCount;
+        this.frames = new float[capacity][bandCount];
+        this.presentationTimesUs = new long[capacity];
+        this.frameSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            frameSequences.set(i, -1);
+        }
+    }
+
+    public int getCapacity() {
+        return frames.length;
+    }
+
+    public int getBandCount() {
+        return bandCount;
+    }
+
+    /**
+     * 次に書かれるフレームの通し番号。読み手はここまでのフレームを読める
+     */
+    public long getNextSequence() {
+        return nextSequence.get();
+    }
+
+    /**
+     * 次に書くフレームの配列を返す。書き終えたら {@link #publish(long)} を呼ぶ (書き込み側)
+     */
+    float[] claim() {
+        int index = (int) (nextSequence.get() & mask);
+        // 書き換え中であることを先に示す
+        frameSequences.set(index, -1);
+        return frames[index];
+    }
+
+    /**
+     * {@link #claim()} で受け取った配列を公開する (書き込み側)
+     */
+    void publish(long presentationTimeUs) {
+        long sequence = nextSequence.get();
+        int index = (int) (sequence & mask);
+        presentationTimesUs[index] = presentationTimeUs;
+        frameSequences.set(index, sequence);
+        nextSequence.set(sequence + 1);
+    }
+
+    /**
+     * 通し番号 sequence のフレームを destination にコピーする
+     * @param destination 長さ {@link #getBandCount()} 以上
+     * @return コピーできたら true。まだ書かれていないか、既に上書きされていれば false
+     */
+    public boolean read(long sequence, float[] destination) {
+        if (sequence < 0 || sequence >= nextSequence.get()) {
+            return false;
+        }
+        int index = (int) (sequence & mask);
+        if (frameSequences.get(index) != sequence) {
+            return false;
+        }
+        System.arraycopy(frames[index], 0, destination, 0, bandCount);
+        // コピーしている間に書き換えられていないか確かめる
+        return frameSequences.get(index) == sequence;
+    }
+
+    /**
+     * 通し番号 sequence のフレームの先頭の時刻。読めなければ -1
+     */
+    public long getPresentationTimeUs(long sequence) {
+        int index = (int) (sequence & mask);
+        long presentationTimeUs = presentationTimesUs[index];
+        return frameSequences.get(index) == sequence ? presentationTimeUs : -1;
+    }
+}
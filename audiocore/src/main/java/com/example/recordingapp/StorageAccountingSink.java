@@ -0,0 +1,55 @@
+package com.example.recordingapp;
+
+import java.io.IOException;
+
+/**
+ * 次の出力先が書き込んだバイト数の増えた分を、{@link StorageQuota.Session} に足していく {@link PcmSink}。
+ *
+ * 1つのファイルへの出力先ごとに挟むので、分割録音ではセグメントを書くたびに使用量が増える。
+ * 閉じたときにエンコーダーが書き出した残りの分も足す。
+ */
+public final class StorageAccountingSink implements PcmSink {
+
+    private final PcmSink downstream;
+    private final StorageQuota.Session session;
+    private long reportedBytes;
+
+    public StorageAccountingSink(PcmSink downstream, StorageQuota.Session session) {
+        this.downstream = downstream;
+        this.session = session;
+    }
+
+    @Override
+    public void open(PcmFormat format) throws IOException {
+        downstream.open(format);
+        report();
+    }
+
+    @Override
+    public void write(short[] buffer, int offset, int length, long presentationTimeUs) throws IOException {
+        downstream.write(buffer, offset, length, presentationTimeUs);
+        report();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return downstream.getBytesWritten();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            downstream.close();
+        } finally {
+            report();
+        }
+    }
+
+    private void report() {
+        long bytes = downstream.getBytesWritten();
+        if (bytes != reportedBytes) {
+            session.add(bytes - reportedBytes);
+            reportedBytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.example.recordingapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 録音の保存に使ってよい容量 (バイト数) と保存期間 (日数) の上限を管理する。
+ *
+ * 使用量は保存先ディレクトリを調べて求めるのではなく、起動時にインデックスの合計サイズから始め、
+ * 録音中は書き込んだバイト数 ({@link Session})、削除した録音はそのサイズを足し引きして数え続ける。
+ * 上限に近いときに消す録音は {@link #planEviction} で決める。消す候補はインデックスが
+ * 優先度の低い順、古い順に並べて渡し、固定された録音 (ピン留め) は候補に含めない。
+ *
+ * 使用量はどのスレッドから足し引きしてもよい。
+ */
+public final class StorageQuota {
+
+    /** 上限なし */
+    public static final long UNLIMITED = 0;
+
+    /** 後処理したファイルの名前に付ける接尾辞 (入力ファイルの拡張子を置き換える) */
+    public static final String POST_PROCESS_SUFFIX = "_post.wav";
+
+    // 録音と一緒に数えて消す付随ファイルの拡張子 (録音ファイルの拡張子を置き換える)
+    private static final String[] SIDECAR_EXTENSIONS = {".manifest", ".vad", ".peaks", ".seek", ".metrics.json", ".journal",
+            ".frames"};
+
+    private volatile long maxBytes;
+    private volatile int maxAgeDays;
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    /**
+     * @param maxBytes 使ってよい容量。{@link #UNLIMITED} なら容量では消さない
+     * @param maxAgeDays 保存しておく日数。{@link #UNLIMITED} なら日数では消さない
+     */
+    public StorageQuota(long maxBytes, int maxAgeDays) {
+        setLimits(maxBytes, maxAgeDays);
+    }
+
+    /**
+     * 上限を変える。次に {@link #planEviction} を呼んだときから使われる
+     */
+    public void setLimits(long maxBytes, int maxAgeDays) {
+        if (maxBytes < 0 || maxAgeDays < 0) {
+            throw new IllegalArgumentException("limits must not be negative: " + maxBytes + ", " + maxAgeDays);
+        }
+        this.maxBytes = maxBytes;
+        this.maxAgeDays = maxAgeDays;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getMaxAgeDays() {
+        return maxAgeDays;
+    }
+
+    /**
+     * 容量と日数のどちらかに上限があるかどうか
+     */
+    public boolean isLimited() {
+        return maxBytes != UNLIMITED || maxAgeDays != UNLIMITED;
+    }
+
+    /**
+     * 今の使用量 (録音中の録音の書き込み済みの分を含む)
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * 使用量を数え直した値で置き換える (起動時にインデックスの合計サイズで初期化する)
+     */
+    public void setUsedBytes(long bytes) {
+        usedBytes.set(bytes);
+    }
+
+    /**
+     * 使用量に足す。録音を消したときは負の値を渡す
+     */
+    public void add(long deltaBytes) {
+        usedBytes.addAndGet(deltaBytes);
+    }
+
+    /**
+     * 録音1回分の書き込みを数え始める
+     */
+    public Session openSession() {
+        return new Session();
+    }
+
+    /**
+     * 録音1回分の使用量。録音中は書き込んだバイト数をその都度足し、
+     * 停止後にファイルの実際のサイズ (コンテナのヘッダなどを含む) で合わせ直す。
+     */
+    public final class Session {
+        private final AtomicLong bytes = new AtomicLong();
+        private boolean finished;
+
+        private Session() {
+        }
+
+        /**
+         * 書き込んだ分を足す (書き込みスレッドから呼ばれる)
+         */
+        public void add(long deltaBytes) {
+            bytes.addAndGet(deltaBytes);
+            usedBytes.addAndGet(deltaBytes);
+        }
+
+        /**
+         * この録音で数えたバイト数
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * 停止後に、数えた分をファイルの実際のサイズで置き換える。2回目以降は何もしない
+         * @param actualBytes インデックスに登録したサイズ。ファイルが残らなかった場合は 0
+         */
+        public synchronized void finish(long actualBytes) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            usedBytes.addAndGet(actualBytes - bytes.get());
+        }
+    }
+
+    /**
+     * 新しい録音を始めるときに、上限を超えないように消す録音を選ぶ。
+     * 保存期間を過ぎた録音はすべて選び、残りは使用量に reserveBytes を足した値が容量の上限に収まるまで、
+     * 候補の先頭から選ぶ。protectedPaths と同じ録音 (拡張子を除いた名前が同じもの) は選ばない。
+     * @param candidates 消してよい録音。消す順 (優先度の低い順、古い順) に並べたもの
+     * @param reserveBytes これから始める録音のために空けておくバイト数
+     * @param nowMillis 今の時刻
+     * @param protectedPaths 録音中のファイルや後処理で読み込み中のファイルなど、消してはいけないもの
+     */
+    public List<RecordingEntry> planEviction(List<RecordingEntry> candidates, long reserveBytes, long nowMillis,
+                                             Collection<String> protectedPaths) {
+        List<RecordingEntry> plan = new ArrayList<>();
+        long limitBytes = maxBytes;
+        int days = maxAgeDays;
+        long expiresBefore = days != UNLIMITED ? nowMillis - TimeUnit.DAYS.toMillis(days) : Long.MIN_VALUE;
+        long excessBytes = limitBytes != UNLIMITED ? usedBytes.get() + reserveBytes - limitBytes : 0;
+        for (RecordingEntry entry : candidates) {
+            boolean expired = entry.startTimeMillis < expiresBefore;
+            if (!expired && excessBytes <= 0) {
+                continue;
+            }
+            if (isProtected(entry.path, protectedPaths)) {
+                continue;
+            }
+            plan.add(entry);
+            excessBytes -= entry.sizeBytes;
+        }
+        return plan;
+    }
+
+    /**
+     * 使用量に reserveBytes を足すと容量の上限を超えるかどうか
+     */
+    public boolean isOverLimit(long reserveBytes) {
+        long limitBytes = maxBytes;
+        return limitBytes != UNLIMITED && usedBytes.get() + reserveBytes > limitBytes;
+    }
+
+    /**
+     * 同じ録音のファイル (録音ファイル、セグメント、付随ファイル) かどうかを、拡張子を除いた名前で比べる
+     */
+    static boolean isProtected(String recordingPath, Collection<String> protectedPaths) {
+        String stem = SessionManifest.stripExtension(recordingPath);
+        for (String path : protectedPaths) {
+            if (path != null && SessionManifest.stripExtension(path).startsWith(stem)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 録音1件のファイルをすべて消す: 録音ファイル (分割録音ならセグメント)、後処理したファイル、
+     * マニフェスト・無音の記録・ピーク・シークインデックス・計測値・ジャーナル
+     * @return 消したファイルの合計サイズ
+     */
+    public static long deleteRecording(String recordingPath) throws IOException {
+        List<File> files = new ArrayList<>();
+        File manifestFile = SessionManifest.forRecording(recordingPath);
+        if (manifestFile.exists()) {
+            File directory = manifestFile.getAbsoluteFile().getParentFile();
+            for (SessionManifest.Segment segment : new SessionManifest(manifestFile).read()) {
+                files.add(new File(directory, segment.fileName));
+            }
+        }
+        // マニフェストに記録される前のセグメントも消す
+        File segment;
+        for (int index = 1; (segment = new File(SegmentedSink.segmentPath(recordingPath, index))).exists(); index++) {
+            if (!files.contains(segment)) {
+                files.add(segment);
+            }
+        }
+        files.add(new File(recordingPath));
+        files.addAll(attachedFiles(recordingPath, files));
+
+        long freedBytes = 0;
+        IOException failure = null;
+        for (File file : files) {
+            if (!file.exists()) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                freedBytes += length;
+            } else if (failure == null) {
+                failure = new IOException("ファイルを削除できませんでした: " + file);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return freedBytes;
+    }
+
+    /**
+     * 録音ファイル (分割録音ならセグメント) のほかに、その録音の使用量に数えるファイルの合計サイズ:
+     * 後処理したファイルと付随ファイル。{@link RecordingProbe} がインデックスのサイズに足す
+     * @param recordingFiles 録音ファイル、またはセグメントのファイル
+     */
+    public static long attachedBytes(String recordingPath, List<File> recordingFiles) {
+        long bytes = 0;
+        for (File file : attachedFiles(recordingPath, recordingFiles)) {
+            bytes += file.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * 録音ファイルごとの後処理したファイルと、録音の付随ファイル (存在しないものも含む)
+     */
+    private static List<File> attachedFiles(String recordingPath, List<File> recordingFiles) {
+        List<File> files = new ArrayList<>();
+        for (File file : recordingFiles) {
+            files.add(postProcessFile(file.getPath()));
+        }
+        String stem = SessionManifest.stripExtension(recordingPath);
+        for (String extension : SIDECAR_EXTENSIONS) {
+            files.add(new File(stem + extension));
+        }
+        return files;
+    }
+
+    /**
+     * 録音ファイル (またはセグメント) を後処理したファイル
+     */
+    private static File postProcessFile(String inputPath) {
+        return new File(SessionManifest.stripExtension(inputPath) + POST_PROCESS_SUFFIX);
+    }
+}
@@ -0,0 +1,265 @@
+package com.example.recordingapp;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 無音の間は後段 (エンコーダーやファイル) への書き込みを止める {@link PcmSink}。
+ *
+ * {@link VoiceActivityDetector} が発話と判定したバッファだけを後段へ渡す。
+ * 無音の間も直近の一定時間分は手元のリングに残しておき、発話が始まったらそれを先に書き込むので、
+ * 言葉の頭が切れない。リングは open() で一度だけ確保し、書き込みスレッド上では確保を行わない。
+ *
+ * 後段へ渡すタイムスタンプは無音を詰めた連続した時刻になる。
+ * 詰めた区間は「出力上の位置、元の開始時刻、元の終了時刻」の3つ組としてテキストファイルに記録するので、
+ * 出力上の時刻に、その位置より前の区間の長さを足せば元の時刻に戻せる。
+ */
+public final class VadGateSink implements PcmSink {
+
+    private final PcmSink downstream;
+    private final int preRollMs;
+    private final int hangoverMs;
+    private final String skipLogPath;
+
+    private PcmFormat format;
+    private VoiceActivityDetector detector;
+    private Writer skipLog;
+
+    // 発話が始まる直前の音を残しておくリング
+    private short[] preRoll;
+    private int preRollStart;
+    private int preRollFill;
+    private long preRollEndUs;
+
+    private boolean gateOpen;
+    // 書き込みを止めた時点の元の時刻
+    private long skipStartUs;
+    private long lastEndUs;
+
+    private long writtenSamples;
+    private long skippedSamples;
+    private long skippedRanges;
+    private long downstreamNanos;
+
+    /**
+     * @param downstream 発話区間の書き込み先
+     * @param preRollMs 発話の直前に残しておく長さ
+     * @param hangoverMs 発話が終わってから書き込みを止めるまでの時間
+     * @param skipLogPath 詰めた区間を記録するファイル。null なら記録しない
+     */
+    public VadGateSink(PcmSink downstream, int preRollMs, int hangoverMs, String skipLogPath) {
+        this.downstream = downstream;
+        this.preRollMs = preRollMs;
+        this.hangoverMs = hangoverMs;
+        this.skipLogPath = skipLogPath;
+    }
+
+    /**
+     * 録音ファイルに対応する無音区間の記録ファイルのパス (拡張子を .vad に置き換えたもの)
+     */
+    public static String skipLogPathFor(String recordingPath) {
+        return SessionManifest.stripExtension(recordingPath) + ".vad";
+    }
+
+    @Override
+    public void open(PcmFormat format) throws IOException {
+        this.format = format;
+        detector = new VoiceActivityDetector(format, hangoverMs);
+        int channels = format.getChannelCount();
+        preRoll = new short[Math.max(channels, format.samplesForMillis(preRollMs) / channels * channels)];
+        preRollStart = 0;
+        preRollFill = 0;
+        preRollEndUs = 0;
+        gateOpen = false;
+        skipStartUs = 0;
+        lastEndUs = 0;
+        writtenSamples = 0;
+        skippedSamples = 0;
+        skippedRanges = 0;
+        downstreamNanos = 0;
+        if (skipLogPath != null) {
+            skipLog = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(skipLogPath), StandardCharsets.UTF_8));
+            skipLog.write("# outputUs\tstartUs\tendUs\n");
+        }
+        try {
+            downstream.open(format);
+        } catch (IOException | RuntimeException e) {
+            closeSkipLog();
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(short[] buffer, int offset, int length, long presentationTimeUs) throws IOException {
+        lastEndUs = presentationTimeUs + format.samplesToUs(length);
+        boolean speech = detector.process(buffer, offset, length);
+        if (speech) {
+            if (!gateOpen) {
+                long resumeUs = preRollEndUs - format.samplesToUs(preRollFill);
+                recordSkip(resumeUs);
+                flushPreRoll();
+                gateOpen = true;
+            }
+            writeDownstream(buffer, offset, length);
+        } else {
+            if (gateOpen) {
+                gateOpen = false;
+                skipStartUs = presentationTimeUs;
+            }
+            keepInPreRoll(buffer, offset, length);
+            preRollEndUs = lastEndUs;
+        }
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return downstream.getBytesWritten();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (format == null) {
+            return;
+        }
+        try {
+            if (!gateOpen) {
+                // 最後の無音はリングに残っている分も含めて捨てる
+                skippedSamples += preRollFill;
+                preRollFill = 0;
+                recordSkip(lastEndUs);
+            }
+            if (skipLog != null) {
+                skipLog.flush();
+            }
+        } finally {
+            format = null;
+            try {
+                closeSkipLog();
+            } finally {
+                downstream.close();
+            }
+        }
+    }
+
+    /**
+     * 後段に渡さなかったサンプル数
+     */
+    public long getSkippedSamples() {
+        return skippedSamples;
+    }
+
+    /**
+     * 後段に渡したサンプル数
+     */
+    public long getWrittenSamples() {
+        return writtenSamples;
+    }
+
+    /**
+     * 詰めた無音区間の数
+     */
+    public long getSkippedRangeCount() {
+        return skippedRanges;
+    }
+
+    /**
+     * 書き込まなかったPCMのバイト数
+     */
+    public long getSkippedPcmBytes() {
+        return skippedSamples * PcmFormat.BYTES_PER_SAMPLE;
+    }
+
+    /**
+     * 書き込まなかった分で節約できた出力ファイルのバイト数の推定値。
+     * 後段が実際に書いた「入力1サンプルあたりのバイト数」から求める (AACなら圧縮後のサイズになる)。
+     */
+    public long getEstimatedSavedBytes() {
+        if (writtenSamples == 0) {
+            return getSkippedPcmBytes();
+        }
+        return (long) (skippedSamples * (downstream.getBytesWritten() / (double) writtenSamples));
+    }
+
+    /**
+     * 書き込まなかった分で節約できた後段の処理時間 (エンコードを含む) の推定値 (ミリ秒)。
+     * 後段の write() にかかった「1サンプルあたりの時間」から求める。
+     */
+    public double getEstimatedSavedMillis() {
+        if (writtenSamples == 0) {
+            return 0;
+        }
+        return skippedSamples * (downstreamNanos / (double) writtenSamples) / 1e6;
+    }
+
+    private void writeDownstream(short[] buffer, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        downstream.write(buffer, offset, length, format.samplesToUs(writtenSamples));
+        downstreamNanos += System.nanoTime() - start;
+        writtenSamples += length;
+    }
+
+    /**
+     * 無音のバッファをリングに残す。あふれた古いサンプルは捨てる。
+     */
+    private void keepInPreRoll(short[] buffer, int offset, int length) {
+        int capacity = preRoll.length;
+        if (length >= capacity) {
+            skippedSamples += preRollFill + (length - capacity);
+            System.arraycopy(buffer, offset + length - capacity, preRoll, 0, capacity);
+            preRollStart = 0;
+            preRollFill = capacity;
+            return;
+        }
+        int overflow = preRollFill + length - capacity;
+        if (overflow > 0) {
+            skippedSamples += overflow;
+            preRollStart = (preRollStart + overflow) % capacity;
+            preRollFill -= overflow;
+        }
+        int tail = (preRollStart + preRollFill) % capacity;
+        int first = Math.min(length, capacity - tail);
+        System.arraycopy(buffer, offset, preRoll, tail, first);
+        System.arraycopy(buffer, offset + first, preRoll, 0, length - first);
+        preRollFill += length;
+    }
+
+    private void flushPreRoll() throws IOException {
+        int capacity = preRoll.length;
+        int first = Math.min(preRollFill, capacity - preRollStart);
+        if (first > 0) {
+            writeDownstream(preRoll, preRollStart, first);
+        }
+        if (preRollFill > first) {
+            writeDownstream(preRoll, 0, preRollFill - first);
+        }
+        preRollStart = 0;
+        preRollFill = 0;
+    }
+
+    /**
+     * skipStartUs から endUs までを詰めた区間として記録する
+     */
+    private void recordSkip(long endUs) throws IOException {
+        if (endUs <= skipStartUs) {
+            return;
+        }
+        skippedRanges++;
+        if (skipLog != null) {
+            long outputUs = format.samplesToUs(writtenSamples);
+            skipLog.write(outputUs + "\t" + skipStartUs + "\t" + endUs + "\n");
+        }
+    }
+
+    private void closeSkipLog() throws IOException {
+        if (skipLog != null) {
+            Writer log = skipLog;
+            skipLog = null;
+            log.close();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.recordingapp;
+
+/**
+ * エネルギーとゼロ交差率による簡易な音声区間検出 (VAD)。
+ *
+ * バッファごとに平均エネルギー (dBFS) とゼロ交差率を計算し、
+ * 「背景ノイズの推定値より十分に大きく、かつノイズのように細かく符号が変わり続けていない」ときに発話とみなす。
+ * 背景ノイズの推定値は主に発話でないバッファから追従させる。
+ * 発話が終わってもしばらく (ハングオーバー) は発話中のままにして、語尾が切れないようにする。
+ *
+ * オブジェクトの確保はしないので、書き込みスレッド上でバッファごとに呼んでよい。
+ */
+public final class VoiceActivityDetector {
+
+    private static final double FULL_SCALE_SQUARED = 32768.0 * 32768.0;
+    // これより小さい音は背景ノイズに関係なく無音とみなす
+    private static final double ABSOLUTE_THRESHOLD_DB = -55;
+    // 背景ノイズの推定値よりこれだけ大きければ発話とみなす
+    private static final double NOISE_MARGIN_DB = 9;
+    // ゼロ交差率がこれを超えるバッファはヒスノイズ等とみなし、より大きな余裕を要求する
+    private static final double NOISY_ZERO_CROSSING_RATE = 0.35;
+    private static final double NOISY_EXTRA_MARGIN_DB = 10;
+    // 背景ノイズの推定値が追従する時定数 (秒)。下がるときは速く、上がるときはゆっくり追従する。
+    // 発話と判定している間もごくゆっくり上げ、一定の大きな雑音が続いても発話のままにならないようにする
+    private static final double NOISE_FALL_SECONDS = 0.05;
+    private static final double NOISE_RISE_SECONDS = 1.0;
+    private static final double NOISE_RISE_DURING_SPEECH_SECONDS = 4.0;
+    private static final double INITIAL_NOISE_FLOOR_DB = -70;
+
+    private final int channelCount;
+    private final double sampleRate;
+    private final int hangoverSamples;
+
+    private double noiseFloorDb = INITIAL_NOISE_FLOOR_DB;
+    private double lastEnergyDb = -96;
+    private double lastZeroCrossingRate;
+    private int hangoverRemaining;
+    private boolean active;
+
+    /**
+     * @param hangoverMs 発話が終わってから無音と判定するまでの時間
+     */
+    public VoiceActivityDetector(PcmFormat format, int hangoverMs) {
+        this.channelCount = format.getChannelCount();
+        this.sampleRate = format.getSampleRate();
+        this.hangoverSamples = format.samplesForMillis(hangoverMs);
+    }
+
+    /**
+     * バッファを1つ判定する
+     * @return 発話中 (ハングオーバー中を含む) なら true
+     */
+    public boolean process(short[] buffer, int offset, int length) {
+        if (length <= 0) {
+            return active;
+        }
+        long sumOfSquares = 0;
+        int zeroCrossings = 0;
+        int previous = buffer[offset];
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            int sample = buffer[i];
+            sumOfSquares += (long) sample * sample;
+        }
+        // ゼロ交差は先頭チャンネルだけで数える (インターリーブされたチャンネル間の差を数えないため)
+        for (int i = offset + channelCount; i < end; i += channelCount) {
+            int sample = buffer[i];
+            if ((sample ^ previous) < 0) {
+                zeroCrossings++;
+            }
+            previous = sample;
+        }
+        double meanSquare = sumOfSquares / (double) length / FULL_SCALE_SQUARED;
+        lastEnergyDb = meanSquare > 0 ? 10 * Math.log10(meanSquare) : -96;
+        int frames = length / channelCount;
+        lastZeroCrossingRate = zeroCrossings / (double) Math.max(1, frames - 1);
+
+        double margin = NOISE_MARGIN_DB;
+        if (lastZeroCrossingRate > NOISY_ZERO_CROSSING_RATE) {
+            margin += NOISY_EXTRA_MARGIN_DB;
+        }
+        boolean speech = lastEnergyDb > ABSOLUTE_THRESHOLD_DB && lastEnergyDb > noiseFloorDb + margin;
+
+        if (speech) {
+            trackNoiseFloor(frames, NOISE_RISE_DURING_SPEECH_SECONDS);
+            hangoverRemaining = hangoverSamples;
+            active = true;
+        } else {
+            trackNoiseFloor(frames, lastEnergyDb < noiseFloorDb ? NOISE_FALL_SECONDS : NOISE_RISE_SECONDS);
+            if (hangoverRemaining > 0) {
+                hangoverRemaining -= length;
+                active = true;
+            } else {
+                active = false;
+            }
+        }
+        return active;
+    }
+
+    /**
+     * 背景ノイズの推定値を、frames フレーム分の時間だけ直前のエネルギーへ近づける
+     */
+    private void trackNoiseFloor(int frames, double timeConstantSeconds) {
+        double rate = 1 - Math.exp(-frames / (timeConstantSeconds * sampleRate));
+        noiseFloorDb += (lastEnergyDb - noiseFloorDb) * rate;
+    }
+
+    /**
+     * 直前に判定したバッファが発話中だったかどうか
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * 直前に判定したバッファの平均エネルギー (dBFS)
+     */
+    public double getLastEnergyDb() {
+        return lastEnergyDb;
+    }
+
+    /**
+     * 直前に判定したバッファのゼロ交差率 (1サンプルあたり)
+     */
+    public double getLastZeroCrossingRate() {
+        return lastZeroCrossingRate;
+    }
+
+    /**
+     * 現在の背景ノイズの推定値 (dBFS)
+     */
+    public double getNoiseFloorDb() {
+        return noiseFloorDb;
+    }
+}
@@ -0,0 +1,240 @@
+package com.example.recordingapp;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * PCMをそのままWAVファイルに書き出す {@link PcmSink}。
+ *
+ * サンプルはダイレクトバッファに溜めてから FileChannel でまとめて書き込む。
+ * ファイル領域は大きな単位 (エクステント) で先に確保しておき、書き込みのたびに
+ * ファイルサイズのメタデータが更新されないようにする。
+ *
+ * RIFFヘッダのサイズ欄は一定量を書き込むたびと終了時に書き換え、その時点までをディスクに同期する。
+ * そのため、プロセスが強制終了されてもヘッダに記録済みの位置までは再生できる。
+ * 先に確保した領域の余りはRIFFのデータ範囲の外なので、再生には影響しない。
+ */
+public final class WavFileSink implements PcmSink {
+
+    /** WAVヘッダのバイト数 */
+    public static final int HEADER_SIZE = 44;
+
+    // RIFFのサイズ欄は32bitなので、データ部はこれを超えられない
+    private static final long MAX_DATA_BYTES = 0xFFFFFFFFL - (HEADER_SIZE - 8);
+    private static final int DEFAULT_BUFFER_BYTES = 64 * 1024;
+    private static final long DEFAULT_PREALLOCATE_BYTES = 8L * 1024 * 1024;
+    private static final long DEFAULT_HEADER_UPDATE_BYTES = 512L * 1024;
+
+    /**
+     * ファイル領域を先に確保する方法。Androidでは posix_fallocate を使う実装を渡す。
+     */
+    public interface Preallocator {
+        /**
+         * [offset, offset + length) の領域を確保する
+         */
+        void preallocate(RandomAccessFile file, FileDescriptor fd, long offset, long length) throws IOException;
+    }
+
+    /**
+     * ファイル長を伸ばすだけの既定の確保方法 (どのJVMでも動く)
+     */
+    public static final Preallocator SET_LENGTH = (file, fd, offset, length) -> {
+        if (file.length() < offset + length) {
+            file.setLength(offset + length);
+        }
+    };
+
+    private final String outputFilePath;
+    private final long preallocateBytes;
+    private final long headerUpdateBytes;
+    private final ByteBuffer buffer;
+    // buffer と内容を共有する short 単位のビュー。書き込みのたびに作らないよう一度だけ作る
+    private final ShortBuffer samplesView;
+    private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private Preallocator preallocator = SET_LENGTH;
+
+    private PcmFormat format;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    // ファイルに書き込み済みのデータ部のバイト数 (バッファに残っている分は含まない)
+    private long flushedDataBytes;
+    // ヘッダに記録済みのデータ部のバイト数
+    private long committedDataBytes;
+    // 確保済みの領域の終端 (ファイル先頭からのバイト位置)
+    private long allocatedEnd;
+
+    public WavFileSink(String outputFilePath) {
+        this(outputFilePath, DEFAULT_BUFFER_BYTES, DEFAULT_PREALLOCATE_BYTES, DEFAULT_HEADER_UPDATE_BYTES);
+    }
+
+    /**
+     * @param bufferBytes 書き込み前にサンプルを溜めるバッファの大きさ
+     * @param preallocateBytes 1回に確保するファイル領域の大きさ
+     * @param headerUpdateBytes ヘッダを書き換えてディスクに同期する間隔 (データ部のバイト数)
+     */
+    public WavFileSink(String outputFilePath, int bufferBytes, long preallocateBytes, long headerUpdateBytes) {
+        if (bufferBytes < PcmFormat.BYTES_PER_SAMPLE || bufferBytes % PcmFormat.BYTES_PER_SAMPLE != 0) {
+            throw new IllegalArgumentException("bufferBytes must be a positive multiple of 2: " + bufferBytes);
+        }
+        this.outputFilePath = outputFilePath;
+        this.preallocateBytes = preallocateBytes;
+        this.headerUpdateBytes = headerUpdateBytes;
+        this.buffer = ByteBuffer.allocateDirect(bufferBytes).order(ByteOrder.LITTLE_ENDIAN);
+        this.samplesView = buffer.asShortBuffer();
+    }
+
+    /**
+     * ファイル領域の確保方法を指定する。open() より前に呼ぶこと。
+     */
+    public void setPreallocator(Preallocator preallocator) {
+        this.preallocator = preallocator;
+    }
+
+    @Override
+    public void open(PcmFormat format) throws IOException {
+        this.format = format;
+        file = new RandomAccessFile(outputFilePath, "rw");
+        try {
+            file.setLength(0);
+            channel = file.getChannel();
+            flushedDataBytes = 0;
+            committedDataBytes = 0;
+            allocatedEnd = 0;
+            buffer.clear();
+            ensureAllocated(HEADER_SIZE);
+            // データが0バイトのヘッダを書いておく。この時点で落ちても空のWAVとして開ける
+            writeHeader(0);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            file = null;
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(short[] samples, int offset, int length, long presentationTimeUs) throws IOException {
+        if (flushedDataBytes + buffer.position() + (long) length * PcmFormat.BYTES_PER_SAMPLE > MAX_DATA_BYTES) {
+            throw new IOException("WAVファイルの上限 (4GB) を超えます。分割録音を使ってください。");
+        }
+        int written = 0;
+        while (written < length) {
+            int count = Math.min(length - written, buffer.remaining() / PcmFormat.BYTES_PER_SAMPLE);
+            // ShortBuffer 経由でまとめて書き込む (1サンプルずつ put するより速い)。
+            // ビューの位置は buffer とは別なので、書き込む前に buffer の位置へ合わせる
+            samplesView.position(buffer.position() / PcmFormat.BYTES_PER_SAMPLE);
+            samplesView.put(samples, offset + written, count);
+            buffer.position(buffer.position() + count * PcmFormat.BYTES_PER_SAMPLE);
+            written += count;
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+        }
+        if (flushedDataBytes - committedDataBytes >= headerUpdateBytes) {
+            commit();
+        }
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return flushedDataBytes + buffer.position();
+    }
+
+    /**
+     * ファイルに書き込み済みのデータ部のバイト数 (バッファに残っている分は含まない)。
+     * ディスクへの同期はしていないが、プロセスが強制終了されてもOSのキャッシュからファイルに残る
+     */
+    public long getFlushedBytes() {
+        return flushedDataBytes;
+    }
+
+    /**
+     * バッファの内容を書き出し、ヘッダを現在の長さに書き換えてディスクに同期する。
+     * これ以降に強制終了されても、ここまでのデータは再生できる。
+     */
+    public void commit() throws IOException {
+        flushBuffer();
+        writeHeader(flushedDataBytes);
+        channel.force(false);
+        committedDataBytes = flushedDataBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file == null) {
+            return;
+        }
+        try {
+            flushBuffer();
+            writeHeader(flushedDataBytes);
+            // 先に確保した領域のうち、使わなかった部分を切り詰める
+            channel.truncate(HEADER_SIZE + flushedDataBytes);
+            channel.force(true);
+            committedDataBytes = flushedDataBytes;
+        } finally {
+            file.close();
+            file = null;
+            channel = null;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        long position = HEADER_SIZE + flushedDataBytes;
+        ensureAllocated(position + buffer.remaining());
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        flushedDataBytes = position - HEADER_SIZE;
+        buffer.clear();
+    }
+
+    private void ensureAllocated(long end) throws IOException {
+        if (end <= allocatedEnd || preallocateBytes <= 0) {
+            return;
+        }
+        long newEnd = Math.max(end, allocatedEnd + preallocateBytes);
+        preallocator.preallocate(file, file.getFD(), allocatedEnd, newEnd - allocatedEnd);
+        allocatedEnd = newEnd;
+    }
+
+    private void writeHeader(long dataBytes) throws IOException {
+        header.clear();
+        putHeader(header, format, dataBytes);
+        header.flip();
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+    }
+
+    /**
+     * 44バイトの標準的なWAVヘッダ (PCM 16bit) をバッファに書き込む
+     */
+    public static void putHeader(ByteBuffer target, PcmFormat format, long dataBytes) {
+        ByteOrder order = target.order();
+        target.order(ByteOrder.LITTLE_ENDIAN);
+        int byteRate = format.getSampleRate() * format.getBytesPerFrame();
+        target.put((byte) 'R').put((byte) 'I').put((byte) 'F').put((byte) 'F');
+        target.putInt((int) (HEADER_SIZE - 8 + dataBytes));
+        target.put((byte) 'W').put((byte) 'A').put((byte) 'V').put((byte) 'E');
+        target.put((byte) 'f').put((byte) 'm').put((byte) 't').put((byte) ' ');
+        target.putInt(16);                                   // fmtチャンクのサイズ
+        target.putShort((short) 1);                          // PCM
+        target.putShort((short) format.getChannelCount());
+        target.putInt(format.getSampleRate());
+        target.putInt(byteRate);
+        target.putShort((short) format.getBytesPerFrame());  // ブロックサイズ
+        target.putShort((short) 16);                         // ビット数
+        target.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+        target.putInt((int) dataBytes);
+        target.order(order);
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.recordingapp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * 16bit PCM のWAVファイルを先頭から順に読み込む。
+ *
+ * チャンクを順にたどって fmt と data を探すので、{@link WavFileSink} 以外が書いたファイルも読める。
+ * data チャンクの長さはヘッダの値とファイルの実際の長さの短い方を使うので、
+ * 強制終了されて先に確保した領域が残っているファイルでも、ヘッダを最後に更新した位置までを読む。
+ */
+public final class WavReader implements Closeable {
+
+    private static final int RIFF = 'R' | 'I' << 8 | 'F' << 16 | 'F' << 24;
+    private static final int WAVE = 'W' | 'A' << 8 | 'V' << 16 | 'E' << 24;
+    private static final int FMT = 'f' | 'm' << 8 | 't' << 16 | ' ' << 24;
+    private static final int DATA = 'd' | 'a' << 8 | 't' << 16 | 'a' << 24;
+    private static final short FORMAT_PCM = 1;
+    private static final int DEFAULT_BUFFER_BYTES = 64 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final PcmFormat format;
+    private final long dataStart;
+    private final long dataBytes;
+    // data チャンクの先頭から読み込み済みのバイト数
+    private long position;
+
+    public WavReader(File wavFile) throws IOException {
+        file = new RandomAccessFile(wavFile, "r");
+        try {
+            channel = file.getChannel();
+            buffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer chunk = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(chunk, 0, 12);
+            if (chunk.getInt(0) != RIFF || chunk.getInt(8) != WAVE) {
+                throw new IOException("WAVファイルではありません: " + wavFile);
+            }
+            PcmFormat fmt = null;
+            long start;
+            long bytes;
+            long offset = 12;
+            long length = file.length();
+            while (true) {
+                if (offset + 8 > length) {
+                    throw new IOException("data チャンクが見つかりません: " + wavFile);
+                }
+                readFully(chunk, offset, 8);
+                int id = chunk.getInt(0);
+                long size = chunk.getInt(4) & 0xFFFFFFFFL;
+                if (id == FMT) {
+                    readFully(chunk, offset + 8, 16);
+                    if (chunk.getShort(0) != FORMAT_PCM || chunk.getShort(14) != 16) {
+                        throw new IOException("16bit PCM 以外のWAVには対応していません: " + wavFile);
+                    }
+                    fmt = new PcmFormat(chunk.getInt(4), chunk.getShort(2));
+                } else if (id == DATA) {
+                    if (fmt == null) {
+                        throw new IOException("fmt チャンクが data チャンクより後にあります: " + wavFile);
+                    }
+                    start = offset + 8;
+                    bytes = Math.min(size, length - start);
+                    break;
+                }
+                // チャンクは2バイト境界に揃えられる
+                offset += 8 + size + (size & 1);
+            }
+            format = fmt;
+            dataStart = start;
+            // フレームの途中で切れている分は読まない
+            dataBytes = bytes - bytes % fmt.getBytesPerFrame();
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public PcmFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * 読み込めるフレーム数
+     */
+    public long getTotalFrames() {
+        return dataBytes / format.getBytesPerFrame();
+    }
+
+    /**
+     * サンプルを読み込む (インターリーブのまま)
+     * @return 読み込んだサンプル数。終端に達していれば -1
+     */
+    public int read(short[] samples, int offset, int length) throws IOException {
+        long remaining = dataBytes - position;
+        if (remaining <= 0) {
+            return -1;
+        }
+        int bytes = (int) Math.min(remaining, Math.min((long) length * PcmFormat.BYTES_PER_SAMPLE, buffer.capacity()));
+        buffer.clear();
+        buffer.limit(bytes);
+        long filePosition = dataStart + position;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, filePosition);
+            if (read < 0) {
+                throw new IOException("WAVファイルが途中で切れています");
+            }
+            filePosition += read;
+        }
+        buffer.flip();
+        int count = bytes / PcmFormat.BYTES_PER_SAMPLE;
+        buffer.asShortBuffer().get(samples, offset, count);
+        position += bytes;
+        return count;
+    }
+
+    /**
+     * 次に読み込む位置をフレーム単位で指定する
+     */
+    public void seek(long frame) {
+        long frameBytes = format.getBytesPerFrame();
+        position = Math.max(0, Math.min(dataBytes, frame * frameBytes));
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private void readFully(ByteBuffer target, long filePosition, int length) throws IOException {
+        target.clear();
+        target.limit(length);
+        while (target.hasRemaining()) {
+            if (channel.read(target, filePosition + target.position()) < 0) {
+                throw new IOException("WAVヘッダが途中で切れています");
+            }
+        }
+    }
+}
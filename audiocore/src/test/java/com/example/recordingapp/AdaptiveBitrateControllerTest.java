@@ -0,0 +1,190 @@
+package com.example.recordingapp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link EncoderProfile} のビットレートの段と、{@link AdaptiveBitrateController} の切り替えの判断、
+ * {@link SegmentedSink} と組み合わせたときのセグメントごとのビットレートを確認するテスト
+ */
+public class AdaptiveBitrateControllerTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static final int BUFFER_COUNT = 64;
+    // 十分な空き容量 (128kbps で約17時間)
+    private static final long PLENTY = 1L << 33;
+
+    private final List<String> reasons = new ArrayList<>();
+
+    private AdaptiveBitrateController newController(EncoderProfile profile) {
+        return new AdaptiveBitrateController(profile, BUFFER_COUNT, () -> 0, () -> PLENTY,
+                (previous, bitRate, reason, presentationTimeUs) -> reasons.add(reason));
+    }
+
+    @Test
+    public void profilesHaveLadderFromDefaultDownToMinimum() {
+        assertArrayEquals(new int[]{128_000, 96_000, 72_000, 64_000}, EncoderProfile.STANDARD.getBitRateLadder());
+        assertArrayEquals(new int[]{32_000, 24_000, 18_000, 16_000}, EncoderProfile.SPEECH.getBitRateLadder());
+        int[] music = EncoderProfile.MUSIC.getBitRateLadder();
+        assertEquals(256_000, music[0]);
+        assertEquals(96_000, music[music.length - 1]);
+
+        assertSame(EncoderProfile.SPEECH, EncoderProfile.forName("speech"));
+        assertSame(EncoderProfile.OPUS, EncoderProfile.forName("opus"));
+        assertSame(EncoderProfile.STANDARD, EncoderProfile.forName(null));
+        assertSame(EncoderProfile.STANDARD, EncoderProfile.forName("flac"));
+        assertEquals(new PcmFormat(48000, 2), EncoderProfile.MUSIC.getFormat());
+    }
+
+    @Test
+    public void optionsFollowProfileCodec() {
+        RecordingOptions options = new RecordingOptions();
+        assertEquals(".mp4", options.getFileExtension());
+        options.setEncoderProfile(EncoderProfile.OPUS);
+        assertEquals(".ogg", options.getFileExtension());
+        assertEquals(RecordingOptions.OUTPUT_FORMAT_OPUS, options.getOutputFormat());
+        options.setAdaptiveBitrate(true);
+        assertTrue(options.isAdaptiveBitrate());
+
+        // WAVではビットレートを変えられない
+        options.setOutputFormat(RecordingOptions.OUTPUT_FORMAT_WAV);
+        assertEquals(".wav", options.getFileExtension());
+        assertFalse(options.isAdaptiveBitrate());
+        assertEquals(RecordingProbe.formatOf("/data/REC_20250101_000000.ogg"), RecordingOptions.OUTPUT_FORMAT_OPUS);
+    }
+
+    @Test
+    public void writerLagStepsDownOneLevelAtATimeWithHoldOff() {
+        AdaptiveBitrateController controller = newController(EncoderProfile.STANDARD);
+
+        controller.evaluate(BUFFER_COUNT / 4, PLENTY, 1_000_000);
+        assertEquals(96_000, controller.getBitRate());
+        assertTrue(reasons.get(0).startsWith("書き込みの遅れ"));
+
+        // 切り替えの直後は、遅れが続いてもしばらく待つ
+        for (int i = 1; i < AdaptiveBitrateController.HOLD_EVALUATIONS; i++) {
+            controller.evaluate(BUFFER_COUNT, PLENTY, 1_000_000 + i * 1_000_000L);
+            assertEquals(96_000, controller.getBitRate());
+        }
+        controller.evaluate(BUFFER_COUNT, PLENTY, 6_000_000);
+        assertEquals(72_000, controller.getBitRate());
+
+        // 最低のビットレートより下には下げない
+        for (int i = 0; i < 20; i++) {
+            controller.evaluate(BUFFER_COUNT, PLENTY, 7_000_000 + i * 1_000_000L);
+        }
+        assertEquals(64_000, controller.getBitRate());
+        assertEquals(3, controller.getChangeCount());
+    }
+
+    @Test
+    public void lowFreeSpaceStepsDownAndRecoveryStepsBackUp() {
+        AdaptiveBitrateController controller = newController(EncoderProfile.STANDARD);
+        // 128kbps = 16000 bytes/秒 で20分しか録音できない
+        long lowSpace = 16_000L * 20 * 60;
+        controller.evaluate(0, lowSpace, 1_000_000);
+        assertEquals(96_000, controller.getBitRate());
+        assertTrue(reasons.get(0).startsWith("空き容量の不足"));
+
+        // 96kbps なら約27分なので、まだ足りない
+        for (int i = 0; i < AdaptiveBitrateController.HOLD_EVALUATIONS; i++) {
+            controller.evaluate(0, lowSpace, 2_000_000 + i * 1_000_000L);
+        }
+        assertEquals(72_000, controller.getBitRate());
+
+        // 空き容量が戻っても、落ち着いた状態が続くまでは上げない
+        for (int i = 1; i < AdaptiveBitrateController.RECOVER_EVALUATIONS; i++) {
+            controller.evaluate(0, PLENTY, 10_000_000 + i * 1_000_000L);
+        }
+        assertEquals(72_000, controller.getBitRate());
+        controller.evaluate(0, PLENTY, 20_000_000);
+        assertEquals(96_000, controller.getBitRate());
+        assertEquals("回復", reasons.get(reasons.size() - 1));
+
+        // 途中で遅れがあると数え直す
+        for (int i = 1; i < AdaptiveBitrateController.RECOVER_EVALUATIONS; i++) {
+            controller.evaluate(0, PLENTY, 20_000_000 + i * 1_000_000L);
+        }
+        controller.evaluate(BUFFER_COUNT / 8, PLENTY, 30_000_000);
+        controller.evaluate(0, PLENTY, 31_000_000);
+        assertEquals(96_000, controller.getBitRate());
+    }
+
+    @Test
+    public void eachRotatedSegmentUsesTheNewBitRate() throws Exception {
+        PcmFormat format = new PcmFormat(1000, 1);
+        int[] queued = {0};
+        List<Integer> segmentBitRates = new ArrayList<>();
+        String basePath = new File(tempFolder.getRoot(), "REC_20250101_000000.mp4").getPath();
+        SegmentedSink[] segmented = new SegmentedSink[1];
+        AdaptiveBitrateController[] controller = new AdaptiveBitrateController[1];
+        segmented[0] = new SegmentedSink(basePath, path -> {
+            segmentBitRates.add(controller[0].getBitRate());
+            return new CountingSink();
+        }, 0, 0, new SessionManifest(new File(tempFolder.getRoot(), "REC_20250101_000000.manifest")));
+        SessionMetrics metrics = new SessionMetrics();
+        controller[0] = new AdaptiveBitrateController(EncoderProfile.SPEECH, BUFFER_COUNT, () -> queued[0], () -> PLENTY,
+                (previous, bitRate, reason, presentationTimeUs) -> {
+                    segmented[0].requestRotation();
+                    metrics.recordEncoderChange(presentationTimeUs, "speech", bitRate, reason);
+                });
+        PcmSink sink = new ProcessingSink(controller[0], segmented[0]);
+
+        // 100ms ごとのバッファを10秒分。3秒目の間だけ書き込みが遅れる
+        sink.open(format);
+        short[] buffer = new short[100];
+        for (int b = 0; b < 100; b++) {
+            queued[0] = b >= 20 && b < 30 ? BUFFER_COUNT / 2 : 0;
+            sink.write(buffer, 0, buffer.length, format.samplesToUs(b * 100L));
+        }
+        sink.close();
+
+        assertEquals(2, segmented[0].getSegmentIndex());
+        assertEquals(2, segmentBitRates.size());
+        assertEquals(Integer.valueOf(32_000), segmentBitRates.get(0));
+        assertEquals(Integer.valueOf(24_000), segmentBitRates.get(1));
+        List<SessionMetrics.EncoderChange> changes = metrics.getEncoderChanges();
+        assertEquals(1, changes.size());
+        assertEquals(2_000_000, changes.get(0).atUs);
+        assertEquals(24_000, changes.get(0).bitRate);
+        List<SessionManifest.Segment> segments =
+                new SessionManifest(new File(tempFolder.getRoot(), "REC_20250101_000000.manifest")).read();
+        assertEquals(2, segments.size());
+        // 切り替えを決めたバッファから新しいセグメントになる
+        assertEquals(2_000_000, segments.get(1).startUs);
+    }
+
+    /**
+     * 書き込んだバイト数を数えるだけのシンク
+     */
+    private static final class CountingSink implements PcmSink {
+        private long bytes;
+
+        @Override
+        public void open(PcmFormat format) {
+        }
+
+        @Override
+        public void write(short[] buffer, int offset, int length, long presentationTimeUs) {
+            bytes += length * (long) PcmFormat.BYTES_PER_SAMPLE;
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return bytes;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
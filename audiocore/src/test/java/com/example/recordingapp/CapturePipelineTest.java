@@ -0,0 +1,210 @@
+package com.example.recordingapp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+/**
+ * 偽のPCMソースを使って {@link CapturePipeline} のバッファ受け渡しを確認するテスト
+ */
+public class CapturePipelineTest {
+
+    /**
+     * 0, 1, 2, ... と連番のサンプルを指定数だけ返すソース。
+     * 実際のマイクと同じように、1回の読み込みごとに少し待つ。
+     */
+    static final class RampSource implements PcmSource {
+        private final PcmFormat format;
+        private final long totalSamples;
+        private final long readDelayNanos;
+        private volatile long position;
+        private volatile boolean released;
+
+        RampSource(PcmFormat format, long totalSamples, long readDelayNanos) {
+            this.format = format;
+            this.totalSamples = totalSamples;
+            this.readDelayNanos = readDelayNanos;
+        }
+
+        @Override
+        public PcmFormat getFormat() {
+            return format;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public int read(short[] buffer, int offset, int length) {
+            LockSupport.parkNanos(readDelayNanos);
+            int count = (int) Math.min(length, totalSamples - position);
+            if (count <= 0) {
+                Thread.yield();
+                return 0;
+            }
+            long start = position;
+            for (int i = 0; i < count; i++) {
+                buffer[offset + i] = (short) (start + i);
+            }
+            position = start + count;
+            return count;
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+
+        boolean isDrained() {
+            return position >= totalSamples;
+        }
+    }
+
+    /**
+     * 受け取ったサンプルが連番かどうかを確認するシンク
+     */
+    private static class CheckingSink implements PcmSink {
+        private final long writeDelayMillis;
+        long expected;
+        long lastPtsUs = -1;
+        boolean opened;
+        boolean closed;
+        boolean outOfOrder;
+
+        CheckingSink(long writeDelayMillis) {
+            this.writeDelayMillis = writeDelayMillis;
+        }
+
+        @Override
+        public void open(PcmFormat format) {
+            opened = true;
+        }
+
+        @Override
+        public void write(short[] buffer, int offset, int length, long presentationTimeUs) throws IOException {
+            if (presentationTimeUs <= lastPtsUs) {
+                outOfOrder = true;
+            }
+            lastPtsUs = presentationTimeUs;
+            for (int i = 0; i < length; i++) {
+                if (buffer[offset + i] != (short) expected) {
+                    outOfOrder = true;
+                }
+                expected++;
+            }
+            if (writeDelayMillis > 0) {
+                try {
+                    Thread.sleep(writeDelayMillis);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return expected * PcmFormat.BYTES_PER_SAMPLE;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static void waitUntilDrained(RampSource source) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!source.isDrained() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue("source was not drained in time", source.isDrained());
+    }
+
+    @Test
+    public void allSamplesReachSinkInOrder() throws Exception {
+        PcmFormat format = new PcmFormat(48000, 2);
+        RampSource source = new RampSource(format, 1_000_000, 20_000);
+        CheckingSink sink = new CheckingSink(0);
+        CapturePipeline pipeline = new CapturePipeline(source, sink, 8, 960);
+
+        pipeline.start();
+        waitUntilDrained(source);
+        pipeline.stop();
+
+        assertTrue(sink.opened);
+        assertTrue(sink.closed);
+        assertTrue(source.released);
+        assertFalse(sink.outOfOrder);
+        assertEquals(0, pipeline.getOverrunCount());
+        assertEquals(1_000_000, sink.expected);
+        assertEquals(1_000_000, pipeline.getCapturedSamples());
+    }
+
+    @Test
+    public void firstSampleTimeIsRecordedOnceAfterStart() throws Exception {
+        PcmFormat format = new PcmFormat(16000, 1);
+        RampSource source = new RampSource(format, 50_000, 100_000);
+        CapturePipeline pipeline = new CapturePipeline(source, new CheckingSink(0), 8, 320);
+        assertEquals(0, pipeline.getFirstSampleNanos());
+
+        long before = System.nanoTime();
+        pipeline.start();
+        waitUntilDrained(source);
+        long first = pipeline.getFirstSampleNanos();
+        pipeline.stop();
+
+        assertTrue(first >= before);
+        assertTrue(first <= System.nanoTime());
+        assertEquals(first, pipeline.getFirstSampleNanos());
+    }
+
+    @Test
+    public void slowSinkCausesOverrunsInsteadOfBlockingCapture() throws Exception {
+        PcmFormat format = new PcmFormat(16000, 1);
+        RampSource source = new RampSource(format, 200_000, 0);
+        CheckingSink sink = new CheckingSink(5);
+        CapturePipeline pipeline = new CapturePipeline(source, sink, 2, 1000);
+
+        pipeline.start();
+        waitUntilDrained(source);
+        pipeline.stop();
+
+        assertTrue(pipeline.getOverrunCount() > 0);
+        assertEquals(200_000, pipeline.getCapturedSamples());
+        assertTrue(sink.expected < 200_000);
+    }
+
+    @Test
+    public void sinkErrorIsReportedToListenerAndFromStop() throws Exception {
+        PcmFormat format = new PcmFormat(8000, 1);
+        RampSource source = new RampSource(format, 100_000, 0);
+        PcmSink failingSink = new CheckingSink(0) {
+            @Override
+            public void write(short[] buffer, int offset, int length, long presentationTimeUs) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        CapturePipeline pipeline = new CapturePipeline(source, failingSink, 4, 800);
+        CountDownLatch reported = new CountDownLatch(1);
+        pipeline.setListener(e -> reported.countDown());
+
+        pipeline.start();
+        assertTrue(reported.await(10, TimeUnit.SECONDS));
+        try {
+            pipeline.stop();
+            fail("stop() should rethrow the writer error");
+        } catch (IOException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.recordingapp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link LevelMeter} のピーク/RMSの計算と公開頻度を確認するテスト
+ */
+public class LevelMeterTest {
+
+    private static final PcmFormat FORMAT = new PcmFormat(48000, 1);
+
+    /**
+     * 振幅 amplitude (フルスケール=1.0) の 1kHz サイン波を、10ms ずつ seconds 秒分流す
+     */
+    private static void feedSine(LevelMeter meter, double amplitude, double seconds) {
+        short[] buffer = new short[480];
+        long position = 0;
+        long total = (long) (FORMAT.getSampleRate() * seconds);
+        while (position < total) {
+            for (int i = 0; i < buffer.length; i++) {
+                double t = (position + i) / (double) FORMAT.getSampleRate();
+                buffer[i] = (short) Math.round(amplitude * 32767 * Math.sin(2 * Math.PI * 1000 * t));
+            }
+            meter.process(buffer, 0, buffer.length, FORMAT.samplesToUs(position));
+            position += buffer.length;
+        }
+    }
+
+    @Test
+    public void measuresPeakAndRmsOfSine() {
+        LevelSnapshot snapshot = new LevelSnapshot();
+        LevelMeter meter = new LevelMeter(FORMAT, 30, snapshot);
+
+        feedSine(meter, 0.5, 0.5);
+
+        long level = snapshot.get();
+        assertEquals(0.5, LevelSnapshot.peakOf(level), 0.001);
+        assertEquals(0.5 / Math.sqrt(2), LevelSnapshot.rmsOf(level), 0.001);
+        assertEquals(-9.03, LevelSnapshot.toDbfs(LevelSnapshot.rmsOf(level)), 0.05);
+    }
+
+    @Test
+    public void publishesAtMostAtRequestedRate() {
+        LevelSnapshot snapshot = new LevelSnapshot();
+        LevelMeter meter = new LevelMeter(FORMAT, 30, snapshot);
+
+        feedSine(meter, 0.1, 10);
+
+        // 10ms のバッファの終わりでしか公開しないので、30Hz 指定でも実際は 25Hz (40msごと) になる
+        assertTrue(meter.getPublishCount() <= 300);
+        assertEquals(250, meter.getPublishCount());
+    }
+
+    @Test
+    public void handlesFullScaleNegativeSamplesAndSilence() {
+        LevelSnapshot snapshot = new LevelSnapshot();
+        LevelMeter meter = new LevelMeter(FORMAT, 1000, snapshot);
+
+        short[] buffer = new short[48];
+        Arrays.fill(buffer, Short.MIN_VALUE);
+        meter.process(buffer, 0, buffer.length, 0);
+        assertEquals(1.0f, LevelSnapshot.peakOf(snapshot.get()), 0f);
+        assertEquals(1.0f, LevelSnapshot.rmsOf(snapshot.get()), 0f);
+
+        Arrays.fill(buffer, (short) 0);
+        meter.process(buffer, 0, buffer.length, 0);
+        assertEquals(0f, LevelSnapshot.peakOf(snapshot.get()), 0f);
+        assertEquals(LevelSnapshot.MIN_DBFS, LevelSnapshot.toDbfs(LevelSnapshot.rmsOf(snapshot.get())), 0f);
+    }
+
+    @Test
+    public void snapshotKeepsPeakAndRmsTogether() {
+        LevelSnapshot snapshot = new LevelSnapshot();
+        snapshot.publish(0.75f, 0.25f);
+        long level = snapshot.get();
+        assertEquals(0.75f, LevelSnapshot.peakOf(level), 0f);
+        assertEquals(0.25f, LevelSnapshot.rmsOf(level), 0f);
+        snapshot.reset();
+        assertEquals(0f, LevelSnapshot.peakOf(snapshot.get()), 0f);
+    }
+}
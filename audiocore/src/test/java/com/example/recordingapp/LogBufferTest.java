@@ -0,0 +1,88 @@
+package com.example.recordingapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link LogBuffer} の上書きと、続きからの読み出しを確認するテスト
+ */
+public class LogBufferTest {
+
+    @Test
+    public void readFromReturnsOnlyNewEntries() {
+        LogBuffer buffer = new LogBuffer(8);
+        buffer.append(100, "a");
+        buffer.append(200, "b");
+
+        List<String> read = new ArrayList<>();
+        long next = buffer.readFrom(0, (sequence, timeMillis, message) -> read.add(message + "@" + timeMillis));
+        assertEquals(2, next);
+        assertEquals(List.of("a@100", "b@200"), read);
+
+        buffer.append(300, "c");
+        read.clear();
+        next = buffer.readFrom(next, (sequence, timeMillis, message) -> read.add(message));
+        assertEquals(3, next);
+        assertEquals(List.of("c"), read);
+    }
+
+    @Test
+    public void overwritesOldestEntriesWhenFull() {
+        LogBuffer buffer = new LogBuffer(3);
+        for (int i = 0; i < 10; i++) {
+            buffer.append(i, "m" + i);
+        }
+        assertEquals(3, buffer.size());
+        assertEquals(7, buffer.getOldestSequence());
+        assertEquals(10, buffer.getNextSequence());
+        assertEquals("m7", buffer.getMessage(7));
+        assertEquals(9, buffer.getTimeMillis(9));
+
+        // 上書き済みの番号から読み出しても、残っている最も古いものから返る
+        List<Long> sequences = new ArrayList<>();
+        buffer.readFrom(2, (sequence, timeMillis, message) -> sequences.add(sequence));
+        assertEquals(List.of(7L, 8L, 9L), sequences);
+    }
+
+    @Test
+    public void overwrittenEntriesAreReportedBeforeTheRest() {
+        LogBuffer buffer = new LogBuffer(3);
+        for (int i = 0; i < 10; i++) {
+            buffer.append(i * 100, "m" + i);
+        }
+
+        List<String> read = new ArrayList<>();
+        LogBuffer.Reader reader = new LogBuffer.Reader() {
+            @Override
+            public void onEntry(long sequence, long timeMillis, String message) {
+                read.add(message);
+            }
+
+            @Override
+            public void onSkipped(long count, long timeMillis) {
+                read.add("skipped " + count + "@" + timeMillis);
+            }
+        };
+        long next = buffer.readFrom(2, reader);
+        assertEquals(List.of("skipped 5@700", "m7", "m8", "m9"), read);
+
+        // 追いついていれば何も省略しない
+        read.clear();
+        buffer.append(1000, "m10");
+        buffer.readFrom(next, reader);
+        assertEquals(List.of("m10"), read);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsOverwrittenSequence() {
+        LogBuffer buffer = new LogBuffer(2);
+        buffer.append(0, "a");
+        buffer.append(1, "b");
+        buffer.append(2, "c");
+        buffer.getMessage(0);
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.recordingapp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link Mp4AacWriter} が書くMPEG-4の構造と、強制終了されたファイルを .frames から仕上げる修復を確認するテスト
+ */
+public class Mp4AacWriterTest {
+
+    // AAC-LC 48kHz ステレオの AudioSpecificConfig
+    private static final byte[] CONFIG = {0x11, (byte) 0x90};
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /**
+     * i 番目のフレーム: 長さ 100 + i % 50、中身は i
+     */
+    private static ByteBuffer frame(int i) {
+        byte[] bytes = new byte[100 + i % 50];
+        Arrays.fill(bytes, (byte) i);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static long framesBytes(int count) {
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            bytes += 100 + i % 50;
+        }
+        return bytes;
+    }
+
+    private Mp4AacWriter startWriter(File mp4, int bufferBytes) throws IOException {
+        Mp4AacWriter writer = new Mp4AacWriter(mp4.getPath(), bufferBytes);
+        writer.start(48000, 2, 128_000, ByteBuffer.wrap(CONFIG));
+        return writer;
+    }
+
+    @Test
+    public void closedFileHasSampleTableForEveryFrame() throws Exception {
+        File mp4 = new File(tempFolder.getRoot(), "REC_20250101_000000.mp4");
+        Mp4AacWriter writer = startWriter(mp4, 4096);
+        for (int i = 0; i < 300; i++) {
+            writer.writeFrame(frame(i));
+        }
+        assertEquals(framesBytes(300), writer.getDataBytes());
+
+        long[] finished = writer.close();
+
+        assertEquals(framesBytes(300), finished[0]);
+        assertEquals(300L * 1024 * 1_000_000 / 48000, finished[1]);
+        assertFalse(new File(Mp4AacWriter.framesPathFor(mp4.getPath())).exists());
+        Map<String, ByteBuffer> boxes = parse(mp4);
+        assertSampleTable(boxes, 300);
+        assertArrayEquals(finished, Mp4AacWriter.readFinished(mp4));
+    }
+
+    @Test
+    public void interruptedFileIsFinishedFromTheFramesLog() throws Exception {
+        File mp4 = new File(tempFolder.getRoot(), "REC_20250101_000000.mp4");
+        Mp4AacWriter writer = startWriter(mp4, 4096);
+        for (int i = 0; i < 200; i++) {
+            writer.writeFrame(frame(i));
+        }
+        writer.flush();
+        // 次のバッファを書き出している途中で終了した: フレームのデータは途中まで、.frames には載っていない
+        try (RandomAccessFile out = new RandomAccessFile(mp4, "rw")) {
+            out.seek(out.length());
+            out.write(new byte[70]);
+        }
+        assertNull(Mp4AacWriter.readFinished(mp4));
+
+        long[] recovered = Mp4AacWriter.recover(mp4);
+
+        assertEquals(framesBytes(200), recovered[0]);
+        assertEquals(200L * 1024 * 1_000_000 / 48000, recovered[1]);
+        assertFalse(new File(Mp4AacWriter.framesPathFor(mp4.getPath())).exists());
+        assertSampleTable(parse(mp4), 200);
+        // もう一度修復しても、moov を書き終えたファイルとしてそのまま使う
+        assertArrayEquals(recovered, Mp4AacWriter.recover(mp4));
+    }
+
+    @Test
+    public void framesMissingFromTheFileAreDropped() throws Exception {
+        File mp4 = new File(tempFolder.getRoot(), "REC_20250101_000000.mp4");
+        Mp4AacWriter writer = startWriter(mp4, 4096);
+        for (int i = 0; i < 50; i++) {
+            writer.writeFrame(frame(i));
+        }
+        writer.flush();
+        // .frames には載っているが、ファイルの末尾が失われた
+        try (RandomAccessFile out = new RandomAccessFile(mp4, "rw")) {
+            out.setLength(out.length() - 10);
+        }
+
+        long[] recovered = Mp4AacWriter.recover(mp4);
+
+        assertEquals(framesBytes(49), recovered[0]);
+        assertSampleTable(parse(mp4), 49);
+    }
+
+    @Test
+    public void fileWithoutFramesLogIsNotRecovered() throws Exception {
+        File mp4 = new File(tempFolder.getRoot(), "REC_20250101_000000.mp4");
+        Files.write(mp4.toPath(), new byte[5000]);
+        assertNull(Mp4AacWriter.recover(mp4));
+    }
+
+    /**
+     * moov の表がフレームの数と長さに合っていて、mdat のデータがそのフレームを順に並べたものであることを確かめる
+     */
+    private static void assertSampleTable(Map<String, ByteBuffer> boxes, int frameCount) {
+        ByteBuffer mdat = boxes.get("mdat");
+        assertEquals(framesBytes(frameCount), mdat.remaining());
+        ByteBuffer stsz = boxes.get("moov/trak/mdia/minf/stbl/stsz");
+        assertEquals(0, stsz.getInt(4));
+        assertEquals(frameCount, stsz.getInt(8));
+        int position = 0;
+        for (int i = 0; i < frameCount; i++) {
+            assertEquals(100 + i % 50, stsz.getInt(12 + i * 4));
+            assertEquals((byte) i, mdat.get(position));
+            position += 100 + i % 50;
+        }
+        ByteBuffer stco = boxes.get("moov/trak/mdia/minf/stbl/stco");
+        assertEquals(1, stco.getInt(4));
+        assertEquals(boxes.get("mdat@").getInt(0), stco.getInt(8));
+        ByteBuffer stts = boxes.get("moov/trak/mdia/minf/stbl/stts");
+        assertEquals(frameCount, stts.getInt(8));
+        assertEquals(Mp4AacWriter.SAMPLES_PER_FRAME, stts.getInt(12));
+        ByteBuffer mdhd = boxes.get("moov/trak/mdia/mdhd");
+        assertEquals(48000, mdhd.getInt(12));
+        assertEquals((long) frameCount * 1024, mdhd.getInt(16));
+        ByteBuffer esds = boxes.get("moov/trak/mdia/minf/stbl/stsd/mp4a/esds");
+        // DecoderSpecificInfo の中身が AudioSpecificConfig
+        assertEquals(CONFIG[0], esds.get(esds.limit() - 5));
+        assertEquals(CONFIG[1], esds.get(esds.limit() - 4));
+    }
+
+    /**
+     * ファイル全体を箱に分け、"moov/trak/..." のような経路で中身 (箱のヘッダの後ろ) を引けるようにする。
+     * 入れ物の箱は子の箱でちょうど埋まっていることも確かめる
+     */
+    private static Map<String, ByteBuffer> parse(File file) throws IOException {
+        ByteBuffer all = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        Map<String, ByteBuffer> boxes = new HashMap<>();
+        parse(all, 0, all.limit(), "", boxes);
+        assertTrue(boxes.containsKey("ftyp"));
+        return boxes;
+    }
+
+    private static void parse(ByteBuffer all, int from, int to, String parent, Map<String, ByteBuffer> boxes) {
+        int position = from;
+        while (position < to) {
+            long size = all.getInt(position) & 0xFFFFFFFFL;
+            String type = new String(all.array(), position + 4, 4, StandardCharsets.US_ASCII);
+            int headerSize = 8;
+            if (size == 1) {
+                size = all.getLong(position + 8);
+                headerSize = 16;
+            }
+            assertTrue(type + " overflows its parent", position + size <= to);
+            String path = parent.isEmpty() ? type : parent + "/" + type;
+            ByteBuffer body = all.duplicate();
+            body.position(position + headerSize).limit((int) (position + size));
+            boxes.put(path, body.slice());
+            if (type.equals("mdat")) {
+                // 中身のファイル内の位置 (stco と比べる)
+                boxes.put("mdat@", ByteBuffer.allocate(4).putInt(0, position + headerSize));
+            }
+            switch (type) {
+                case "moov":
+                case "trak":
+                case "mdia":
+                case "minf":
+                case "dinf":
+                case "stbl":
+                    parse(all, position + headerSize, (int) (position + size), path, boxes);
+                    break;
+                case "stsd":
+                    // フルボックスのヘッダとエントリ数の後ろに mp4a
+                    parse(all, position + headerSize + 8, (int) (position + size), path, boxes);
+                    break;
+                case "mp4a":
+                    // サンプルエントリの固定部分 (28バイト) の後ろに esds
+                    parse(all, position + headerSize + 28, (int) (position + size), path, boxes);
+                    break;
+                default:
+                    break;
+            }
+            position += size;
+        }
+        assertEquals(to, position);
+    }
+}
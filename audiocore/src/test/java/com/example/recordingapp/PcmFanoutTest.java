@@ -0,0 +1,160 @@
+package com.example.recordingapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class PcmFanoutTest {
+
+    private static final PcmFormat MONO_16K = new PcmFormat(16000, 1);
+
+    private static short[] ramp(int start, int length) {
+        short[] buffer = new short[length];
+        for (int i = 0; i < length; i++) {
+            buffer[i] = (short) (start + i);
+        }
+        return buffer;
+    }
+
+    @Test
+    public void allSubscribersReadTheSameSharedSlots() {
+        PcmFanout fanout = new PcmFanout(8, 160);
+        fanout.setFormat(MONO_16K);
+        PcmFanout.Subscription a = fanout.subscribe();
+        PcmFanout.Subscription b = fanout.subscribe();
+        for (int i = 0; i < 4; i++) {
+            fanout.process(ramp(i * 160, 160), 0, 160, MONO_16K.samplesToUs(i * 160L));
+        }
+
+        List<short[]> seenByA = new ArrayList<>();
+        List<Long> timesA = new ArrayList<>();
+        assertEquals(4, a.read((buffer, offset, length, presentationTimeUs) -> {
+            seenByA.add(buffer);
+            timesA.add(presentationTimeUs);
+            assertEquals(160, length);
+            assertEquals(seenByA.size() * 160 - 160, buffer[offset]);
+        }, 16));
+        List<short[]> seenByB = new ArrayList<>();
+        assertEquals(4, b.read((buffer, offset, length, presentationTimeUs) -> seenByB.add(buffer), 16));
+
+        // 読み手ごとにコピーせず、同じスロットの配列を渡す
+        for (int i = 0; i < 4; i++) {
+            assertSame(seenByA.get(i), seenByB.get(i));
+        }
+        assertEquals(Long.valueOf(30_000), timesA.get(3));
+        assertEquals(0, a.getDroppedFrames());
+        assertEquals(0, b.getLag());
+    }
+
+    @Test
+    public void slowSubscriberIsSkippedAheadAndCountsDroppedFrames() {
+        PcmFanout fanout = new PcmFanout(8, 160);
+        fanout.setFormat(MONO_16K);
+        PcmFanout.Subscription fast = fanout.subscribe();
+        PcmFanout.Subscription slow = fanout.subscribe();
+        AtomicLong fastFrames = new AtomicLong();
+        // 書き込み側は遅い読み手を待たずに進む
+        for (int i = 0; i < 20; i++) {
+            fanout.process(ramp(0, 160), 0, 160, MONO_16K.samplesToUs(i * 160L));
+            fast.read((buffer, offset, length, presentationTimeUs) -> fastFrames.addAndGet(length), 16);
+        }
+        assertEquals(20 * 160, fastFrames.get());
+        assertEquals(0, fast.getDroppedFrames());
+
+        List<Long> times = new ArrayList<>();
+        int read = slow.read((buffer, offset, length, presentationTimeUs) -> times.add(presentationTimeUs), 100);
+        // リングの半分 (4スロット) 手前から読み直す
+        assertEquals(4, read);
+        assertEquals(16, slow.getDroppedSlots());
+        assertEquals(16 * 160, slow.getDroppedFrames());
+        assertEquals(Long.valueOf(MONO_16K.samplesToUs(16 * 160L)), times.get(0));
+        assertEquals(0, slow.getLag());
+
+        // 追いついた後は読み飛ばさない
+        fanout.process(ramp(0, 160), 0, 160, 0);
+        assertEquals(1, slow.read((buffer, offset, length, presentationTimeUs) -> { }, 100));
+        assertEquals(16 * 160, slow.getDroppedFrames());
+    }
+
+    @Test
+    public void longBuffersAreSplitAcrossSlotsOnFrameBoundaries() {
+        PcmFormat stereo = new PcmFormat(48000, 2);
+        PcmFanout fanout = new PcmFanout(16, 1001);
+        fanout.setFormat(stereo);
+        PcmFanout.Subscription subscription = fanout.subscribe();
+        fanout.process(ramp(0, 2500), 0, 2500, 1_000_000);
+
+        List<Integer> lengths = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        StringBuilder order = new StringBuilder();
+        subscription.read((buffer, offset, length, presentationTimeUs) -> {
+            lengths.add(length);
+            times.add(presentationTimeUs);
+            order.append(buffer[offset]).append(',');
+        }, 16);
+        // 1001 ではチャンネルの途中で切れるので、1000 ずつに分ける
+        assertEquals(Arrays.asList(1000, 1000, 500), lengths);
+        assertEquals(Arrays.asList(1_000_000L, 1_000_000L + stereo.samplesToUs(1000), 1_000_000L + stereo.samplesToUs(2000)),
+                times);
+        assertEquals("0,1000,2000,", order.toString());
+        assertEquals(3, fanout.getPublishedSlots());
+    }
+
+    @Test
+    public void awaitWakesUpWhenASlotIsPublished() throws Exception {
+        PcmFanout fanout = new PcmFanout(4, 160);
+        fanout.setFormat(MONO_16K);
+        PcmFanout.Subscription subscription = fanout.subscribe();
+        assertFalse(subscription.await(10));
+
+        CountDownLatch woke = new CountDownLatch(1);
+        Thread reader = new Thread(() -> {
+            try {
+                if (subscription.await(5_000)) {
+                    woke.countDown();
+                }
+            } catch (InterruptedException ignored) {
+            }
+        });
+        reader.start();
+        Thread.sleep(50);
+        fanout.process(ramp(0, 160), 0, 160, 0);
+        assertTrue(woke.await(5, TimeUnit.SECONDS));
+        reader.join();
+    }
+
+    @Test
+    public void concurrentReaderNeverSeesTornSlotsUnnoticed() throws Exception {
+        PcmFanout fanout = new PcmFanout(4, 64);
+        fanout.setFormat(MONO_16K);
+        PcmFanout.Subscription subscription = fanout.subscribe();
+        int buffers = 20_000;
+        AtomicLong frames = new AtomicLong();
+        Thread reader = new Thread(() -> {
+            try {
+                while (frames.get() + subscription.getDroppedFrames() < buffers * 64L) {
+                    subscription.await(100);
+                    subscription.read((buffer, offset, length, presentationTimeUs) -> frames.addAndGet(length), 2);
+                }
+            } catch (InterruptedException ignored) {
+            }
+        });
+        reader.start();
+        short[] buffer = new short[64];
+        for (int i = 0; i < buffers; i++) {
+            fanout.process(buffer, 0, 64, MONO_16K.samplesToUs(i * 64L));
+        }
+        reader.join(10_000);
+        assertFalse(reader.isAlive());
+        // 読んだフレームと読み飛ばしたフレームで、公開した分をちょうど数えきる (書き換えられたスロットは両方に入る)
+        assertTrue(frames.get() + subscription.getDroppedFrames() >= buffers * 64L);
+        assertEquals(buffers, fanout.getPublishedSlots());
+    }
+}
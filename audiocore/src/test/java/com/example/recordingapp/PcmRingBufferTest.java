@@ -0,0 +1,132 @@
+package com.example.recordingapp;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link PcmRingBuffer} の順序保証と折り返し、オーバーランと空振りの計数を確認するテスト
+ */
+public class PcmRingBufferTest {
+
+    @Test
+    public void rejectsNonPowerOfTwoSlotCount() {
+        try {
+            new PcmRingBuffer(3, 16);
+            fail("slotCount 3 should be rejected");
+        } catch (IllegalArgumentException expected) {
+            // OK
+        }
+    }
+
+    @Test
+    public void slotCountForRoundsUpToPowerOfTwo() {
+        assertEquals(2, PcmRingBuffer.slotCountFor(1, 100));
+        assertEquals(4, PcmRingBuffer.slotCountFor(300, 100));
+        assertEquals(4, PcmRingBuffer.slotCountFor(400, 100));
+        assertEquals(8, PcmRingBuffer.slotCountFor(401, 100));
+    }
+
+    @Test
+    public void countsOverrunWhenFullAndIdlePollWhenEmpty() {
+        PcmRingBuffer ring = new PcmRingBuffer(4, 8);
+        short[] data = {1, 2, 3};
+
+        assertEquals(-1, ring.read(new short[8], 0));
+        assertEquals(1, ring.getIdlePollCount());
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.write(data, 0, data.length, i));
+        }
+        assertFalse(ring.write(data, 0, data.length, 4));
+        assertNull(ring.claim());
+        assertEquals(2, ring.getOverrunCount());
+        assertEquals(4, ring.size());
+
+        short[] out = new short[8];
+        assertEquals(3, ring.read(out, 0));
+        assertEquals(3, out[2]);
+        assertTrue(ring.write(data, 0, data.length, 5));
+    }
+
+    @Test
+    public void wrapsAroundWithoutReorderingSingleThreaded() {
+        PcmRingBuffer ring = new PcmRingBuffer(4, 2);
+        short[] in = new short[2];
+        short[] out = new short[2];
+        for (int i = 0; i < 1000; i++) {
+            in[0] = (short) i;
+            in[1] = (short) -i;
+            assertTrue(ring.write(in, 0, 2, i * 10L));
+            if (i % 3 == 2) {
+                // 読み出しを遅らせて、書き込み位置と読み出し位置の差を変えながら折り返させる
+                continue;
+            }
+            while (!ring.isEmpty()) {
+                ring.read(out, 0);
+            }
+        }
+        assertEquals(0, ring.getOverrunCount());
+    }
+
+    @Test
+    public void preservesOrderUnderConcurrentProducerAndConsumer() throws Exception {
+        final int slotSamples = 64;
+        final long totalSlots = 2_000_000;
+        final PcmRingBuffer ring = new PcmRingBuffer(16, slotSamples);
+        final AtomicReference<String> failure = new AtomicReference<>();
+
+        Thread producer = new Thread(() -> {
+            long sequence = 0;
+            while (sequence < totalSlots) {
+                short[] slot = ring.claim();
+                if (slot == null) {
+                    Thread.yield();
+                    continue;
+                }
+                // スロットの先頭に通し番号を書き、残りは内容の破損を検出するための模様で埋める
+                int length = 1 + (int) (sequence % slotSamples);
+                for (int i = 0; i < length; i++) {
+                    slot[i] = (short) (sequence + i);
+                }
+                ring.publish(length, sequence);
+                sequence++;
+            }
+        });
+        Thread consumer = new Thread(() -> {
+            long expected = 0;
+            while (expected < totalSlots && failure.get() == null) {
+                short[] slot = ring.poll();
+                if (slot == null) {
+                    Thread.yield();
+                    continue;
+                }
+                int length = ring.peekLength();
+                long pts = ring.peekPresentationTimeUs();
+                if (pts != expected || length != 1 + (int) (expected % slotSamples)) {
+                    failure.set("slot " + expected + " arrived as pts=" + pts + " length=" + length);
+                }
+                for (int i = 0; i < length; i++) {
+                    if (slot[i] != (short) (expected + i)) {
+                        failure.set("corrupted sample " + i + " in slot " + expected);
+                        break;
+                    }
+                }
+                ring.release();
+                expected++;
+            }
+        });
+
+        producer.start();
+        consumer.start();
+        producer.join(60_000);
+        consumer.join(60_000);
+
+        assertNull(failure.get(), failure.get());
+        assertFalse(producer.isAlive());
+        assertFalse(consumer.isAlive());
+        assertTrue(ring.isEmpty());
+    }
+}
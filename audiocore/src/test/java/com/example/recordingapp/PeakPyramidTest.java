@@ -0,0 +1,183 @@
+package com.example.recordingapp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link PeakPyramidBuilder} で書いたピークファイルを {@link PeakPyramidReader} で読み、
+ * すべてのレベルのバケツが元のPCMの最小値/最大値と一致することを確認するテスト
+ */
+public class PeakPyramidTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static short[] noise(int length, long seed) {
+        Random random = new Random(seed);
+        short[] samples = new short[length];
+        for (int i = 0; i < length; i++) {
+            samples[i] = (short) random.nextInt(65536);
+        }
+        return samples;
+    }
+
+    /**
+     * samples を長さがばらばらのバッファに分けて流す
+     */
+    private static void feed(PeakPyramidBuilder builder, short[] samples, int channels) {
+        int position = 0;
+        int chunk = 7 * channels;
+        while (position < samples.length) {
+            int length = Math.min(chunk, samples.length - position);
+            builder.process(samples, position, length, 0);
+            position += length;
+            chunk = (chunk * 3 / channels % 97 + 1) * channels;
+        }
+    }
+
+    private static void assertMatchesBruteForce(PeakPyramidReader reader, short[] samples, int channels) {
+        long frames = samples.length / channels;
+        assertEquals(frames, reader.getTotalFrames());
+        for (int level = 0; level < reader.getLevelCount(); level++) {
+            int bucketFrames = reader.getBucketFrames(level);
+            assertEquals((frames + bucketFrames - 1) / bucketFrames, reader.getBucketCount(level));
+            for (long bucket = 0; bucket < reader.getBucketCount(level); bucket++) {
+                int min = Short.MAX_VALUE;
+                int max = Short.MIN_VALUE;
+                long end = Math.min(frames, (bucket + 1) * bucketFrames) * channels;
+                for (long i = bucket * bucketFrames * channels; i < end; i++) {
+                    min = Math.min(min, samples[(int) i]);
+                    max = Math.max(max, samples[(int) i]);
+                }
+                assertEquals("level " + level + " bucket " + bucket, min, reader.getMin(level, bucket));
+                assertEquals("level " + level + " bucket " + bucket, max, reader.getMax(level, bucket));
+            }
+        }
+    }
+
+    @Test
+    public void everyLevelMatchesSourceAcrossBlocksAndPartialTail() throws Exception {
+        File file = new File(tempFolder.getRoot(), "a.peaks");
+        PcmFormat format = new PcmFormat(8000, 2);
+        // 4 / 16 / 64 フレーム、1ブロック = 128フレーム。途中で終わるバケツとブロックを含む長さにする
+        PeakPyramidBuilder builder = new PeakPyramidBuilder(file.getPath(), format, new int[]{4, 16, 64}, 2);
+        short[] samples = noise(2 * (128 * 9 + 77), 1);
+
+        builder.open();
+        feed(builder, samples, 2);
+        builder.close();
+
+        try (PeakPyramidReader reader = new PeakPyramidReader(file)) {
+            assertEquals(8000, reader.getFormat().getSampleRate());
+            assertEquals(2, reader.getFormat().getChannelCount());
+            assertEquals(3, reader.getLevelCount());
+            assertMatchesBruteForce(reader, samples, 2);
+        }
+    }
+
+    @Test
+    public void completedBlocksAreReadableWithoutClose() throws Exception {
+        File file = new File(tempFolder.getRoot(), "b.peaks");
+        PeakPyramidBuilder builder = new PeakPyramidBuilder(file.getPath(), new PcmFormat(8000, 1),
+                new int[]{4, 16}, 4);
+        short[] samples = noise(64 * 3 + 10, 2);
+
+        builder.open();
+        feed(builder, samples, 1);
+        // 閉じずに読む (強制終了と同じ状態)。書き出し済みの3ブロック分だけが見える
+        try (PeakPyramidReader reader = new PeakPyramidReader(file)) {
+            assertEquals(64 * 3, reader.getTotalFrames());
+            short[] complete = new short[64 * 3];
+            System.arraycopy(samples, 0, complete, 0, complete.length);
+            assertMatchesBruteForce(reader, complete, 1);
+        }
+        builder.close();
+    }
+
+    @Test
+    public void renderPicksCoarsestSufficientLevel() throws Exception {
+        File file = new File(tempFolder.getRoot(), "c.peaks");
+        PeakPyramidBuilder builder = new PeakPyramidBuilder(file.getPath(), new PcmFormat(8000, 1),
+                new int[]{4, 16, 64}, 2);
+        short[] samples = new short[1000];
+        samples[500] = 1234;
+        samples[900] = -4321;
+
+        builder.open();
+        feed(builder, samples, 1);
+        builder.close();
+
+        try (PeakPyramidReader reader = new PeakPyramidReader(file)) {
+            short[] min = new short[10];
+            short[] max = new short[10];
+            // 1列100フレームなので 64 フレームのレベルを使う
+            assertEquals(2, reader.render(0, 1000, 10, min, max));
+            short overallMin = 0;
+            short overallMax = 0;
+            for (int i = 0; i < 10; i++) {
+                overallMin = (short) Math.min(overallMin, min[i]);
+                overallMax = (short) Math.max(overallMax, max[i]);
+            }
+            assertEquals(-4321, overallMin);
+            assertEquals(1234, overallMax);
+            // 1列2フレームならレベル0。録音の範囲外の列は 0
+            assertEquals(0, reader.render(496, 516, 10, min, max));
+            assertEquals(1234, max[2]);
+            reader.render(2000, 3000, 10, min, max);
+            assertEquals(0, max[0]);
+        }
+    }
+
+    @Test
+    public void rendersAnyZoomOfLongRecording() throws Exception {
+        // 描画の速さは benchmarks の LookupBenchmark.peakPyramidRender で測る
+        File file = new File(tempFolder.getRoot(), "long.peaks");
+        PcmFormat format = new PcmFormat(44100, 1);
+        PeakPyramidBuilder builder = new PeakPyramidBuilder(file.getPath(), format);
+        short[] buffer = noise(format.samplesForMillis(20), 3);
+        short bufferMin = Short.MAX_VALUE;
+        short bufferMax = Short.MIN_VALUE;
+        for (short sample : buffer) {
+            bufferMin = (short) Math.min(bufferMin, sample);
+            bufferMax = (short) Math.max(bufferMax, sample);
+        }
+        long hours = 2;
+        long buffers = hours * 3600 * 1000 / 20;
+
+        builder.open();
+        for (long i = 0; i < buffers; i++) {
+            builder.process(buffer, 0, buffer.length, 0);
+        }
+        builder.close();
+
+        try (PeakPyramidReader reader = new PeakPyramidReader(file)) {
+            long frames = reader.getTotalFrames();
+            assertEquals(buffers * buffer.length, frames);
+            short[] min = new short[2000];
+            short[] max = new short[2000];
+            Random random = new Random(4);
+            for (int i = 0; i < 200; i++) {
+                // 全体表示から数秒の範囲まで、ランダムな拡大率で描く
+                long span = Math.max(4000, (long) (frames * Math.pow(random.nextDouble(), 3)));
+                long start = (long) ((frames - span) * random.nextDouble());
+                reader.render(start, start + span, min.length, min, max);
+                // 範囲はバッファ1つより長いので、全ての列を合わせるとバッファの最小値と最大値になる
+                short overallMin = Short.MAX_VALUE;
+                short overallMax = Short.MIN_VALUE;
+                for (int column = 0; column < min.length; column++) {
+                    assertTrue(min[column] <= max[column]);
+                    overallMin = (short) Math.min(overallMin, min[column]);
+                    overallMax = (short) Math.max(overallMax, max[column]);
+                }
+                assertEquals(bufferMin, overallMin);
+                assertEquals(bufferMax, overallMax);
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.recordingapp;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link PostProcessScheduler} の並列実行、一時停止、ジョブの保存と再開を確認するテスト
+ */
+public class PostProcessSchedulerTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static final PcmFormat FORMAT = new PcmFormat(8000, 1);
+
+    private final BlockingQueue<PostProcessJob> finished = new LinkedBlockingQueue<>();
+    private PostProcessScheduler scheduler;
+
+    @After
+    public void tearDown() throws Exception {
+        if (scheduler != null) {
+            scheduler.resume();
+            assertTrue(scheduler.shutdown(5_000));
+        }
+    }
+
+    private File writeWav(String name, int frames) throws Exception {
+        File file = new File(tempFolder.getRoot(), name);
+        short[] samples = new short[frames];
+        for (int i = 0; i < frames; i++) {
+            samples[i] = (short) (1000 * Math.sin(i / 10.0));
+        }
+        WavFileSink sink = new WavFileSink(file.getPath());
+        sink.open(FORMAT);
+        sink.write(samples, 0, frames, 0);
+        sink.close();
+        return file;
+    }
+
+    private PostProcessScheduler newScheduler(PostProcessJobStore store, int threadCount,
+                                              PostProcessScheduler.OutputFactory outputFactory) {
+        PostProcessScheduler s = new PostProcessScheduler(store, threadCount, Thread::new, outputFactory);
+        s.setListener(finished::add);
+        return s;
+    }
+
+    private PostProcessJob awaitFinished() throws InterruptedException {
+        PostProcessJob job = finished.poll(5, TimeUnit.SECONDS);
+        assertNotNull("ジョブが終わりませんでした", job);
+        return job;
+    }
+
+    private String output(File input) {
+        return SessionManifest.stripExtension(input.getPath()) + "_post.wav";
+    }
+
+    @Test
+    public void jobsRunInParallelOnWorkerThreads() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        // 書き込みを遅くして、ジョブが重なって動くようにする
+        PostProcessScheduler.OutputFactory slowOutput = (outputPath, tempPath) -> new PcmSink() {
+            private final WavFileSink sink = new WavFileSink(tempPath);
+
+            @Override
+            public void open(PcmFormat format) throws IOException {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                sink.open(format);
+            }
+
+            @Override
+            public void write(short[] buffer, int offset, int length, long presentationTimeUs) throws IOException {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                sink.write(buffer, offset, length, presentationTimeUs);
+            }
+
+            @Override
+            public long getBytesWritten() {
+                return sink.getBytesWritten();
+            }
+
+            @Override
+            public void close() throws IOException {
+                running.decrementAndGet();
+                sink.close();
+            }
+        };
+        PostProcessJobStore store = new PostProcessJobStore(new File(tempFolder.getRoot(), "jobs"));
+        scheduler = newScheduler(store, 2, slowOutput);
+        assertEquals(0, scheduler.start());
+
+        File[] inputs = new File[4];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = writeWav("seg" + i + ".wav", 20_000);
+            scheduler.enqueue(inputs[i].getPath(), output(inputs[i]), PostProcessor.STAGE_NORMALIZE);
+        }
+        for (int i = 0; i < inputs.length; i++) {
+            assertEquals(PostProcessJob.STATE_DONE, awaitFinished().state);
+        }
+
+        assertEquals(2, maxRunning.get());
+        for (File input : inputs) {
+            assertTrue(new File(output(input)).exists());
+            assertFalse(new File(output(input) + ".tmp").exists());
+        }
+        List<PostProcessJob> saved = store.load();
+        assertEquals(4, saved.size());
+        for (PostProcessJob job : saved) {
+            assertEquals(PostProcessJob.STATE_DONE, job.state);
+            assertEquals(1, job.attempts);
+        }
+    }
+
+    @Test
+    public void pausedSchedulerStartsNoJobsUntilResumed() throws Exception {
+        PostProcessJobStore store = new PostProcessJobStore(new File(tempFolder.getRoot(), "jobs"));
+        scheduler = newScheduler(store, 2, (outputPath, tempPath) -> new WavFileSink(tempPath));
+        scheduler.start();
+        scheduler.pause();
+        File input = writeWav("rec.wav", 8000);
+        PostProcessJob job = scheduler.enqueue(input.getPath(), output(input), "trim");
+
+        assertNull(finished.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(PostProcessJob.STATE_PENDING, scheduler.getJobs().get(0).state);
+        assertFalse(new File(output(input)).exists());
+
+        scheduler.resume();
+        PostProcessJob done = awaitFinished();
+        assertEquals(job.id, done.id);
+        assertEquals(PostProcessJob.STATE_DONE, done.state);
+    }
+
+    @Test
+    public void unfinishedJobsResumeAfterRestart() throws Exception {
+        File store = new File(tempFolder.getRoot(), "jobs");
+        File interrupted = writeWav("interrupted.wav", 8000);
+        File pending = writeWav("pending.wav", 8000);
+        File crashing = writeWav("crashing.wav", 8000);
+        // 前回のプロセスが、ジョブの実行中に終了した状態
+        new PostProcessJobStore(store).save(Arrays.asList(
+                new PostProcessJob(3, interrupted.getPath(), output(interrupted), "normalize",
+                        PostProcessJob.STATE_RUNNING, 1, null),
+                new PostProcessJob(4, pending.getPath(), output(pending), "trim",
+                        PostProcessJob.STATE_PENDING, 0, null),
+                new PostProcessJob(5, crashing.getPath(), output(crashing), "trim",
+                        PostProcessJob.STATE_RUNNING, PostProcessScheduler.MAX_ATTEMPTS, null)));
+
+        scheduler = newScheduler(new PostProcessJobStore(store), 1, (outputPath, tempPath) -> new WavFileSink(tempPath));
+        assertEquals(2, scheduler.start());
+        PostProcessJob first = awaitFinished();
+        PostProcessJob second = awaitFinished();
+        assertEquals(3, first.id);
+        assertEquals(PostProcessJob.STATE_DONE, first.state);
+        assertEquals(2, first.attempts);
+        assertEquals(4, second.id);
+        assertEquals(PostProcessJob.STATE_DONE, second.state);
+
+        // 何度も実行中に終了したジョブは実行し直さない
+        PostProcessJob crashed = scheduler.getJobs().get(2);
+        assertEquals(PostProcessJob.STATE_FAILED, crashed.state);
+        assertFalse(new File(output(crashing)).exists());
+
+        // 新しいジョブのIDは保存されていたものと重ならない
+        assertEquals(6, scheduler.enqueue(pending.getPath(), output(pending), "trim").id);
+        awaitFinished();
+    }
+
+    @Test
+    public void failedJobIsRecordedAndLeavesNoPartialOutput() throws Exception {
+        PostProcessJobStore store = new PostProcessJobStore(new File(tempFolder.getRoot(), "jobs"));
+        scheduler = newScheduler(store, 1, (outputPath, tempPath) -> new WavFileSink(tempPath));
+        scheduler.start();
+        File missing = new File(tempFolder.getRoot(), "missing.wav");
+        File input = writeWav("rec.wav", 8000);
+        scheduler.enqueue(missing.getPath(), output(missing), "trim");
+        scheduler.enqueue(input.getPath(), output(input), "trim,echo");
+
+        PostProcessJob notFound = awaitFinished();
+        PostProcessJob badStage = awaitFinished();
+        assertEquals(PostProcessJob.STATE_FAILED, notFound.state);
+        assertNotNull(notFound.error);
+        assertEquals(PostProcessJob.STATE_FAILED, badStage.state);
+        assertFalse(new File(output(input)).exists());
+        assertFalse(new File(output(input) + ".tmp").exists());
+        assertEquals(PostProcessJob.STATE_FAILED, store.load().get(1).state);
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.recordingapp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link WavReader} と後処理の段 ({@link SilenceTrimmer}, {@link LoudnessNormalizer})、
+ * {@link PostProcessor} を一時ファイルで確認するテスト
+ */
+public class PostProcessTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static final PcmFormat MONO_8K = new PcmFormat(8000, 1);
+
+    /**
+     * 無音 silenceFrames → 振幅 amplitude の正弦波 toneFrames → 無音 silenceFrames のモノラルのサンプル
+     */
+    private static short[] toneBetweenSilence(int silenceFrames, int toneFrames, double amplitude) {
+        short[] samples = new short[silenceFrames * 2 + toneFrames];
+        for (int i = 0; i < toneFrames; i++) {
+            samples[silenceFrames + i] = (short) Math.round(amplitude * 32767 * Math.sin(2 * Math.PI * 440 * i / 8000.0));
+        }
+        return samples;
+    }
+
+    private File writeWav(String name, PcmFormat format, short[] samples) throws Exception {
+        File file = new File(tempFolder.getRoot(), name);
+        WavFileSink sink = new WavFileSink(file.getPath());
+        sink.open(format);
+        sink.write(samples, 0, samples.length, 0);
+        sink.close();
+        return file;
+    }
+
+    private static short[] readAll(WavReader reader) throws Exception {
+        short[] samples = new short[(int) reader.getTotalFrames() * reader.getFormat().getChannelCount()];
+        int position = 0;
+        int read;
+        // わざと半端な長さで読む
+        while ((read = reader.read(samples, position, Math.min(1001, samples.length - position))) > 0) {
+            position += read;
+        }
+        assertEquals(samples.length, position);
+        return samples;
+    }
+
+    @Test
+    public void readerReadsWhatWavFileSinkWrote() throws Exception {
+        PcmFormat format = new PcmFormat(48000, 2);
+        short[] samples = new short[20_000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (i * 7);
+        }
+        File file = writeWav("a.wav", format, samples);
+
+        try (WavReader reader = new WavReader(file)) {
+            assertEquals(48000, reader.getFormat().getSampleRate());
+            assertEquals(2, reader.getFormat().getChannelCount());
+            assertEquals(10_000, reader.getTotalFrames());
+            assertArrayEquals(samples, readAll(reader));
+            assertEquals(-1, reader.read(new short[16], 0, 16));
+
+            reader.seek(9_999);
+            short[] last = new short[4];
+            assertEquals(2, reader.read(last, 0, 4));
+            assertEquals(samples[19_998], last[0]);
+            assertEquals(samples[19_999], last[1]);
+        }
+    }
+
+    @Test
+    public void readerStopsAtEndOfTruncatedFile() throws Exception {
+        File file = writeWav("cut.wav", new PcmFormat(16000, 2), new short[4000]);
+        // ヘッダを更新する前に強制終了され、フレームの途中で切れたファイル
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(WavFileSink.HEADER_SIZE + 1000 * 4 + 3);
+        }
+
+        try (WavReader reader = new WavReader(file)) {
+            assertEquals(1000, reader.getTotalFrames());
+            assertEquals(2000, readAll(reader).length);
+        }
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void readerRejectsNonWavFile() throws Exception {
+        File file = tempFolder.newFile("not.wav");
+        java.nio.file.Files.write(file.toPath(), new byte[64]);
+        new WavReader(file).close();
+    }
+
+    @Test
+    public void trimmerKeepsLoudPartWithPadding() {
+        // 1秒の無音、0.5秒の音、1秒の無音 (余白は200ms = 1600フレーム)
+        short[] samples = toneBetweenSilence(8000, 4000, 0.5);
+        SilenceTrimmer trimmer = new SilenceTrimmer(MONO_8K);
+        trimmer.analyze(samples, 0, 5000);
+        trimmer.analyze(samples, 5000, samples.length - 5000);
+        trimmer.endAnalysis();
+
+        // 正弦波の最初のサンプルは 0 なので、しきい値を超えるのは2番目から
+        assertEquals(8001 - 1600, trimmer.getStartFrame(samples.length));
+        assertEquals(12_000 + 1600, trimmer.getEndFrame(samples.length), 1);
+
+        SilenceTrimmer silent = new SilenceTrimmer(MONO_8K);
+        silent.analyze(new short[8000], 0, 8000);
+        assertEquals(0, silent.getEndFrame(8000));
+    }
+
+    @Test
+    public void normalizerGainIsLimitedByTargetCeilingAndMaxGain() {
+        // 振幅 0.1 の正弦波の RMS は約 -23dBFS なので、目標の -20dBFS まで約 3dB 上げる
+        // (無音と音の境目が 400ms のブロックの境目に揃うようにする)
+        short[] speech = toneBetweenSilence(6400, 16000, 0.1);
+        LoudnessNormalizer normalizer = new LoudnessNormalizer(MONO_8K);
+        normalizer.analyze(speech, 0, speech.length);
+        normalizer.endAnalysis();
+        assertEquals(Math.sqrt(2), normalizer.getGain(), 0.02);
+
+        // とても小さな音は最大ゲイン (20dB = 10倍) までしか上げない
+        short[] quiet = toneBetweenSilence(0, 16000, 0.005);
+        LoudnessNormalizer quietNormalizer = new LoudnessNormalizer(MONO_8K);
+        quietNormalizer.analyze(quiet, 0, quiet.length);
+        quietNormalizer.endAnalysis();
+        assertEquals(10, quietNormalizer.getGain(), 0.01);
+
+        // ピークが上限 (-1dBFS) を超えないように抑える
+        short[] loud = toneBetweenSilence(0, 16000, 0.9);
+        LoudnessNormalizer loudNormalizer = new LoudnessNormalizer(MONO_8K, -3, -1, 20);
+        loudNormalizer.analyze(loud, 0, loud.length);
+        loudNormalizer.endAnalysis();
+        assertEquals(Math.pow(10, -1 / 20.0) / 0.9, loudNormalizer.getGain(), 0.01);
+
+        // 範囲を超えた値は折り返さずに飽和させる
+        short[] samples = {100, 30000, -30000};
+        quietNormalizer.apply(samples, 0, 3);
+        assertArrayEquals(new short[]{1000, Short.MAX_VALUE, Short.MIN_VALUE}, samples);
+    }
+
+    @Test
+    public void processorTrimsAndNormalizesIntoOutput() throws Exception {
+        File input = writeWav("in.wav", MONO_8K, toneBetweenSilence(12800, 9600, 0.1));
+        File output = new File(tempFolder.getRoot(), "out.wav");
+
+        long frames = PostProcessor.process(input, "trim, normalize", new WavFileSink(output.getPath()), new PauseGate());
+
+        // 音の部分 (9600フレーム) と前後の余白 (1600フレームずつ) だけが残る
+        assertEquals(9600 + 3200, frames, 2);
+        try (WavReader reader = new WavReader(output)) {
+            assertEquals(frames, reader.getTotalFrames());
+            short[] samples = readAll(reader);
+            int peak = 0;
+            for (short sample : samples) {
+                peak = Math.max(peak, Math.abs(sample));
+            }
+            // 振幅 0.1 が約 √2 倍になる
+            assertEquals(0.1 * Math.sqrt(2) * 32767, peak, 200);
+        }
+    }
+
+    @Test
+    public void processorWithoutStagesCopiesInput() throws Exception {
+        short[] samples = toneBetweenSilence(100, 20_000, 0.3);
+        File input = writeWav("copy.wav", MONO_8K, samples);
+        File output = new File(tempFolder.getRoot(), "copy_post.wav");
+        try (WavReader reader = new WavReader(input)) {
+            assertEquals(samples.length, PostProcessor.process(reader, Collections.emptyList(),
+                    new WavFileSink(output.getPath()), new PauseGate()));
+        }
+        try (WavReader reader = new WavReader(output)) {
+            assertArrayEquals(samples, readAll(reader));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownStageIsRejected() {
+        PostProcessor.createStages("trim,reverb", MONO_8K);
+    }
+}
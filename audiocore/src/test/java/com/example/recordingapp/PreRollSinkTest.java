@@ -0,0 +1,171 @@
+package com.example.recordingapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link PreRollBuffer} と {@link PreRollSink} が、録音開始前の直近の音声を先頭にして書き込むことを確認するテスト
+ */
+public class PreRollSinkTest {
+
+    private static final PcmFormat FORMAT = new PcmFormat(1000, 2);
+
+    /**
+     * 受け取ったサンプルとタイムスタンプを保持する出力先
+     */
+    private static class CollectingSink implements PcmSink {
+        final List<Short> samples = new ArrayList<>();
+        final List<Long> timestamps = new ArrayList<>();
+        boolean opened;
+        boolean closed;
+
+        @Override
+        public void open(PcmFormat format) {
+            opened = true;
+        }
+
+        @Override
+        public void write(short[] buffer, int offset, int length, long presentationTimeUs) {
+            timestamps.add(presentationTimeUs);
+            for (int i = 0; i < length; i++) {
+                samples.add(buffer[offset + i]);
+            }
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return samples.size() * 2L;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    /**
+     * 値が通し番号のバッファ (20ms = 20フレーム = 40サンプル) を count 個流す
+     */
+    private static int feed(PcmSink sink, int first, int count) throws Exception {
+        short[] buffer = new short[40];
+        int next = first;
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < buffer.length; j++) {
+                buffer[j] = (short) (next + j);
+            }
+            sink.write(buffer, 0, buffer.length, FORMAT.samplesToUs(next));
+            next += buffer.length;
+        }
+        return next;
+    }
+
+    @Test
+    public void memoryIsExactlyDeterminedBySecondsAndFormat() {
+        PreRollBuffer buffer = new PreRollBuffer(new PcmFormat(48000, 2), 10);
+        assertEquals(48000 * 2 * 10, buffer.getCapacity());
+        assertEquals(48000L * 2 * 10 * 2, PreRollBuffer.bytesFor(new PcmFormat(48000, 2), 10));
+    }
+
+    @Test
+    public void keepsOnlyTheLastSecondsInOrder() throws Exception {
+        PreRollBuffer buffer = new PreRollBuffer(FORMAT, 1);
+        short[] samples = new short[3000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) i;
+        }
+        // 容量 (2000サンプル) を何周もするよう、半端な長さで書き込む
+        for (int offset = 0; offset < samples.length; offset += 300) {
+            buffer.write(samples, offset, Math.min(300, samples.length - offset));
+        }
+        assertEquals(2000, buffer.size());
+        assertEquals(1_000_000, buffer.getDurationUs());
+
+        CollectingSink sink = new CollectingSink();
+        assertEquals(2000, buffer.drainTo(sink, 0));
+        assertEquals(2000, sink.samples.size());
+        for (int i = 0; i < 2000; i++) {
+            assertEquals((short) (1000 + i), (short) sink.samples.get(i));
+        }
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void attachWritesPreRollThenLiveAudioContiguously() throws Exception {
+        PreRollSink preRoll = new PreRollSink(new PreRollBuffer(FORMAT, 1));
+        CollectingSink target = new CollectingSink();
+
+        preRoll.open(FORMAT);
+        // 待機中に3秒分流す。保持されるのは直近1秒 (2000サンプル) だけ
+        int next = feed(preRoll, 0, 150);
+        assertFalse(preRoll.isCommitted());
+        preRoll.attach(target);
+        assertFalse(target.opened);
+        next = feed(preRoll, next, 10);
+        preRoll.close();
+
+        assertTrue(target.opened);
+        assertTrue(target.closed);
+        assertEquals(2000, preRoll.getCommittedSamples());
+        assertEquals(2000 + 400, target.samples.size());
+        // 待機中の最後の1秒から途切れずに続いている
+        int firstSample = next - target.samples.size();
+        for (int i = 0; i < target.samples.size(); i++) {
+            assertEquals((short) (firstSample + i), (short) target.samples.get(i));
+        }
+        // タイムスタンプはプリロールの先頭が 0
+        assertEquals(0, (long) target.timestamps.get(0));
+        assertEquals(1_000_000, (long) target.timestamps.get(1));
+        assertEquals(1_020_000, (long) target.timestamps.get(2));
+    }
+
+    @Test
+    public void closingWithoutAttachDiscardsPreRoll() throws Exception {
+        PreRollSink preRoll = new PreRollSink(new PreRollBuffer(FORMAT, 1));
+        preRoll.open(FORMAT);
+        feed(preRoll, 0, 20);
+        preRoll.close();
+        assertEquals(-1, preRoll.getCommittedSamples());
+        assertEquals(0, preRoll.getBytesWritten());
+    }
+
+    @Test
+    public void stopRightAfterAttachStillSavesPreRoll() throws Exception {
+        PreRollSink preRoll = new PreRollSink(new PreRollBuffer(FORMAT, 1));
+        CollectingSink target = new CollectingSink();
+        preRoll.open(FORMAT);
+        feed(preRoll, 0, 10);
+        preRoll.attach(target);
+        assertEquals(0, preRoll.getCommitNanos());
+        preRoll.close();
+
+        assertTrue(preRoll.getCommitNanos() != 0);
+        assertTrue(target.closed);
+        assertEquals(400, target.samples.size());
+    }
+
+    @Test
+    public void worksInsideCapturePipeline() throws Exception {
+        PreRollSink preRoll = new PreRollSink(new PreRollBuffer(FORMAT, 1));
+        CollectingSink target = new CollectingSink();
+        CapturePipelineTest.RampSource source = new CapturePipelineTest.RampSource(FORMAT, 200_000, 100_000);
+        CapturePipeline pipeline = new CapturePipeline(source, preRoll, 64, 40);
+
+        pipeline.start();
+        while (pipeline.getCapturedSamples() < 2000) {
+            Thread.sleep(1);
+        }
+        preRoll.attach(target);
+        pipeline.stop();
+
+        assertEquals(0, pipeline.getOverrunCount());
+        assertTrue(target.samples.size() >= 2000);
+        short first = target.samples.get(0);
+        for (int i = 0; i < target.samples.size(); i++) {
+            assertEquals((short) (first + i), (short) target.samples.get(i));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.recordingapp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link RecordingProbe} が録音ファイルやマニフェストからインデックスの情報を読み取れることを確認するテスト
+ */
+public class RecordingProbeTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File writeBytes(String name, int length) throws IOException {
+        File file = new File(tempFolder.getRoot(), name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[length]);
+        }
+        return file;
+    }
+
+    private File writeWav(String name, int seconds, boolean close) throws IOException {
+        File file = new File(tempFolder.getRoot(), name);
+        PcmFormat format = new PcmFormat(8000, 1);
+        // 4KBごとにヘッダを更新し、1MB単位で領域を確保する
+        WavFileSink sink = new WavFileSink(file.getPath(), 1024, 1024 * 1024, 4096);
+        sink.open(format);
+        short[] samples = new short[format.samplesForMillis(1000)];
+        for (int i = 0; i < seconds; i++) {
+            sink.write(samples, 0, samples.length, 0);
+        }
+        if (close) {
+            sink.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void readsDurationOfWavFromHeader() throws Exception {
+        File wav = writeWav("REC_20250621_183000.wav", 3, true);
+
+        RecordingEntry entry = RecordingProbe.probe(wav.getPath(), 1234, RecordingEntry.STATUS_COMPLETE);
+
+        assertEquals(3_000_000, entry.durationUs);
+        assertEquals(WavFileSink.HEADER_SIZE + 3 * 16000, entry.sizeBytes);
+        assertEquals(RecordingOptions.OUTPUT_FORMAT_WAV, entry.format);
+        assertEquals(1234, entry.startTimeMillis);
+        assertEquals(0, entry.segmentCount);
+    }
+
+    @Test
+    public void unfinishedWavUsesLastCommittedLength() throws Exception {
+        // 閉じずに放置 (強制終了と同じ状態)。ファイルは先に確保した1MBのまま
+        File wav = writeWav("REC_20250621_183001.wav", 2, false);
+        assertEquals(1024 * 1024, wav.length());
+
+        RecordingEntry entry = RecordingProbe.probe(wav.getPath(), -1, RecordingEntry.STATUS_INCOMPLETE);
+
+        assertTrue(entry.durationUs > 1_700_000 && entry.durationUs <= 2_000_000);
+        assertEquals(RecordingEntry.STATUS_INCOMPLETE, entry.status);
+    }
+
+    @Test
+    public void sumsSegmentsFromManifest() throws Exception {
+        String path = new File(tempFolder.getRoot(), "REC_20250621_183002.mp4").getPath();
+        SessionManifest manifest = new SessionManifest(SessionManifest.forRecording(path));
+        manifest.append(new SessionManifest.Segment(1, "REC_20250621_183002_part001.mp4", 0, 60_000_000, 1000));
+        manifest.append(new SessionManifest.Segment(2, "REC_20250621_183002_part002.mp4", 60_000_000, 30_000_000, 500));
+
+        RecordingEntry entry = RecordingProbe.probe(path, -1, RecordingEntry.STATUS_COMPLETE);
+
+        assertEquals(90_000_000, entry.durationUs);
+        // マニフェストに記録したバイト数と、マニフェスト自体
+        assertEquals(1500 + manifest.getFile().length(), entry.sizeBytes);
+        assertEquals(2, entry.segmentCount);
+        assertEquals(RecordingOptions.OUTPUT_FORMAT_AAC, entry.format);
+        long expectedStart = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.JAPAN).parse("20250621_183002").getTime();
+        assertEquals(expectedStart, entry.startTimeMillis);
+    }
+
+    @Test
+    public void sizeIncludesPostProcessedFilesAndSidecars() throws Exception {
+        File wav = writeWav("REC_20250621_183005.wav", 1, true);
+        writeBytes("REC_20250621_183005_post.wav", 300);
+        writeBytes("REC_20250621_183005.peaks", 40);
+        writeBytes("REC_20250621_183005.seek", 20);
+        writeBytes("REC_20250621_183005.vad", 10);
+        // 別の録音の付随ファイルは数えない
+        writeBytes("REC_20250621_183006.peaks", 1000);
+
+        RecordingEntry entry = RecordingProbe.probe(wav.getPath(), 0, RecordingEntry.STATUS_COMPLETE);
+
+        assertEquals(wav.length() + 300 + 40 + 20 + 10, entry.sizeBytes);
+        // 消したときに空くサイズと一致する
+        assertEquals(entry.sizeBytes, StorageQuota.deleteRecording(wav.getPath()));
+    }
+
+    @Test
+    public void findsSegmentsWrittenBeforeManifest() throws Exception {
+        String path = new File(tempFolder.getRoot(), "REC_20250621_183003.mp4").getPath();
+        writeBytes("REC_20250621_183003_part001.mp4", 700);
+
+        RecordingEntry entry = RecordingProbe.probe(path, 0, RecordingEntry.STATUS_INCOMPLETE);
+
+        assertEquals(1, entry.segmentCount);
+        assertEquals(700, entry.sizeBytes);
+        assertEquals(RecordingEntry.UNKNOWN_DURATION, entry.durationUs);
+    }
+
+    @Test
+    public void missingRecordingIsNull() throws Exception {
+        String path = new File(tempFolder.getRoot(), "REC_20250621_183004.mp4").getPath();
+        assertNull(RecordingProbe.probe(path, 0, RecordingEntry.STATUS_COMPLETE));
+    }
+
+    @Test
+    public void listsRecordingsButNotSegmentsOrSidecars() throws Exception {
+        writeBytes("REC_20250621_100000.mp4", 10);
+        writeBytes("REC_20250621_100000.vad", 10);
+        writeBytes("REC_20250621_110000.wav", 10);
+        writeBytes("REC_20250621_120000_part001.wav", 10);
+        writeBytes("REC_20250621_120000_part002.wav", 10);
+        writeBytes("notes.txt", 10);
+        String segmented = new File(tempFolder.getRoot(), "REC_20250621_120000.wav").getPath();
+        new SessionManifest(SessionManifest.forRecording(segmented))
+                .append(new SessionManifest.Segment(1, "REC_20250621_120000_part001.wav", 0, 1, 10));
+
+        List<String> paths = RecordingProbe.listRecordings(tempFolder.getRoot());
+        Collections.sort(paths);
+
+        assertEquals(3, paths.size());
+        assertEquals("REC_20250621_100000.mp4", new File(paths.get(0)).getName());
+        assertEquals("REC_20250621_110000.wav", new File(paths.get(1)).getName());
+        assertEquals(segmented, paths.get(2));
+    }
+
+    @Test
+    public void parsesStartTimeFromFileName() throws Exception {
+        long expected = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.JAPAN).parse("20250621_183000").getTime();
+        assertEquals(expected, RecordingProbe.parseStartTime("REC_20250621_183000_part002.mp4"));
+        assertEquals(0, RecordingProbe.parseStartTime("other.mp4"));
+    }
+}
@@ -0,0 +1,178 @@
+package com.example.recordingapp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link SeekIndexBuilder} と {@link SeekIndexReader} を、実際には書き込まない出力先で作った
+ * 数GBの長さの録音で確認するテスト
+ */
+public class SeekIndexTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static final PcmFormat STEREO_48K = new PcmFormat(48000, 2);
+    private static final long HOUR_US = 3_600_000_000L;
+
+    /**
+     * 100ms ごとのバッファで hours 時間分を書き込む
+     */
+    private static void writeHours(PcmSink sink, PcmFormat format, int hours) throws Exception {
+        short[] buffer = new short[format.samplesForMillis(100)];
+        long buffers = hours * 36_000L;
+        sink.open(format);
+        for (long b = 0; b < buffers; b++) {
+            sink.write(buffer, 0, buffer.length, format.samplesToUs(b * buffer.length));
+        }
+    }
+
+    @Test
+    public void segmentedWavResolvesExactOffsetsAcrossGigabytes() throws Exception {
+        File dir = tempFolder.getRoot();
+        String path = new File(dir, "REC_20250101_000000.wav").getPath();
+        // 1時間ごとに分割した12時間 (約8.3GB) の録音
+        SegmentedSink segmented = new SegmentedSink(path, p -> new CountingSink(), 3_600_000, 0,
+                new SessionManifest(SessionManifest.forRecording(path)));
+        SeekIndexBuilder builder = new SeekIndexBuilder(SeekIndexBuilder.pathFor(path), segmented, segmented,
+                WavFileSink.HEADER_SIZE, SeekIndexBuilder.DEFAULT_INTERVAL_US);
+        writeHours(builder, STEREO_48K, 12);
+        builder.close();
+        assertNull(builder.getFailure());
+        assertEquals(12, segmented.getSegmentIndex());
+        // 1秒ごとに1つ
+        assertEquals(12 * 3600, builder.getEntryCount());
+
+        File seekFile = new File(SeekIndexBuilder.pathFor(path));
+        try (SeekIndexReader reader = new SeekIndexReader(seekFile)) {
+            assertTrue(reader.isPcm());
+            assertEquals(12 * 3600, reader.getEntryCount());
+
+            SeekIndexReader.SeekPoint minute137 = reader.seek(137 * 60_000_000L + 250_000);
+            assertEquals(3, minute137.segmentIndex);
+            assertEquals(2 * HOUR_US, minute137.segmentStartUs);
+            assertEquals(WavFileSink.HEADER_SIZE + (17 * 60 * 48000L + 12000) * 4, minute137.byteOffset);
+
+            // セグメントの境目はそのセグメントの先頭になる
+            SeekIndexReader.SeekPoint boundary = reader.seek(5 * HOUR_US);
+            assertEquals(6, boundary.segmentIndex);
+            assertEquals(WavFileSink.HEADER_SIZE, boundary.byteOffset);
+            assertEquals(5, reader.getSegmentIndex(reader.find(5 * HOUR_US - 1)));
+
+            // 検索の速さは benchmarks の LookupBenchmark.seekIndexLookup で測る
+            Random random = new Random(17);
+            for (int i = 0; i < 10_000; i++) {
+                long timeUs = (long) (random.nextDouble() * 12 * HOUR_US);
+                SeekIndexReader.SeekPoint point = reader.seek(timeUs);
+                long segment = timeUs / HOUR_US;
+                assertEquals(segment + 1, point.segmentIndex);
+                assertEquals(segment * HOUR_US, point.segmentStartUs);
+                long frames = (timeUs - segment * HOUR_US) * 48000 / 1_000_000;
+                assertEquals(WavFileSink.HEADER_SIZE + frames * 4, point.byteOffset);
+            }
+        }
+    }
+
+    @Test
+    public void encodedSingleFileRecordsStreamPositions() throws Exception {
+        String path = new File(tempFolder.getRoot(), "REC_20250101_000000.mp4").getPath();
+        // 1バッファ (100ms) あたり 2,000,000 bytes 書いたことにして、位置が 32bit を超えるようにする
+        CountingSink sink = new CountingSink(2_000_000);
+        SeekIndexBuilder builder = new SeekIndexBuilder(SeekIndexBuilder.pathFor(path), sink, null,
+                SeekIndexBuilder.ENCODED_STREAM, 10_000_000);
+        writeHours(builder, new PcmFormat(16000, 1), 1);
+        builder.close();
+        assertTrue(sink.closed);
+
+        try (SeekIndexReader reader = new SeekIndexReader(new File(SeekIndexBuilder.pathFor(path)))) {
+            assertFalse(reader.isPcm());
+            assertEquals(10_000_000, reader.getIntervalUs());
+            assertEquals(360, reader.getEntryCount());
+            // エンコードした場合は直前のエントリの時刻とその時点の累計を返す
+            SeekIndexReader.SeekPoint point = reader.seek(3_599_000_000L);
+            assertEquals(3_590_000_000L, point.timeUs);
+            assertEquals(0, point.segmentIndex);
+            assertEquals(35_900L * 2_000_000, point.byteOffset);
+            assertTrue(point.byteOffset > 0xFFFFFFFFL);
+            assertEquals(-1, reader.find(-1));
+            assertEquals(0, reader.seek(-1).byteOffset);
+        }
+    }
+
+    @Test
+    public void unfinishedIndexIsReadableUpToLastFlush() throws Exception {
+        String path = new File(tempFolder.getRoot(), "REC_20250101_000000.wav").getPath();
+        SeekIndexBuilder builder = new SeekIndexBuilder(SeekIndexBuilder.pathFor(path), new CountingSink(), null,
+                WavFileSink.HEADER_SIZE, SeekIndexBuilder.DEFAULT_INTERVAL_US);
+        // close() せずに終わった (強制終了された) 録音
+        PcmFormat format = new PcmFormat(8000, 1);
+        short[] buffer = new short[800];
+        builder.open(format);
+        for (int b = 0; b < 1000; b++) {
+            builder.write(buffer, 0, buffer.length, format.samplesToUs(b * 800L));
+        }
+        assertEquals(100, builder.getEntryCount());
+
+        File seekFile = new File(SeekIndexBuilder.pathFor(path));
+        try (SeekIndexReader reader = new SeekIndexReader(seekFile)) {
+            assertEquals(SeekIndexBuilder.FLUSH_ENTRIES, reader.getEntryCount());
+            int last = reader.find(99_000_000);
+            assertEquals(SeekIndexBuilder.FLUSH_ENTRIES - 1, last);
+            assertEquals(63_000_000, reader.getTimeUs(last));
+        }
+        // エントリの途中で切れたファイル
+        try (RandomAccessFile raf = new RandomAccessFile(seekFile, "rw")) {
+            raf.setLength(SeekIndexBuilder.HEADER_SIZE + SeekIndexBuilder.ENTRY_SIZE * 10 + 7);
+        }
+        try (SeekIndexReader reader = new SeekIndexReader(seekFile)) {
+            assertEquals(10, reader.getEntryCount());
+            assertEquals(9_000_000, reader.getTimeUs(reader.find(Long.MAX_VALUE)));
+        }
+    }
+
+    /**
+     * 書き込んだ (ことにした) バイト数を数えるだけのシンク
+     */
+    private static final class CountingSink implements PcmSink {
+        private final long bytesPerWrite;
+        private long bytes;
+        boolean closed;
+
+        CountingSink() {
+            this(-1);
+        }
+
+        /**
+         * @param bytesPerWrite 1回の書き込みで増やすバイト数。負なら PCM のバイト数
+         */
+        CountingSink(long bytesPerWrite) {
+            this.bytesPerWrite = bytesPerWrite;
+        }
+
+        @Override
+        public void open(PcmFormat format) {
+        }
+
+        @Override
+        public void write(short[] buffer, int offset, int length, long presentationTimeUs) {
+            bytes += bytesPerWrite >= 0 ? bytesPerWrite : length * (long) PcmFormat.BYTES_PER_SAMPLE;
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return bytes;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.recordingapp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link SegmentedSink} の切り替え条件と、マニフェストへの記録を確認するテスト
+ */
+public class SegmentedSinkTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /**
+     * 受け取ったサンプルをメモリに記録するだけのシンク
+     */
+    private static final class MemorySink implements PcmSink {
+        final String path;
+        final List<Long> presentationTimesUs = new ArrayList<>();
+        final List<Short> samples = new ArrayList<>();
+        boolean closed;
+
+        MemorySink(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public void open(PcmFormat format) {
+        }
+
+        @Override
+        public void write(short[] buffer, int offset, int length, long presentationTimeUs) {
+            presentationTimesUs.add(presentationTimeUs);
+            for (int i = 0; i < length; i++) {
+                samples.add(buffer[offset + i]);
+            }
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return samples.size() * (long) PcmFormat.BYTES_PER_SAMPLE;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private final List<MemorySink> created = new ArrayList<>();
+
+    private SegmentedSink newSink(File manifestFile, long maxDurationMs, long maxBytes) {
+        String basePath = new File(tempFolder.getRoot(), "REC_20250101_000000.mp4").getPath();
+        return new SegmentedSink(basePath, path -> {
+            MemorySink sink = new MemorySink(path);
+            created.add(sink);
+            return sink;
+        }, maxDurationMs, maxBytes, new SessionManifest(manifestFile));
+    }
+
+    /**
+     * 1000Hz・モノラルで、1バッファ100サンプル (100ms) の連番を書き込む
+     */
+    private static void writeRamp(SegmentedSink sink, PcmFormat format, int bufferCount) throws IOException {
+        short[] buffer = new short[100];
+        short value = 0;
+        for (int b = 0; b < bufferCount; b++) {
+            for (int i = 0; i < buffer.length; i++) {
+                buffer[i] = value++;
+            }
+            sink.write(buffer, 0, buffer.length, format.samplesToUs(b * 100L));
+        }
+    }
+
+    @Test
+    public void rotatesByDurationWithoutLosingSamples() throws Exception {
+        PcmFormat format = new PcmFormat(1000, 1);
+        File manifestFile = new File(tempFolder.getRoot(), "duration.manifest");
+        SegmentedSink sink = newSink(manifestFile, 1000, 0);
+
+        sink.open(format);
+        writeRamp(sink, format, 25); // 2.5秒分
+        sink.close();
+
+        assertEquals(3, created.size());
+        assertTrue(created.get(0).path.endsWith("REC_20250101_000000_part001.mp4"));
+        assertTrue(created.get(2).path.endsWith("REC_20250101_000000_part003.mp4"));
+
+        // セグメントをつなげると元の連番に戻り、各セグメントの時刻は0から始まる
+        short expected = 0;
+        for (MemorySink segment : created) {
+            assertTrue(segment.closed);
+            assertEquals(Long.valueOf(0), segment.presentationTimesUs.get(0));
+            for (short sample : segment.samples) {
+                assertEquals(expected++, sample);
+            }
+        }
+        assertEquals(2500, expected);
+        assertEquals(2500L * PcmFormat.BYTES_PER_SAMPLE, sink.getBytesWritten());
+
+        List<SessionManifest.Segment> segments = new SessionManifest(manifestFile).read();
+        assertEquals(3, segments.size());
+        assertEquals(1, segments.get(0).index);
+        assertEquals("REC_20250101_000000_part001.mp4", segments.get(0).fileName);
+        assertEquals(0, segments.get(0).startUs);
+        assertEquals(1_000_000, segments.get(0).durationUs);
+        assertEquals(2_000_000, segments.get(2).startUs);
+        assertEquals(500_000, segments.get(2).durationUs);
+        assertEquals(1000L * PcmFormat.BYTES_PER_SAMPLE, segments.get(1).bytes);
+    }
+
+    @Test
+    public void rotatesBySize() throws Exception {
+        PcmFormat format = new PcmFormat(1000, 1);
+        File manifestFile = new File(tempFolder.getRoot(), "size.manifest");
+        // 1バッファ200バイトなので、600バイトに達したら次のセグメントへ
+        SegmentedSink sink = newSink(manifestFile, 0, 600);
+
+        sink.open(format);
+        writeRamp(sink, format, 10);
+        sink.close();
+
+        assertEquals(4, created.size());
+        assertEquals(300, created.get(0).samples.size());
+        assertEquals(100, created.get(3).samples.size());
+        assertEquals(4, new SessionManifest(manifestFile).read().size());
+    }
+
+    @Test
+    public void segmentPathInsertsPartNumberBeforeExtension() {
+        assertEquals("/data/REC_1_part012.mp4", SegmentedSink.segmentPath("/data/REC_1.mp4", 12));
+        assertEquals("/data/REC_1_part001", SegmentedSink.segmentPath("/data/REC_1", 1));
+    }
+
+    @Test
+    public void basePathOfReversesSegmentPath() {
+        assertEquals("/data/REC_1.wav", SegmentedSink.basePathOf(SegmentedSink.segmentPath("/data/REC_1.wav", 12)));
+        assertEquals("/data/REC_1.wav", SegmentedSink.basePathOf(SegmentedSink.segmentPath("/data/REC_1.wav", 1234)));
+        assertEquals("/data/REC_1.wav", SegmentedSink.basePathOf("/data/REC_1.wav"));
+    }
+}
@@ -0,0 +1,164 @@
+package com.example.recordingapp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link Log2Histogram} と {@link SessionMetrics} の記録と書き出しを確認するテスト
+ */
+public class SessionMetricsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void valuesFallIntoPowerOfTwoBuckets() {
+        assertEquals(0, Log2Histogram.bucketOf(0));
+        assertEquals(1, Log2Histogram.bucketOf(1));
+        assertEquals(2, Log2Histogram.bucketOf(2));
+        assertEquals(2, Log2Histogram.bucketOf(3));
+        assertEquals(3, Log2Histogram.bucketOf(4));
+        assertEquals(11, Log2Histogram.bucketOf(1024));
+        assertEquals(63, Log2Histogram.bucketOf(Long.MAX_VALUE));
+
+        Log2Histogram histogram = new Log2Histogram();
+        histogram.record(0);
+        histogram.record(3);
+        histogram.record(3);
+        histogram.record(-5);
+        assertEquals(4, histogram.getCount());
+        assertEquals(2, histogram.getBucket(0));
+        assertEquals(2, histogram.getBucket(2));
+        assertEquals(6, histogram.getSum());
+        assertEquals(3, histogram.getMax());
+    }
+
+    @Test
+    public void percentileIsBucketUpperBoundCappedAtMax() {
+        Log2Histogram histogram = new Log2Histogram();
+        assertEquals(0, histogram.getPercentile(0.5));
+        for (int i = 0; i < 99; i++) {
+            histogram.record(100);
+        }
+        histogram.record(5000);
+        // 100 は 64〜127 のバケツ
+        assertEquals(127, histogram.getPercentile(0.5));
+        assertEquals(127, histogram.getPercentile(0.99));
+        assertEquals(5000, histogram.getPercentile(1.0));
+        assertEquals(5000, histogram.getMax());
+    }
+
+    @Test
+    public void writesAreCountedAndStallsDetected() {
+        SessionMetrics metrics = new SessionMetrics();
+        metrics.setStallThresholdUs(20_000);
+        metrics.recordWrite(1, 50, 1_000);
+        metrics.recordWrite(3, 4_000, 25_000);
+        metrics.recordWrite(2, 30_000, 2_000);
+
+        assertEquals(3, metrics.getWriteUs().getCount());
+        assertEquals(3, metrics.getQueueDepth().getMax());
+        assertEquals(30_000, metrics.getQueueLatencyUs().getMax());
+        assertEquals(1, metrics.getStallCount());
+        assertEquals(25_000, metrics.getStallTotalUs());
+    }
+
+    @Test
+    public void jsonIsWrittenNextToRecording() throws Exception {
+        File recording = folder.newFile("REC_20250101_120000.mp4");
+        SessionMetrics metrics = new SessionMetrics();
+        metrics.setRecording(recording.getPath(), "AudioRecord + \"MediaCodec\"", "ウォームアップ済み", 1_700_000_000_000L);
+        metrics.setTimeToFirstSampleUs(42_000);
+        metrics.setCapture(441_000, 2);
+        metrics.setTotals(10_000_000, 160_000, 350);
+        metrics.recordWrite(1, 100, 900);
+
+        assertEquals(16_000, metrics.getBytesPerSecond());
+        String path = SessionMetrics.pathFor(recording.getPath());
+        assertEquals(new File(folder.getRoot(), "REC_20250101_120000.metrics.json").getPath(), path);
+        metrics.writeJson(new File(path));
+
+        String json = new String(Files.readAllBytes(new File(path).toPath()), StandardCharsets.UTF_8).trim();
+        assertTrue(json.startsWith("{\"version\":1,\"recording\":\"REC_20250101_120000.mp4\""));
+        assertTrue(json.contains("\"engine\":\"AudioRecord + \\\"MediaCodec\\\"\""));
+        assertTrue(json.contains("\"timeToFirstSampleUs\":42000"));
+        assertTrue(json.contains("\"overruns\":2"));
+        assertTrue(json.contains("\"bytesPerSecond\":16000"));
+        assertTrue(json.contains("\"cpuTimeMillis\":350"));
+        // 900 は 512〜1023 のバケツ (10番)
+        assertTrue(json.contains("\"writeUs\":{\"count\":1,\"mean\":900,\"p50\":900,\"p99\":900,\"max\":900,"
+                + "\"buckets\":[0,0,0,0,0,0,0,0,0,0,1]}"));
+        assertTrue(json.endsWith("}"));
+    }
+
+    @Test
+    public void encoderAndItsChangesAreWrittenToJson() {
+        SessionMetrics metrics = new SessionMetrics();
+        assertFalse(metrics.toJson().contains("\"encoder\""));
+        metrics.setEncoder(EncoderProfile.SPEECH, 32_000, true);
+        metrics.recordEncoderChange(12_500_000, "speech", 24_000, "書き込みの遅れ");
+
+        String json = metrics.toJson();
+        assertTrue(json.contains("\"encoder\":{\"profile\":\"speech\",\"codec\":\"aac\",\"sampleRate\":16000,"
+                + "\"channels\":1,\"bitRate\":32000,\"adaptive\":true}"));
+        assertTrue(json.contains("\"encoderChanges\":[{\"atUs\":12500000,\"profile\":\"speech\",\"bitRate\":24000,"
+                + "\"reason\":\"書き込みの遅れ\"}]"));
+        assertTrue(metrics.toSummary().endsWith("speech 切り替え 1 回"));
+    }
+
+    @Test
+    public void pipelineRecordsEveryBufferAndSlowWritesAsStalls() throws Exception {
+        PcmFormat format = new PcmFormat(16000, 1);
+        CapturePipelineTest.RampSource source = new CapturePipelineTest.RampSource(format, 16_000, 1_000_000);
+        PcmSink slowSink = new PcmSink() {
+            private int writes;
+
+            @Override
+            public void open(PcmFormat format) {
+            }
+
+            @Override
+            public void write(short[] buffer, int offset, int length, long presentationTimeUs) {
+                // 5回に1回、1バッファ分 (20ms) より長くかかる
+                if (++writes % 5 == 0) {
+                    try {
+                        Thread.sleep(30);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+
+            @Override
+            public long getBytesWritten() {
+                return 0;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        CapturePipeline pipeline = new CapturePipeline(source, slowSink, 64, 320);
+        SessionMetrics metrics = new SessionMetrics();
+        pipeline.setMetrics(metrics);
+
+        pipeline.start();
+        while (!source.isDrained()) {
+            Thread.sleep(5);
+        }
+        pipeline.stop();
+
+        // 16000 サンプル = 320 サンプルのバッファ 50 個
+        assertEquals(50, metrics.getWriteUs().getCount());
+        assertEquals(10, metrics.getStallCount());
+        assertTrue(metrics.getWriteUs().getMax() >= 30_000);
+        assertTrue(metrics.getQueueDepth().getMax() >= 1);
+    }
+}
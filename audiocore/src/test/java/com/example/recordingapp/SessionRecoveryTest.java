@@ -0,0 +1,258 @@
+package com.example.recordingapp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 閉じずに放置した (強制終了を模した) セッションを {@link SessionJournal} から {@link SessionRecovery} で修復するテスト
+ */
+public class SessionRecoveryTest {
+
+    private static final PcmFormat MONO_16K = new PcmFormat(16000, 1);
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /**
+     * エンコードしたファイルの代わりに、受け取ったサンプルのバイト数だけファイルを伸ばすシンク
+     */
+    private static final class GrowingFileSink implements PcmSink {
+        private final File file;
+        private RandomAccessFile output;
+        private long bytes;
+
+        GrowingFileSink(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public void open(PcmFormat format) throws IOException {
+            output = new RandomAccessFile(file, "rw");
+        }
+
+        @Override
+        public void write(short[] buffer, int offset, int length, long presentationTimeUs) throws IOException {
+            bytes += length;
+            output.setLength(bytes);
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return bytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            output.close();
+        }
+    }
+
+    /**
+     * エンコーダーの代わりに、1024サンプルごとに固定長のフレームを {@link Mp4AacWriter} に書くシンク
+     */
+    private static final class FakeAacSink implements PcmSink {
+        private final Mp4AacWriter writer;
+        // まだフレームにしていないサンプル数
+        private int pending;
+
+        FakeAacSink(File file) {
+            writer = new Mp4AacWriter(file.getPath(), 1024);
+        }
+
+        @Override
+        public void open(PcmFormat format) throws IOException {
+            writer.start(format.getSampleRate(), format.getChannelCount(), 32_000, ByteBuffer.wrap(new byte[]{0x14, 0x08}));
+        }
+
+        @Override
+        public void write(short[] buffer, int offset, int length, long presentationTimeUs) throws IOException {
+            for (pending += length; pending >= Mp4AacWriter.SAMPLES_PER_FRAME; pending -= Mp4AacWriter.SAMPLES_PER_FRAME) {
+                writer.writeFrame(ByteBuffer.allocate(200));
+            }
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return writer.getDataBytes();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    private static void writeRamp(PcmSink sink, int bufferCount, int samplesPerBuffer) throws IOException {
+        short[] buffer = new short[samplesPerBuffer];
+        short value = 0;
+        for (int b = 0; b < bufferCount; b++) {
+            for (int i = 0; i < buffer.length; i++) {
+                buffer[i] = value++;
+            }
+            sink.write(buffer, 0, buffer.length, MONO_16K.samplesToUs((long) b * samplesPerBuffer));
+        }
+    }
+
+    @Test
+    public void interruptedWavIsCutAtTheLastJournaledPosition() throws Exception {
+        File wav = new File(tempFolder.getRoot(), "REC_20250101_000000.wav");
+        String journalPath = SessionJournal.pathFor(wav.getPath());
+        SessionJournal journal = new SessionJournal(journalPath, WavFileSink.HEADER_SIZE, ".wav", false);
+        // ヘッダは閉じるまで書き換えない。ジャーナルには 4KB ごとに記録する
+        PcmSink sink = new JournalingSink(new WavFileSink(wav.getPath(), 1024, 64 * 1024, 1 << 20), journal, 4096);
+        sink.open(MONO_16K);
+        writeRamp(sink, 101, 512);
+        assertTrue(new File(journalPath).exists());
+        // 先に確保した領域の分だけファイルが長い
+        assertEquals(128 * 1024, wav.length());
+
+        SessionRecovery.Result result = SessionRecovery.recover(new File(journalPath));
+
+        assertTrue(result.interrupted);
+        assertEquals(wav.getPath(), result.recordingPath);
+        assertEquals(1, result.repairedFiles);
+        assertEquals(0, result.unplayableFiles);
+        // 101KB 書き出したうち、ジャーナルに記録した 100KB までを残す
+        assertEquals(WavFileSink.HEADER_SIZE + 100 * 1024, wav.length());
+        assertEquals(MONO_16K.samplesToUs(50 * 1024), result.recoveredDurationUs);
+        assertFalse(new File(journalPath).exists());
+        try (WavReader reader = new WavReader(wav)) {
+            assertEquals(50 * 1024, reader.getTotalFrames());
+            short[] samples = new short[50 * 1024];
+            int read = 0;
+            int count;
+            while ((count = reader.read(samples, read, samples.length - read)) > 0) {
+                read += count;
+            }
+            assertEquals(samples.length, read);
+            for (int i = 0; i < samples.length; i++) {
+                assertEquals((short) i, samples[i]);
+            }
+        }
+    }
+
+    @Test
+    public void interruptedSegmentIsRepairedAndAddedToManifest() throws Exception {
+        String basePath = new File(tempFolder.getRoot(), "REC_20250101_000000.wav").getPath();
+        SessionJournal journal = new SessionJournal(SessionJournal.pathFor(basePath), WavFileSink.HEADER_SIZE,
+                ".wav", true);
+        SessionManifest manifest = new SessionManifest(SessionManifest.forRecording(basePath));
+        SegmentedSink sink = new SegmentedSink(basePath,
+                path -> new JournalingSink(new WavFileSink(path, 1024, 64 * 1024, 1 << 20), journal, 1024),
+                1000, 0, manifest);
+        sink.open(MONO_16K);
+        // 100ms ずつ 2.5秒分: 1秒ごとのセグメントが2つ閉じ、3つ目の途中で終了する
+        writeRamp(sink, 25, 1600);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (manifest.read().size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, manifest.read().size());
+
+        SessionRecovery.Result result = SessionRecovery.recover(new File(SessionJournal.pathFor(basePath)));
+
+        assertEquals(1, result.repairedFiles);
+        List<SessionManifest.Segment> segments = manifest.read();
+        assertEquals(3, segments.size());
+        SessionManifest.Segment last = segments.get(2);
+        assertEquals(3, last.index);
+        assertEquals(new File(SegmentedSink.segmentPath(basePath, 3)).getName(), last.fileName);
+        assertEquals(2_000_000, last.startUs);
+        // 5バッファ 16000 bytes のうち、1KB のバッファから書き出した 15KB まで
+        assertEquals(15 * 1024, last.bytes);
+        assertEquals(MONO_16K.samplesToUs(15 * 512), last.durationUs);
+        assertEquals(WavFileSink.HEADER_SIZE + 15 * 1024, new File(SegmentedSink.segmentPath(basePath, 3)).length());
+        // 閉じ終えたセグメントには触れない
+        assertEquals(WavFileSink.HEADER_SIZE + 32000, new File(SegmentedSink.segmentPath(basePath, 1)).length());
+    }
+
+    @Test
+    public void closedFileIsLeftAsIsAndFinishedJournalIsRemoved() throws Exception {
+        File wav = new File(tempFolder.getRoot(), "REC_20250101_000000.wav");
+        File journalFile = new File(SessionJournal.pathFor(wav.getPath()));
+        SessionJournal journal = new SessionJournal(journalFile.getPath(), WavFileSink.HEADER_SIZE, ".wav", false);
+        PcmSink sink = new JournalingSink(new WavFileSink(wav.getPath(), 1024, 64 * 1024, 1 << 20), journal, 1024);
+        sink.open(MONO_16K);
+        writeRamp(sink, 10, 500);
+        sink.close();
+
+        // ファイルを閉じた後、ジャーナルを閉じる前に終了した
+        SessionRecovery.Result result = SessionRecovery.recover(journalFile);
+        assertTrue(result.interrupted);
+        assertEquals(0, result.repairedFiles);
+        assertEquals(WavFileSink.HEADER_SIZE + 10000, wav.length());
+        assertFalse(journalFile.exists());
+
+        // 最後まで書き終えたセッションのジャーナルは残らない
+        journal = new SessionJournal(journalFile.getPath(), WavFileSink.HEADER_SIZE, ".wav", false);
+        sink = new JournalingSink(new WavFileSink(wav.getPath()), journal);
+        sink.open(MONO_16K);
+        writeRamp(sink, 10, 500);
+        sink.close();
+        assertTrue(journalFile.exists());
+        journal.finish();
+        assertNull(journal.getFailure());
+        assertFalse(journalFile.exists());
+        assertTrue(SessionRecovery.listJournals(tempFolder.getRoot()).isEmpty());
+    }
+
+    @Test
+    public void interruptedMp4IsFinishedFromItsFramesLog() throws Exception {
+        File mp4 = new File(tempFolder.getRoot(), "REC_20250101_000000.mp4");
+        File journalFile = new File(SessionJournal.pathFor(mp4.getPath()));
+        SessionJournal journal = new SessionJournal(journalFile.getPath(), SeekIndexBuilder.ENCODED_STREAM,
+                ".mp4", false);
+        PcmSink sink = new JournalingSink(new FakeAacSink(mp4), journal, 1000);
+        sink.open(MONO_16K);
+        // 1024サンプルのフレームを 50 個。200 バイトのフレームを 1024 バイトのバッファに 5 個ずつ溜めて書き出す
+        writeRamp(sink, 100, 512);
+        assertTrue(new File(Mp4AacWriter.framesPathFor(mp4.getPath())).exists());
+
+        SessionRecovery.Result result = SessionRecovery.recover(journalFile);
+
+        assertTrue(result.interrupted);
+        assertEquals(1, result.repairedFiles);
+        assertEquals(0, result.unplayableFiles);
+        // 最後に書き出したバッファまでの 45 フレーム (残りの 5 フレームはバッファの中で失われた)
+        assertEquals(45L * 1024 * 1_000_000 / 16000, result.recoveredDurationUs);
+        assertArrayEquals(new long[]{45 * 200, result.recoveredDurationUs}, Mp4AacWriter.readFinished(mp4));
+        assertFalse(new File(Mp4AacWriter.framesPathFor(mp4.getPath())).exists());
+        assertFalse(journalFile.exists());
+    }
+
+    @Test
+    public void unfinishedEncodedFileIsReportedAndTornRecordIsSkipped() throws Exception {
+        File mp4 = new File(tempFolder.getRoot(), "REC_20250101_000000.mp4");
+        File journalFile = new File(SessionJournal.pathFor(mp4.getPath()));
+        SessionJournal journal = new SessionJournal(journalFile.getPath(), SeekIndexBuilder.ENCODED_STREAM,
+                ".mp4", false);
+        PcmSink sink = new JournalingSink(new GrowingFileSink(mp4), journal, 100);
+        sink.open(MONO_16K);
+        writeRamp(sink, 10, 500);
+        // 最後のレコードが途中までしか書かれなかった
+        try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+            out.write(new byte[]{SessionJournal.TYPE_CLOSE, 0, 0, 0, 0, 0, 0, 0, 1, 2, 3, 4, 5, 6});
+            out.write(new byte[SessionJournal.RECORD_SIZE - 14]);
+        }
+        assertEquals(1, SessionRecovery.listJournals(tempFolder.getRoot()).size());
+
+        SessionRecovery.Result result = SessionRecovery.recover(journalFile);
+
+        assertEquals(mp4.getPath(), result.recordingPath);
+        assertTrue(result.interrupted);
+        assertEquals(0, result.repairedFiles);
+        assertEquals(1, result.unplayableFiles);
+        assertEquals(5000, mp4.length());
+        assertFalse(journalFile.exists());
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.recordingapp;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link RealFft} と {@link SpectrumAnalyzer} を、答えの分かっている信号で確認するテスト
+ */
+public class SpectrumAnalyzerTest {
+
+    private static final PcmFormat MONO_48K = new PcmFormat(48000, 1);
+
+    private static short[] sine(PcmFormat format, double frequencyHz, double amplitude, int frames) {
+        short[] buffer = new short[frames * format.getChannelCount()];
+        for (int i = 0; i < frames; i++) {
+            short value = (short) Math.round(amplitude * Math.sin(2 * Math.PI * frequencyHz * i / format.getSampleRate()));
+            for (int c = 0; c < format.getChannelCount(); c++) {
+                buffer[i * format.getChannelCount() + c] = value;
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * 既定の大きさで、解析にかかる時間を 0 とみなす (間引かない) もの
+     */
+    private static SpectrumAnalyzer analyzer(PcmFormat format, SpectrumFrames frames) {
+        int fftSize = SpectrumAnalyzer.fftSizeFor(format.getSampleRate());
+        return new SpectrumAnalyzer(format, fftSize, fftSize / 2, SpectrumAnalyzer.DEFAULT_BUDGET_FRACTION, frames,
+                () -> 0);
+    }
+
+    @Test
+    public void realFftMatchesDirectDft() {
+        for (int size : new int[]{4, 8, 64, 1024}) {
+            RealFft fft = new RealFft(size);
+            float[] input = new float[size];
+            Random random = new Random(size);
+            for (int i = 0; i < size; i++) {
+                input[i] = (float) random.nextGaussian();
+            }
+            float[] re = new float[fft.getBinCount()];
+            float[] im = new float[fft.getBinCount()];
+            fft.transform(input, re, im);
+            float[] power = new float[fft.getBinCount()];
+            fft.powerSpectrum(input, power);
+            for (int k = 0; k <= size / 2; k++) {
+                double expectedRe = 0;
+                double expectedIm = 0;
+                for (int n = 0; n < size; n++) {
+                    double angle = -2 * Math.PI * k * n / size;
+                    expectedRe += input[n] * Math.cos(angle);
+                    expectedIm += input[n] * Math.sin(angle);
+                }
+                double tolerance = 1e-4 * size;
+                assertEquals("re size=" + size + " k=" + k, expectedRe, re[k], tolerance);
+                assertEquals("im size=" + size + " k=" + k, expectedIm, im[k], tolerance);
+                assertEquals(expectedRe * expectedRe + expectedIm * expectedIm, power[k],
+                        1e-3 * size * (1 + power[k]));
+            }
+        }
+    }
+
+    @Test
+    public void fullScaleSineAppearsInItsBandAtZeroDbfs() {
+        SpectrumFrames frames = new SpectrumFrames(16, 64);
+        SpectrumAnalyzer analyzer = analyzer(MONO_48K, frames);
+        assertEquals(2048, analyzer.getFftSize());
+        // ビンのちょうど中心にある 1kHz 付近の正弦波
+        double frequency = 43 * 48000.0 / 2048;
+        short[] buffer = sine(MONO_48K, frequency, 32767, 4096);
+        analyzer.process(buffer, 0, buffer.length, 0);
+        // 2048 サンプル溜まってから 1024 サンプルごとに解析する
+        assertEquals(3, frames.getNextSequence());
+
+        float[] frame = new float[64];
+        assertTrue(frames.read(2, frame));
+        int loudest = 0;
+        for (int band = 1; band < frame.length; band++) {
+            if (frame[band] > frame[loudest]) {
+                loudest = band;
+            }
+        }
+        assertTrue(analyzer.getBandFrequencyHz(loudest) <= frequency);
+        assertTrue(analyzer.getBandFrequencyHz(loudest + 1) > frequency);
+        assertEquals(0, frame[loudest], 0.1);
+        // Hann 窓の漏れは数ビン先で十分に小さくなる
+        assertTrue(frame[loudest + 4] < -60);
+        assertEquals(SpectrumFrames.MIN_DBFS, frame[0], 20);
+        // 3番目のフレームは 2048 サンプル目から始まる
+        assertEquals(2048 * 1_000_000L / 48000, frames.getPresentationTimeUs(2));
+    }
+
+    @Test
+    public void humIsResolvedFromVoiceBandInStereo() {
+        PcmFormat stereo = new PcmFormat(48000, 2);
+        SpectrumFrames frames = new SpectrumFrames(8, 96);
+        SpectrumAnalyzer analyzer = analyzer(stereo, frames);
+        short[] hum = sine(stereo, 50, 3000, 48000);
+        analyzer.process(hum, 0, hum.length, 0);
+        float[] frame = new float[96];
+        assertTrue(frames.read(frames.getNextSequence() - 1, frame));
+        int loudest = 0;
+        for (int band = 1; band < frame.length; band++) {
+            if (frame[band] > frame[loudest]) {
+                loudest = band;
+            }
+        }
+        float humDb = 20 * (float) Math.log10(3000 / 32768.0);
+        assertTrue(analyzer.getBandFrequencyHz(loudest) < 60);
+        // 50Hz はビンの中心から外れるので、窓の分だけ小さく見える
+        assertEquals(humDb, frame[loudest], 1.5);
+        // 1kHz より上にはほとんど何もない
+        for (int band = 0; band < frame.length; band++) {
+            if (analyzer.getBandFrequencyHz(band) > 1000) {
+                assertTrue("band " + band, frame[band] < humDb - 60);
+            }
+        }
+    }
+
+    @Test
+    public void silenceIsPublishedAtTheFloor() {
+        SpectrumFrames frames = new SpectrumFrames(4, 32);
+        SpectrumAnalyzer analyzer = analyzer(new PcmFormat(16000, 1), frames);
+        short[] silence = new short[4096];
+        analyzer.process(silence, 0, silence.length, 0);
+        float[] frame = new float[32];
+        assertTrue(frames.read(frames.getNextSequence() - 1, frame));
+        for (float value : frame) {
+            assertEquals(SpectrumFrames.MIN_DBFS, value, 0);
+        }
+    }
+
+    @Test
+    public void slowAnalysisIsThinnedOutAndRecovers() {
+        SpectrumFrames frames = new SpectrumFrames(64, 16);
+        long[] now = {0};
+        long[] costPerCall = {0};
+        // 時計を読むたびに costPerCall ずつ進める (解析の前後で読むので、1回の解析に costPerCall かかったことになる)
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer(MONO_48K, 1024, 480, 0.1f, frames,
+                () -> now[0] += costPerCall[0]);
+        short[] buffer = new short[480];
+
+        // 1回の解析が 10ms の音声に対して 5ms かかる (予算は 1ms)
+        costPerCall[0] = 5_000_000;
+        for (int i = 0; i < 100; i++) {
+            analyzer.process(buffer, 0, buffer.length, 0);
+        }
+        assertEquals(SpectrumAnalyzer.MAX_STRIDE, analyzer.getStride());
+        assertTrue(analyzer.getSkippedFrames() > analyzer.getAnalyzedFrames() * 4);
+
+        // 速くなれば間引きをやめる
+        costPerCall[0] = 50_000;
+        for (int i = 0; i < 400; i++) {
+            analyzer.process(buffer, 0, buffer.length, 0);
+        }
+        assertEquals(1, analyzer.getStride());
+        assertEquals(SpectrumAnalyzer.MAX_STRIDE, analyzer.getMaxStride());
+        long analyzed = analyzer.getAnalyzedFrames();
+        analyzer.process(buffer, 0, buffer.length, 0);
+        assertEquals(analyzed + 1, analyzer.getAnalyzedFrames());
+    }
+
+    @Test
+    public void overwrittenFramesAreNotReadable() {
+        SpectrumFrames frames = new SpectrumFrames(4, 8);
+        SpectrumAnalyzer analyzer = analyzer(new PcmFormat(8000, 1), frames);
+        short[] buffer = sine(new PcmFormat(8000, 1), 440, 10000, 8000);
+        analyzer.process(buffer, 0, buffer.length, 0);
+        long next = frames.getNextSequence();
+        assertTrue(next > 4);
+        float[] frame = new float[8];
+        assertFalse(frames.read(next - 5, frame));
+        assertTrue(frames.read(next - 4, frame));
+        assertFalse(frames.read(next, frame));
+        assertEquals(-1, frames.getPresentationTimeUs(next - 5));
+    }
+}
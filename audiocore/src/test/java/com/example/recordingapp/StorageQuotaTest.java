@@ -0,0 +1,128 @@
+package com.example.recordingapp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link StorageQuota} の使用量の数え方と消す録音の選び方、
+ * {@link StorageAccountingSink} と録音ファイルの削除を確認するテスト
+ */
+public class StorageQuotaTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static final long NOW = 1_750_000_000_000L;
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private static RecordingEntry entry(long id, String name, long startTimeMillis, long sizeBytes) {
+        return new RecordingEntry(id, "/data/" + name, startTimeMillis, 1_000_000, sizeBytes,
+                RecordingOptions.OUTPUT_FORMAT_AAC, 0, RecordingEntry.STATUS_COMPLETE);
+    }
+
+    private final List<RecordingEntry> oldestFirst = Arrays.asList(
+            entry(1, "REC_20250101_000000.mp4", NOW - 30 * DAY, 400),
+            entry(2, "REC_20250102_000000.mp4", NOW - 20 * DAY, 300),
+            entry(3, "REC_20250103_000000.mp4", NOW - 10 * DAY, 200),
+            entry(4, "REC_20250104_000000.mp4", NOW - DAY, 100));
+
+    @Test
+    public void evictsOldestUntilReserveFitsUnderLimit() {
+        StorageQuota quota = new StorageQuota(1000, 0);
+        quota.setUsedBytes(1000);
+        assertTrue(quota.isOverLimit(1));
+        assertFalse(quota.isOverLimit(0));
+
+        // 500 bytes 空けるには、古い方から2件 (400 + 300) を消す
+        List<RecordingEntry> plan = quota.planEviction(oldestFirst, 500, NOW, Collections.emptyList());
+        assertEquals(2, plan.size());
+        assertEquals(1, plan.get(0).id);
+        assertEquals(2, plan.get(1).id);
+
+        // 上限に余裕があれば何も消さない
+        quota.setUsedBytes(100);
+        assertTrue(quota.planEviction(oldestFirst, 500, NOW, Collections.emptyList()).isEmpty());
+    }
+
+    @Test
+    public void expiredRecordingsAreEvictedRegardlessOfSpace() {
+        StorageQuota quota = new StorageQuota(StorageQuota.UNLIMITED, 14);
+        quota.setUsedBytes(1000);
+        List<RecordingEntry> plan = quota.planEviction(oldestFirst, 0, NOW, Collections.emptyList());
+        assertEquals(2, plan.size());
+        assertEquals(2, plan.get(1).id);
+
+        assertFalse(new StorageQuota(0, 0).isLimited());
+        assertTrue(new StorageQuota(0, 0).planEviction(oldestFirst, 1L << 40, NOW, Collections.emptyList()).isEmpty());
+    }
+
+    @Test
+    public void protectedRecordingsAreSkipped() {
+        StorageQuota quota = new StorageQuota(1000, 0);
+        quota.setUsedBytes(1000);
+        // 1件目はセグメントを後処理中、2件目は録音中
+        List<String> protectedPaths = Arrays.asList(
+                "/data/REC_20250101_000000_part002.mp4", "/data/REC_20250102_000000.mp4", null);
+        List<RecordingEntry> plan = quota.planEviction(oldestFirst, 300, NOW, protectedPaths);
+        assertEquals(2, plan.size());
+        assertEquals(3, plan.get(0).id);
+        assertEquals(4, plan.get(1).id);
+    }
+
+    @Test
+    public void sessionCountsWritesAndSettlesToActualSize() throws Exception {
+        StorageQuota quota = new StorageQuota(1 << 20, 0);
+        quota.setUsedBytes(5000);
+        StorageQuota.Session session = quota.openSession();
+        File file = new File(tempFolder.getRoot(), "REC_20250101_000000.wav");
+        PcmSink sink = new StorageAccountingSink(new WavFileSink(file.getPath()), session);
+        PcmFormat format = new PcmFormat(8000, 1);
+
+        sink.open(format);
+        sink.write(new short[800], 0, 800, 0);
+        assertEquals(1600, session.getBytes());
+        assertEquals(6600, quota.getUsedBytes());
+        sink.write(new short[800], 0, 800, format.samplesToUs(800));
+        sink.close();
+        assertEquals(3200, session.getBytes());
+
+        // 停止後は、ヘッダを含むファイルの実際のサイズで合わせ直す
+        session.finish(file.length());
+        assertEquals(5000 + file.length(), quota.getUsedBytes());
+        session.finish(0);
+        assertEquals(5000 + file.length(), quota.getUsedBytes());
+    }
+
+    @Test
+    public void deleteRecordingRemovesSegmentsAndSidecars() throws Exception {
+        File dir = tempFolder.getRoot();
+        String path = new File(dir, "REC_20250101_000000.wav").getPath();
+        SessionManifest manifest = new SessionManifest(SessionManifest.forRecording(path));
+        manifest.append(new SessionManifest.Segment(1, "REC_20250101_000000_part001.wav", 0, 1_000_000, 10));
+        String[] names = {"REC_20250101_000000_part001.wav", "REC_20250101_000000_part002.wav",
+                "REC_20250101_000000_part001_post.wav", "REC_20250101_000000.peaks",
+                "REC_20250101_000000.vad", "REC_20250101_000000.metrics.json"};
+        for (String name : names) {
+            Files.write(new File(dir, name).toPath(), new byte[10]);
+        }
+        // 別の録音は残す
+        File other = new File(dir, "REC_20250102_000000.wav");
+        Files.write(other.toPath(), new byte[10]);
+
+        long manifestBytes = manifest.getFile().length();
+        assertEquals(names.length * 10 + manifestBytes, StorageQuota.deleteRecording(path));
+        String[] left = dir.list();
+        assertNotNull(left);
+        assertArrayEquals(new String[]{other.getName()}, left);
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.recordingapp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link VadGateSink} が無音を詰め、詰めた区間の記録から元の時刻を復元できることを確認するテスト
+ */
+public class VadGateSinkTest {
+
+    private static final PcmFormat FORMAT = new PcmFormat(16000, 1);
+    private static final int BUFFER_SAMPLES = FORMAT.samplesForMillis(20);
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /**
+     * 受け取ったサンプルとタイムスタンプをすべて保持する出力先
+     */
+    private static class CollectingSink implements PcmSink {
+        final short[] samples = new short[FORMAT.samplesForMillis(60_000)];
+        int length;
+        boolean contiguous = true;
+        boolean closed;
+
+        @Override
+        public void open(PcmFormat format) {
+        }
+
+        @Override
+        public void write(short[] buffer, int offset, int count, long presentationTimeUs) {
+            if (presentationTimeUs != FORMAT.samplesToUs(length)) {
+                contiguous = false;
+            }
+            System.arraycopy(buffer, offset, samples, length, count);
+            length += count;
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return length * 2L;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void skipsSilenceAndKeepsPreRollSoTimestampsCanBeReconstructed() throws Exception {
+        File skipLog = new File(tempFolder.getRoot(), "a.vad");
+        CollectingSink downstream = new CollectingSink();
+        VadGateSink sink = new VadGateSink(downstream, 200, 300, skipLog.getPath());
+        VoiceActivityDetectorTest.SyntheticSignal signal = new VoiceActivityDetectorTest.SyntheticSignal(-60);
+        short[] input = new short[FORMAT.samplesForMillis(6000)];
+        short[] buffer = new short[BUFFER_SAMPLES];
+
+        sink.open(FORMAT);
+        // 無音1秒、発話1秒、無音2秒、発話1秒、無音1秒
+        double[] pattern = {0, 0.3, 0, 0, 0.3, 0};
+        for (int buffers = 0; signal.getPosition() < input.length; buffers++) {
+            int position = (int) signal.getPosition();
+            double amplitude = pattern[buffers / 50];
+            if (amplitude > 0) {
+                signal.speech(buffer, amplitude);
+            } else {
+                signal.noise(buffer);
+            }
+            System.arraycopy(buffer, 0, input, position, buffer.length);
+            sink.write(buffer, 0, buffer.length, FORMAT.samplesToUs(position));
+        }
+        sink.close();
+
+        assertTrue(downstream.closed);
+        assertTrue(downstream.contiguous);
+        assertEquals(input.length, sink.getWrittenSamples() + sink.getSkippedSamples());
+        // 発話2秒 + 直前の200ms x2 + ハングオーバー約300ms x2 程度だけが書き込まれる
+        double writtenSeconds = downstream.length / (double) FORMAT.getSampleRate();
+        assertTrue("written " + writtenSeconds + "s", writtenSeconds >= 2.9 && writtenSeconds <= 3.2);
+        assertEquals(3, sink.getSkippedRangeCount());
+        assertEquals(sink.getSkippedSamples() * 2, sink.getSkippedPcmBytes());
+        assertEquals(sink.getSkippedSamples() * 2, sink.getEstimatedSavedBytes());
+
+        // 記録から出力上の各サンプルの元の位置を求めると、入力と一致する
+        List<long[]> ranges = new ArrayList<>();
+        for (String line : Files.readAllLines(skipLog.toPath(), StandardCharsets.UTF_8)) {
+            if (line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t");
+            ranges.add(new long[]{Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])});
+        }
+        assertEquals(3, ranges.size());
+        assertEquals(0, ranges.get(0)[0]);
+        assertEquals(0, ranges.get(0)[1]);
+        // 最初の発話の 200ms 前から書き込まれている
+        assertEquals(800_000, ranges.get(0)[2]);
+        assertEquals(6_000_000, ranges.get(2)[2]);
+
+        long skippedUs = 0;
+        int rangeIndex = 0;
+        for (int i = 0; i < downstream.length; i++) {
+            long outputUs = FORMAT.samplesToUs(i);
+            while (rangeIndex < ranges.size() && ranges.get(rangeIndex)[0] <= outputUs) {
+                skippedUs += ranges.get(rangeIndex)[2] - ranges.get(rangeIndex)[1];
+                rangeIndex++;
+            }
+            int original = i + (int) (skippedUs * FORMAT.getSampleRate() / 1_000_000L);
+            assertEquals("output sample " + i, input[original], downstream.samples[i]);
+        }
+    }
+
+    @Test
+    public void allSilenceWritesNothing() throws Exception {
+        CollectingSink downstream = new CollectingSink();
+        VadGateSink sink = new VadGateSink(downstream, 200, 300, null);
+        VoiceActivityDetectorTest.SyntheticSignal signal = new VoiceActivityDetectorTest.SyntheticSignal(-70);
+        short[] buffer = new short[BUFFER_SAMPLES];
+
+        sink.open(FORMAT);
+        for (int i = 0; i < 100; i++) {
+            long position = signal.getPosition();
+            signal.noise(buffer);
+            sink.write(buffer, 0, buffer.length, FORMAT.samplesToUs(position));
+        }
+        sink.close();
+
+        assertEquals(0, downstream.length);
+        assertEquals(100 * BUFFER_SAMPLES, sink.getSkippedSamples());
+        assertEquals(1, sink.getSkippedRangeCount());
+        assertEquals(0, sink.getEstimatedSavedMillis(), 0);
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.recordingapp;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 合成した信号で {@link VoiceActivityDetector} の判定を確認するテスト
+ */
+public class VoiceActivityDetectorTest {
+
+    private static final PcmFormat FORMAT = new PcmFormat(16000, 1);
+    private static final int BUFFER_SAMPLES = FORMAT.samplesForMillis(20);
+
+    /**
+     * 合成信号。白色雑音の上に、音節のような有声音 (140Hz の倍音列) を重ねる
+     */
+    static final class SyntheticSignal {
+        private final Random random = new Random(42);
+        private final double noiseAmplitude;
+        private long position;
+
+        SyntheticSignal(double noiseDbfs) {
+            // 一様乱数の実効値は振幅の 1/sqrt(3)
+            this.noiseAmplitude = Math.pow(10, noiseDbfs / 20) * Math.sqrt(3);
+        }
+
+        long getPosition() {
+            return position;
+        }
+
+        /**
+         * 雑音だけのバッファを作る
+         */
+        void noise(short[] buffer) {
+            fill(buffer, 0);
+        }
+
+        /**
+         * 音節 (200ms 発音して 100ms 休む) を繰り返す発話を、振幅 amplitude で作る
+         */
+        void speech(short[] buffer, double amplitude) {
+            fill(buffer, amplitude);
+        }
+
+        private void fill(short[] buffer, double amplitude) {
+            int rate = FORMAT.getSampleRate();
+            for (int i = 0; i < buffer.length; i++) {
+                double t = (position + i) / (double) rate;
+                double value = (random.nextDouble() * 2 - 1) * noiseAmplitude;
+                double syllable = t % 0.3;
+                if (amplitude > 0 && syllable < 0.2) {
+                    double envelope = Math.sin(Math.PI * syllable / 0.2);
+                    double voiced = 0;
+                    for (int k = 1; k <= 5; k++) {
+                        voiced += Math.sin(2 * Math.PI * 140 * k * t) / k;
+                    }
+                    value += amplitude * envelope * voiced / 2.3;
+                }
+                buffer[i] = (short) Math.max(-32768, Math.min(32767, Math.round(value * 32767)));
+            }
+            position += buffer.length;
+        }
+    }
+
+    private static int countActive(VoiceActivityDetector detector, SyntheticSignal signal,
+                                   double seconds, double speechAmplitude) {
+        short[] buffer = new short[BUFFER_SAMPLES];
+        int buffers = (int) Math.round(seconds * 1000 / 20);
+        int active = 0;
+        for (int i = 0; i < buffers; i++) {
+            if (speechAmplitude > 0) {
+                signal.speech(buffer, speechAmplitude);
+            } else {
+                signal.noise(buffer);
+            }
+            if (detector.process(buffer, 0, buffer.length)) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    @Test
+    public void quietBackgroundIsNeverSpeech() {
+        VoiceActivityDetector detector = new VoiceActivityDetector(FORMAT, 300);
+        assertEquals(0, countActive(detector, new SyntheticSignal(-60), 5, 0));
+    }
+
+    @Test
+    public void detectsSpeechAndReleasesAfterHangover() {
+        VoiceActivityDetector detector = new VoiceActivityDetector(FORMAT, 300);
+        SyntheticSignal signal = new SyntheticSignal(-60);
+
+        assertEquals(0, countActive(detector, signal, 1, 0));
+        // 3秒の発話 (150バッファ) は、音節の間の休みも含めてすべて発話中になる
+        assertEquals(150, countActive(detector, signal, 3, 0.3));
+        // 発話の後はハングオーバー (300ms = 15バッファ) 程度だけ発話中が続く
+        int tail = countActive(detector, signal, 2, 0);
+        assertTrue("hangover buffers: " + tail, tail >= 15 && tail <= 17);
+        assertFalse(detector.isActive());
+    }
+
+    @Test
+    public void adaptsToSteadyLoudBackground() {
+        VoiceActivityDetector detector = new VoiceActivityDetector(FORMAT, 300);
+        SyntheticSignal signal = new SyntheticSignal(-35);
+
+        // 急に大きな雑音 (エアコン等) が続いても、しばらくすると無音とみなす
+        countActive(detector, signal, 10, 0);
+        assertEquals(0, countActive(detector, signal, 2, 0));
+        assertEquals(-35, detector.getNoiseFloorDb(), 1.5);
+
+        // その雑音の上でも、はっきりした発話は検出する
+        assertTrue(countActive(detector, signal, 1.5, 0.5) >= 70);
+    }
+
+    @Test
+    public void followsAlternatingNoiseAndSpeechOverLongRun() {
+        // 処理速度は benchmarks の MeteringBenchmark.voiceActivityDetector で測る
+        VoiceActivityDetector detector = new VoiceActivityDetector(FORMAT, 300);
+        SyntheticSignal signal = new SyntheticSignal(-50);
+        short[] buffer = new short[BUFFER_SAMPLES];
+        // 1秒ごとに雑音と発話を入れ替えて1分間
+        int speechActive = 0;
+        int noiseActive = 0;
+        for (int i = 0; i < 3000; i++) {
+            boolean speech = (i / 50) % 2 == 1;
+            if (speech) {
+                signal.speech(buffer, 0.3);
+            } else {
+                signal.noise(buffer);
+            }
+            if (detector.process(buffer, 0, buffer.length)) {
+                if (speech) {
+                    speechActive++;
+                } else {
+                    noiseActive++;
+                }
+            }
+        }
+        // 発話の区間はほぼ全て、雑音の区間は発話の直後の余韻 (300ms = 15バッファ) の分だけ
+        assertTrue("speech buffers detected: " + speechActive, speechActive > 1500 * 9 / 10);
+        assertTrue("noise buffers detected: " + noiseActive, noiseActive <= 29 * 15);
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.recordingapp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * 一時ファイルを使って {@link WavFileSink} のヘッダ、領域の先行確保、強制終了時の扱いを確認するテスト
+ */
+public class WavFileSinkTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static ByteBuffer readAll(File file) throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static short[] ramp(int length, int start) {
+        short[] samples = new short[length];
+        for (int i = 0; i < length; i++) {
+            samples[i] = (short) (start + i);
+        }
+        return samples;
+    }
+
+    @Test
+    public void writesValidHeaderAndTruncatesPreallocatedSpaceOnClose() throws Exception {
+        File file = new File(tempFolder.getRoot(), "a.wav");
+        PcmFormat format = new PcmFormat(48000, 2);
+        WavFileSink sink = new WavFileSink(file.getPath(), 1024, 1024 * 1024, 1 << 20);
+
+        sink.open(format);
+        sink.write(ramp(1000, 0), 0, 1000, 0);
+        sink.write(ramp(500, 1000), 0, 500, 0);
+        assertEquals(3000, sink.getBytesWritten());
+        sink.close();
+
+        assertEquals(WavFileSink.HEADER_SIZE + 3000, file.length());
+        ByteBuffer data = readAll(file);
+        assertEquals('R', data.get(0));
+        assertEquals('W', data.get(8));
+        assertEquals(36 + 3000, data.getInt(4));
+        assertEquals(1, data.getShort(20));
+        assertEquals(2, data.getShort(22));
+        assertEquals(48000, data.getInt(24));
+        assertEquals(48000 * 4, data.getInt(28));
+        assertEquals(4, data.getShort(32));
+        assertEquals(16, data.getShort(34));
+        assertEquals('d', data.get(36));
+        assertEquals(3000, data.getInt(40));
+        for (int i = 0; i < 1500; i++) {
+            assertEquals((short) i, data.getShort(WavFileSink.HEADER_SIZE + i * 2));
+        }
+    }
+
+    @Test
+    public void preallocatesInLargeExtents() throws Exception {
+        File file = new File(tempFolder.getRoot(), "b.wav");
+        final int[] calls = new int[1];
+        WavFileSink sink = new WavFileSink(file.getPath(), 1024, 64 * 1024, 1 << 20);
+        sink.setPreallocator((raf, fd, offset, length) -> {
+            calls[0]++;
+            WavFileSink.SET_LENGTH.preallocate(raf, fd, offset, length);
+        });
+
+        sink.open(new PcmFormat(16000, 1));
+        short[] samples = ramp(512, 0);
+        // 1KBずつ100KB書き込んでも、領域の確保は64KB単位で2回だけ
+        for (int i = 0; i < 100; i++) {
+            sink.write(samples, 0, samples.length, 0);
+        }
+        assertEquals(2, calls[0]);
+        assertEquals(128 * 1024, file.length());
+        sink.close();
+        assertEquals(WavFileSink.HEADER_SIZE + 100 * 1024, file.length());
+    }
+
+    @Test
+    public void fileIsPlayableUpToLastCommitWithoutClose() throws Exception {
+        File file = new File(tempFolder.getRoot(), "c.wav");
+        // 4KB書き込むごとにヘッダを更新する
+        WavFileSink sink = new WavFileSink(file.getPath(), 1024, 1024 * 1024, 4096);
+        sink.open(new PcmFormat(8000, 1));
+
+        // 閉じる前 (強制終了された場合と同じ状態) でも、データが0バイトのWAVとして読める
+        assertEquals(0, readAll(file).getInt(40));
+
+        short[] samples = ramp(1000, 0);
+        sink.write(samples, 0, samples.length, 0); // 2000バイト: まだヘッダは更新されない
+        assertEquals(0, readAll(file).getInt(40));
+        sink.write(samples, 0, samples.length, 0); // 合計4000バイト: まだ4096未満
+        sink.write(samples, 0, samples.length, 0); // 合計6000バイト: ヘッダを更新
+
+        ByteBuffer data = readAll(file);
+        int dataBytes = data.getInt(40);
+        assertTrue("header should cover flushed data, was " + dataBytes, dataBytes >= 4096 && dataBytes <= 6000);
+        assertEquals(36 + dataBytes, data.getInt(4));
+        for (int i = 0; i < dataBytes / 2; i++) {
+            assertEquals((short) (i % 1000), data.getShort(WavFileSink.HEADER_SIZE + i * 2));
+        }
+        sink.close();
+    }
+
+    @Test
+    public void writesManyBuffersAcrossPreallocatedExtents() throws Exception {
+        // 速度は benchmarks の WriterBenchmark.wavFileSink で測る。ここでは確保単位を何度も越えても欠けないことだけ確かめる
+        File file = new File(tempFolder.getRoot(), "extents.wav");
+        WavFileSink sink = new WavFileSink(file.getPath());
+        PcmFormat format = new PcmFormat(48000, 2);
+        short[] samples = ramp(format.samplesForMillis(20), 0);
+        long totalBytes = 32L * 1024 * 1024;
+        long buffers = totalBytes / (samples.length * 2L);
+
+        sink.open(format);
+        for (long i = 0; i < buffers; i++) {
+            sink.write(samples, 0, samples.length, 0);
+        }
+        sink.close();
+
+        long dataBytes = buffers * samples.length * 2;
+        assertEquals(WavFileSink.HEADER_SIZE + dataBytes, file.length());
+        try (RandomAccessFile written = new RandomAccessFile(file, "r")) {
+            byte[] header = new byte[WavFileSink.HEADER_SIZE];
+            written.readFully(header);
+            assertEquals(dataBytes, ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getInt(40));
+            // 最後のバッファの最後のサンプル
+            written.seek(file.length() - 2);
+            assertEquals(samples[samples.length - 1], Short.reverseBytes(written.readShort()));
+        }
+    }
+}
@@ -0,0 +1,58 @@
+// audiocore のベンチマーク (デスクトップのJVMで動かす)。
+//   ./gradlew :benchmarks:jmh               計測して build/results/jmh/results.csv に書き出す
+//   ./gradlew :benchmarks:jmhCompare        baseline/results.csv と比べ、10% を超え、しかも両方の誤差 (Score Error) の和より大きく悪くなった値があれば失敗する
+//   ./gradlew :benchmarks:jmhUpdateBaseline 今回の結果を新しい基準にする (コミットして共有する)
+plugins {
+    java
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+tasks.withType<JavaCompile>().configureEach {
+    options.encoding = "UTF-8"
+}
+
+dependencies {
+    jmh(project(":audiocore"))
+    jmh(libs.jmh.core)
+    jmhAnnotationProcessor(libs.jmh.generator.annprocess)
+}
+
+val results = layout.buildDirectory.file("results/jmh/results.csv")
+val baseline = layout.projectDirectory.file("baseline/results.csv")
+
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+    // スループット (ops/s) と1回あたりの時間の分布。比べるのは p50/p99 だけ (p99.9 は回数が少なくぶれが大きいので見ない)
+    benchmarkMode.set(listOf("thrpt", "sample"))
+    timeUnit.set("us")
+    // 1回あたりの確保量 (gc.alloc.rate.norm, B/op)
+    profilers.set(listOf("gc"))
+    fork.set(1)
+    warmupIterations.set(3)
+    warmup.set("1s")
+    iterations.set(5)
+    timeOnIteration.set("1s")
+    resultFormat.set("CSV")
+    resultsFile.set(results)
+}
+
+tasks.register<JavaExec>("jmhCompare") {
+    group = "benchmark"
+    description = "Compares the last JMH results with the checked-in baseline."
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("com.example.recordingapp.BenchmarkComparison")
+    args(baseline.asFile.path, results.get().asFile.path,
+        providers.gradleProperty("jmhTolerance").getOrElse("0.10"))
+}
+
+tasks.register<Copy>("jmhUpdateBaseline") {
+    group = "benchmark"
+    description = "Replaces the checked-in baseline with the last JMH results."
+    from(results)
+    into(baseline.asFile.parentFile)
+}
@@ -0,0 +1,53 @@
+package com.example.recordingapp;
+
+import java.util.Random;
+
+/**
+ * ベンチマークで共通に使う値。録音スレッドが1回に読み込む量 (48kHz ステレオの 20ms) を1バッファとする。
+ */
+final class AudioBenchmarks {
+
+    static final PcmFormat FORMAT = new PcmFormat(48000, 2);
+    static final int BUFFER_MILLIS = 20;
+    static final int BUFFER_SAMPLES = FORMAT.samplesForMillis(BUFFER_MILLIS);
+
+    private AudioBenchmarks() {
+    }
+
+    /**
+     * 話し声に近い振幅の、毎回同じ内容のバッファ
+     */
+    static short[] noiseBuffer(long seed) {
+        Random random = new Random(seed);
+        short[] buffer = new short[BUFFER_SAMPLES];
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = (short) (random.nextGaussian() * 3000);
+        }
+        return buffer;
+    }
+
+    /**
+     * 書き込んだバイト数を数えるだけのシンク
+     */
+    static final class DiscardingSink implements PcmSink {
+        private long bytes;
+
+        @Override
+        public void open(PcmFormat format) {
+        }
+
+        @Override
+        public void write(short[] buffer, int offset, int length, long presentationTimeUs) {
+            bytes += length * (long) PcmFormat.BYTES_PER_SAMPLE;
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return bytes;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
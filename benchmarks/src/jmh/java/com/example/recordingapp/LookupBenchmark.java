@@ -0,0 +1,99 @@
+package com.example.recordingapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * 録音の一覧や再生で使う読み出し側: シークインデックスの検索、波形の描画とログバッファへの追加
+ */
+@State(Scope.Thread)
+public class LookupBenchmark {
+
+    private static final long HOURS_US = 12 * 3_600_000_000L;
+    // 波形を描く録音の長さ (2時間) と、画面の列数
+    private static final long PEAK_BUFFERS = 2 * 3_600_000L / AudioBenchmarks.BUFFER_MILLIS;
+    private static final int COLUMNS = 2000;
+
+    private File seekFile;
+    private File manifestFile;
+    private SeekIndexReader reader;
+    private File peaksFile;
+    private PeakPyramidReader peaks;
+    private final short[] columnMin = new short[COLUMNS];
+    private final short[] columnMax = new short[COLUMNS];
+    private double zoom;
+    private LogBuffer logBuffer;
+    private long timeUs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        seekFile = File.createTempFile("lookup-benchmark", ".seek");
+        // 1時間ごとに分割した12時間のWAV録音のインデックス (1秒ごとに1エントリ)
+        String recordingPath = seekFile.getPath() + ".wav";
+        manifestFile = SessionManifest.forRecording(recordingPath);
+        SegmentedSink segments = new SegmentedSink(recordingPath, path -> new AudioBenchmarks.DiscardingSink(),
+                3_600_000, 0, new SessionManifest(manifestFile));
+        SeekIndexBuilder builder = new SeekIndexBuilder(seekFile.getPath(), segments, segments,
+                WavFileSink.HEADER_SIZE, SeekIndexBuilder.DEFAULT_INTERVAL_US);
+        short[] buffer = new short[AudioBenchmarks.FORMAT.samplesForMillis(100)];
+        builder.open(AudioBenchmarks.FORMAT);
+        for (long us = 0; us < HOURS_US; us += 100_000) {
+            builder.write(buffer, 0, buffer.length, us);
+        }
+        builder.close();
+        reader = new SeekIndexReader(seekFile);
+
+        peaksFile = File.createTempFile("lookup-benchmark", ".peaks");
+        PeakPyramidBuilder peaksBuilder = new PeakPyramidBuilder(peaksFile.getPath(), AudioBenchmarks.FORMAT);
+        short[] noise = AudioBenchmarks.noiseBuffer(5);
+        peaksBuilder.open();
+        for (long i = 0; i < PEAK_BUFFERS; i++) {
+            peaksBuilder.process(noise, 0, noise.length, 0);
+        }
+        peaksBuilder.close();
+        peaks = new PeakPyramidReader(peaksFile);
+        logBuffer = new LogBuffer(500);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reader.close();
+        peaks.close();
+        Files.delete(seekFile.toPath());
+        Files.delete(peaksFile.toPath());
+        Files.deleteIfExists(manifestFile.toPath());
+    }
+
+    @Benchmark
+    public long seekIndexLookup() {
+        // 黄金比で進めて、毎回ちがう位置を引く
+        timeUs = (timeUs + 2_654_435_769L) % HOURS_US;
+        return reader.seek(timeUs).byteOffset;
+    }
+
+    /**
+     * 全体表示から数秒の範囲まで、毎回ちがう拡大率で 2000 列を描く
+     */
+    @Benchmark
+    public short peakPyramidRender() {
+        zoom = (zoom + 0.6180339887) % 1;
+        long frames = peaks.getTotalFrames();
+        long span = Math.max(4000, (long) (frames * zoom * zoom * zoom));
+        long start = (long) ((frames - span) * zoom);
+        peaks.render(start, start + span, COLUMNS, columnMin, columnMax);
+        return columnMax[COLUMNS / 2];
+    }
+
+    @Benchmark
+    public long logBufferAppend() {
+        return logBuffer.append(0, "ENGINE: 録音を開始しました。");
+    }
+}
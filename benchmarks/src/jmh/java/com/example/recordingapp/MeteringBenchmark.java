@@ -0,0 +1,83 @@
+package com.example.recordingapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 書き込みスレッドで1バッファごとに動く計測の段のコスト
+ */
+@State(Scope.Thread)
+public class MeteringBenchmark {
+
+    private short[] input;
+    private LevelMeter levelMeter;
+    private VoiceActivityDetector vad;
+    private PcmFanout fanout;
+    private PcmFanout.Subscription first;
+    private PcmFanout.Subscription second;
+    private SpectrumAnalyzer spectrumAnalyzer;
+    private SpectrumFrames spectrumFrames;
+    private RealFft fft;
+    private float[] fftInput;
+    private float[] power;
+    private long checksum;
+    private final PcmFanout.Consumer consumer = (buffer, offset, length, presentationTimeUs) -> checksum += buffer[offset];
+
+    @Setup
+    public void setUp() {
+        input = AudioBenchmarks.noiseBuffer(2);
+        levelMeter = new LevelMeter(AudioBenchmarks.FORMAT, 30, new LevelSnapshot());
+        vad = new VoiceActivityDetector(AudioBenchmarks.FORMAT, 300);
+        fanout = new PcmFanout(64, AudioBenchmarks.BUFFER_SAMPLES);
+        fanout.setFormat(AudioBenchmarks.FORMAT);
+        first = fanout.subscribe();
+        second = fanout.subscribe();
+        spectrumFrames = new SpectrumFrames(64, 96);
+        spectrumAnalyzer = new SpectrumAnalyzer(AudioBenchmarks.FORMAT, spectrumFrames);
+        fft = new RealFft(2048);
+        fftInput = new float[2048];
+        for (int i = 0; i < fftInput.length; i++) {
+            fftInput[i] = input[i % input.length];
+        }
+        power = new float[fft.getBinCount()];
+    }
+
+    @Benchmark
+    public long levelMeter() {
+        levelMeter.process(input, 0, input.length, 0);
+        return levelMeter.getPublishCount();
+    }
+
+    @Benchmark
+    public boolean voiceActivityDetector() {
+        return vad.process(input, 0, input.length);
+    }
+
+    /**
+     * 1バッファ (20ms) ごとに、約21ms ごとの解析 (2048点の FFT と96帯域へのまとめ) を含む
+     */
+    @Benchmark
+    public long spectrumAnalyzer() {
+        spectrumAnalyzer.process(input, 0, input.length, 0);
+        return spectrumFrames.getNextSequence();
+    }
+
+    @Benchmark
+    public float realFft2048() {
+        fft.powerSpectrum(fftInput, power);
+        return power[100];
+    }
+
+    /**
+     * 1回公開して、2つの読み手がそれぞれ読む
+     */
+    @Benchmark
+    public long fanoutToTwoSubscribers() {
+        fanout.process(input, 0, input.length, 0);
+        first.read(consumer, 1);
+        second.read(consumer, 1);
+        return checksum;
+    }
+}
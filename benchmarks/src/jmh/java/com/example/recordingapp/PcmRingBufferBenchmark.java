@@ -0,0 +1,76 @@
+package com.example.recordingapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * 録音スレッドと書き込みスレッドの間の受け渡し ({@link PcmRingBuffer}) の1バッファあたりのコスト
+ */
+public class PcmRingBufferBenchmark {
+
+    @State(Scope.Thread)
+    public static class SingleThread {
+        PcmRingBuffer ring;
+        short[] input;
+
+        @Setup
+        public void setUp() {
+            ring = new PcmRingBuffer(16, AudioBenchmarks.BUFFER_SAMPLES);
+            input = AudioBenchmarks.noiseBuffer(1);
+        }
+    }
+
+    /**
+     * 同じスレッドで書き込んで読み出す (スレッド間の受け渡しを含まない、コピーと管理のコスト)
+     */
+    @Benchmark
+    public int writeAndPoll(SingleThread state) {
+        state.ring.write(state.input, 0, state.input.length, 0);
+        short[] slot = state.ring.poll();
+        int length = state.ring.peekLength();
+        state.ring.release();
+        return slot[0] + length;
+    }
+
+    @State(Scope.Group)
+    public static class Shared {
+        PcmRingBuffer ring;
+        short[] input;
+
+        @Setup
+        public void setUp() {
+            ring = new PcmRingBuffer(16, AudioBenchmarks.BUFFER_SAMPLES);
+            input = AudioBenchmarks.noiseBuffer(1);
+        }
+    }
+
+    /**
+     * 録音スレッド側: 空きスロットへ読み込んで公開する (満杯ならオーバーランとして数えて捨てる)
+     */
+    @Benchmark
+    @Group("handoff")
+    public void produce(Shared state) {
+        short[] slot = state.ring.claim();
+        if (slot != null) {
+            System.arraycopy(state.input, 0, slot, 0, state.input.length);
+            state.ring.publish(state.input.length, 0);
+        }
+    }
+
+    /**
+     * 書き込みスレッド側: 先頭のスロットを読んで返却する
+     */
+    @Benchmark
+    @Group("handoff")
+    public void consume(Shared state, Blackhole blackhole) {
+        short[] slot = state.ring.poll();
+        if (slot != null) {
+            blackhole.consume(slot[0]);
+            state.ring.release();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.recordingapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * 録音ファイルと付随ファイルへの書き込みの1バッファあたりのコスト。
+ * ディスクを使い切らないよう、WAVは一定のバッファ数ごとに同じファイルを開き直す (開き直しのコストも平均に含まれる)。
+ */
+@State(Scope.Thread)
+public class WriterBenchmark {
+
+    // 60秒分ごとに開き直す (約11MB)
+    private static final int BUFFERS_PER_FILE = 60_000 / AudioBenchmarks.BUFFER_MILLIS;
+
+    private File directory;
+    private short[] input;
+    private WavFileSink wav;
+    private int wavBuffers;
+    private PeakPyramidBuilder peaks;
+    private SeekIndexBuilder seekIndex;
+    private long presentationTimeUs;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("writer-benchmark").toFile();
+        input = AudioBenchmarks.noiseBuffer(3);
+        wav = new WavFileSink(new File(directory, "REC.wav").getPath());
+        wav.open(AudioBenchmarks.FORMAT);
+        wavBuffers = 0;
+        peaks = new PeakPyramidBuilder(new File(directory, "REC.peaks").getPath(), AudioBenchmarks.FORMAT);
+        peaks.open();
+        // 書き込み先は何もしないシンクにして、インデックスを作るコストだけを測る
+        seekIndex = new SeekIndexBuilder(new File(directory, "REC.seek").getPath(), new AudioBenchmarks.DiscardingSink(), null,
+                WavFileSink.HEADER_SIZE, SeekIndexBuilder.DEFAULT_INTERVAL_US);
+        seekIndex.open(AudioBenchmarks.FORMAT);
+        presentationTimeUs = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        wav.close();
+        peaks.close();
+        seekIndex.close();
+        for (File file : directory.listFiles()) {
+            Files.delete(file.toPath());
+        }
+        Files.delete(directory.toPath());
+    }
+
+    @Benchmark
+    public long wavFileSink() throws IOException {
+        if (++wavBuffers == BUFFERS_PER_FILE) {
+            wav.close();
+            wav.open(AudioBenchmarks.FORMAT);
+            wavBuffers = 0;
+        }
+        wav.write(input, 0, input.length, 0);
+        return wav.getBytesWritten();
+    }
+
+    @Benchmark
+    public long peakPyramidBuilder() {
+        peaks.process(input, 0, input.length, 0);
+        return peaks.getTotalFrames();
+    }
+
+    @Benchmark
+    public int seekIndexBuilder() throws IOException {
+        seekIndex.write(input, 0, input.length, presentationTimeUs);
+        presentationTimeUs += AudioBenchmarks.BUFFER_MILLIS * 1000L;
+        return seekIndex.getEntryCount();
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.recordingapp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * JMH の結果 (CSV) を、リポジトリに置いた基準の結果と比べる。
+ *
+ * 比べるのは各ベンチマークの主な値 (スループットか1回あたりの時間)、1回あたりの確保量 (gc.alloc.rate.norm)、
+ * 時間の分布の p50/p99 だけ (p99.9 は5秒の計測では数十個の標本で決まり、ばらつきが大きすぎるので比べない)。
+ * 単位が「ops/」で始まる値 (スループット) は大きいほど、それ以外は小さいほど良いとみなす。
+ *
+ * 許容する割合より悪くなり、しかも基準と今回の誤差の範囲 (Score Error) が重ならないものだけを回帰として表示して、
+ * 1つでもあれば終了コード 1 で終わる。誤差の無い分布の値は、同じベンチマークの主な値の相対誤差を当てはめる。
+ *
+ * 使い方: BenchmarkComparison &lt;基準のCSV&gt; &lt;今回のCSV&gt; [許容する割合 (既定 0.10)]
+ */
+public final class BenchmarkComparison {
+
+    private static final String[] COMPARED_METRICS = {"", "gc.alloc.rate.norm", "p0.50", "p0.99"};
+    // 確保量はほぼ 0 の値を比べることが多いので、これより小さい差は無視する
+    private static final double MIN_ALLOCATION_DELTA_BYTES = 1.0;
+
+    private BenchmarkComparison() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: BenchmarkComparison <baseline.csv> <results.csv> [tolerance]");
+            System.exit(2);
+        }
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.10;
+        Map<String, Result> baseline = read(Paths.get(args[0]));
+        Map<String, Result> current = read(Paths.get(args[1]));
+
+        int regressions = 0;
+        for (Result result : current.values()) {
+            Result base = baseline.get(result.key);
+            if (base == null) {
+                System.out.printf(Locale.ROOT, "  NEW   %-70s %14.3f +/- %-10.3f %s%n", result.key, result.score,
+                        errorOf(result), result.unit);
+                continue;
+            }
+            if (!base.unit.equals(result.unit)) {
+                System.out.printf(Locale.ROOT, "  SKIP  %-70s unit changed (%s -> %s)%n", result.key, base.unit, result.unit);
+                continue;
+            }
+            double change = base.score != 0 ? (result.score - base.score) / base.score : 0;
+            boolean regressed = isRegression(base, result, tolerance);
+            if (regressed) {
+                regressions++;
+            }
+            System.out.printf(Locale.ROOT, "  %-5s %-70s %14.3f +/- %-10.3f -> %14.3f +/- %-10.3f %-8s %+7.1f%%%n",
+                    regressed ? "WORSE" : "ok", result.key, base.score, errorOf(base), result.score, errorOf(result),
+                    result.unit, change * 100);
+        }
+        for (String key : baseline.keySet()) {
+            if (!current.containsKey(key)) {
+                System.out.printf(Locale.ROOT, "  GONE  %s%n", key);
+            }
+        }
+        System.out.printf(Locale.ROOT, "%d regression(s) beyond %.0f%% and the error bounds%n", regressions,
+                tolerance * 100);
+        if (regressions > 0) {
+            System.exit(1);
+        }
+    }
+
+    static boolean isRegression(Result base, Result current, double tolerance) {
+        boolean higherIsBetter = current.unit.startsWith("ops/");
+        double worse = higherIsBetter ? base.score - current.score : current.score - base.score;
+        if (current.unit.equals("B/op") && worse < MIN_ALLOCATION_DELTA_BYTES) {
+            return false;
+        }
+        // 誤差の範囲が重なっていれば、差は計測のばらつきとみなす
+        if (worse <= errorOf(base) + errorOf(current)) {
+            return false;
+        }
+        return worse > Math.abs(base.score) * tolerance;
+    }
+
+    /**
+     * 値の誤差 (99.9% 信頼区間の半分の幅)。分からなければ 0
+     */
+    static double errorOf(Result result) {
+        return Double.isNaN(result.error) ? 0 : result.error;
+    }
+
+    /**
+     * 比べる対象の行だけを、ベンチマーク名・モード・パラメータをキーにして読む
+     */
+    static Map<String, Result> read(Path csv) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<>();
+        List<String> lines = Files.readAllLines(csv, StandardCharsets.UTF_8);
+        if (lines.isEmpty()) {
+            return results;
+        }
+        List<String> header = split(lines.get(0));
+        int benchmarkColumn = header.indexOf("Benchmark");
+        int modeColumn = header.indexOf("Mode");
+        int scoreColumn = header.indexOf("Score");
+        int errorColumn = scoreColumn + 1;
+        int unitColumn = header.indexOf("Unit");
+        // 主な値の相対誤差 (キーは主な値のキー)。分布の値の誤差に使う。CSV では主な値が分布の値より先に来る
+        Map<String, Double> relativeErrors = new LinkedHashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            List<String> row = split(line);
+            // 古いJMHは副次的な値の名前の前に「·」を付ける
+            String name = row.get(benchmarkColumn).replace("·", "");
+            int colon = name.indexOf(':');
+            String metric = colon >= 0 ? name.substring(colon + 1) : "";
+            if (!isCompared(metric)) {
+                continue;
+            }
+            StringBuilder suffix = new StringBuilder(" [").append(row.get(modeColumn));
+            for (int column = unitColumn + 1; column < row.size(); column++) {
+                if (!row.get(column).isEmpty()) {
+                    suffix.append(", ").append(header.get(column)).append('=').append(row.get(column));
+                }
+            }
+            suffix.append(']');
+            String key = name + suffix;
+            double score = Double.parseDouble(row.get(scoreColumn));
+            double error = parseError(row.get(errorColumn));
+            if (metric.isEmpty()) {
+                relativeErrors.put(key, score != 0 && !Double.isNaN(error) ? error / Math.abs(score) : Double.NaN);
+            } else if (Double.isNaN(error) && metric.startsWith("p")) {
+                Double relative = relativeErrors.get(name.substring(0, colon) + suffix);
+                error = relative != null ? Math.abs(score) * relative : Double.NaN;
+            }
+            results.put(key, new Result(key, score, error, row.get(unitColumn)));
+        }
+        return results;
+    }
+
+    private static double parseError(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            // 分布の値には誤差が無い (空欄か NaN)
+            return Double.NaN;
+        }
+    }
+
+    private static boolean isCompared(String metric) {
+        for (String compared : COMPARED_METRICS) {
+            if (compared.equals(metric)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * JMH が書く CSV の1行を分ける (値は引用符で囲まれ、中に引用符やカンマは入らない)
+     */
+    private static List<String> split(String line) {
+        List<String> values = new ArrayList<>();
+        for (String value : line.split(",", -1)) {
+            values.add(value.startsWith("\"") && value.endsWith("\"") && value.length() >= 2
+                    ? value.substring(1, value.length() - 1) : value);
+        }
+        return values;
+    }
+
+    static final class Result {
+        final String key;
+        final double score;
+        // 99.9% 信頼区間の半分の幅。分からなければ NaN
+        final double error;
+        final String unit;
+
+        Result(String key, double score, double error, String unit) {
+            this.key = key;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+    }
+}
@@ -21,4 +21,6 @@ dependencyResolutionManagement {
 
 rootProject.name = "RecordingApp"
 include(":app")
+include(":audiocore")
+include(":benchmarks")
  
\ No newline at end of file